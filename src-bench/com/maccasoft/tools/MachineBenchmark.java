@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import z80core.Z80Benchmark;
+
+/**
+ * Measures the interpreter speed against the <code>Machine</code> bus, with ROM paging
+ * and the I/O port decoder in the path.
+ *
+ * The <code>execute</code> benchmark runs the same instruction mixes of <code>Z80Benchmark</code>
+ * from RAM and reports instructions per second. The <code>boot</code> benchmark runs the
+ * bundled <code>ROM.BIN</code> from reset to the SIO receive loop and reports boots per second,
+ * with the executed instructions and T-states as secondary scores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MachineBenchmark {
+
+    public static final int INSTRUCTIONS = 100000;
+
+    // Boot ROM waiting for a character from SIO port A
+    public static final int BOOT_DONE_PC = 0x004A;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public long instructions;
+        public long tstates;
+
+    }
+
+    @State(Scope.Thread)
+    public static class BootState {
+
+        Machine machine;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            machine = createMachine();
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class ProgramState {
+
+        @Param({
+            "LDIR", "ALU", "PREFIXED"
+        })
+        public String program;
+
+        Machine machine;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            machine = createMachine();
+            machine.outPort(Machine.ROM_PAGE, 0x01);
+
+            byte[] code = Z80Benchmark.assemble(Z80Benchmark.getProgram(program));
+            System.arraycopy(code, 0, machine.ram, 0, code.length);
+        }
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void execute(ProgramState state, Counters counters) {
+        Machine machine = state.machine;
+
+        long tstates = machine.getTstates();
+        for (int i = 0; i < INSTRUCTIONS; i++) {
+            machine.proc.execute();
+        }
+        counters.instructions += INSTRUCTIONS;
+        counters.tstates += machine.getTstates() - tstates;
+    }
+
+    @Benchmark
+    public void boot(BootState state, Counters counters) {
+        Machine machine = state.machine;
+        machine.reset();
+
+        long instructions = 0;
+        while (machine.proc.getRegPC() != BOOT_DONE_PC) {
+            machine.proc.execute();
+            instructions++;
+        }
+        counters.instructions += instructions;
+        counters.tstates += machine.getTstates();
+    }
+
+    static Machine createMachine() throws IOException {
+        InputStream is = Machine.class.getResourceAsStream("ROM.BIN");
+        byte[] rom = new byte[is.available()];
+        is.read(rom);
+        is.close();
+
+        Machine machine = new Machine() {
+
+            @Override
+            public int inPort(int port) {
+                switch (port & 0xFF) {
+                    case SIOA_C:
+                    case SIOB_C:
+                        return 0b00101100; // TX Buffer Empty, DCD and CTS
+                    case SIOA_D:
+                    case SIOB_D:
+                        return 0x00;
+                }
+                return super.inPort(port);
+            }
+
+        };
+        machine.setRom(0, rom);
+        machine.reset();
+
+        return machine;
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package z80core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.grauw.glass.Source;
+import nl.grauw.glass.SourceBuilder;
+
+/**
+ * Measures the raw interpreter speed against the plain <code>MemIoOps</code> bus.
+ *
+ * The primary score of <code>execute</code> is executed instructions per second, the
+ * <code>tstates</code> secondary score is the emulated T-states per second and is the one
+ * to compare with the batched <code>run</code>, <code>runBlockCache</code> and
+ * <code>runTranslator</code> benchmarks.
+ * Run with <code>-prof gc</code> (the default of the <code>benchmark</code> Ant target) to
+ * get the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Z80Benchmark {
+
+    public static final int INSTRUCTIONS = 100000;
+    public static final int TSTATES = 1000000;
+
+    static final String[] LDIR = new String[] {
+        "loop:   ld   hl,8000H",
+        "        ld   de,9000H",
+        "        ld   bc,0400H",
+        "        ldir",
+        "        jr   loop",
+    };
+
+    static final String[] ALU = new String[] {
+        "        ld   bc,1234H",
+        "        ld   de,5678H",
+        "        ld   hl,9ABCH",
+        "loop:   ld   a,55H",
+        "        add  a,b",
+        "        adc  a,c",
+        "        sub  d",
+        "        sbc  a,e",
+        "        and  h",
+        "        xor  l",
+        "        or   b",
+        "        cp   c",
+        "        inc  a",
+        "        dec  b",
+        "        rlca",
+        "        rra",
+        "        daa",
+        "        cpl",
+        "        add  a,12H",
+        "        sub  34H",
+        "        inc  hl",
+        "        dec  de",
+        "        add  hl,de",
+        "        djnz loop",
+        "        jr   loop",
+    };
+
+    static final String[] PREFIXED = new String[] {
+        "        ld   ix,8000H",
+        "        ld   iy,9000H",
+        "loop:   ld   a,(ix+1)",
+        "        add  a,(iy+2)",
+        "        ld   (ix+3),a",
+        "        inc  (iy+4)",
+        "        rlc  (ix+5)",
+        "        bit  3,(iy+6)",
+        "        set  1,(ix+7)",
+        "        res  2,(iy+8)",
+        "        set  1,b",
+        "        res  2,c",
+        "        rl   d",
+        "        srl  e",
+        "        ld   ixl,a",
+        "        ld   a,iyh",
+        "        sbc  hl,de",
+        "        adc  hl,bc",
+        "        jr   loop",
+    };
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public long tstates;
+
+    }
+
+    @Param({
+        "LDIR", "ALU", "PREFIXED"
+    })
+    public String program;
+
+    MemIoOps memory;
+    Z80 proc;
+    Z80 cachedProc;
+    Z80 translatedProc;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        memory = new MemIoOps(0x10000);
+
+        byte[] code = assemble(getProgram(program));
+        System.arraycopy(code, 0, memory.getRam(), 0, code.length);
+
+        proc = new Z80(memory, null);
+
+        cachedProc = new Z80(memory, null);
+        cachedProc.setBlockCacheEnabled(true);
+
+        translatedProc = new Z80(memory, null);
+        translatedProc.setTranslatorEnabled(true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void execute(Counters counters) {
+        long tstates = memory.getTstates();
+        for (int i = 0; i < INSTRUCTIONS; i++) {
+            proc.execute();
+        }
+        counters.tstates += memory.getTstates() - tstates;
+    }
+
+    @Benchmark
+    public void run(Counters counters) {
+        counters.tstates += proc.run(TSTATES);
+    }
+
+    @Benchmark
+    public void runBlockCache(Counters counters) {
+        counters.tstates += cachedProc.run(TSTATES);
+    }
+
+    @Benchmark
+    public void runTranslator(Counters counters) {
+        counters.tstates += translatedProc.run(TSTATES);
+    }
+
+    public static String[] getProgram(String name) {
+        if ("LDIR".equals(name)) {
+            return LDIR;
+        }
+        if ("ALU".equals(name)) {
+            return ALU;
+        }
+        if ("PREFIXED".equals(name)) {
+            return PREFIXED;
+        }
+        throw new IllegalArgumentException("Unknown program " + name);
+    }
+
+    public static byte[] assemble(String... sourceLines) {
+        StringBuilder builder = new StringBuilder();
+        for (String lineText : sourceLines) {
+            builder.append(lineText).append("\n");
+        }
+        SourceBuilder sourceBuilder = new SourceBuilder(new ArrayList<File>());
+        Source source = sourceBuilder.parse(new StringReader(builder.toString()), null);
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            source.assemble(os);
+            return os.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
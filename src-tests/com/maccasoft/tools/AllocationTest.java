@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import nl.grauw.glass.Source;
+import nl.grauw.glass.SourceBuilder;
+
+/**
+ * Checks that the steady-state emulation doesn't allocate, the allocated bytes are
+ * measured with the thread allocation counter of the JVM.
+ */
+public class AllocationTest extends TestCase {
+
+    static final long MAX_ALLOCATED_BYTES = 16 * 1024;
+
+    static final String[] PROGRAM = new String[] {
+        "        org 0",
+        "        ld  sp,0",
+        "loop:   ld  hl,0000h",
+        "        ld  de,8000h",
+        "        ld  bc,0400h",
+        "        ldir",
+        "        ld  hl,text",
+        "        ld  b,5",
+        "tx:     ld  a,(hl)",
+        "        out (81h),a",
+        "        out (40h),a",
+        "        in  a,(80h)",
+        "        inc hl",
+        "        djnz tx",
+        "        call sub",
+        "        jp  loop",
+        "sub:    push bc",
+        "        ld  a,(8000h)",
+        "        inc a",
+        "        ld  (9000h),a",
+        "        pop bc",
+        "        ret",
+        "text:   db  \"Hello\"",
+    };
+
+    com.sun.management.ThreadMXBean threadMXBean;
+
+    @Override
+    protected void setUp() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threadMXBean = (com.sun.management.ThreadMXBean) bean;
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    public void testMachine() throws Exception {
+        if (threadMXBean == null) {
+            return;
+        }
+
+        final int[] txCount = new int[1];
+        Machine machine = new Machine() {
+
+            @Override
+            public void outPort(int port, int value) {
+                if ((port & 0xFF) == SIOA_D) {
+                    txCount[0]++;
+                }
+                super.outPort(port, value);
+            }
+
+        };
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assemble(os, PROGRAM);
+        machine.setRom(0, os.toByteArray());
+        machine.reset();
+
+        machine.runTo(10000000L);
+
+        long allocated = getAllocatedBytes();
+        machine.runTo(machine.getTstates() + 50000000L);
+        allocated = getAllocatedBytes() - allocated;
+
+        assertTrue(txCount[0] != 0);
+        assertTrue("Allocated " + allocated + " bytes", allocated < MAX_ALLOCATED_BYTES);
+    }
+
+    public void testDebugger() throws Exception {
+        if (threadMXBean == null) {
+            return;
+        }
+
+        Debugger debugger = new Debugger(new PrintStream(new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                // Do nothing
+            }
+
+        }));
+        debugger.setSource(assemble(new ByteArrayOutputStream(), PROGRAM));
+
+        for (int i = 0; i < 100000; i++) {
+            debugger.stepInto();
+        }
+
+        long allocated = getAllocatedBytes();
+        for (int i = 0; i < 1000000; i++) {
+            debugger.stepInto();
+        }
+        for (int i = 0; i < 10000; i++) {
+            debugger.stepOver();
+        }
+        allocated = getAllocatedBytes() - allocated;
+
+        assertTrue("Allocated " + allocated + " bytes", allocated < MAX_ALLOCATED_BYTES);
+    }
+
+    long getAllocatedBytes() {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private Source assemble(ByteArrayOutputStream os, String... sourceLines) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (String lineText : sourceLines) {
+            builder.append(lineText).append("\n");
+        }
+        SourceBuilder sourceBuilder = new SourceBuilder(new ArrayList<File>());
+        Source source = sourceBuilder.parse(new StringReader(builder.toString()), null);
+        source.assemble(os);
+        return source;
+    }
+
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class CompactFlashTest extends TestCase {
+
+    File file;
+    CompactFlash cf;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("compactflash", ".img");
+
+        byte[] image = new byte[4 * CompactFlash.SECTOR_SIZE];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) (i >> 9);
+        }
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(image);
+        os.close();
+
+        cf = new CompactFlash();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cf.close();
+        file.delete();
+    }
+
+    public void testNotOpen() throws Exception {
+        assertEquals(-1, cf.inPort(Machine.CF_STATUS));
+        assertEquals(-1, cf.inPort(Machine.CF_DATA));
+    }
+
+    public void testIdentify() throws Exception {
+        cf.open(file);
+
+        cf.outPort(Machine.CF_COMMAND, Machine.CF_IDENTIFY & 0xFF);
+        assertEquals(0x48, cf.inPort(Machine.CF_STATUS));
+
+        byte[] data = new byte[CompactFlash.SECTOR_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) cf.inPort(Machine.CF_DATA);
+        }
+        assertEquals(0x40, cf.inPort(Machine.CF_STATUS));
+        assertEquals(4, data[16]);
+        assertEquals("EMULATED CF CARD", new String(data, 54, 16).replaceAll("(.)(.)", "$2$1").substring(0, 16));
+    }
+
+    public void testReadSectors() throws Exception {
+        cf.open(file);
+
+        setLBA(1);
+        cf.outPort(Machine.CF_SECCOUNT, 2);
+        cf.outPort(Machine.CF_COMMAND, Machine.CF_READ_SEC);
+
+        for (int i = 0; i < 2 * CompactFlash.SECTOR_SIZE; i++) {
+            assertEquals(1 + (i >> 9), cf.inPort(Machine.CF_DATA));
+        }
+        assertEquals(0x00, cf.inPort(Machine.CF_DATA));
+    }
+
+    public void testWriteSector() throws Exception {
+        cf.open(file);
+
+        setLBA(2);
+        cf.outPort(Machine.CF_SECCOUNT, 1);
+        cf.outPort(Machine.CF_COMMAND, Machine.CF_WRITE_SEC);
+
+        for (int i = 0; i < CompactFlash.SECTOR_SIZE; i++) {
+            cf.outPort(Machine.CF_DATA, i);
+        }
+        cf.sync();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(2 * CompactFlash.SECTOR_SIZE - 1);
+            assertEquals(1, raf.read());
+            for (int i = 0; i < CompactFlash.SECTOR_SIZE; i++) {
+                assertEquals(i & 0xFF, raf.read());
+            }
+            assertEquals(3, raf.read());
+        } finally {
+            raf.close();
+        }
+    }
+
+    public void testReadData() throws Exception {
+        cf.open(file);
+
+        setLBA(1);
+        cf.outPort(Machine.CF_SECCOUNT, 2);
+        cf.outPort(Machine.CF_COMMAND, Machine.CF_READ_SEC);
+
+        byte[] data = new byte[2 * CompactFlash.SECTOR_SIZE + 2];
+        cf.readData(data, 0, 100);
+        cf.readData(data, 100, data.length - 100);
+        for (int i = 0; i < 2 * CompactFlash.SECTOR_SIZE; i++) {
+            assertEquals(1 + (i >> 9), data[i]);
+        }
+        assertEquals(0x00, data[data.length - 1]);
+    }
+
+    public void testWriteData() throws Exception {
+        File delta = File.createTempFile("compactflash", ".delta");
+        try {
+            cf.open(file, delta);
+
+            byte[] data = new byte[CompactFlash.SECTOR_SIZE + 100];
+            Arrays.fill(data, (byte) 0x55);
+
+            setLBA(1);
+            cf.outPort(Machine.CF_SECCOUNT, 2);
+            cf.outPort(Machine.CF_COMMAND, Machine.CF_WRITE_SEC);
+            cf.writeData(data, 0, data.length);
+
+            assertEquals(0x55, readSector(1));
+            setLBA(2);
+            cf.outPort(Machine.CF_SECCOUNT, 1);
+            cf.outPort(Machine.CF_COMMAND, Machine.CF_READ_SEC);
+            for (int i = 0; i < CompactFlash.SECTOR_SIZE; i++) {
+                assertEquals(i < 100 ? 0x55 : 2, cf.inPort(Machine.CF_DATA));
+            }
+        } finally {
+            cf.close();
+            delta.delete();
+        }
+    }
+
+    public void testPastEnd() throws Exception {
+        cf.open(file);
+
+        setLBA(4);
+        cf.outPort(Machine.CF_SECCOUNT, 1);
+        cf.outPort(Machine.CF_COMMAND, Machine.CF_WRITE_SEC);
+        cf.outPort(Machine.CF_DATA, 0x55);
+
+        cf.outPort(Machine.CF_COMMAND, Machine.CF_READ_SEC);
+        assertEquals(0xFF, cf.inPort(Machine.CF_DATA));
+        assertEquals(4 * CompactFlash.SECTOR_SIZE, file.length());
+    }
+
+    public void testPartialSector() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(4 * CompactFlash.SECTOR_SIZE + 100);
+        raf.close();
+        cf.open(file);
+
+        byte[] data = new byte[CompactFlash.SECTOR_SIZE];
+        Arrays.fill(data, (byte) 0x55);
+        cf.write(4 * CompactFlash.SECTOR_SIZE, data, 0, data.length);
+
+        Arrays.fill(data, (byte) 0x00);
+        cf.read(4 * CompactFlash.SECTOR_SIZE, data, 0, data.length);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(i < 100 ? 0x55 : 0xFF, data[i] & 0xFF);
+        }
+        assertEquals(4 * CompactFlash.SECTOR_SIZE + 100, file.length());
+    }
+
+    public void testOverlayPartialSector() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(4 * CompactFlash.SECTOR_SIZE + 100);
+        raf.close();
+        File delta = File.createTempFile("compactflash", ".delta");
+        try {
+            cf.open(file, delta);
+
+            cf.write(4 * CompactFlash.SECTOR_SIZE + 10, new byte[] {
+                0x55
+            }, 0, 1);
+
+            byte[] data = new byte[CompactFlash.SECTOR_SIZE];
+            cf.read(4 * CompactFlash.SECTOR_SIZE, data, 0, data.length);
+            for (int i = 0; i < data.length; i++) {
+                assertEquals(i == 10 ? 0x55 : i < 100 ? 0x00 : 0xFF, data[i] & 0xFF);
+            }
+        } finally {
+            cf.close();
+            delta.delete();
+        }
+    }
+
+    public void testOverlayWrite() throws Exception {
+        File delta = File.createTempFile("compactflash", ".delta");
+        try {
+            cf.open(file, delta);
+            assertTrue(cf.isOverlay());
+
+            writeSector(2, 0x55);
+            assertEquals(1, cf.getDeltaSectors());
+            cf.sync();
+
+            assertEquals(2, readFile(file, 2 * CompactFlash.SECTOR_SIZE));
+            assertEquals(0x55, readSector(2));
+            assertEquals(1, readSector(1));
+            assertEquals(3, readSector(3));
+            assertEquals(CompactFlash.DELTA_HEADER_SIZE + CompactFlash.DELTA_RECORD_SIZE, delta.length());
+        } finally {
+            cf.close();
+            delta.delete();
+        }
+    }
+
+    public void testOverlayReopen() throws Exception {
+        File delta = File.createTempFile("compactflash", ".delta");
+        try {
+            cf.open(file, delta);
+            writeSector(1, 0x11);
+            writeSector(3, 0x33);
+            cf.close();
+
+            cf.open(file, delta);
+            assertEquals(2, cf.getDeltaSectors());
+            assertEquals(0x11, readSector(1));
+            assertEquals(2, readSector(2));
+            assertEquals(0x33, readSector(3));
+            cf.close();
+
+            cf.open(file);
+            assertEquals(1, readSector(1));
+            assertEquals(3, readSector(3));
+        } finally {
+            cf.close();
+            delta.delete();
+        }
+    }
+
+    public void testOverlaySizeMismatch() throws Exception {
+        File delta = File.createTempFile("compactflash", ".delta");
+        try {
+            cf.open(file, delta);
+            cf.close();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(8 * CompactFlash.SECTOR_SIZE);
+            raf.close();
+
+            try {
+                cf.open(file, delta);
+                fail("Expected IOException");
+            } catch (IOException e) {
+                // Expected
+            }
+            assertFalse(cf.isOpen());
+        } finally {
+            cf.close();
+            delta.delete();
+        }
+    }
+
+    public void testOverlayTruncated() throws Exception {
+        File delta = File.createTempFile("compactflash", ".delta");
+        try {
+            cf.open(file, delta);
+            writeSector(2, 0x55);
+            cf.close();
+
+            RandomAccessFile raf = new RandomAccessFile(delta, "rw");
+            raf.setLength(raf.length() - 100);
+            raf.close();
+
+            try {
+                cf.open(file, delta);
+                fail("Expected IOException");
+            } catch (IOException e) {
+                // Expected
+            }
+            assertFalse(cf.isOpen());
+        } finally {
+            cf.close();
+            delta.delete();
+        }
+    }
+
+    public void testOverlayBadSector() throws Exception {
+        File delta = File.createTempFile("compactflash", ".delta");
+        try {
+            cf.open(file, delta);
+            writeSector(2, 0x55);
+            cf.close();
+
+            RandomAccessFile raf = new RandomAccessFile(delta, "rw");
+            raf.seek(CompactFlash.DELTA_HEADER_SIZE);
+            raf.writeInt(4);
+            raf.close();
+
+            try {
+                cf.open(file, delta);
+                fail("Expected IOException");
+            } catch (IOException e) {
+                // Expected
+            }
+            assertFalse(cf.isOpen());
+        } finally {
+            cf.close();
+            delta.delete();
+        }
+    }
+
+    public void testOverlayCommitPartialSector() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(4 * CompactFlash.SECTOR_SIZE + 100);
+        raf.close();
+        File delta = File.createTempFile("compactflash", ".delta");
+        try {
+            cf.open(file, delta);
+            writeSector(4, 0x55);
+            cf.commit();
+            cf.close();
+
+            assertEquals(4 * CompactFlash.SECTOR_SIZE + 100, file.length());
+            assertEquals(0x55, readFile(file, 4 * CompactFlash.SECTOR_SIZE + 99));
+        } finally {
+            cf.close();
+            delta.delete();
+        }
+    }
+
+    public void testOverlayCommit() throws Exception {
+        File delta = File.createTempFile("compactflash", ".delta");
+        try {
+            cf.open(file, delta);
+            writeSector(2, 0x55);
+            cf.commit();
+
+            assertEquals(0, cf.getDeltaSectors());
+            assertEquals(CompactFlash.DELTA_HEADER_SIZE, delta.length());
+            assertEquals(0x55, readFile(file, 2 * CompactFlash.SECTOR_SIZE));
+            assertEquals(0x55, readSector(2));
+        } finally {
+            cf.close();
+            delta.delete();
+        }
+    }
+
+    public void testOverlayDiscard() throws Exception {
+        File delta = File.createTempFile("compactflash", ".delta");
+        try {
+            cf.open(file, delta);
+            writeSector(2, 0x55);
+            cf.sync();
+            cf.discard();
+
+            assertEquals(0, cf.getDeltaSectors());
+            assertEquals(CompactFlash.DELTA_HEADER_SIZE, delta.length());
+            assertEquals(2, readSector(2));
+            assertEquals(2, readFile(file, 2 * CompactFlash.SECTOR_SIZE));
+        } finally {
+            cf.close();
+            delta.delete();
+        }
+    }
+
+    public void testOverlayDataPages() throws Exception {
+        int sectors = 2 * (CompactFlash.DATA_MASK + 1) + 4;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength((long) sectors * CompactFlash.SECTOR_SIZE);
+        raf.close();
+
+        File delta = File.createTempFile("compactflash", ".delta");
+        try {
+            cf.open(file, delta);
+            for (int lba = sectors - 1; lba >= 0; lba--) {
+                writeSector(lba, lba * 7);
+            }
+            assertEquals(sectors, cf.getDeltaSectors());
+            cf.close();
+
+            cf.open(file, delta);
+            assertEquals(sectors, cf.getDeltaSectors());
+            for (int lba = 0; lba < sectors; lba++) {
+                assertEquals((lba * 7) & 0xFF, readSector(lba));
+            }
+            cf.commit();
+            cf.close();
+
+            cf.open(file);
+            assertEquals((CompactFlash.DATA_MASK * 7) & 0xFF, readSector(CompactFlash.DATA_MASK));
+            assertEquals(((sectors - 1) * 7) & 0xFF, readSector(sectors - 1));
+        } finally {
+            cf.close();
+            delta.delete();
+        }
+    }
+
+    void writeSector(int lba, int value) {
+        setLBA(lba);
+        cf.outPort(Machine.CF_SECCOUNT, 1);
+        cf.outPort(Machine.CF_COMMAND, Machine.CF_WRITE_SEC);
+        for (int i = 0; i < CompactFlash.SECTOR_SIZE; i++) {
+            cf.outPort(Machine.CF_DATA, value);
+        }
+    }
+
+    int readSector(int lba) {
+        setLBA(lba);
+        cf.outPort(Machine.CF_SECCOUNT, 1);
+        cf.outPort(Machine.CF_COMMAND, Machine.CF_READ_SEC);
+        int value = cf.inPort(Machine.CF_DATA);
+        for (int i = 1; i < CompactFlash.SECTOR_SIZE; i++) {
+            assertEquals(value, cf.inPort(Machine.CF_DATA));
+        }
+        return value;
+    }
+
+    int readFile(File file, long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            return raf.read();
+        } finally {
+            raf.close();
+        }
+    }
+
+    void setLBA(int lba) {
+        cf.outPort(Machine.CF_LBA0, lba & 0xFF);
+        cf.outPort(Machine.CF_LBA1, (lba >> 8) & 0xFF);
+        cf.outPort(Machine.CF_LBA2, (lba >> 16) & 0xFF);
+        cf.outPort(Machine.CF_LBA3, 0xE0 | ((lba >> 24) & 0x0F));
+    }
+
+}
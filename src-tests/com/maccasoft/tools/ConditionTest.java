@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import nl.grauw.glass.AssemblyException;
+import nl.grauw.glass.Source;
+import nl.grauw.glass.SourceBuilder;
+import z80core.MemIoOps;
+import z80core.NotifyOps;
+import z80core.Z80;
+
+public class ConditionTest extends TestCase {
+
+    Z80 proc;
+
+    @Override
+    protected void setUp() throws Exception {
+        proc = new Z80(new MemIoOps(), new NotifyOps() {
+
+            @Override
+            public int breakpoint(int address, int opcode) {
+                return opcode;
+            }
+
+            @Override
+            public void execDone() {
+
+            }
+
+        });
+    }
+
+    public void testRegisters() throws Exception {
+        proc.setRegA(0x0D);
+        proc.setRegHL(0x1234);
+        proc.setRegIX(0x8000);
+        proc.setRegPC(0x0100);
+
+        assertTrue(Condition.compile("a == 0dh", null).test(proc));
+        assertTrue(Condition.compile("A = 13", null).test(proc));
+        assertFalse(Condition.compile("a != 13", null).test(proc));
+        assertEquals(0x1234, Condition.compile("hl", null).evaluate(proc));
+        assertEquals(0x34, Condition.compile("l", null).evaluate(proc));
+        assertEquals(0x8000, Condition.compile("ix", null).evaluate(proc));
+        assertEquals(0x0100, Condition.compile("pc", null).evaluate(proc));
+    }
+
+    public void testFlags() throws Exception {
+        proc.setZeroFlag(true);
+        proc.setCarryFlag(false);
+
+        assertTrue(Condition.compile("z", null).test(proc));
+        assertFalse(Condition.compile("nz", null).test(proc));
+        assertTrue(Condition.compile("nc && z", null).test(proc));
+    }
+
+    public void testOperators() throws Exception {
+        proc.setRegBC(0x0310);
+        proc.setRegDE(0x2000);
+
+        assertTrue(Condition.compile("b == 3 && c > 0fh", null).test(proc));
+        assertTrue(Condition.compile("b == 2 || de >= 2000h", null).test(proc));
+        assertEquals(0x0620, Condition.compile("bc << 1", null).evaluate(proc));
+        assertEquals(0x0010, Condition.compile("bc & 0ffh", null).evaluate(proc));
+        assertEquals(5, Condition.compile("b == 3 ? 5 : 6", null).evaluate(proc));
+        assertTrue(Condition.compile("!(b < 3)", null).test(proc));
+    }
+
+    public void testSymbols() throws Exception {
+        SourceBuilder sourceBuilder = new SourceBuilder(new ArrayList<File>());
+        Source source = sourceBuilder.parse(new StringReader("buffer: equ 8000h\nsize: equ 10h\n"), null);
+        source.assemble(new ByteArrayOutputStream());
+
+        proc.setRegHL(0x8010);
+
+        Condition condition = Condition.compile("hl >= buffer + size", source.getScope());
+        assertTrue(condition.test(proc));
+
+        proc.setRegHL(0x800F);
+        assertFalse(condition.test(proc));
+    }
+
+    public void testConstantFolding() throws Exception {
+        Condition condition = Condition.compile("(1 + 2) * 4 == 12", null);
+        assertTrue(condition.root instanceof Condition.Constant);
+    }
+
+    public void testInvalidCondition() throws Exception {
+        try {
+            Condition.compile("undefined_symbol == 1", null);
+            fail("Condition with an undefined symbol compiled");
+        } catch (AssemblyException e) {
+            // Expected
+        }
+        try {
+            Condition.compile("a / 0", null);
+            fail("Division by zero compiled");
+        } catch (AssemblyException e) {
+            // Expected
+        }
+    }
+
+}
@@ -15,10 +15,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import junit.framework.TestCase;
 import nl.grauw.glass.Source;
 import nl.grauw.glass.SourceBuilder;
+import z80core.Z80State;
 
 public class DebuggerTest extends TestCase {
 
@@ -125,6 +128,315 @@ public class DebuggerTest extends TestCase {
         assertEquals(0x0003, debugger.proc.getRegPC());
     }
 
+    public void testStepBack() throws Exception {
+        Debugger debugger = new Debugger(System.out);
+        debugger.setSource(assemble(
+            " ld hl,1000h",
+            " ld (hl),55h",
+            " inc hl",
+            " ret"));
+        long tstates = debugger.getTstates();
+
+        debugger.stepInto();
+        debugger.stepInto();
+        debugger.stepInto();
+        assertEquals(0x55, debugger.getRam()[0x1000]);
+        assertEquals(0x1001, debugger.proc.getRegHL());
+
+        assertTrue(debugger.stepBack());
+        assertEquals(0x0005, debugger.proc.getRegPC());
+        assertEquals(0x1000, debugger.proc.getRegHL());
+
+        assertTrue(debugger.stepBack());
+        assertEquals(0x0003, debugger.proc.getRegPC());
+        assertEquals(0x00, debugger.getRam()[0x1000]);
+
+        assertTrue(debugger.stepBack());
+        assertEquals(0x0000, debugger.proc.getRegPC());
+        assertEquals(0xFFFF, debugger.proc.getRegHL());
+        assertEquals(tstates, debugger.getTstates());
+
+        assertFalse(debugger.stepBack());
+    }
+
+    public void testReverseStepOverCall() throws Exception {
+        Debugger debugger = new Debugger(System.out);
+        debugger.setSource(assemble(
+            " ld sp,8000h",
+            " call label",
+            " ret",
+            "label:",
+            " ld a,23",
+            " ret"));
+
+        debugger.stepInto();
+        debugger.stepOver();
+        assertEquals(0x0006, debugger.proc.getRegPC());
+        assertEquals(23, debugger.proc.getRegA());
+
+        assertTrue(debugger.reverseStepOver());
+        assertEquals(0x0003, debugger.proc.getRegPC());
+        assertEquals(0x8000, debugger.proc.getRegSP());
+        assertEquals(0xFF, debugger.proc.getRegA());
+
+        assertTrue(debugger.reverseStepOver());
+        assertEquals(0x0000, debugger.proc.getRegPC());
+    }
+
+    public void testRunBack() throws Exception {
+        final boolean[] breakpoint = new boolean[1];
+        Debugger debugger = new Debugger(System.out) {
+
+            @Override
+            protected boolean isBreakpoint(int address) {
+                return breakpoint[0] && address == 0x0003;
+            }
+
+        };
+        debugger.setSource(assemble(
+            " ld bc,0300h",
+            "loop:",
+            " inc c",
+            " djnz loop",
+            " ret"));
+
+        debugger.runToAddress(0x0006);
+        assertEquals(3, debugger.proc.getRegC());
+
+        breakpoint[0] = true;
+
+        assertTrue(debugger.runBack());
+        assertEquals(0x0003, debugger.proc.getRegPC());
+        assertEquals(2, debugger.proc.getRegC());
+        assertEquals(1, debugger.proc.getRegB());
+
+        assertTrue(debugger.runBack());
+        assertEquals(0x0003, debugger.proc.getRegPC());
+        assertEquals(1, debugger.proc.getRegC());
+
+        assertTrue(debugger.runBack());
+        assertEquals(0x0003, debugger.proc.getRegPC());
+        assertEquals(0, debugger.proc.getRegC());
+
+        assertTrue(debugger.runBack());
+        assertEquals(0x0000, debugger.proc.getRegPC());
+        assertFalse(debugger.runBack());
+    }
+
+    public void testHistoryKeyframes() throws Exception {
+        Debugger debugger = new Debugger(System.out);
+        debugger.setSource(assemble(
+            " ld sp,0F000h",
+            " ld hl,2000h",
+            "loop:",
+            " ld (hl),a",
+            " inc hl",
+            " push hl",
+            " exx",
+            " ex af,af'",
+            " add a,l",
+            " pop de",
+            " call sub",
+            " jr loop",
+            "sub:",
+            " ld ix,(2000h)",
+            " inc iy",
+            " scf",
+            " ccf",
+            " ret"));
+        debugger.history = new History(2048, 4096);
+
+        List<Z80State> states = new ArrayList<Z80State>();
+        List<Integer> memory = new ArrayList<Integer>();
+        List<Long> tstates = new ArrayList<Long>();
+        for (int i = 0; i < 5000; i++) {
+            states.add(debugger.proc.getZ80State());
+            memory.add(Arrays.hashCode(debugger.getRam()));
+            tstates.add(debugger.getTstates());
+            debugger.execute();
+        }
+        int size = debugger.getHistory().size();
+        assertTrue(size > 1000 && size <= 2048);
+
+        int index = states.size();
+        for (int count : new int[] {
+            1, 700, 1, 1, 1100
+        }) {
+            debugger.undo(count);
+            index -= count;
+            assertState(states.get(index), debugger.proc.getZ80State());
+            assertEquals(memory.get(index).intValue(), Arrays.hashCode(debugger.getRam()));
+            assertEquals(tstates.get(index).longValue(), debugger.getTstates());
+        }
+    }
+
+    public void testWriteWatchpoint() throws Exception {
+        Debugger debugger = new Debugger(System.out);
+        debugger.setSource(assemble(
+            " ld hl,2000h",
+            " ld b,10",
+            "loop:",
+            " ld (hl),b",
+            " inc hl",
+            " djnz loop",
+            " halt"));
+        debugger.getWatchpoints().add(0x2003, 0x2003, Watchpoints.WRITE, Watchpoints.ANY_VALUE);
+
+        debugger.runToAddress(0x0009);
+
+        assertEquals(0x0006, debugger.proc.getRegPC());
+        assertEquals(0x2003, debugger.getWatchpoints().getHitAddress());
+        assertEquals(Watchpoints.WRITE, debugger.getWatchpoints().getHitType());
+        assertEquals(7, debugger.getWatchpoints().getHitValue());
+        assertEquals(7, debugger.getRam()[0x2003]);
+
+        debugger.runToAddress(0x0009);
+
+        assertEquals(0x0009, debugger.proc.getRegPC());
+        assertNull(debugger.getWatchpoints().getHit());
+    }
+
+    public void testValueWatchpoint() throws Exception {
+        Debugger debugger = new Debugger(System.out);
+        debugger.setSource(assemble(
+            " ld hl,2000h",
+            " ld b,10",
+            "loop:",
+            " ld (hl),b",
+            " inc hl",
+            " djnz loop",
+            " halt"));
+        debugger.getWatchpoints().add(0x2000, 0x20FF, Watchpoints.WRITE, 3);
+
+        debugger.runToAddress(0x0009);
+
+        assertEquals(0x2007, debugger.getWatchpoints().getHitAddress());
+        assertEquals(3, debugger.getWatchpoints().getHitValue());
+    }
+
+    public void testReadWatchpoint() throws Exception {
+        Debugger debugger = new Debugger(System.out);
+        debugger.setSource(assemble(
+            " ld hl,2000h",
+            " ld (hl),a",
+            " ld a,(2001h)",
+            " ld a,(hl)",
+            " nop",
+            " halt"));
+        debugger.getWatchpoints().add(0x2000, 0x2000, Watchpoints.READ, Watchpoints.ANY_VALUE);
+
+        debugger.runToAddress(0x0009);
+
+        assertEquals(0x0008, debugger.proc.getRegPC());
+        assertEquals(Watchpoints.READ, debugger.getWatchpoints().getHitType());
+    }
+
+    public void testReadWatchpointOperands() throws Exception {
+        Debugger debugger = new Debugger(System.out);
+        debugger.setSource(assemble(
+            " ld hl,2000h",
+            " ld a,(0001h)",
+            " halt"));
+        debugger.getWatchpoints().add(0x0001, 0x0002, Watchpoints.READ, Watchpoints.ANY_VALUE);
+
+        debugger.runToAddress(0x0006);
+
+        assertEquals(0x0006, debugger.proc.getRegPC());
+        assertEquals(0x0001, debugger.getWatchpoints().getHitAddress());
+    }
+
+    public void testWatchpointPages() throws Exception {
+        Watchpoints watchpoints = new Watchpoints();
+        Watchpoints.Watchpoint w1 = watchpoints.add(0x20F0, 0x2210, Watchpoints.ACCESS, Watchpoints.ANY_VALUE);
+        Watchpoints.Watchpoint w2 = watchpoints.add(0x2105, 0x2105, Watchpoints.WRITE, Watchpoints.ANY_VALUE);
+
+        assertNull(watchpoints.pages[0x1F]);
+        assertEquals(1, watchpoints.pages[0x20].length);
+        assertEquals(2, watchpoints.pages[0x21].length);
+        assertEquals(1, watchpoints.pages[0x22].length);
+        assertNull(watchpoints.pages[0x23]);
+        assertFalse(watchpoints.isWatched(0x20EF));
+        assertTrue(watchpoints.isWatched(0x20F0));
+        assertEquals(2, watchpoints.get(0x2105).size());
+
+        watchpoints.remove(w1);
+
+        assertNull(watchpoints.pages[0x20]);
+        assertEquals(1, watchpoints.pages[0x21].length);
+        assertNull(watchpoints.pages[0x22]);
+
+        watchpoints.remove(w2);
+
+        assertNull(watchpoints.pages[0x21]);
+    }
+
+    public void testConditionalBreakpoint() throws Exception {
+        Debugger debugger = new Debugger(System.out) {
+
+            @Override
+            protected boolean isBreakpoint(int address) {
+                return address == 0x0003;
+            }
+
+        };
+        debugger.setSource(assemble(
+            " ld bc,0500h",
+            "loop:",
+            " inc c",
+            " djnz loop",
+            " halt"));
+        debugger.setBreakpointCondition(0x0003, "b == 2", 0);
+
+        debugger.run();
+        assertEquals(0x0003, debugger.proc.getRegPC());
+        assertEquals(2, debugger.proc.getRegB());
+        assertEquals(3, debugger.proc.getRegC());
+    }
+
+    public void testCountedBreakpoint() throws Exception {
+        Debugger debugger = new Debugger(System.out) {
+
+            @Override
+            protected boolean isBreakpoint(int address) {
+                return address == 0x0003;
+            }
+
+        };
+        debugger.setSource(assemble(
+            " ld bc,0500h",
+            "loop:",
+            " inc c",
+            " djnz loop",
+            " halt"));
+        debugger.setBreakpointCondition(0x0003, null, 3);
+
+        debugger.run();
+        assertEquals(0x0003, debugger.proc.getRegPC());
+        assertEquals(2, debugger.proc.getRegC());
+        assertEquals(3, debugger.getBreakpointCondition(0x0003).getHits());
+
+        debugger.setBreakpointCondition(0x0003, "", 0);
+        assertNull(debugger.getBreakpointCondition(0x0003));
+    }
+
+    void assertState(Z80State expected, Z80State actual) {
+        assertEquals(expected.getRegPC(), actual.getRegPC());
+        assertEquals(expected.getRegSP(), actual.getRegSP());
+        assertEquals(expected.getRegAF(), actual.getRegAF());
+        assertEquals(expected.getRegBC(), actual.getRegBC());
+        assertEquals(expected.getRegDE(), actual.getRegDE());
+        assertEquals(expected.getRegHL(), actual.getRegHL());
+        assertEquals(expected.getRegAFx(), actual.getRegAFx());
+        assertEquals(expected.getRegBCx(), actual.getRegBCx());
+        assertEquals(expected.getRegDEx(), actual.getRegDEx());
+        assertEquals(expected.getRegHLx(), actual.getRegHLx());
+        assertEquals(expected.getRegIX(), actual.getRegIX());
+        assertEquals(expected.getRegIY(), actual.getRegIY());
+        assertEquals(expected.getRegR(), actual.getRegR());
+        assertEquals(expected.getMemPtr(), actual.getMemPtr());
+        assertEquals(expected.isFlagQ(), actual.isFlagQ());
+    }
+
     private Source assemble(String... sourceLines) {
         StringBuilder builder = new StringBuilder();
         for (String lineText : sourceLines) {
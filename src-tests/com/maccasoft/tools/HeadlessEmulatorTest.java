@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+public class HeadlessEmulatorTest extends TestCase {
+
+    HeadlessEmulator emulator;
+    PipedOutputStream input;
+    ByteArrayOutputStream output;
+
+    @Override
+    protected void setUp() throws Exception {
+        emulator = new HeadlessEmulator(Machine.MEMORY_SBC);
+        emulator.getMachine().setMaxSpeed(true);
+
+        input = new PipedOutputStream();
+        output = new ByteArrayOutputStream();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        emulator.stop();
+    }
+
+    public void testSerialConsole() throws Exception {
+        InputStream is = Machine.class.getResourceAsStream("ROM.BIN");
+        byte[] rom = new byte[is.available()];
+        is.read(rom);
+        is.close();
+        emulator.getMachine().setRom(0, rom);
+
+        emulator.start(new PipedInputStream(input), output);
+
+        assertTrue(waitFor("Type ? for options"));
+        input.write("BC\r".getBytes());
+        input.flush();
+        assertTrue(waitFor("Bytes free"));
+        input.write("PRINT 6*7\r".getBytes());
+        input.flush();
+        assertTrue(waitFor(" 42 "));
+    }
+
+    public void testAssembledRom() throws Exception {
+        File file = File.createTempFile("rom", ".asm");
+        try {
+            FileWriter writer = new FileWriter(file);
+            writer.write("        org 0\n");
+            writer.write("        ld  hl,text\n");
+            writer.write("loop:   ld  a,(hl)\n");
+            writer.write("        or  a\n");
+            writer.write("        jr  z,$\n");
+            writer.write("        out (81h),a\n");
+            writer.write("        inc hl\n");
+            writer.write("        jr  loop\n");
+            writer.write("text:   db  \"Hello\",0\n");
+            writer.close();
+
+            emulator.setRom(0, file, new ArrayList<File>());
+        } finally {
+            file.delete();
+        }
+
+        emulator.start(new PipedInputStream(input), output);
+
+        assertTrue(waitFor("Hello"));
+    }
+
+    public void testRxInterrupt() throws Exception {
+        File file = File.createTempFile("rom", ".asm");
+        try {
+            FileWriter writer = new FileWriter(file);
+            writer.write("        org 0\n");
+            writer.write("        ld  sp,0\n");
+            writer.write("        im  1\n");
+            writer.write("        ei\n");
+            writer.write("loop:   halt\n");
+            writer.write("        jr  loop\n");
+            writer.write("        ds  38h - $\n");
+            writer.write("        in  a,(81h)\n");
+            writer.write("        out (81h),a\n");
+            writer.write("        ei\n");
+            writer.write("        ret\n");
+            writer.close();
+
+            emulator.setRom(0, file, new ArrayList<File>());
+        } finally {
+            file.delete();
+        }
+        emulator.getMachine().setRxInterrupt(true);
+
+        emulator.start(new PipedInputStream(input), output);
+
+        input.write("Hello".getBytes());
+        input.flush();
+        assertTrue(waitFor("Hello"));
+    }
+
+    public void testFailedClientKeepsNewClient() throws Exception {
+        final OutputStream newClient = new ByteArrayOutputStream();
+        OutputStream oldClient = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                // A new client connects while the old one is failing
+                emulator.txOutput.set(newClient);
+                throw new IOException();
+            }
+
+        };
+        emulator.txOutput.set(oldClient);
+
+        emulator.getMachine().transmit('A');
+        assertSame(newClient, emulator.txOutput.get());
+
+        emulator.getMachine().transmit('B');
+        assertEquals("B", newClient.toString());
+    }
+
+    boolean waitFor(String text) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < timeout) {
+            synchronized (emulator.getMachine().proc) {
+                if (output.toString().contains(text)) {
+                    return true;
+                }
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+}
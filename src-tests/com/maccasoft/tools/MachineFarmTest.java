@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MachineFarmTest extends TestCase {
+
+    MachineFarm farm;
+
+    @Override
+    protected void setUp() throws Exception {
+        byte[] rom = new byte[Machine.getRomSize(Machine.MEMORY_SBC)];
+        InputStream is = Machine.class.getResourceAsStream("ROM.BIN");
+        try {
+            is.read(rom);
+        } finally {
+            is.close();
+        }
+        farm = new MachineFarm(Machine.MEMORY_SBC, rom);
+    }
+
+    MachineFarm.Scenario basic(String name, String statement, String result) {
+        return new MachineFarm.Scenario(name) //
+            .expect("Type ? for options") //
+            .send("BC\r") //
+            .expect("Bytes free") //
+            .send(statement + "\r") //
+            .expect(result);
+    }
+
+    public void testScenario() throws Exception {
+        MachineFarm.Result result = farm.run(basic("print", "PRINT 2+3", " 5 "));
+
+        assertTrue(result.isPassed());
+        assertEquals(5, result.getStep());
+        assertTrue(result.getOutput().contains("Z80 BASIC Ver 4.7b"));
+        assertTrue(result.getTstates() > 0);
+        assertTrue(result.getMHz() > 0);
+    }
+
+    public void testTimeout() throws Exception {
+        MachineFarm.Scenario scenario = basic("timeout", "PRINT 2+3", " 6 ").timeout(7372800L * 2);
+        MachineFarm.Result result = farm.run(scenario);
+
+        assertFalse(result.isPassed());
+        assertEquals(4, result.getStep());
+        assertTrue(result.getTstates() >= 7372800L * 2);
+    }
+
+    public void testParallel() throws Exception {
+        List<MachineFarm.Scenario> scenarios = new ArrayList<MachineFarm.Scenario>();
+        for (int i = 0; i < 8; i++) {
+            scenarios.add(basic("print" + i, "PRINT " + i + "*3", " " + (i * 3) + " "));
+        }
+
+        List<MachineFarm.Result> results = farm.run(scenarios, 4);
+
+        assertEquals(8, results.size());
+        for (int i = 0; i < 8; i++) {
+            assertSame(scenarios.get(i), results.get(i).getScenario());
+            assertTrue(results.get(i).isPassed());
+        }
+        assertEquals(results.get(0).getTstates(), farm.run(scenarios.get(0)).getTstates());
+    }
+
+    public void testReadScenario() throws Exception {
+        File file = File.createTempFile("scenario", ".txt");
+        try {
+            FileWriter writer = new FileWriter(file);
+            writer.write("# Comment\n");
+            writer.write("expect Type ? for options\n");
+            writer.write("send BC\\r\\x0D\n");
+            writer.write("\n");
+            writer.write("timeout 1000\n");
+            writer.close();
+
+            MachineFarm.Scenario scenario = MachineFarm.readScenario(file);
+            assertEquals(file.getName(), scenario.getName());
+            assertEquals(2, scenario.steps.size());
+            assertEquals("Type ? for options", scenario.steps.get(0));
+            assertEquals("BC\r\r", scenario.steps.get(1));
+            assertEquals(Boolean.FALSE, scenario.send.get(0));
+            assertEquals(Boolean.TRUE, scenario.send.get(1));
+            assertEquals(1000, scenario.timeout);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testReadScenarioBadEscape() throws Exception {
+        for (String text : new String[] {
+            "send AB\\x", "send AB\\x4", "send AB\\xG0"
+        }) {
+            File file = File.createTempFile("scenario", ".txt");
+            try {
+                FileWriter writer = new FileWriter(file);
+                writer.write("expect Type ? for options\n");
+                writer.write(text + "\n");
+                writer.close();
+
+                MachineFarm.readScenario(file);
+                fail("Expected IOException");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().startsWith(file.getName() + ":2: "));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    public void testCompactFlashError() throws Exception {
+        File file = File.createTempFile("compactflash", ".img");
+        file.delete();
+
+        MachineFarm.Scenario scenario = basic("cf", "PRINT 2+3", " 5 ").compactFlash(file);
+        MachineFarm.Result result = farm.run(scenario);
+
+        assertFalse(result.isPassed());
+        assertNotNull(result.getError());
+        assertEquals(0, result.getTstates());
+    }
+
+}
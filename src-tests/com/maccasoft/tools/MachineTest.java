@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import z80core.TraceReader;
+
+public class MachineTest extends TestCase {
+
+    public void testVSyncTiming() throws Exception {
+        final List<Long> vsync = new ArrayList<Long>();
+        Machine machine = new Machine() {
+
+            @Override
+            protected void onTMS9918VSync() {
+                vsync.add(getTstates());
+            }
+
+        };
+        machine.reset();
+        machine.outPort(Machine.ROM_PAGE, 0x01);
+        machine.poke8(0x0000, 0x18); // jr $
+        machine.poke8(0x0001, 0xFE);
+        machine.reset();
+        machine.outPort(Machine.ROM_PAGE, 0x01);
+
+        long frameNs = 63500L * 262;
+        long frameTstates = machine.pacer.toTstates(frameNs);
+        machine.runTo(frameTstates * 4 + frameTstates / 2);
+
+        assertEquals(4, vsync.size());
+        assertTrue(Math.abs(vsync.get(0) - frameTstates) <= 12);
+        for (int i = 1; i < vsync.size(); i++) {
+            long period = vsync.get(i) - vsync.get(i - 1);
+            assertTrue(Math.abs(period - frameTstates) <= 12);
+        }
+    }
+
+    class PollingMachine extends Machine {
+
+        boolean ready;
+        int device;
+
+        PollingMachine(boolean idleSkip, byte[] code) throws Exception {
+            setIdleSkipEnabled(idleSkip);
+            setRom(0, code);
+            reset();
+
+            device = scheduler.addDevice(new Scheduler.Device() {
+
+                @Override
+                public void onEvent(long tstates) {
+                    ready = true;
+                    scheduler.schedule(device, tstates + 7001);
+                }
+
+            });
+            scheduler.schedule(device, 7001);
+        }
+
+        @Override
+        public int inPort(int port) {
+            int result = super.inPort(port);
+            switch (port & 0xFF) {
+                case 0x80:
+                    return ready ? 0x01 : 0x00;
+                case 0x81:
+                    ready = false;
+                    return 0x55;
+            }
+            return result;
+        }
+
+        @Override
+        protected boolean isIdlePort(int port) {
+            return port == 0x80;
+        }
+
+    }
+
+    static final byte[] POLLING = new byte[] {
+        (byte) 0xDB, (byte) 0x80, // loop: in  a,(80h)
+        (byte) 0xE6, (byte) 0x01, //       and 1
+        (byte) 0x28, (byte) 0xFA, //       jr  z,loop
+        (byte) 0xDB, (byte) 0x81, //       in  a,(81h)
+        (byte) 0x04, //                    inc b
+        (byte) 0x18, (byte) 0xF5, //       jr  loop
+    };
+
+    static final byte[] HALTED = new byte[] {
+        (byte) 0xDB, (byte) 0x80, // loop: in  a,(80h)
+        (byte) 0xCB, (byte) 0x47, //       bit 0,a
+        (byte) 0xCA, (byte) 0x00, (byte) 0x00, // jp  z,loop
+        (byte) 0x76, //                    halt
+    };
+
+    public void testSkipPollLoop() throws Exception {
+        assertSkipIdle(POLLING);
+    }
+
+    public void testSkipHalt() throws Exception {
+        assertSkipIdle(HALTED);
+    }
+
+    void assertSkipIdle(byte[] code) throws Exception {
+        PollingMachine machine1 = new PollingMachine(false, code);
+        PollingMachine machine2 = new PollingMachine(true, code);
+
+        for (long target = 1000; target < 200000; target += 1537) {
+            machine1.runTo(target);
+            machine2.runTo(target);
+
+            assertEquals(machine1.getTstates(), machine2.getTstates());
+            assertEquals(machine1.proc.getRegPC(), machine2.proc.getRegPC());
+            assertEquals(machine1.proc.getRegAF(), machine2.proc.getRegAF());
+            assertEquals(machine1.proc.getRegBC(), machine2.proc.getRegBC());
+            assertEquals(machine1.proc.getRegR(), machine2.proc.getRegR());
+            assertEquals(machine1.proc.getMemPtr(), machine2.proc.getMemPtr());
+            assertEquals(machine1.proc.isHalted(), machine2.proc.isHalted());
+        }
+
+        assertEquals(0, machine1.getSkippedTstates());
+        assertTrue(machine2.getSkippedTstates() > 100000);
+    }
+
+    public void testMemoryMapReadOnly() throws Exception {
+        byte[] rom = new byte[0x8000];
+        byte[] ram = new byte[0x8000];
+        rom[0x4123] = 0x55;
+
+        MemoryMap memory = new MemoryMap(MemoryMap.PAGE_4K);
+        assertEquals(16, memory.getSlots());
+        memory.map(0, rom, 4, true);
+        memory.map(1, ram, 7, false);
+
+        assertEquals(0x55, memory.read(0x0123));
+        memory.write(0x0123, 0xAA);
+        assertEquals(0x55, memory.read(0x0123));
+        assertEquals(0x55, rom[0x4123]);
+
+        memory.write(0x1FFF, 0xAA);
+        assertEquals(0xAA, memory.read(0x1FFF));
+        assertEquals((byte) 0xAA, ram[0x7FFF]);
+    }
+
+    public void testMemoryMapPageOutsideBank() throws Exception {
+        MemoryMap memory = new MemoryMap(MemoryMap.PAGE_16K);
+        try {
+            memory.map(0, new byte[0x8000], 2, false);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testRomPaging() throws Exception {
+        Machine machine = new Machine();
+        machine.setRom(0, new byte[] {
+            0x11, 0x22
+        });
+        machine.reset();
+
+        machine.poke8(0x0000, 0x33);
+        assertEquals(0x11, machine.peek8(0x0000));
+
+        machine.outPort(Machine.ROM_PAGE, 0x01);
+        assertEquals(0x00, machine.peek8(0x0000));
+        machine.poke8(0x0000, 0x33);
+        assertEquals(0x33, machine.peek8(0x0000));
+
+        machine.outPort(Machine.ROM_PAGE, 0x00);
+        assertEquals(0x11, machine.peek8(0x0000));
+        assertEquals(0x22, machine.peek8(0x0001));
+    }
+
+    public void testPagingDisabledAtReset() throws Exception {
+        Machine machine = new Machine(Machine.MEMORY_512K);
+        machine.setRom(0, new byte[] {
+            0x11
+        });
+        machine.reset();
+
+        assertEquals(0x11, machine.peek8(0x0000));
+        assertEquals(0x11, machine.peek8(0x4000));
+        assertEquals(0x11, machine.peek8(0x8000));
+        assertEquals(0x11, machine.peek8(0xC000));
+
+        machine.poke8(0xC000, 0x22);
+        assertEquals(0x11, machine.peek8(0xC000));
+    }
+
+    public void testBankSwitching() throws Exception {
+        Machine machine = new Machine(Machine.MEMORY_512K);
+        machine.reset();
+
+        machine.outPort(Machine.MPGSEL_0, 0x05);
+        machine.outPort(Machine.MPGSEL_1, 0x20);
+        machine.outPort(Machine.MPGSEL_2, 0x21);
+        machine.outPort(Machine.MPGSEL_3, 0x3F);
+        machine.outPort(Machine.MPGENA, 0x01);
+
+        machine.rom[5 * 0x4000 + 0x10] = 0x44;
+        assertEquals(0x44, machine.peek8(0x0010));
+        machine.poke8(0x0010, 0x00);
+        assertEquals(0x44, machine.peek8(0x0010));
+
+        machine.poke8(0x4000, 0x55);
+        machine.poke8(0xFFFF, 0x66);
+        assertEquals(0x55, machine.ram[0]);
+        assertEquals(0x66, machine.ram[0x7FFFF]);
+
+        machine.outPort(Machine.MPGSEL_2, 0x20);
+        assertEquals(0x55, machine.peek8(0x8000));
+    }
+
+    public void testBankSwitchingDiscardsDecodedCode() throws Exception {
+        Machine machine = new Machine(Machine.MEMORY_512K);
+        machine.reset();
+
+        machine.outPort(Machine.MPGSEL_0, 0x20);
+        machine.outPort(Machine.MPGSEL_1, 0x21);
+        machine.outPort(Machine.MPGENA, 0x01);
+
+        // Page 21H: ld a,1 / halt, page 22H: ld a,2 / halt
+        machine.ram[0x4000] = 0x3E;
+        machine.ram[0x4001] = 0x01;
+        machine.ram[0x4002] = 0x76;
+        machine.ram[0x8000] = 0x3E;
+        machine.ram[0x8001] = 0x02;
+        machine.ram[0x8002] = 0x76;
+
+        machine.proc.setRegPC(0x4000);
+        machine.proc.run(100);
+        assertEquals(0x01, machine.proc.getRegA());
+
+        machine.outPort(Machine.MPGSEL_1, 0x22);
+        machine.proc.setHalted(false);
+        machine.proc.setRegPC(0x4000);
+        machine.proc.run(100);
+        assertEquals(0x02, machine.proc.getRegA());
+    }
+
+    public void testWriteThroughAliasDiscardsDecodedCode() throws Exception {
+        Machine machine = new Machine(Machine.MEMORY_512K);
+        machine.reset();
+
+        // Page 21H mapped at 4000H and 8000H
+        machine.outPort(Machine.MPGSEL_0, 0x20);
+        machine.outPort(Machine.MPGSEL_1, 0x21);
+        machine.outPort(Machine.MPGSEL_2, 0x21);
+        machine.outPort(Machine.MPGENA, 0x01);
+
+        machine.ram[0x4000] = 0x3E; // ld a,1 / halt
+        machine.ram[0x4001] = 0x01;
+        machine.ram[0x4002] = 0x76;
+
+        machine.proc.setRegPC(0x4000);
+        machine.proc.run(100);
+        assertEquals(0x01, machine.proc.getRegA());
+
+        machine.poke8(0x8001, 0x02);
+        machine.proc.setHalted(false);
+        machine.proc.setRegPC(0x4000);
+        machine.proc.run(100);
+        assertEquals(0x02, machine.proc.getRegA());
+    }
+
+    public void testResetRestartsTrace() throws Exception {
+        File file = File.createTempFile("trace", ".bin");
+        try {
+            Machine machine = new Machine();
+            machine.setRom(0, new byte[] {
+                (byte) 0x00, (byte) 0x18, (byte) 0xFD // nop / jr $-1
+            });
+            machine.reset();
+            machine.startTrace(file, 1024);
+            machine.runTo(1000);
+            machine.reset();
+            machine.runTo(100);
+            machine.stopTrace();
+
+            TraceReader reader = new TraceReader(file);
+            try {
+                assertEquals(0, reader.getFirst());
+                assertTrue(reader.getLast() < 20);
+                for (long i = reader.getFirst() + 1; i < reader.getLast(); i++) {
+                    assertTrue(reader.getTstates(i) > reader.getTstates(i - 1));
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testTransmitFullChangesAtDeviceEvents() throws Exception {
+        final boolean[] full = new boolean[1];
+        Machine machine = new Machine() {
+
+            @Override
+            protected boolean isTransmitFull() {
+                return full[0];
+            }
+
+        };
+        machine.reset();
+
+        full[0] = true;
+        machine.outPort(Machine.SIOA_D, 'A');
+        assertEquals(0x00, machine.inPort(Machine.SIOA_C) & 0x04);
+
+        full[0] = false;
+        assertEquals(0x00, machine.inPort(Machine.SIOA_C) & 0x04);
+
+        machine.scheduler.dispatch(machine.scheduler.getDeadline(machine.rxDevice));
+        assertEquals(0x04, machine.inPort(Machine.SIOA_C) & 0x04);
+    }
+
+}
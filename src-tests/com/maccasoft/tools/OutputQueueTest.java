@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class OutputQueueTest extends TestCase {
+
+    final List<Boolean> drains = new ArrayList<Boolean>();
+
+    OutputQueue createQueue(int capacity, int threshold) {
+        return new OutputQueue(capacity, threshold) {
+
+            @Override
+            protected void scheduleDrain(boolean immediate) {
+                drains.add(immediate);
+            }
+
+        };
+    }
+
+    public void testDelayedDrain() throws Exception {
+        OutputQueue queue = createQueue(16, 8);
+
+        assertTrue(queue.offer('A'));
+        assertTrue(queue.offer('B'));
+        assertEquals(1, drains.size());
+        assertFalse(drains.get(0));
+
+        assertEquals(2, queue.beginDrain());
+        assertEquals('A', queue.poll());
+        assertEquals('B', queue.poll());
+        assertEquals(-1, queue.poll());
+
+        assertTrue(queue.offer('C'));
+        assertEquals(2, drains.size());
+        assertFalse(drains.get(1));
+    }
+
+    public void testThreshold() throws Exception {
+        OutputQueue queue = createQueue(16, 8);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(2, drains.size());
+        assertFalse(drains.get(0));
+        assertTrue(drains.get(1));
+    }
+
+    public void testFull() throws Exception {
+        OutputQueue queue = createQueue(4, 8);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertTrue(queue.isFull());
+        assertFalse(queue.offer(4));
+        assertFalse(queue.offer(5));
+        assertEquals(2, queue.getDropped());
+
+        queue.beginDrain();
+        assertEquals(0, queue.poll());
+        assertFalse(queue.isFull());
+        assertTrue(queue.offer(6));
+        assertEquals(2, queue.getDropped());
+    }
+
+    public void testClear() throws Exception {
+        OutputQueue queue = createQueue(16, 8);
+
+        queue.offer('A');
+        queue.offer('B');
+        queue.clear();
+
+        assertEquals(0, queue.size());
+        assertEquals(-1, queue.poll());
+    }
+
+}
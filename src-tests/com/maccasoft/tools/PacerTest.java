@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import junit.framework.TestCase;
+
+public class PacerTest extends TestCase {
+
+    public void testNoDriftOverHours() throws Exception {
+        Pacer pacer = new Pacer(7372800L);
+
+        long hours = 24;
+        assertEquals(hours * 3600L * Pacer.NANOS_PER_SECOND, pacer.toNanos(hours * 3600L * 7372800L));
+        assertEquals(hours * 3600L * 7372800L, pacer.toTstates(hours * 3600L * Pacer.NANOS_PER_SECOND));
+    }
+
+    public void testConversion() throws Exception {
+        Pacer pacer = new Pacer(7372800L);
+
+        assertEquals(135, pacer.toNanos(1));
+        assertEquals(1356, pacer.toNanos(10));
+        assertEquals(7, pacer.toTstates(1000));
+
+        for (long tstates = 0; tstates < 100000; tstates += 7) {
+            long nanos = pacer.toNanos(tstates);
+            assertEquals(tstates, pacer.toTstates(nanos + 1));
+            assertEquals(tstates, pacer.toTstatesCeil(nanos));
+        }
+    }
+
+    public void testSetClock() throws Exception {
+        Pacer pacer = new Pacer(7372800L);
+        pacer.setClock(4000000L);
+
+        assertEquals(250, pacer.toNanos(1));
+        assertEquals(4000000L, pacer.toTstates(Pacer.NANOS_PER_SECOND));
+    }
+
+    public void testWaitFor() throws Exception {
+        Pacer pacer = new Pacer(1000000L);
+        pacer.start(0);
+
+        long start = System.nanoTime();
+        pacer.waitFor(2000);
+        long elapsed = System.nanoTime() - start;
+
+        assertTrue(elapsed >= 2000000L);
+    }
+
+    public void testSliceGrowsWhenBehind() throws Exception {
+        Pacer pacer = new Pacer(1000000L);
+        pacer.start(0);
+        Thread.sleep(5);
+
+        pacer.waitFor(1000);
+        assertEquals(Pacer.MIN_SLICE_NS * 2, pacer.getSlice());
+    }
+
+}
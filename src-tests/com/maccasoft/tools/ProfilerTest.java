@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import nl.grauw.glass.Source;
+import nl.grauw.glass.SourceBuilder;
+
+public class ProfilerTest extends TestCase {
+
+    Debugger debugger;
+
+    @Override
+    protected void setUp() throws Exception {
+        debugger = new Debugger(System.out);
+        debugger.setSource(assemble(
+            " org 100h",
+            " ld sp,8000h",
+            " ld b,3",
+            "loop:",
+            " call sub",
+            " djnz loop",
+            " halt",
+            "sub: PROC",
+            " ld a,1",
+            " nop",
+            " ret",
+            " ENDP"));
+        debugger.setProfilerEnabled(true);
+        debugger.runToAddress(0x010A);
+    }
+
+    public void testAddressCounts() throws Exception {
+        Profiler profiler = debugger.getProfiler();
+
+        assertEquals(1, profiler.getCount(0x0100));
+        assertEquals(3, profiler.getCount(0x0105));
+        assertEquals(3, profiler.getCount(0x010B));
+        assertEquals(3 * 7, profiler.getTstates(0x010B));
+        assertEquals(3 * 10, profiler.getTstates(0x010E));
+        assertEquals(0, profiler.getCount(0x010A));
+    }
+
+    public void testCallInclusive() throws Exception {
+        Profiler profiler = debugger.getProfiler();
+
+        assertEquals(3, profiler.getCalls(0x010B));
+        assertEquals(3 * (17 + 7 + 4 + 10), profiler.getInclusiveTstates(0x010B));
+        assertEquals(0, profiler.getCalls(0x0105));
+    }
+
+    public void testLineTotals() throws Exception {
+        Profiler profiler = debugger.getProfiler();
+        SourceMap sourceMap = debugger.getSourceMap();
+
+        long[] counts = profiler.getLineCounts(sourceMap);
+        long[] tstates = profiler.getLineTstates(sourceMap);
+        assertEquals(3, counts[sourceMap.getLineAtAddress(0x0105).lineNumber]);
+        assertEquals(3 * 17, tstates[sourceMap.getLineAtAddress(0x0105).lineNumber]);
+        assertEquals(0, counts[3]); // loop: label line
+    }
+
+    public void testProcs() throws Exception {
+        List<Profiler.ProcEntry> procs = Profiler.getProcs(debugger.getSourceMap());
+
+        assertEquals(1, procs.size());
+        assertEquals("sub", procs.get(0).name);
+        assertEquals(0x010B, procs.get(0).address);
+        assertEquals(7, procs.get(0).startLine);
+        assertEquals(11, procs.get(0).endLine);
+    }
+
+    public void testWriteCsv() throws Exception {
+        StringWriter writer = new StringWriter();
+        debugger.getProfiler().writeCsv(debugger.getSourceMap(), writer);
+
+        String[] rows = writer.toString().split("\r?\n");
+        assertEquals("kind,name,line,address,count,tstates,percent,calls,inclusive", rows[0]);
+        assertEquals("line,\"ld sp,8000h\",2,0100,1,10,6.06,,", rows[1]);
+        assertTrue(contains(rows, "proc,sub,8,010B,,63,38.18,3,114"));
+        assertTrue(contains(rows, "call,sub,,010B,,,69.09,3,114"));
+    }
+
+    public void testResetClearsProfile() throws Exception {
+        debugger.reset();
+
+        assertEquals(0, debugger.getProfiler().getCount(0x0105));
+        assertEquals(0, debugger.getProfiler().getCalls(0x010B));
+    }
+
+    boolean contains(String[] rows, String row) {
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i].equals(row)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Source assemble(String... sourceLines) {
+        StringBuilder builder = new StringBuilder();
+        for (String lineText : sourceLines) {
+            builder.append(lineText).append("\n");
+        }
+        SourceBuilder sourceBuilder = new SourceBuilder(new ArrayList<File>());
+        Source source = sourceBuilder.parse(new StringReader(builder.toString()), null);
+        try {
+            source.assemble(new ByteArrayOutputStream());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return source;
+    }
+
+}
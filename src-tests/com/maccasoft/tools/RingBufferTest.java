@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import junit.framework.TestCase;
+
+public class RingBufferTest extends TestCase {
+
+    public void testCapacity() throws Exception {
+        assertEquals(16, new RingBuffer(16).capacity());
+        assertEquals(16, new RingBuffer(10).capacity());
+        assertEquals(1, new RingBuffer(1).capacity());
+    }
+
+    public void testOfferPoll() throws Exception {
+        RingBuffer buffer = new RingBuffer(4);
+
+        assertTrue(buffer.isEmpty());
+        assertEquals(-1, buffer.poll());
+
+        assertTrue(buffer.offer(0x01));
+        assertTrue(buffer.offer(0xFF));
+        assertEquals(2, buffer.size());
+
+        assertEquals(0x01, buffer.poll());
+        assertEquals(0xFF, buffer.poll());
+        assertEquals(-1, buffer.poll());
+    }
+
+    public void testFull() throws Exception {
+        RingBuffer buffer = new RingBuffer(4);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+
+        assertEquals(0, buffer.poll());
+        assertTrue(buffer.offer(4));
+        for (int i = 1; i < 5; i++) {
+            assertEquals(i, buffer.poll());
+        }
+        assertTrue(buffer.isEmpty());
+    }
+
+    public void testOfferArray() throws Exception {
+        RingBuffer buffer = new RingBuffer(4);
+
+        buffer.offer(0);
+        buffer.poll();
+        assertEquals(4, buffer.offer(new byte[] {
+            1, 2, 3, 4, 5, 6
+        }, 0, 6));
+        assertEquals(0, buffer.offer(new byte[] {
+            7
+        }, 0, 1));
+        for (int i = 1; i < 5; i++) {
+            assertEquals(i, buffer.poll());
+        }
+    }
+
+    public void testClear() throws Exception {
+        RingBuffer buffer = new RingBuffer(4);
+
+        buffer.offer(1);
+        buffer.offer(2);
+        buffer.clear();
+
+        assertTrue(buffer.isEmpty());
+        assertEquals(-1, buffer.poll());
+        assertTrue(buffer.offer(3));
+        assertEquals(3, buffer.poll());
+    }
+
+    public void testPutWaitsForConsumer() throws Exception {
+        final RingBuffer buffer = new RingBuffer(8);
+        final int count = 100000;
+
+        Thread producer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    byte[] data = new byte[3];
+                    for (int i = 0; i < count; i += data.length) {
+                        for (int n = 0; n < data.length; n++) {
+                            data[n] = (byte) (i + n);
+                        }
+                        buffer.put(data, 0, Math.min(data.length, count - i));
+                    }
+                } catch (InterruptedException e) {
+                    // Do nothing
+                }
+            }
+
+        });
+        producer.start();
+
+        long timeout = System.currentTimeMillis() + 10000;
+        for (int i = 0; i < count; i++) {
+            int b;
+            while ((b = buffer.poll()) == -1) {
+                assertTrue(System.currentTimeMillis() < timeout);
+            }
+            assertEquals(i & 0xFF, b);
+            assertTrue(buffer.size() <= buffer.capacity());
+        }
+
+        producer.join();
+        assertTrue(buffer.isEmpty());
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SchedulerTest extends TestCase {
+
+    class Recorder implements Scheduler.Device {
+
+        final List<Long> events;
+        final long id;
+
+        Recorder(List<Long> events, long id) {
+            this.events = events;
+            this.id = id;
+        }
+
+        @Override
+        public void onEvent(long tstates) {
+            events.add(id);
+        }
+
+    }
+
+    public void testDispatchOrder() throws Exception {
+        List<Long> events = new ArrayList<Long>();
+        Scheduler scheduler = new Scheduler();
+        int d0 = scheduler.addDevice(new Recorder(events, 0));
+        int d1 = scheduler.addDevice(new Recorder(events, 1));
+        int d2 = scheduler.addDevice(new Recorder(events, 2));
+
+        scheduler.schedule(d0, 300);
+        scheduler.schedule(d1, 100);
+        scheduler.schedule(d2, 200);
+        assertEquals(100, scheduler.getNextDeadline());
+
+        scheduler.dispatch(99);
+        assertEquals(0, events.size());
+
+        scheduler.dispatch(250);
+        assertEquals(2, events.size());
+        assertEquals(Long.valueOf(1), events.get(0));
+        assertEquals(Long.valueOf(2), events.get(1));
+        assertEquals(300, scheduler.getNextDeadline());
+        assertFalse(scheduler.isScheduled(d1));
+    }
+
+    public void testReschedule() throws Exception {
+        List<Long> events = new ArrayList<Long>();
+        Scheduler scheduler = new Scheduler();
+        int d0 = scheduler.addDevice(new Recorder(events, 0));
+        int d1 = scheduler.addDevice(new Recorder(events, 1));
+
+        scheduler.schedule(d0, 100);
+        scheduler.schedule(d1, 200);
+        scheduler.schedule(d0, 300);
+        assertEquals(200, scheduler.getNextDeadline());
+
+        scheduler.schedule(d0, 50);
+        assertEquals(50, scheduler.getNextDeadline());
+
+        scheduler.cancel(d0);
+        assertEquals(200, scheduler.getNextDeadline());
+
+        scheduler.rebase(150);
+        assertEquals(50, scheduler.getDeadline(d1));
+    }
+
+    public void testPeriodicDevice() throws Exception {
+        final Scheduler scheduler = new Scheduler();
+        final long[] count = new long[1];
+        final int[] id = new int[1];
+        id[0] = scheduler.addDevice(new Scheduler.Device() {
+
+            @Override
+            public void onEvent(long tstates) {
+                count[0]++;
+                scheduler.schedule(id[0], tstates + 10);
+            }
+
+        });
+        scheduler.schedule(id[0], 10);
+
+        scheduler.dispatch(105);
+
+        assertEquals(1, count[0]);
+        assertEquals(115, scheduler.getNextDeadline());
+    }
+
+    public void testRandomDeadlines() throws Exception {
+        List<Long> events = new ArrayList<Long>();
+        Scheduler scheduler = new Scheduler();
+        long[] deadlines = new long[50];
+
+        Random random = new Random(1);
+        for (int i = 0; i < deadlines.length; i++) {
+            int id = scheduler.addDevice(new Recorder(events, i));
+            deadlines[i] = random.nextInt(1000);
+            scheduler.schedule(id, deadlines[i]);
+        }
+        for (int i = 0; i < 100; i++) {
+            int id = random.nextInt(deadlines.length);
+            deadlines[id] = random.nextInt(1000);
+            scheduler.schedule(id, deadlines[id]);
+        }
+
+        scheduler.dispatch(Long.MAX_VALUE - 1);
+
+        assertEquals(deadlines.length, events.size());
+        for (int i = 1; i < events.size(); i++) {
+            assertTrue(deadlines[events.get(i - 1).intValue()] <= deadlines[events.get(i).intValue()]);
+        }
+    }
+
+}
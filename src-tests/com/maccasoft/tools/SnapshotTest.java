@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class SnapshotTest extends TestCase {
+
+    File file1;
+    File file2;
+
+    @Override
+    protected void setUp() throws Exception {
+        file1 = File.createTempFile("snapshot", ".bin");
+        file2 = File.createTempFile("snapshot", ".bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file1.delete();
+        file2.delete();
+    }
+
+    public void testSaveRestore() throws Exception {
+        Machine machine1 = createMachine();
+        machine1.runTo(20000);
+        machine1.tms9918.outReg(0x55);
+        machine1.tms9918.outReg(0x87);
+        Snapshot.save(machine1, file1, false);
+
+        Machine machine2 = createMachine();
+        Snapshot.restore(machine2, file1);
+        assertState(machine1, machine2);
+        assertEquals(0x55, machine2.tms9918.reg[7]);
+
+        machine1.runTo(50000);
+        machine2.runTo(50000);
+        assertState(machine1, machine2);
+    }
+
+    public void testSioState() throws Exception {
+        Machine machine1 = createMachine();
+        machine1.runTo(20000);
+        machine1.rxData = 'A';
+        machine1.scheduler.schedule(machine1.rxDevice, 20123);
+        Snapshot.save(machine1, file1, false);
+
+        Machine machine2 = createMachine();
+        machine2.runTo(30000);
+        Snapshot.restore(machine2, file1);
+        assertEquals('A', machine2.rxData);
+        assertEquals(20123, machine2.scheduler.getDeadline(machine2.rxDevice));
+    }
+
+    public void testSaveAgain() throws Exception {
+        Machine machine1 = createMachine();
+        machine1.runTo(20000);
+        Snapshot.save(machine1, file1, false);
+
+        Machine machine2 = createMachine();
+        Snapshot.restore(machine2, file1);
+        machine2.runTo(30000);
+        Snapshot.save(machine2, file1, false);
+
+        Machine machine3 = createMachine();
+        Snapshot.restore(machine3, file1);
+        assertState(machine2, machine3);
+    }
+
+    public void testSharedRom() throws Exception {
+        byte[] rom = new byte[Machine.getRomSize(Machine.MEMORY_SBC)];
+        rom[0x0000] = 0x76;
+
+        Machine machine1 = new Machine();
+        machine1.setSharedRom(rom);
+        Snapshot.save(machine1, file1, false);
+        machine1.setRom(0x0000, new byte[] {
+            0x00
+        });
+        Snapshot.save(machine1, file2, false);
+
+        assertFalse(machine1.isRomShared());
+        assertEquals(0x76, rom[0x0000]);
+
+        Machine machine2 = new Machine();
+        machine2.setSharedRom(rom);
+        Snapshot.restore(machine2, file1);
+        assertTrue(machine2.isRomShared());
+
+        Snapshot.restore(machine2, file2);
+        assertFalse(machine2.isRomShared());
+        assertEquals(0x00, machine2.rom[0x0000]);
+        assertEquals(0x76, rom[0x0000]);
+    }
+
+    public void testRejectedFileLeavesState() throws Exception {
+        Machine machine1 = createMachine();
+        machine1.runTo(20000);
+        Snapshot.save(machine1, file1, false);
+
+        int offset = Snapshot.HEADER_SIZE + Snapshot.SECTION_HEADER_SIZE + Snapshot.CPU_SIZE + Snapshot.SECTION_HEADER_SIZE;
+        patchFile(file1, offset, Machine.MEMORY_512K);
+
+        Machine machine2 = createMachine();
+        machine2.runTo(30000);
+        int pc = machine2.proc.getRegPC();
+        int sp = machine2.proc.getRegSP();
+        try {
+            Snapshot.restore(machine2, file1);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(pc, machine2.proc.getRegPC());
+        assertEquals(sp, machine2.proc.getRegSP());
+        assertEquals(30000, machine2.getTstates(), 30);
+    }
+
+    public void testPageOutOfRange() throws Exception {
+        Machine machine1 = createMachine();
+        Snapshot.save(machine1, file1, false);
+
+        int offset = Snapshot.HEADER_SIZE + Snapshot.SECTION_HEADER_SIZE + Snapshot.CPU_SIZE + Snapshot.SECTION_HEADER_SIZE + Snapshot.MACHINE_SIZE;
+        patchFile(file1, offset + Snapshot.SECTION_HEADER_SIZE + 1 + 4 + 4, 0x7F);
+
+        try {
+            Snapshot.restore(createMachine(), file1);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testTruncated() throws Exception {
+        Machine machine1 = createMachine();
+        Snapshot.save(machine1, file1, false);
+
+        RandomAccessFile raf = new RandomAccessFile(file1, "rw");
+        raf.setLength(raf.length() - 100);
+        raf.close();
+
+        try {
+            Snapshot.restore(createMachine(), file1);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    void patchFile(File file, long offset, int value) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            raf.write(value);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public void testFailedSaveKeepsDirtyPages() throws Exception {
+        Machine machine1 = createMachine();
+        Snapshot.save(machine1, file1, false);
+
+        machine1.poke8(0x8123, 0x42);
+        try {
+            Snapshot.save(machine1, new File(file2, "snapshot.bin"), true);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+        Snapshot.save(machine1, file2, true);
+
+        Machine machine2 = createMachine();
+        Snapshot.restore(machine2, file1);
+        Snapshot.restore(machine2, file2);
+        assertEquals(0x42, machine2.peek8(0x8123));
+    }
+
+    public void testIncremental() throws Exception {
+        Machine machine1 = createMachine();
+        machine1.runTo(20000);
+        Snapshot.save(machine1, file1, false);
+
+        machine1.outPort(Machine.ROM_PAGE, 0x01);
+        machine1.poke8(0x8123, 0x42);
+        Snapshot.save(machine1, file2, true);
+        assertTrue(file2.length() < file1.length() / 4);
+
+        Machine machine2 = createMachine();
+        Snapshot.restore(machine2, file1);
+        Snapshot.restore(machine2, file2);
+        assertState(machine1, machine2);
+        assertEquals(0x42, machine2.peek8(0x8123));
+    }
+
+    public void testIncrementalOrder() throws Exception {
+        Machine machine1 = createMachine();
+        try {
+            Snapshot.save(machine1, file1, true);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        Snapshot.save(machine1, file1, false);
+        Snapshot.save(machine1, file2, true);
+
+        Machine machine2 = createMachine();
+        try {
+            Snapshot.restore(machine2, file2);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testDebugger() throws Exception {
+        Debugger debugger1 = new Debugger(System.out);
+        debugger1.poke8(0x1234, 0x56);
+        debugger1.proc.setRegPC(0x0100);
+        debugger1.proc.setRegHL(0xABCD);
+        Snapshot.save(debugger1, file1, false);
+
+        debugger1.poke8(0x4321, 0x65);
+        Snapshot.save(debugger1, file2, true);
+
+        Debugger debugger2 = new Debugger(System.out);
+        Snapshot.restore(debugger2, file1);
+        assertEquals(0x56, debugger2.getRam()[0x1234]);
+        assertEquals(0x00, debugger2.getRam()[0x4321]);
+        assertEquals(0x0100, debugger2.proc.getRegPC());
+        assertEquals(0xABCD, debugger2.proc.getRegHL());
+
+        Snapshot.restore(debugger2, file2);
+        assertTrue(Arrays.equals(debugger1.getRam(), debugger2.getRam()));
+    }
+
+    void assertState(Machine expected, Machine actual) {
+        assertEquals(expected.getTstates(), actual.getTstates());
+        assertEquals(expected.proc.getRegPC(), actual.proc.getRegPC());
+        assertEquals(expected.proc.getRegAF(), actual.proc.getRegAF());
+        assertEquals(expected.proc.getRegBC(), actual.proc.getRegBC());
+        assertEquals(expected.proc.getRegDE(), actual.proc.getRegDE());
+        assertEquals(expected.proc.getRegHL(), actual.proc.getRegHL());
+        assertEquals(expected.proc.getRegSP(), actual.proc.getRegSP());
+        assertEquals(expected.proc.getRegR(), actual.proc.getRegR());
+        assertEquals(expected.rom_paged, actual.rom_paged);
+        assertTrue(Arrays.equals(expected.ram, actual.ram));
+        assertTrue(Arrays.equals(expected.tms9918.ram, actual.tms9918.ram));
+        assertTrue(Arrays.equals(expected.tms9918.reg, actual.tms9918.reg));
+        assertEquals(expected.tms9918.state, actual.tms9918.state);
+    }
+
+    Machine createMachine() throws IOException {
+        InputStream is = Machine.class.getResourceAsStream("ROM.BIN");
+        byte[] rom = new byte[is.available()];
+        is.read(rom);
+        is.close();
+
+        Machine machine = new Machine() {
+
+            @Override
+            public int inPort(int port) {
+                switch (port & 0xFF) {
+                    case SIOA_C:
+                    case SIOB_C:
+                        return 0b00101100; // TX Buffer Empty, DCD and CTS
+                    case SIOA_D:
+                    case SIOB_D:
+                        return 0x00;
+                }
+                return super.inPort(port);
+            }
+
+        };
+        machine.setRom(0, rom);
+        machine.reset();
+
+        return machine;
+    }
+
+}
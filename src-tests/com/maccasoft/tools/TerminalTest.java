@@ -41,6 +41,30 @@ public class TerminalTest extends DatabindingTestCase {
         shell.dispose();
     }
 
+    public void testWriteAsync() throws Exception {
+        assertTrue(term.writeAsync('A'));
+        assertTrue(term.writeAsync('B'));
+        assertEquals(0, term.cx);
+
+        term.drainRunnable.run();
+
+        assertEquals(2 * term.getFont().getWidth(), term.cx);
+        assertEquals(0, term.output.size());
+    }
+
+    public void testWriteAsyncFull() throws Exception {
+        for (int i = 0; i < Terminal.OUTPUT_BUFFER_SIZE; i++) {
+            assertTrue(term.writeAsync(' '));
+        }
+        assertTrue(term.isOutputFull());
+        assertFalse(term.writeAsync(' '));
+
+        term.drainRunnable.run();
+
+        assertFalse(term.isOutputFull());
+        assertTrue(term.writeAsync(' '));
+    }
+
     public void testNoArguments() throws Exception {
         term.print("\033[H");
         assertEquals(0, term.argc);
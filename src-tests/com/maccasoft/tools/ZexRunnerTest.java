@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import nl.grauw.glass.Source;
+import nl.grauw.glass.SourceBuilder;
+
+public class ZexRunnerTest extends TestCase {
+
+    // Prints the results the same way as the exercisers, the first group computes
+    // a sum in a loop to spend some time
+    static final String[] PROGRAM = new String[] {
+        "        org 0100h",
+        "        ld  hl,(6)",
+        "        ld  sp,hl",
+        "        ld  de,msg1",
+        "        ld  c,9",
+        "        call 5",
+        "        ld  hl,0",
+        "        ld  bc,1000",
+        "loop:   add hl,bc",
+        "        dec bc",
+        "        ld  a,b",
+        "        or  c",
+        "        jr  nz,loop",
+        "        ld  de,okmsg",
+        "        ld  a,h",
+        "        cp  0A3h",
+        "        jr  nz,error",
+        "        ld  a,l",
+        "        cp  14h",
+        "        jr  z,print",
+        "error:  ld  de,ermsg",
+        "print:  ld  c,9",
+        "        call 5",
+        "        ld  de,msg2",
+        "        ld  c,9",
+        "        call 5",
+        "        ld  de,ermsg",
+        "        ld  c,9",
+        "        call 5",
+        "        ld  de,done",
+        "        ld  c,9",
+        "        call 5",
+        "        jp  0",
+        "msg1:   db  \"Test instruction exerciser\",13,10",
+        "        db  \"add hl,<bc,de,hl,sp>.........$\"",
+        "msg2:   db  \"daa,cpl,scf,ccf..............$\"",
+        "okmsg:  db  \"  OK\",13,10,\"$\"",
+        "ermsg:  db  \"  ERROR **** crc expected:12345678 found:9abcdef0\",13,10,\"$\"",
+        "done:   db  \"Tests complete\",13,10,\"$\"",
+    };
+
+    public void testRun() throws Exception {
+        ZexRunner runner = new ZexRunner(ZexRunner.EXECUTE);
+        ZexRunner.Result result = runner.run(assemble(PROGRAM));
+
+        assertTrue(result.isCompleted());
+        assertEquals(2, result.getGroups().size());
+        assertEquals(1, result.getFailedCount());
+        assertFalse(result.isPassed());
+        assertTrue(result.getOutput().contains("Tests complete"));
+
+        ZexRunner.Group group = result.getGroups().get(0);
+        assertEquals("add hl,<bc,de,hl,sp>", group.getName());
+        assertTrue(group.isPassed());
+        assertNull(group.getFoundCrc());
+        assertTrue(group.getTstates() > 1000 * 20);
+
+        group = result.getGroups().get(1);
+        assertEquals("daa,cpl,scf,ccf", group.getName());
+        assertFalse(group.isPassed());
+        assertEquals("12345678", group.getExpectedCrc());
+        assertEquals("9abcdef0", group.getFoundCrc());
+    }
+
+    public void testBlockCache() throws Exception {
+        ZexRunner.Result expected = new ZexRunner(ZexRunner.EXECUTE).run(assemble(PROGRAM));
+        ZexRunner.Result result = new ZexRunner(ZexRunner.BLOCK_CACHE).run(assemble(PROGRAM));
+
+        assertEquals(expected.getOutput(), result.getOutput());
+        assertEquals(expected.getTstates(), result.getTstates());
+    }
+
+    public void testTimeout() throws Exception {
+        ZexRunner runner = new ZexRunner(ZexRunner.EXECUTE);
+        runner.setTimeout(10000);
+        ZexRunner.Result result = runner.run(assemble(PROGRAM));
+
+        assertFalse(result.isCompleted());
+        assertFalse(result.isPassed());
+        assertEquals(0, result.getGroups().size());
+    }
+
+    private byte[] assemble(String... sourceLines) throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (String lineText : sourceLines) {
+            builder.append(lineText).append("\n");
+        }
+        SourceBuilder sourceBuilder = new SourceBuilder(new ArrayList<File>());
+        Source source = sourceBuilder.parse(new StringReader(builder.toString()), null);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        source.assemble(os);
+        return os.toByteArray();
+    }
+
+}
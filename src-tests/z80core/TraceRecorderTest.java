@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package z80core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TraceRecorderTest extends Z80TestCase {
+
+    static final String[] PROGRAM = new String[] {
+        "      ld  sp,8000h",
+        "      ld  hl,4000h",
+        "      ld  b,0",
+        "loop: inc hl",
+        "      call sub",
+        "      djnz loop",
+        "      halt",
+        "sub:  ld  (hl),a",
+        "      ret"
+    };
+
+    File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("trace", ".bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testRecords() throws Exception {
+        MemIoOps memory1 = new MemIoOps(0x10000);
+        Z80 proc1 = createProcessor(memory1, PROGRAM);
+        List<Long> tstates = new ArrayList<Long>();
+        List<Integer> pc = new ArrayList<Integer>();
+        List<Integer> hl = new ArrayList<Integer>();
+        while (!proc1.isHalted()) {
+            tstates.add(memory1.getTstates());
+            pc.add(proc1.getRegPC());
+            hl.add(proc1.getRegHL());
+            proc1.execute();
+        }
+
+        MemIoOps memory2 = new MemIoOps(0x10000);
+        Z80 proc2 = createProcessor(memory2, PROGRAM);
+        TraceRecorder recorder = new TraceRecorder(file, 4096);
+        proc2.setTracer(recorder);
+        proc2.run(1000000);
+        recorder.close();
+
+        assertEquals(memory1.getTstates(), memory2.getTstates());
+        assertEquals(tstates.size(), recorder.getCount());
+
+        TraceReader reader = new TraceReader(file);
+        try {
+            assertEquals(0, reader.getFirst());
+            assertEquals(tstates.size(), reader.getLast());
+            for (int i = 0; i < tstates.size(); i++) {
+                assertEquals(tstates.get(i).longValue(), reader.getTstates(i));
+                assertEquals(pc.get(i).intValue(), reader.getPC(i));
+                assertEquals(hl.get(i).intValue(), reader.getRegHL(i));
+            }
+            assertEquals(0x31, reader.getOpcodes(0) & 0xFF);
+            assertEquals(0x800031, reader.getOpcodes(0) & 0xFFFFFF);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testRingWrapAround() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory, PROGRAM);
+        TraceRecorder recorder = new TraceRecorder(file, 256);
+        proc.setTracer(recorder);
+        proc.run(1000000);
+        recorder.close();
+
+        TraceReader reader = new TraceReader(file);
+        try {
+            assertEquals(recorder.getCount(), reader.getLast());
+            assertEquals(recorder.getCount() - 256, reader.getFirst());
+            assertEquals(0x76, reader.getOpcodes(reader.getLast() - 1) & 0xFF);
+
+            for (long i = reader.getFirst() + 1; i < reader.getLast(); i++) {
+                assertTrue(reader.getTstates(i) > reader.getTstates(i - 1));
+            }
+
+            try {
+                reader.getPC(reader.getFirst() - 1);
+                fail("Expected IndexOutOfBoundsException");
+            } catch (IndexOutOfBoundsException e) {
+                // Expected
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testSeek() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory, PROGRAM);
+        TraceRecorder recorder = new TraceRecorder(file, 4096);
+        proc.setTracer(recorder);
+        proc.run(1000000);
+        recorder.close();
+
+        TraceReader reader = new TraceReader(file);
+        try {
+            long index = reader.seekTstates(1000);
+            assertTrue(reader.getTstates(index) >= 1000);
+            assertTrue(reader.getTstates(index - 1) < 1000);
+            assertEquals(index, reader.seekTstates(reader.getTstates(index)));
+            assertEquals(reader.getLast(), reader.seekTstates(Long.MAX_VALUE));
+
+            long call = reader.findPC(index, 0x0009);
+            assertEquals(0x0009, reader.getPC(call));
+            assertTrue(call >= index);
+            assertEquals(0x0009, reader.getPC(reader.findPreviousPC(index, 0x0009)));
+            assertEquals(-1, reader.findPC(index, 0x1234));
+
+            // Subroutine, ld (hl),a and ret
+            long sub = reader.next(0, 0x000F, 0x0010);
+            assertEquals(0x000F, reader.getPC(sub));
+            assertEquals(0x0010, reader.getPC(reader.next(sub + 1, 0x000F, 0x0010)));
+            assertEquals(0x0010, reader.getPC(reader.previous(reader.getLast(), 0x000F, 0x0010)));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testNotTraceFile() throws Exception {
+        TraceRecorder recorder = new TraceRecorder(file, 256);
+        recorder.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(0);
+        raf.close();
+
+        try {
+            new TraceReader(file);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package z80core;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the translated code against the interpreter, instruction by instruction
+ * and with larger T-states budgets where the translated blocks loop on themselves.
+ */
+public class TranslatorTest extends Z80TestCase {
+
+    static final String[] ARITHMETIC = new String[] {
+        "      ld  sp,0F000H",
+        "      ld  bc,1234H",
+        "      ld  de,5678H",
+        "      ld  hl,8000H",
+        "loop: ld  a,b",
+        "      add a,c",
+        "      adc a,d",
+        "      sub e",
+        "      sbc a,h",
+        "      and l",
+        "      xor 5AH",
+        "      or  b",
+        "      cp  c",
+        "      daa",
+        "      ld  (hl),a",
+        "      inc (hl)",
+        "      add a,(hl)",
+        "      inc hl",
+        "      inc c",
+        "      dec d",
+        "      ld  e,a",
+        "      rlca",
+        "      rra",
+        "      cpl",
+        "      scf",
+        "      ccf",
+        "      add hl,de",
+        "      ld  h,80H",
+        "      djnz loop",
+        "      jr  loop"
+    };
+
+    static final String[] INDEXED = new String[] {
+        "      ld  sp,0F000H",
+        "      ld  ix,8000H",
+        "      ld  iy,9000H",
+        "      ld  b,0",
+        "loop: ld  a,(ix+1)",
+        "      add a,(iy-2)",
+        "      ld  (ix+3),a",
+        "      inc (iy+4)",
+        "      ld  (iy+5),77H",
+        "      rlc (ix+5)",
+        "      bit 3,(iy+6)",
+        "      set 1,(ix+7)",
+        "      res 2,(iy+8)",
+        "      set 1,b",
+        "      res 2,c",
+        "      rl  d",
+        "      srl e",
+        "      bit 7,h",
+        "      ld  ixl,a",
+        "      ld  a,iyh",
+        "      inc ix",
+        "      dec iy",
+        "      push ix",
+        "      pop hl",
+        "      djnz loop",
+        "      jr  loop"
+    };
+
+    static final String[] CALLS = new String[] {
+        "      ld  sp,0F000H",
+        "      ld  hl,0",
+        "loop: call sub1",
+        "      call nz,sub2",
+        "      rst 38H",
+        "      jp  p,loop",
+        "      jp  loop",
+        "sub1: push hl",
+        "      inc hl",
+        "      ld  a,h",
+        "      or  l",
+        "      pop de",
+        "      ret nz",
+        "      ret",
+        "sub2: ex  de,hl",
+        "      ex  (sp),hl",
+        "      ex  (sp),hl",
+        "      ex  de,hl",
+        "      exx",
+        "      inc bc",
+        "      exx",
+        "      ex  af,af'",
+        "      ret",
+        "      ds  38H - $,0",
+        "      dec a",
+        "      ret"
+    };
+
+    static final String[] SELF_MODIFYING = new String[] {
+        "      ld  sp,0F000H",
+        "loop: ld  a,(value+1)",
+        "      inc a",
+        "      ld  (value+1),a",
+        "value:ld  c,0",
+        "      ld  hl,patch",
+        "      ld  a,(hl)",
+        "      xor 08H",
+        "      ld  (hl),a",
+        "patch:inc b",
+        "      jr  loop"
+    };
+
+    static final String[] INTERRUPTS = new String[] {
+        "      jp  start",
+        "      ds  38H - $,0",
+        "      push af",
+        "      inc d",
+        "      pop af",
+        "      ei",
+        "      reti",
+        "start:ld  sp,0F000H",
+        "      im  1",
+        "      ei",
+        "loop: inc a",
+        "      inc b",
+        "      djnz loop",
+        "      di",
+        "      ei",
+        "      jr  loop"
+    };
+
+    static final String[] INPUT_OUTPUT = new String[] {
+        "loop: in  a,(10H)",
+        "      add a,c",
+        "      out (11H),a",
+        "      inc c",
+        "      jr  loop"
+    };
+
+    static class Memory extends MemIoOps {
+
+        long nextInterrupt;
+        int inputs;
+        int outputs;
+
+        Memory(long interruptPeriod) {
+            super(0x10000);
+            nextInterrupt = interruptPeriod;
+        }
+
+        @Override
+        public int inPort(int port) {
+            inputs++;
+            return (super.inPort(port) ^ (int) tstates) & 0xFF;
+        }
+
+        @Override
+        public void outPort(int port, int value) {
+            outputs++;
+            super.outPort(port, value);
+        }
+
+        @Override
+        public boolean isActiveINT() {
+            if (nextInterrupt != 0 && tstates >= nextInterrupt) {
+                nextInterrupt = tstates + 997;
+                return true;
+            }
+            return false;
+        }
+
+    }
+
+    public void testArithmetic() throws Exception {
+        assertStepByStep(ARITHMETIC);
+        assertRuns(ARITHMETIC);
+    }
+
+    public void testIndexed() throws Exception {
+        assertStepByStep(INDEXED);
+        assertRuns(INDEXED);
+    }
+
+    public void testCalls() throws Exception {
+        assertStepByStep(CALLS);
+        assertRuns(CALLS);
+    }
+
+    public void testSelfModifyingCode() throws Exception {
+        assertStepByStep(SELF_MODIFYING);
+        assertRuns(SELF_MODIFYING);
+    }
+
+    public void testInterrupts() throws Exception {
+        assertStepByStep(INTERRUPTS);
+        assertRuns(INTERRUPTS);
+    }
+
+    public void testInputOutputNotTranslated() throws Exception {
+        if (!Translator.isSupported()) {
+            return;
+        }
+
+        Memory memory1 = new Memory(0);
+        Z80 proc1 = createProcessor(memory1, INPUT_OUTPUT);
+        proc1.run(100000);
+
+        Memory memory2 = new Memory(0);
+        Z80 proc2 = createProcessor(memory2, INPUT_OUTPUT);
+        enableTranslator(proc2);
+        proc2.run(100000);
+
+        assertTrue(proc2.getTranslator().translated != 0);
+        assertEquals(memory1.inputs, memory2.inputs);
+        assertEquals(memory1.outputs, memory2.outputs);
+        assertState(proc1, memory1, proc2, memory2);
+    }
+
+    public void testBreakpoint() throws Exception {
+        if (!Translator.isSupported()) {
+            return;
+        }
+
+        Memory memory = new Memory(0);
+        Z80 proc = createProcessor(memory, ARITHMETIC);
+        enableTranslator(proc);
+        proc.run(100000);
+
+        proc.setBreakpoint(0x0018, true);
+        proc.run(100000);
+
+        assertEquals(0x0018, proc.getRegPC());
+    }
+
+    public void testRandomMemory() throws Exception {
+        if (!Translator.isSupported()) {
+            return;
+        }
+
+        for (int seed = 1; seed <= 20; seed++) {
+            Memory memory1 = new Memory(5000);
+            new Random(seed).nextBytes(memory1.getRam());
+            Z80 proc1 = createProcessor(memory1);
+
+            Memory memory2 = new Memory(5000);
+            new Random(seed).nextBytes(memory2.getRam());
+            Z80 proc2 = createProcessor(memory2);
+            enableTranslator(proc2);
+
+            Random random = new Random(seed);
+            for (int i = 0; i < 2000; i++) {
+                int budget = 1 + random.nextInt(300);
+                assertEquals(proc1.run(budget), proc2.run(budget));
+                assertState(proc1, memory1, proc2, memory2);
+                if (proc1.isHalted()) {
+                    proc1.setHalted(false);
+                    proc1.setRegPC(proc1.getRegPC() + 1);
+                    proc2.setHalted(false);
+                    proc2.setRegPC(proc2.getRegPC() + 1);
+                }
+            }
+            assertTrue(Arrays.equals(memory1.getRam(), memory2.getRam()));
+        }
+    }
+
+    void assertStepByStep(String... program) {
+        if (!Translator.isSupported()) {
+            return;
+        }
+
+        Memory memory1 = new Memory(2000);
+        Z80 proc1 = createProcessor(memory1, program);
+
+        Memory memory2 = new Memory(2000);
+        Z80 proc2 = createProcessor(memory2, program);
+        enableTranslator(proc2);
+
+        for (int i = 0; i < 20000; i++) {
+            proc1.execute();
+            proc2.run(1);
+            assertState(proc1, memory1, proc2, memory2);
+        }
+
+        assertTrue(proc2.getTranslator().translated != 0);
+        assertTrue(Arrays.equals(memory1.getRam(), memory2.getRam()));
+    }
+
+    void assertRuns(String... program) {
+        if (!Translator.isSupported()) {
+            return;
+        }
+
+        Memory memory1 = new Memory(2000);
+        Z80 proc1 = createProcessor(memory1, program);
+
+        Memory memory2 = new Memory(2000);
+        Z80 proc2 = createProcessor(memory2, program);
+        enableTranslator(proc2);
+
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            int budget = 1 + random.nextInt(2000);
+            assertEquals(proc1.run(budget), proc2.run(budget));
+            assertState(proc1, memory1, proc2, memory2);
+        }
+
+        assertTrue(proc2.getTranslator().translated != 0);
+        assertTrue(Arrays.equals(memory1.getRam(), memory2.getRam()));
+    }
+
+    void enableTranslator(Z80 proc) {
+        proc.setTranslatorEnabled(true);
+        proc.getTranslator().threshold = 2;
+    }
+
+    void assertState(Z80 expected, MemIoOps expectedMemory, Z80 actual, MemIoOps actualMemory) {
+        assertEquals(expectedMemory.getTstates(), actualMemory.getTstates());
+        assertEquals(expected.getRegPC(), actual.getRegPC());
+        assertEquals(expected.getRegAF(), actual.getRegAF());
+        assertEquals(expected.getRegBC(), actual.getRegBC());
+        assertEquals(expected.getRegDE(), actual.getRegDE());
+        assertEquals(expected.getRegHL(), actual.getRegHL());
+        assertEquals(expected.getRegIX(), actual.getRegIX());
+        assertEquals(expected.getRegIY(), actual.getRegIY());
+        assertEquals(expected.getRegSP(), actual.getRegSP());
+        assertEquals(expected.getRegAFx(), actual.getRegAFx());
+        assertEquals(expected.getRegBCx(), actual.getRegBCx());
+        assertEquals(expected.getRegDEx(), actual.getRegDEx());
+        assertEquals(expected.getRegHLx(), actual.getRegHLx());
+        assertEquals(expected.getMemPtr(), actual.getMemPtr());
+        assertEquals(expected.getRegR(), actual.getRegR());
+        assertEquals(expected.isIFF1(), actual.isIFF1());
+        assertEquals(expected.isIFF2(), actual.isIFF2());
+        assertEquals(expected.isHalted(), actual.isHalted());
+    }
+
+}
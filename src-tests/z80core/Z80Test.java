@@ -0,0 +1,617 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package z80core;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+public class Z80Test extends Z80TestCase {
+
+    public void testRunBudget() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "loop: nop",
+            "      jr  loop");
+
+        long tstates = proc.run(1000);
+
+        assertEquals(tstates, memory.getTstates());
+        assertTrue(tstates >= 1000);
+        assertTrue(tstates < 1000 + 12);
+    }
+
+    public void testRunStopsAtBreakpoint() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "      nop",
+            "      nop",
+            "      nop",
+            "      jr  $");
+
+        proc.setBreakpoint(0x0002, true);
+
+        assertEquals(8, proc.run(1000));
+        assertEquals(0x0002, proc.getRegPC());
+    }
+
+    public void testRunContinuesFromBreakpoint() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "loop: nop",
+            "      jr  loop");
+
+        proc.setBreakpoint(0x0000, true);
+
+        assertEquals(16, proc.run(1000));
+        assertEquals(0x0000, proc.getRegPC());
+    }
+
+    public void testRunStopsOnHalt() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "      ld  a,1",
+            "      halt",
+            "      nop");
+
+        assertEquals(11, proc.run(1000));
+        assertTrue(proc.isHalted());
+        assertEquals(0x0002, proc.getRegPC());
+    }
+
+    public void testRunMatchesExecute() throws Exception {
+        String[] program = new String[] {
+            "      ld  hl,1000H",
+            "      ld  de,2000H",
+            "      ld  b,10",
+            "loop: ld  a,(hl)",
+            "      add a,b",
+            "      ld  (de),a",
+            "      inc hl",
+            "      inc de",
+            "      djnz loop",
+            "      jr  $"
+        };
+
+        MemIoOps memory1 = new MemIoOps(0x10000);
+        Z80 proc1 = createProcessor(memory1, program);
+        while (memory1.getTstates() < 500) {
+            proc1.execute();
+        }
+
+        MemIoOps memory2 = new MemIoOps(0x10000);
+        Z80 proc2 = createProcessor(memory2, program);
+        proc2.run(500);
+
+        assertEquals(memory1.getTstates(), memory2.getTstates());
+        assertEquals(proc1.getRegPC(), proc2.getRegPC());
+        assertEquals(proc1.getRegAF(), proc2.getRegAF());
+        assertEquals(proc1.getRegBC(), proc2.getRegBC());
+        assertEquals(proc1.getRegDE(), proc2.getRegDE());
+        assertEquals(proc1.getRegHL(), proc2.getRegHL());
+    }
+
+    public void testPrefixChain() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "      db  0DDH,0FDH,21H,34H,12H", // ld iy,1234h with a redundant DD prefix
+            "      nop");
+
+        proc.execute();
+
+        assertEquals(18, memory.getTstates());
+        assertEquals(0x0005, proc.getRegPC());
+        assertEquals(0x1234, proc.getRegIY());
+        assertEquals(0xFFFF, proc.getRegIX());
+        assertEquals(3, proc.getRegR());
+    }
+
+    public void testPrefixFollowedByPlainOpcode() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "      db  0DDH,3EH,55H", // ld a,55h with an ignored DD prefix
+            "      nop");
+
+        proc.execute();
+
+        assertEquals(11, memory.getTstates());
+        assertEquals(0x0003, proc.getRegPC());
+        assertEquals(0x55, proc.getRegA());
+    }
+
+    public void testBlockCacheMatchesInterpreter() throws Exception {
+        String[] program = new String[] {
+            "      ld  ix,1000H",
+            "      ld  hl,2000H",
+            "      ld  b,20",
+            "loop: ld  a,(ix+1)",
+            "      add a,b",
+            "      ld  (hl),a",
+            "      rlc (hl)",
+            "      inc ix",
+            "      inc hl",
+            "      call sub",
+            "      djnz loop",
+            "      halt",
+            "sub:  push bc",
+            "      ld  c,(hl)",
+            "      srl c",
+            "      pop bc",
+            "      ret"
+        };
+
+        MemIoOps memory1 = new MemIoOps(0x10000);
+        Z80 proc1 = createProcessor(memory1, program);
+        proc1.run(100000);
+
+        MemIoOps memory2 = new MemIoOps(0x10000);
+        Z80 proc2 = createProcessor(memory2, program);
+        proc2.setBlockCacheEnabled(true);
+        proc2.run(100000);
+
+        assertTrue(proc2.isHalted());
+        assertEquals(memory1.getTstates(), memory2.getTstates());
+        assertEquals(proc1.getRegPC(), proc2.getRegPC());
+        assertEquals(proc1.getRegAF(), proc2.getRegAF());
+        assertEquals(proc1.getRegBC(), proc2.getRegBC());
+        assertEquals(proc1.getRegHL(), proc2.getRegHL());
+        assertEquals(proc1.getRegIX(), proc2.getRegIX());
+        assertEquals(proc1.getRegR(), proc2.getRegR());
+        assertEquals(proc1.getMemPtr(), proc2.getMemPtr());
+        assertTrue(Arrays.equals(memory1.getRam(), memory2.getRam()));
+    }
+
+    public void testBlockCacheSelfModifyingCode() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "      ld  b,3",
+            "loop: ld  a,(data)",
+            "      inc a",
+            "      ld  (data),a",
+            "      ld  (value+1),a",
+            "value:ld  c,0",
+            "      djnz loop",
+            "      halt",
+            "data: db  10H");
+        proc.setBlockCacheEnabled(true);
+
+        proc.run(1000);
+
+        assertTrue(proc.isHalted());
+        assertEquals(0x13, proc.getRegC());
+    }
+
+    public void testBlockCacheStopsAtBreakpoint() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "loop: nop",
+            "      nop",
+            "      nop",
+            "      jr  loop");
+        proc.setBlockCacheEnabled(true);
+
+        proc.run(100);
+        proc.setBreakpoint(0x0002, true);
+        proc.run(1000);
+
+        assertEquals(0x0002, proc.getRegPC());
+    }
+
+    public void testFlagsAfterAdd() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "      ld  a,0FH",
+            "      add a,1",
+            "      halt");
+
+        proc.run(1000);
+
+        assertEquals(0x10, proc.getRegA());
+        assertEquals(0x10, proc.getFlags()); // H
+        assertEquals(0x10, proc.getZ80State().getRegF());
+    }
+
+    public void testFlagsAfterCompare() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "      xor a",
+            "      cp  28H",
+            "      push af",
+            "      pop bc",
+            "      halt");
+
+        proc.run(1000);
+
+        assertEquals(0x00, proc.getRegA());
+        assertEquals(0xBB, proc.getRegC()); // S, 5 and 3 from the operand, H, N, C
+        assertEquals(0xBB, proc.getFlags());
+    }
+
+    public void testFlagsScfAfterCompare() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "      xor a",
+            "      cp  28H",
+            "      scf",
+            "      halt");
+
+        proc.run(1000);
+
+        assertEquals(0x81, proc.getFlags()); // Flags 5 and 3 from A only
+    }
+
+    public void testFlagsScfAfterOtherInstruction() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "      xor a",
+            "      cp  28H",
+            "      nop",
+            "      scf",
+            "      halt");
+
+        proc.run(1000);
+
+        assertEquals(0xA9, proc.getFlags()); // Flags 5 and 3 from A or F
+    }
+
+    public void testFlagsConditionalJump() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "      ld  b,3",
+            "loop: dec b",
+            "      jr  nz,loop",
+            "      ld  a,80H",
+            "      or  a",
+            "      jp  p,$",
+            "      halt");
+
+        proc.run(1000);
+
+        assertTrue(proc.isHalted());
+        assertEquals(0x00, proc.getRegB());
+        assertEquals(0x80, proc.getFlags()); // S
+    }
+
+    public void testFlagsKeptByPrefixedInstructions() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "      ld  ix,8000H",
+            "      ld  a,0FH",
+            "      add a,1",
+            "      set 0,b",
+            "      res 1,(ix+0)",
+            "      ld  (8002H),bc",
+            "      ld  (ix+1),a",
+            "      push af",
+            "      pop de",
+            "      halt");
+
+        proc.run(1000);
+
+        assertEquals(0x10, proc.getRegE()); // H
+        assertEquals(0x10, proc.getFlags());
+    }
+
+    public void testFlagsSetByPrefixedInstructions() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory,
+            "      ld  ix,8000H",
+            "      ld  b,0",
+            "      ld  a,0FH",
+            "      add a,1",
+            "      rl  b",
+            "      push af",
+            "      add a,1",
+            "      rlc (ix+0)",
+            "      push af",
+            "      add a,1",
+            "      ld  a,i",
+            "      push af",
+            "      pop hl",
+            "      pop de",
+            "      pop bc",
+            "      halt");
+
+        proc.run(1000);
+
+        assertEquals(0x44, proc.getRegC()); // Z, P
+        assertEquals(0x44, proc.getRegE()); // Z, P
+        assertEquals(0x40, proc.getRegL()); // Z
+        assertEquals(0x40, proc.getFlags());
+    }
+
+    public void testFlagsAllOperands() throws Exception {
+        MemIoOps memory = new MemIoOps(0x10000);
+        Z80 proc = createProcessor(memory);
+        byte[] ram = memory.getRam();
+
+        int[] opCodes = new int[] {
+            0x80, 0x88, 0x90, 0x98, 0xA0, 0xA8, 0xB0, 0xB8 // ADD, ADC, SUB, SBC, AND, XOR, OR, CP
+        };
+        for (int i = 0; i < opCodes.length; i++) {
+            ram[0] = (byte) opCodes[i];
+            ram[1] = (byte) 0xF5; // PUSH AF
+            for (int carry = 0; carry <= 1; carry++) {
+                for (int a = 0; a < 256; a++) {
+                    for (int b = 0; b < 256; b++) {
+                        assertFlags(proc, ram, a, b, carry);
+                    }
+                }
+            }
+        }
+
+        opCodes = new int[] {
+            0x3C, 0x3D // INC A, DEC A
+        };
+        for (int i = 0; i < opCodes.length; i++) {
+            ram[0] = (byte) opCodes[i];
+            ram[1] = (byte) 0xF5; // PUSH AF
+            for (int carry = 0; carry <= 1; carry++) {
+                for (int a = 0; a < 256; a++) {
+                    assertFlags(proc, ram, a, 0, carry);
+                }
+            }
+        }
+    }
+
+    void assertFlags(Z80 proc, byte[] ram, int a, int b, int carry) {
+        int opCode = ram[0] & 0xFF;
+        int expected = expectedAF(opCode, a, b, carry);
+
+        proc.setRegPC(0x0000);
+        proc.setRegSP(0x8000);
+        proc.setRegA(a);
+        proc.setRegB(b);
+        proc.setFlags(0xFE | carry); // Stale bits that the instruction must replace
+        proc.execute();
+        proc.execute();
+
+        int pushed = ((ram[0x7FFF] & 0xFF) << 8) | (ram[0x7FFE] & 0xFF);
+        if (pushed != expected || proc.getRegAF() != expected) {
+            fail(String.format("opcode %02X, A=%02X, B=%02X, C=%d: expected AF=%04X, pushed %04X, read %04X",
+                opCode, a, b, carry, expected, pushed, proc.getRegAF()));
+        }
+    }
+
+    // Reference implementation, computes each flag from its definition
+    static int expectedAF(int opCode, int a, int b, int carry) {
+        int res;
+        int flags = 0;
+        boolean sub = false;
+
+        switch (opCode) {
+            case 0x80:
+            case 0x88: {
+                int c = opCode == 0x88 ? carry : 0;
+                int sum = a + b + c;
+                res = sum & 0xFF;
+                if ((a & 0x0F) + (b & 0x0F) + c > 0x0F) {
+                    flags |= 0x10;
+                }
+                if (((a ^ ~b) & (a ^ res) & 0x80) != 0) {
+                    flags |= 0x04;
+                }
+                if (sum > 0xFF) {
+                    flags |= 0x01;
+                }
+                break;
+            }
+            case 0x90:
+            case 0x98:
+            case 0xB8: {
+                int c = opCode == 0x98 ? carry : 0;
+                int diff = a - b - c;
+                res = diff & 0xFF;
+                if ((a & 0x0F) - (b & 0x0F) - c < 0) {
+                    flags |= 0x10;
+                }
+                if (((a ^ b) & (a ^ res) & 0x80) != 0) {
+                    flags |= 0x04;
+                }
+                if (diff < 0) {
+                    flags |= 0x01;
+                }
+                sub = true;
+                break;
+            }
+            case 0xA0:
+            case 0xA8:
+            case 0xB0: {
+                res = opCode == 0xA0 ? a & b : opCode == 0xA8 ? a ^ b : a | b;
+                if (opCode == 0xA0) {
+                    flags |= 0x10;
+                }
+                if (Integer.bitCount(res) % 2 == 0) {
+                    flags |= 0x04;
+                }
+                break;
+            }
+            case 0x3C: {
+                res = (a + 1) & 0xFF;
+                if ((a & 0x0F) == 0x0F) {
+                    flags |= 0x10;
+                }
+                if (a == 0x7F) {
+                    flags |= 0x04;
+                }
+                flags |= carry;
+                break;
+            }
+            case 0x3D: {
+                res = (a - 1) & 0xFF;
+                if ((a & 0x0F) == 0x00) {
+                    flags |= 0x10;
+                }
+                if (a == 0x80) {
+                    flags |= 0x04;
+                }
+                flags |= carry;
+                sub = true;
+                break;
+            }
+            default:
+                throw new IllegalArgumentException();
+        }
+
+        flags |= res & 0x80;
+        if (res == 0) {
+            flags |= 0x40;
+        }
+        if (sub) {
+            flags |= 0x02;
+        }
+        if (opCode == 0xB8) {
+            flags |= b & 0x28; // Flags 5 and 3 from the operand
+            res = a;
+        }
+        else {
+            flags |= res & 0x28;
+        }
+
+        return (res << 8) | flags;
+    }
+
+    class BlockMemory extends MemIoOps {
+
+        final boolean block;
+        int data;
+        int blockCalls;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        BlockMemory(boolean block) {
+            super(0x10000);
+            this.block = block;
+        }
+
+        @Override
+        public int inPort(int port) {
+            tstates += 4;
+            return (data++) & 0xff;
+        }
+
+        @Override
+        public void outPort(int port, int value) {
+            tstates += 4;
+            output.write(value);
+        }
+
+        @Override
+        public boolean isBlockPort(int port) {
+            return block && (port & 0xff) == 0x10;
+        }
+
+        @Override
+        public void inBlock(int port, byte[] buffer, int count) {
+            blockCalls++;
+            for (int i = 0; i < count; i++) {
+                buffer[i] = (byte) (data++);
+            }
+        }
+
+        @Override
+        public void outBlock(int port, byte[] buffer, int count) {
+            blockCalls++;
+            output.write(buffer, 0, count);
+        }
+
+    }
+
+    public void testInirBlock() throws Exception {
+        String[] program = new String[] {
+            "      ld  hl,8000H",
+            "      ld  bc,0010H",
+            "      inir",
+            "      ld  b,5",
+            "      inir",
+            "      ld  b,1",
+            "      inir",
+            "      halt",
+        };
+        assertBlockTransfer(program, 2);
+    }
+
+    public void testOtirBlock() throws Exception {
+        String[] program = new String[] {
+            "      ld  hl,0000H",
+            "      ld  bc,0010H",
+            "      otir",
+            "      ld  b,5",
+            "      otir",
+            "      halt",
+        };
+        assertBlockTransfer(program, 2);
+    }
+
+    public void testInirBlockBudget() throws Exception {
+        String[] program = new String[] {
+            "      ld  hl,8000H",
+            "      ld  bc,0010H",
+            "      inir",
+            "      halt",
+        };
+        BlockMemory memory = new BlockMemory(true);
+        Z80 proc = createProcessor(memory, program);
+        proc.execute();
+        proc.execute();
+
+        long budget = 100;
+        long tstates = proc.run(budget);
+
+        assertEquals(1, memory.blockCalls);
+        assertTrue(tstates < budget + 21);
+        assertEquals(0x8000 + memory.data, proc.getRegHL());
+        assertEquals(256 - memory.data, proc.getRegB());
+
+        proc.run(100000);
+        assertTrue(proc.isHalted());
+        assertEquals(0x00, proc.getRegB());
+        assertEquals(256, memory.data);
+    }
+
+    public void testInirBlockOverwritingInstruction() throws Exception {
+        String[] program = new String[] {
+            "      ld  hl,0000H",
+            "      ld  bc,1010H",
+            "      inir",
+            "      halt",
+        };
+        BlockMemory memory = new BlockMemory(true);
+        Z80 proc = createProcessor(memory, program);
+        proc.execute();
+        proc.execute();
+        proc.execute();
+
+        assertEquals(0, memory.blockCalls);
+        assertEquals(0x0F, proc.getRegB());
+    }
+
+    void assertBlockTransfer(String[] program, int blockCalls) {
+        BlockMemory expectedMemory = new BlockMemory(false);
+        Z80 expected = createProcessor(expectedMemory, program);
+        expected.run(100000);
+
+        BlockMemory memory = new BlockMemory(true);
+        Z80 proc = createProcessor(memory, program);
+        proc.run(100000);
+
+        assertTrue(proc.isHalted());
+        assertEquals(blockCalls, memory.blockCalls);
+        assertEquals(expectedMemory.getTstates(), memory.getTstates());
+        assertEquals(expected.getRegPC(), proc.getRegPC());
+        assertEquals(expected.getRegAF(), proc.getRegAF());
+        assertEquals(expected.getRegBC(), proc.getRegBC());
+        assertEquals(expected.getRegHL(), proc.getRegHL());
+        assertEquals(expected.getRegR(), proc.getRegR());
+        assertEquals(expected.getMemPtr(), proc.getMemPtr());
+        assertTrue(Arrays.equals(expectedMemory.getRam(), memory.getRam()));
+        assertTrue(Arrays.equals(expectedMemory.output.toByteArray(), memory.output.toByteArray()));
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package z80core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import nl.grauw.glass.Source;
+import nl.grauw.glass.SourceBuilder;
+
+/**
+ * Base class of the processor tests, creates processors running assembled programs.
+ */
+public abstract class Z80TestCase extends TestCase {
+
+    /**
+     * Creates a processor with the given program assembled at address 0, if any.
+     */
+    Z80 createProcessor(MemIoOps memory, String... sourceLines) {
+        if (sourceLines.length != 0) {
+            byte[] code = assemble(sourceLines);
+            System.arraycopy(code, 0, memory.getRam(), 0, code.length);
+        }
+        return new Z80(memory, new NotifyOps() {
+
+            @Override
+            public int breakpoint(int address, int opcode) {
+                return opcode;
+            }
+
+            @Override
+            public void execDone() {
+
+            }
+
+        });
+    }
+
+    byte[] assemble(String... sourceLines) {
+        StringBuilder builder = new StringBuilder();
+        for (String lineText : sourceLines) {
+            builder.append(lineText).append("\n");
+        }
+        SourceBuilder sourceBuilder = new SourceBuilder(new ArrayList<File>());
+        Source source = sourceBuilder.parse(new StringReader(builder.toString()), null);
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            source.assemble(os);
+            return os.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -44,6 +44,7 @@ import org.eclipse.jface.viewers.ISelectionChangedListener;
 import org.eclipse.jface.viewers.IStructuredSelection;
 import org.eclipse.jface.viewers.OpenEvent;
 import org.eclipse.jface.viewers.SelectionChangedEvent;
+import org.eclipse.jface.window.Window;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.CTabFolder;
 import org.eclipse.swt.custom.CTabFolder2Adapter;
@@ -118,6 +119,7 @@ public class Application {
     Console console;
 
     Memory memory;
+    Watchpoints watchpoints = new Watchpoints();
     SourceViewer viewer;
     Registers registers;
     Label consolePlaceHolder;
@@ -997,6 +999,51 @@ public class Application {
             }
         });
 
+        item = new MenuItem(menu, SWT.PUSH);
+        item.setText("Step back\tShift+F8");
+        item.setAccelerator(SWT.MOD2 + SWT.F8);
+        item.addListener(SWT.Selection, new Listener() {
+
+            @Override
+            public void handleEvent(Event e) {
+                try {
+                    handleStepBack();
+                } catch (Exception e1) {
+                    e1.printStackTrace();
+                }
+            }
+        });
+
+        item = new MenuItem(menu, SWT.PUSH);
+        item.setText("Reverse step over\tShift+F7");
+        item.setAccelerator(SWT.MOD2 + SWT.F7);
+        item.addListener(SWT.Selection, new Listener() {
+
+            @Override
+            public void handleEvent(Event e) {
+                try {
+                    handleReverseStepOver();
+                } catch (Exception e1) {
+                    e1.printStackTrace();
+                }
+            }
+        });
+
+        item = new MenuItem(menu, SWT.PUSH);
+        item.setText("Run back\tShift+F5");
+        item.setAccelerator(SWT.MOD2 + SWT.F5);
+        item.addListener(SWT.Selection, new Listener() {
+
+            @Override
+            public void handleEvent(Event e) {
+                try {
+                    handleRunBack();
+                } catch (Exception e1) {
+                    e1.printStackTrace();
+                }
+            }
+        });
+
         item = new MenuItem(menu, SWT.PUSH);
         item.setText("Run to line");
         item.addListener(SWT.Selection, new Listener() {
@@ -1028,6 +1075,20 @@ public class Application {
             }
         });
 
+        item = new MenuItem(menu, SWT.PUSH);
+        item.setText("Breakpoint condition...");
+        item.addListener(SWT.Selection, new Listener() {
+
+            @Override
+            public void handleEvent(Event e) {
+                try {
+                    handleBreakpointCondition();
+                } catch (Exception e1) {
+                    e1.printStackTrace();
+                }
+            }
+        });
+
         item = new MenuItem(menu, SWT.PUSH);
         item.setText("Clear all breakpoints");
         item.addListener(SWT.Selection, new Listener() {
@@ -1042,6 +1103,50 @@ public class Application {
             }
         });
 
+        item = new MenuItem(menu, SWT.PUSH);
+        item.setText("Clear all watchpoints");
+        item.addListener(SWT.Selection, new Listener() {
+
+            @Override
+            public void handleEvent(Event e) {
+                try {
+                    handleClearWatchpoints();
+                } catch (Exception e1) {
+                    e1.printStackTrace();
+                }
+            }
+        });
+
+        new MenuItem(menu, SWT.SEPARATOR);
+
+        item = new MenuItem(menu, SWT.CHECK);
+        item.setText("Profile");
+        item.addListener(SWT.Selection, new Listener() {
+
+            @Override
+            public void handleEvent(Event e) {
+                try {
+                    handleToggleProfiler(((MenuItem) e.widget).getSelection());
+                } catch (Exception e1) {
+                    e1.printStackTrace();
+                }
+            }
+        });
+
+        item = new MenuItem(menu, SWT.PUSH);
+        item.setText("Export profile...");
+        item.addListener(SWT.Selection, new Listener() {
+
+            @Override
+            public void handleEvent(Event e) {
+                try {
+                    handleExportProfile();
+                } catch (Exception e1) {
+                    e1.printStackTrace();
+                }
+            }
+        });
+
         new MenuItem(menu, SWT.SEPARATOR);
 
         item = new MenuItem(menu, SWT.PUSH);
@@ -2365,13 +2470,7 @@ public class Application {
 
                         @Override
                         public void poke8(int address, int value) {
-                            display.syncExec(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    memory.poke(address, value);
-                                }
-                            });
+                            memory.poke(address, value);
                             super.poke8(address, value);
                         }
 
@@ -2383,6 +2482,7 @@ public class Application {
                     };
 
                     debugger.setDebugTerminal(debugTerminal);
+                    debugger.setWatchpoints(watchpoints);
 
                     String s = preferences.getDebuggerCompactFlashImage();
                     if (s != null && !"".equals(s)) {
@@ -2399,6 +2499,7 @@ public class Application {
                             debugger.setSource(source);
 
                             memory.setData(debugger.getRam());
+                            memory.setWatchpoints(watchpoints);
                             memory.setSelection(debugger.proc.getRegPC());
                             viewer.setSourceMap(debugger.getSourceMap());
                             handleReset();
@@ -2591,6 +2692,83 @@ public class Application {
         thread.start();
     }
 
+    private void handleStepBack() {
+        if (debuggerThread.get() != null) {
+            return;
+        }
+
+        memory.clearUpdates();
+        viewer.getControl().setFocus();
+
+        debugger.stepBack();
+        updateDebuggerState();
+    }
+
+    private void handleReverseStepOver() {
+        if (debuggerThread.get() != null) {
+            return;
+        }
+
+        memory.clearUpdates();
+        viewer.getControl().setFocus();
+
+        debugger.reverseStepOver();
+        updateDebuggerState();
+    }
+
+    private void handleRunBack() {
+        if (debuggerThread.get() != null) {
+            return;
+        }
+
+        memory.clearUpdates();
+        viewer.getControl().setFocus();
+
+        debugger.runBack();
+        updateDebuggerState();
+    }
+
+    private void handleToggleProfiler(boolean enabled) {
+        debugger.setProfilerEnabled(enabled);
+        if (!enabled) {
+            viewer.setHeatMap(null);
+        }
+    }
+
+    private void handleExportProfile() throws IOException {
+        Profiler profiler = debugger.getProfiler();
+        if (profiler == null) {
+            return;
+        }
+
+        FileDialog dlg = new FileDialog(shell, SWT.SAVE);
+        dlg.setText("Export Profile");
+        dlg.setFilterNames(new String[] {
+            "CSV Files"
+        });
+        dlg.setFilterExtensions(new String[] {
+            "*.csv"
+        });
+        dlg.setOverwrite(true);
+
+        String filterPath = preferences.getLastPath();
+        if (filterPath != null) {
+            dlg.setFilterPath(filterPath);
+        }
+
+        String fileName = dlg.open();
+        if (fileName == null) {
+            return;
+        }
+
+        Writer os = new OutputStreamWriter(new FileOutputStream(fileName));
+        try {
+            profiler.writeCsv(debugger.getSourceMap(), os);
+        } finally {
+            os.close();
+        }
+    }
+
     private void handleStop() {
         debugger.doStop();
     }
@@ -2606,11 +2784,34 @@ public class Application {
         }
     }
 
+    private void handleBreakpointCondition() {
+        if (debugger == null) {
+            return;
+        }
+
+        int caretOffset = viewer.getStyledText().getCaretOffset();
+        int lineAtOffset = viewer.getStyledText().getLineAtOffset(caretOffset);
+
+        LineEntry lineEntry = viewer.getSourceMap().getLines().get(lineAtOffset);
+        if (lineEntry != null) {
+            int address = lineEntry.address;
+            BreakpointDialog dlg = new BreakpointDialog(shell, debugger, address);
+            if (dlg.open() == Window.OK && !viewer.isBreakpoint(address)) {
+                viewer.toggleBreakpoint(address);
+            }
+        }
+    }
+
     private void handleClearBreakpoints() {
         viewer.resetBreakpoints();
         debugger.resetBreakpoints();
     }
 
+    private void handleClearWatchpoints() {
+        watchpoints.clear();
+        memory.setWatchpoints(watchpoints);
+    }
+
     private void handleRun() {
         if (debuggerThread.get() != null) {
             return;
@@ -2643,9 +2844,25 @@ public class Application {
     }
 
     void updateDebuggerState() {
+        Watchpoints.Watchpoint hit = watchpoints.getHit();
+        if (hit != null) {
+            statusLine.setMessage(String.format("Watchpoint %s: %s %04XH = %02XH", hit.toString(),
+                watchpoints.getHitType() == Watchpoints.READ ? "read" : "write", watchpoints.getHitAddress(), watchpoints.getHitValue()));
+            memory.setSelection(watchpoints.getHitAddress());
+            memory.getControl().redraw();
+            watchpoints.clearHit();
+        }
+        else {
+            statusLine.setMessage("");
+        }
+
         memory.update();
         registers.updateRegisters(debugger.proc);
 
+        if (debugger.getProfiler() != null) {
+            viewer.setHeatMap(debugger.getProfiler().getLineTstates(debugger.getSourceMap()));
+        }
+
         if (debugTMS9918 != null) {
             debugTMS9918.redraw();
         }
@@ -11,11 +11,20 @@
 package com.maccasoft.tools;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import nl.grauw.glass.AssemblyException;
 import nl.grauw.glass.Line;
 import nl.grauw.glass.Scope;
 import nl.grauw.glass.Source;
+import nl.grauw.glass.SourceBuilder;
 import nl.grauw.glass.directives.If;
 import nl.grauw.glass.directives.Section;
 
@@ -37,6 +46,72 @@ public class BinaryBuilder {
         this.filler = filler;
     }
 
+    /**
+     * Assembles a source file to a binary image, returns null if the source has errors.
+     *
+     * The directory of the file is searched for includes before the given include paths.
+     * The progress is printed to <code>out</code>, the errors to the standard error.
+     */
+    public static byte[] compile(File file, List<File> includes, final PrintStream out) {
+        out.print("Compiling " + file.getName() + "...");
+
+        try {
+            final List<File> includePaths = new ArrayList<File>();
+            includePaths.add(file.getAbsoluteFile().getParentFile());
+            includePaths.addAll(includes);
+
+            SourceBuilder builder = new SourceBuilder(includePaths) {
+
+                @Override
+                public Source parse(File sourceFile) {
+                    out.print("\r\nCompiling " + sourceFile.getName() + "...");
+                    return super.parse(sourceFile);
+                }
+
+            };
+
+            Source source;
+            Reader reader = new InputStreamReader(new FileInputStream(file));
+            try {
+                source = builder.parse(reader, file);
+            } finally {
+                reader.close();
+            }
+            source.register();
+            source.expand();
+            source.resolve();
+
+            out.println();
+
+            return new BinaryBuilder(source).build();
+
+        } catch (AssemblyException ex) {
+            StringBuilder sb = new StringBuilder();
+
+            Iterator<AssemblyException.Context> iter = ex.contexts.iterator();
+            if (iter.hasNext()) {
+                AssemblyException.Context context = iter.next();
+                sb.append(context.file.getName());
+                sb.append(":");
+                sb.append(context.line + 1);
+                if (context.column != -1) {
+                    sb.append(":");
+                    sb.append(context.column);
+                }
+                sb.append(": error: ");
+                sb.append(ex.getPlainMessage());
+            }
+
+            out.println();
+            System.err.println(sb.toString());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
     public byte[] build() {
         addr = -1;
         filler = 0x00;
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import z80core.Z80;
+
+/**
+ * Condition and hit count of a breakpoint.
+ *
+ * Each time the breakpoint is reached with the condition true (or without condition) the
+ * hits are counted, the execution stops when the hits reach the hit count, or at every
+ * hit if the count is 0.
+ */
+public class Breakpoint {
+
+    final int address;
+    final Condition condition;
+    final int hitCount;
+    int hits;
+
+    public Breakpoint(int address, Condition condition, int hitCount) {
+        if (hitCount < 0) {
+            throw new IllegalArgumentException("Invalid hit count " + hitCount);
+        }
+        this.address = address;
+        this.condition = condition;
+        this.hitCount = hitCount;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    public Condition getCondition() {
+        return condition;
+    }
+
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public void resetHits() {
+        hits = 0;
+    }
+
+    /**
+     * Called when the breakpoint is reached, returns true if the execution must stop.
+     */
+    public boolean hit(Z80 proc) {
+        if (condition != null && !condition.test(proc)) {
+            return false;
+        }
+        hits++;
+        return hits >= hitCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%04XH", address));
+        if (condition != null) {
+            sb.append(" if ").append(condition.getText());
+        }
+        if (hitCount != 0) {
+            sb.append(" hits ").append(hits).append("/").append(hitCount);
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import org.eclipse.jface.dialogs.Dialog;
+import org.eclipse.jface.dialogs.IDialogConstants;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.Spinner;
+import org.eclipse.swt.widgets.Text;
+
+import nl.grauw.glass.AssemblyException;
+
+public class BreakpointDialog extends Dialog {
+
+    final Debugger debugger;
+    final int address;
+
+    Text condition;
+    Spinner hitCount;
+    Label message;
+
+    public BreakpointDialog(Shell parentShell, Debugger debugger, int address) {
+        super(parentShell);
+        this.debugger = debugger;
+        this.address = address;
+    }
+
+    @Override
+    protected void configureShell(Shell newShell) {
+        super.configureShell(newShell);
+        newShell.setText(String.format("Breakpoint at %04XH", address));
+    }
+
+    @Override
+    protected Control createDialogArea(Composite parent) {
+        Composite content = (Composite) super.createDialogArea(parent);
+        GridLayout layout = new GridLayout(2, false);
+        layout.marginHeight = convertVerticalDLUsToPixels(IDialogConstants.VERTICAL_MARGIN);
+        layout.marginWidth = convertHorizontalDLUsToPixels(IDialogConstants.HORIZONTAL_MARGIN);
+        layout.verticalSpacing = convertVerticalDLUsToPixels(IDialogConstants.VERTICAL_SPACING);
+        layout.horizontalSpacing = convertHorizontalDLUsToPixels(IDialogConstants.HORIZONTAL_SPACING);
+        content.setLayout(layout);
+
+        Breakpoint breakpoint = debugger.getBreakpointCondition(address);
+
+        Label label = new Label(content, SWT.NONE);
+        label.setText("Condition");
+
+        condition = new Text(content, SWT.BORDER);
+        GridData gridData = new GridData(SWT.FILL, SWT.CENTER, true, false);
+        gridData.widthHint = convertWidthInCharsToPixels(40);
+        condition.setLayoutData(gridData);
+        if (breakpoint != null && breakpoint.getCondition() != null) {
+            condition.setText(breakpoint.getCondition().getText());
+        }
+
+        label = new Label(content, SWT.NONE);
+        label.setText("Hit count");
+
+        hitCount = new Spinner(content, SWT.BORDER);
+        hitCount.setValues(breakpoint != null ? breakpoint.getHitCount() : 0, 0, 999999, 0, 1, 10);
+
+        message = new Label(content, SWT.WRAP);
+        gridData = new GridData(SWT.FILL, SWT.CENTER, true, false, 2, 1);
+        message.setLayoutData(gridData);
+        message.setText("Example: A = 0DH && HL > buffer_end, hit count 0 stops at every hit");
+
+        return content;
+    }
+
+    @Override
+    protected void okPressed() {
+        try {
+            debugger.setBreakpointCondition(address, condition.getText(), hitCount.getSelection());
+        } catch (AssemblyException e) {
+            message.setText(e.getPlainMessage());
+            return;
+        }
+        super.okPressed();
+    }
+
+}
@@ -53,6 +53,11 @@ public class CodeRuler {
     private Font font;
     private Font fontBold;
 
+    // Execution profile, T-states per line number, null if not shown
+    private long[] heat;
+    private long heatMax;
+    private Color[] heatColors;
+
     final PaintListener paintListener = new PaintListener() {
 
         @Override
@@ -110,6 +115,11 @@ public class CodeRuler {
         currentLineBackground = new Color(Display.getDefault(), 232, 242, 254);
 
         breakpoint = new boolean[65536];
+
+        heatColors = new Color[8];
+        for (int i = 0; i < heatColors.length; i++) {
+            heatColors[i] = new Color(Display.getDefault(), 255, 240 - i * 20, 230 - i * 25);
+        }
     }
 
     public void setText(StyledText text) {
@@ -153,6 +163,10 @@ public class CodeRuler {
                     gc.setBackground(currentLineBackground);
                     gc.fillRectangle(leftMargin, y, rect.width - leftMargin - rightMargin, text.getLineHeight());
                 }
+                else if (heat != null && lineNumber < heat.length && heat[lineNumber] != 0) {
+                    gc.setBackground(heatColors[(int) ((heat[lineNumber] * (heatColors.length - 1) + heatMax - 1) / heatMax)]);
+                    gc.fillRectangle(leftMargin, y, rect.width - leftMargin - rightMargin, text.getLineHeight());
+                }
                 else {
                     gc.setBackground(canvas.getBackground());
                 }
@@ -179,6 +193,23 @@ public class CodeRuler {
         canvas.redraw();
     }
 
+    /**
+     * Shows the execution profile as a heat map, the line backgrounds get darker with
+     * the share of the T-states spent on the line.
+     *
+     * @param heat the T-states for each line number, or null to remove the heat map
+     */
+    public void setHeatMap(long[] heat) {
+        this.heat = heat;
+        this.heatMax = 0;
+        if (heat != null) {
+            for (int i = 0; i < heat.length; i++) {
+                heatMax = Math.max(heatMax, heat[i]);
+            }
+        }
+        canvas.redraw();
+    }
+
     public void setVisible(boolean visible) {
         canvas.setVisible(visible);
         layoutData.exclude = !visible;
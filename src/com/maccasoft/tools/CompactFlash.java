@@ -0,0 +1,585 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.maccasoft.tools.internal.Utility;
+
+/**
+ * Emulated CompactFlash card in 8-bit IDE mode, shared by the machine and the debugger.
+ *
+ * The card image is memory-mapped, so that the data port reads and writes are plain
+ * memory accesses instead of a file access per byte. The written sectors reach the file
+ * when the operating system writes back the mapped pages, or at the latest on
+ * <code>sync</code> and <code>close</code>.
+ *
+ * With an overlay the image is opened read-only and shared, the written sectors are
+ * copied on the first write to a sparse delta file that holds only those sectors, so
+ * that many instances can run from the same image. The delta file starts with a header
+ * (magic, version, image size and number of sectors) followed by the sectors, each
+ * preceded by its LBA. The delta sectors are kept in memory and written back on
+ * <code>sync</code> and <code>close</code>, <code>commit</code> writes them to the image
+ * and <code>discard</code> drops them.
+ */
+public class CompactFlash {
+
+    public static final int SECTOR_SIZE = 512;
+
+    // Images are mapped in chunks of 1G, the largest power of 2 a buffer can hold
+    static final int CHUNK_SHIFT = 30;
+    static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    public static final int DELTA_MAGIC = 0x4346444C; // CFDL
+    public static final int DELTA_VERSION = 1;
+
+    static final int DELTA_HEADER_SIZE = 32;
+    static final int DELTA_RECORD_SIZE = 4 + SECTOR_SIZE;
+
+    // The delta index is allocated in pages of 64K sectors (32M of image)
+    static final int INDEX_SHIFT = 16;
+    static final int INDEX_MASK = (1 << INDEX_SHIFT) - 1;
+
+    // The delta sectors data is allocated in pages of 2K slots (1M)
+    static final int DATA_SHIFT = 11;
+    static final int DATA_MASK = (1 << DATA_SHIFT) - 1;
+
+    byte command;
+    byte[] lba = new byte[4];
+    byte secCount;
+    int dataCount;
+
+    // Image offset of the next data byte
+    long position;
+
+    final byte[] identifyBuffer = new byte[SECTOR_SIZE];
+
+    File file;
+    FileChannel channel;
+    MappedByteBuffer[] chunks;
+    long size;
+
+    // Delta sectors: slot of each sector, -1 if not in the delta, and slot data
+    FileChannel deltaChannel;
+    int[][] deltaIndex;
+    int[] deltaLBA;
+    byte[][] deltaData;
+    boolean[] deltaDirty;
+    int deltaCount;
+
+    public CompactFlash() {
+        System.arraycopy("EM-CF-00000001      ".getBytes(), 0, identifyBuffer, 20, 20); // Serial number
+        System.arraycopy(Utility.getSwappedBytes("1.00    "), 0, identifyBuffer, 46, 8); // Firmware version
+        System.arraycopy(Utility.getSwappedBytes("EMULATED CF CARD                        "), 0, identifyBuffer, 54, 40); // Card model
+    }
+
+    /**
+     * Opens and maps the card image, closing the current one.
+     */
+    public void open(File file) throws IOException {
+        open(file, null);
+    }
+
+    /**
+     * Opens and maps the card image with an overlay, closing the current one.
+     *
+     * @param file the card image, opened read-only if there is an overlay
+     * @param delta the delta file of the overlay, created if it doesn't exist, or null to
+     *            write to the image
+     */
+    public void open(File file, File delta) throws IOException {
+        close();
+
+        FileChannel channel;
+        if (delta != null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        else {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        try {
+            long size = channel.size();
+            MapMode mode = delta != null ? MapMode.READ_ONLY : MapMode.READ_WRITE;
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + CHUNK_MASK) >> CHUNK_SHIFT)];
+            for (int i = 0; i < chunks.length; i++) {
+                long offset = (long) i << CHUNK_SHIFT;
+                chunks[i] = channel.map(mode, offset, Math.min(size - offset, 1L << CHUNK_SHIFT));
+            }
+            this.chunks = chunks;
+            this.size = size;
+            if (delta != null) {
+                openDelta(delta);
+            }
+            this.file = file;
+            this.channel = channel;
+        } catch (IOException e) {
+            this.chunks = null;
+            this.size = 0;
+            channel.close();
+            throw e;
+        }
+
+        long sectors = size >> 9;
+        identifyBuffer[14] = (byte) (sectors >> 16);
+        identifyBuffer[15] = (byte) (sectors >> 24);
+        identifyBuffer[16] = (byte) (sectors);
+        identifyBuffer[17] = (byte) (sectors >> 8);
+    }
+
+    void openDelta(File delta) throws IOException {
+        deltaChannel = FileChannel.open(delta.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            long sectors = (size + SECTOR_SIZE - 1) >> 9;
+            deltaIndex = new int[(int) ((sectors + INDEX_MASK) >> INDEX_SHIFT)][];
+            deltaLBA = new int[16];
+            deltaData = new byte[(int) ((sectors + DATA_MASK) >> DATA_SHIFT)][];
+            deltaDirty = new boolean[deltaLBA.length];
+            deltaCount = 0;
+
+            if (deltaChannel.size() == 0) {
+                writeDeltaHeader();
+                return;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(DELTA_HEADER_SIZE);
+            deltaChannel.read(header, 0);
+            header.flip();
+            if (header.remaining() < DELTA_HEADER_SIZE || header.getInt() != DELTA_MAGIC) {
+                throw new IOException(delta.getName() + ": not a delta file");
+            }
+            if (header.getInt() > DELTA_VERSION) {
+                throw new IOException(delta.getName() + ": unsupported delta version");
+            }
+            if (header.getLong() != size) {
+                throw new IOException(delta.getName() + ": image size doesn't match");
+            }
+            int count = header.getInt();
+
+            ByteBuffer record = ByteBuffer.allocate(DELTA_RECORD_SIZE);
+            for (int i = 0; i < count; i++) {
+                long position = DELTA_HEADER_SIZE + (long) i * DELTA_RECORD_SIZE;
+                record.clear();
+                while (record.hasRemaining()) {
+                    if (deltaChannel.read(record, position + record.position()) == -1) {
+                        throw new IOException(delta.getName() + ": truncated delta file");
+                    }
+                }
+                record.flip();
+                int lba = record.getInt();
+                if (lba < 0 || lba >= sectors) {
+                    throw new IOException(delta.getName() + ": sector " + lba + " out of range");
+                }
+                int slot = getDeltaSlot(lba, false);
+                record.get(deltaData[slot >> DATA_SHIFT], (slot & DATA_MASK) * SECTOR_SIZE, SECTOR_SIZE);
+                deltaDirty[slot] = false;
+            }
+        } catch (IOException e) {
+            closeDelta();
+            throw e;
+        }
+    }
+
+    void writeDeltaHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(DELTA_HEADER_SIZE);
+        header.putInt(DELTA_MAGIC);
+        header.putInt(DELTA_VERSION);
+        header.putLong(size);
+        header.putInt(deltaCount);
+        header.position(0);
+        deltaChannel.write(header, 0);
+    }
+
+    /**
+     * Returns the delta slot of the sector, adding it if needed with the content of
+     * the image if copy is true.
+     */
+    int getDeltaSlot(int lba, boolean copy) {
+        int[] page = deltaIndex[lba >> INDEX_SHIFT];
+        if (page == null) {
+            page = new int[INDEX_MASK + 1];
+            Arrays.fill(page, -1);
+            deltaIndex[lba >> INDEX_SHIFT] = page;
+        }
+        int slot = page[lba & INDEX_MASK];
+        if (slot == -1) {
+            if (deltaCount == deltaLBA.length) {
+                deltaLBA = Arrays.copyOf(deltaLBA, deltaCount * 2);
+                deltaDirty = Arrays.copyOf(deltaDirty, deltaCount * 2);
+            }
+            slot = deltaCount++;
+            page[lba & INDEX_MASK] = slot;
+            deltaLBA[slot] = lba;
+            deltaDirty[slot] = true;
+            byte[] data = deltaData[slot >> DATA_SHIFT];
+            if (data == null) {
+                data = new byte[(DATA_MASK + 1) * SECTOR_SIZE];
+                deltaData[slot >> DATA_SHIFT] = data;
+            }
+            if (copy) {
+                long offset = (long) lba << 9;
+                int index = (slot & DATA_MASK) * SECTOR_SIZE;
+                int count = (int) Math.min(SECTOR_SIZE, size - offset);
+                for (int i = 0; i < count; i++) {
+                    data[index + i] = (byte) readImage(offset + i);
+                }
+                Arrays.fill(data, index + count, index + SECTOR_SIZE, (byte) 0xFF);
+            }
+        }
+        return slot;
+    }
+
+    void closeDelta() throws IOException {
+        deltaIndex = null;
+        deltaLBA = null;
+        deltaData = null;
+        deltaDirty = null;
+        deltaCount = 0;
+        if (deltaChannel != null) {
+            try {
+                deltaChannel.close();
+            } finally {
+                deltaChannel = null;
+            }
+        }
+    }
+
+    public boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * Returns true if the image is opened with an overlay.
+     */
+    public boolean isOverlay() {
+        return deltaChannel != null;
+    }
+
+    /**
+     * Returns the number of sectors in the overlay delta.
+     */
+    public int getDeltaSectors() {
+        return deltaCount;
+    }
+
+    /**
+     * Writes the modified sectors to the image file, or to the delta file with an overlay.
+     */
+    public void sync() throws IOException {
+        if (deltaChannel != null) {
+            ByteBuffer record = ByteBuffer.allocate(DELTA_RECORD_SIZE);
+            for (int slot = 0; slot < deltaCount; slot++) {
+                if (deltaDirty[slot]) {
+                    record.clear();
+                    record.putInt(deltaLBA[slot]);
+                    record.put(deltaData[slot >> DATA_SHIFT], (slot & DATA_MASK) * SECTOR_SIZE, SECTOR_SIZE);
+                    record.flip();
+                    deltaChannel.write(record, DELTA_HEADER_SIZE + (long) slot * DELTA_RECORD_SIZE);
+                    deltaDirty[slot] = false;
+                }
+            }
+            writeDeltaHeader();
+            deltaChannel.force(false);
+        }
+        else if (chunks != null) {
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i].force();
+            }
+        }
+    }
+
+    /**
+     * Writes the overlay delta sectors to the image, then empties the delta. The image
+     * must not be in use by other instances.
+     */
+    public void commit() throws IOException {
+        if (deltaChannel == null) {
+            return;
+        }
+        FileChannel image = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        try {
+            for (int slot = 0; slot < deltaCount; slot++) {
+                long offset = (long) deltaLBA[slot] << 9;
+                int count = (int) Math.min(SECTOR_SIZE, size - offset);
+                image.write(ByteBuffer.wrap(deltaData[slot >> DATA_SHIFT], (slot & DATA_MASK) * SECTOR_SIZE, count), offset);
+            }
+            image.force(false);
+        } finally {
+            image.close();
+        }
+        discard();
+    }
+
+    /**
+     * Drops the overlay delta sectors, the card reads again the image content.
+     */
+    public void discard() throws IOException {
+        if (deltaChannel == null) {
+            return;
+        }
+        Arrays.fill(deltaIndex, null);
+        Arrays.fill(deltaData, null);
+        deltaCount = 0;
+        deltaChannel.truncate(DELTA_HEADER_SIZE);
+        writeDeltaHeader();
+        deltaChannel.force(false);
+    }
+
+    /**
+     * Writes the modified sectors and closes the image file. The mapping is released
+     * when the buffers are garbage collected.
+     */
+    public void close() throws IOException {
+        if (channel != null) {
+            try {
+                sync();
+            } finally {
+                closeDelta();
+                chunks = null;
+                size = 0;
+                file = null;
+                try {
+                    channel.close();
+                } finally {
+                    channel = null;
+                }
+            }
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Reads a register, returns -1 if the port isn't a card register or no image is open.
+     */
+    public int inPort(int port) {
+        if (channel == null) {
+            return -1;
+        }
+        switch (port) {
+            case Machine.CF_DATA:
+                if (command == Machine.CF_READ_SEC) {
+                    if (dataCount < SECTOR_SIZE * secCount) {
+                        dataCount++;
+                        return read(position++);
+                    }
+                }
+                else if (command == Machine.CF_IDENTIFY) {
+                    if (dataCount < identifyBuffer.length) {
+                        return identifyBuffer[dataCount++] & 0xFF;
+                    }
+                }
+                return 0x00;
+            case Machine.CF_SECCOUNT:
+                return secCount & 0xFF;
+            case Machine.CF_STATUS:
+                if (command == Machine.CF_WRITE_SEC || command == Machine.CF_READ_SEC) {
+                    return 0x48; // CF Ready, DRQ
+                }
+                else if (command == Machine.CF_IDENTIFY) {
+                    if (dataCount < identifyBuffer.length) {
+                        return 0x48; // CF Ready, DRQ
+                    }
+                }
+                return 0x40; // CF Ready
+            case Machine.CF_ERROR:
+                return 0x01; // No error
+            case Machine.CF_SECTOR:
+            case Machine.CF_CYL_LOW:
+            case Machine.CF_CYL_HI:
+            case Machine.CF_HEAD:
+                return 0x00;
+        }
+        return -1;
+    }
+
+    /**
+     * Writes a register, ignored if the port isn't a card register or no image is open.
+     */
+    public void outPort(int port, int value) {
+        if (channel == null) {
+            return;
+        }
+        switch (port) {
+            case Machine.CF_DATA:
+                if (command == Machine.CF_WRITE_SEC) {
+                    if (dataCount < SECTOR_SIZE * secCount) {
+                        dataCount++;
+                        write(position++, value);
+                    }
+                }
+                break;
+            case Machine.CF_COMMAND:
+                command = (byte) value;
+                if (command == Machine.CF_WRITE_SEC || command == Machine.CF_READ_SEC) {
+                    position = getLBA() * SECTOR_SIZE;
+                    dataCount = 0;
+                }
+                else if (command == Machine.CF_IDENTIFY) {
+                    dataCount = 0;
+                }
+                break;
+            case Machine.CF_LBA0:
+                lba[0] = (byte) value;
+                break;
+            case Machine.CF_LBA1:
+                lba[1] = (byte) value;
+                break;
+            case Machine.CF_LBA2:
+                lba[2] = (byte) value;
+                break;
+            case Machine.CF_LBA3:
+                lba[3] = (byte) value;
+                break;
+            case Machine.CF_SECCOUNT:
+                secCount = (byte) value;
+                break;
+        }
+    }
+
+    /**
+     * Reads bytes from the data register, the same as reading them one at a time with
+     * <code>inPort</code>. Sectors are copied at once.
+     */
+    public void readData(byte[] b, int off, int len) {
+        int i = 0;
+        if (channel != null && command == Machine.CF_READ_SEC) {
+            int n = Math.min(len, SECTOR_SIZE * secCount - dataCount);
+            while (i < n) {
+                int count = Math.min(n - i, SECTOR_SIZE - (int) (position & (SECTOR_SIZE - 1)));
+                read(position, b, off + i, count);
+                position += count;
+                dataCount += count;
+                i += count;
+            }
+        }
+        for (; i < len; i++) {
+            b[off + i] = (byte) inPort(Machine.CF_DATA);
+        }
+    }
+
+    /**
+     * Writes bytes to the data register, the same as writing them one at a time with
+     * <code>outPort</code>. Sectors are copied at once.
+     */
+    public void writeData(byte[] b, int off, int len) {
+        int i = 0;
+        if (channel != null && command == Machine.CF_WRITE_SEC) {
+            int n = Math.min(len, SECTOR_SIZE * secCount - dataCount);
+            while (i < n) {
+                int count = Math.min(n - i, SECTOR_SIZE - (int) (position & (SECTOR_SIZE - 1)));
+                write(position, b, off + i, count);
+                position += count;
+                dataCount += count;
+                i += count;
+            }
+        }
+        for (; i < len; i++) {
+            outPort(Machine.CF_DATA, b[off + i] & 0xFF);
+        }
+    }
+
+    long getLBA() {
+        return ((lba[3] & 0x0F) << 24) | ((lba[2] & 0xFF) << 16) | ((lba[1] & 0xFF) << 8) | (lba[0] & 0xFF);
+    }
+
+    // Bytes past the end of the image read as FFH, as from an erased card, and writes are discarded
+
+    int read(long offset) {
+        if (offset >= size) {
+            return 0xFF;
+        }
+        if (deltaIndex != null) {
+            int[] page = deltaIndex[(int) (offset >> (9 + INDEX_SHIFT))];
+            if (page != null) {
+                int slot = page[(int) (offset >> 9) & INDEX_MASK];
+                if (slot != -1) {
+                    return deltaData[slot >> DATA_SHIFT][(slot & DATA_MASK) * SECTOR_SIZE + (int) (offset & (SECTOR_SIZE - 1))] & 0xFF;
+                }
+            }
+        }
+        return chunks[(int) (offset >> CHUNK_SHIFT)].get((int) (offset & CHUNK_MASK)) & 0xFF;
+    }
+
+    // Reads and writes within a sector, the last sector of the image may be partial
+
+    void read(long offset, byte[] b, int off, int len) {
+        if (offset + len > size) {
+            int count = (int) Math.max(0, size - offset);
+            Arrays.fill(b, off + count, off + len, (byte) 0xFF);
+            len = count;
+            if (len == 0) {
+                return;
+            }
+        }
+        if (deltaIndex != null) {
+            int[] page = deltaIndex[(int) (offset >> (9 + INDEX_SHIFT))];
+            if (page != null) {
+                int slot = page[(int) (offset >> 9) & INDEX_MASK];
+                if (slot != -1) {
+                    System.arraycopy(deltaData[slot >> DATA_SHIFT], (slot & DATA_MASK) * SECTOR_SIZE + (int) (offset & (SECTOR_SIZE - 1)), b, off, len);
+                    return;
+                }
+            }
+        }
+        MappedByteBuffer chunk = chunks[(int) (offset >> CHUNK_SHIFT)];
+        int index = (int) (offset & CHUNK_MASK);
+        for (int i = 0; i < len; i++) {
+            b[off + i] = chunk.get(index + i);
+        }
+    }
+
+    void write(long offset, byte[] b, int off, int len) {
+        if (offset + len > size) {
+            len = (int) Math.max(0, size - offset);
+            if (len == 0) {
+                return;
+            }
+        }
+        if (deltaIndex != null) {
+            int slot = getDeltaSlot((int) (offset >> 9), len != SECTOR_SIZE);
+            System.arraycopy(b, off, deltaData[slot >> DATA_SHIFT], (slot & DATA_MASK) * SECTOR_SIZE + (int) (offset & (SECTOR_SIZE - 1)), len);
+            deltaDirty[slot] = true;
+            return;
+        }
+        MappedByteBuffer chunk = chunks[(int) (offset >> CHUNK_SHIFT)];
+        int index = (int) (offset & CHUNK_MASK);
+        for (int i = 0; i < len; i++) {
+            chunk.put(index + i, b[off + i]);
+        }
+    }
+
+    int readImage(long offset) {
+        return chunks[(int) (offset >> CHUNK_SHIFT)].get((int) (offset & CHUNK_MASK)) & 0xFF;
+    }
+
+    void write(long offset, int value) {
+        if (offset >= size) {
+            return;
+        }
+        if (deltaIndex != null) {
+            int slot = getDeltaSlot((int) (offset >> 9), true);
+            deltaData[slot >> DATA_SHIFT][(slot & DATA_MASK) * SECTOR_SIZE + (int) (offset & (SECTOR_SIZE - 1))] = (byte) value;
+            deltaDirty[slot] = true;
+            return;
+        }
+        chunks[(int) (offset >> CHUNK_SHIFT)].put((int) (offset & CHUNK_MASK), (byte) value);
+    }
+
+}
@@ -0,0 +1,664 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.LineNumberReader;
+import java.io.StringReader;
+
+import nl.grauw.glass.AssemblyException;
+import nl.grauw.glass.Parser;
+import nl.grauw.glass.Scope;
+import nl.grauw.glass.expressions.Add;
+import nl.grauw.glass.expressions.And;
+import nl.grauw.glass.expressions.BinaryOperator;
+import nl.grauw.glass.expressions.Complement;
+import nl.grauw.glass.expressions.Divide;
+import nl.grauw.glass.expressions.Equals;
+import nl.grauw.glass.expressions.Expression;
+import nl.grauw.glass.expressions.Flag;
+import nl.grauw.glass.expressions.FlagOrRegister;
+import nl.grauw.glass.expressions.GreaterOrEquals;
+import nl.grauw.glass.expressions.GreaterThan;
+import nl.grauw.glass.expressions.Group;
+import nl.grauw.glass.expressions.Identifier;
+import nl.grauw.glass.expressions.IfElse;
+import nl.grauw.glass.expressions.LessOrEquals;
+import nl.grauw.glass.expressions.LessThan;
+import nl.grauw.glass.expressions.Literal;
+import nl.grauw.glass.expressions.LogicalAnd;
+import nl.grauw.glass.expressions.LogicalOr;
+import nl.grauw.glass.expressions.Modulo;
+import nl.grauw.glass.expressions.Multiply;
+import nl.grauw.glass.expressions.Negative;
+import nl.grauw.glass.expressions.Not;
+import nl.grauw.glass.expressions.NotEquals;
+import nl.grauw.glass.expressions.Or;
+import nl.grauw.glass.expressions.Positive;
+import nl.grauw.glass.expressions.Register;
+import nl.grauw.glass.expressions.ShiftLeft;
+import nl.grauw.glass.expressions.ShiftRight;
+import nl.grauw.glass.expressions.Subtract;
+import nl.grauw.glass.expressions.UnaryOperator;
+import nl.grauw.glass.expressions.Xor;
+import z80core.Z80;
+
+/**
+ * Breakpoint condition, an expression on the processor registers and flags.
+ *
+ * The text is parsed with the assembler expression syntax, so the program symbols can be
+ * used, and compiled once to a tree of evaluation nodes: symbols and constant terms are
+ * resolved at compile time, registers and flags are read directly from the processor, so
+ * evaluating the condition doesn't walk the expression tree of the assembler. The
+ * register names are the assembler ones, plus PC. The flag names (NZ, Z, NC, PO, PE, P,
+ * M) evaluate to true or false, C is the register. As in the assembler, true is -1 and
+ * both = and == compare for equality.
+ */
+public class Condition {
+
+    static abstract class Node {
+
+        abstract int evaluate(Z80 proc);
+
+    }
+
+    static class Constant extends Node {
+
+        final int value;
+
+        Constant(int value) {
+            this.value = value;
+        }
+
+        @Override
+        int evaluate(Z80 proc) {
+            return value;
+        }
+
+    }
+
+    static final int FLAG_S = 0x80;
+    static final int FLAG_Z = 0x40;
+    static final int FLAG_PV = 0x04;
+    static final int FLAG_C = 0x01;
+
+    final String text;
+    final Node root;
+
+    Condition(String text, Node root) {
+        this.text = text;
+        this.root = root;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public int evaluate(Z80 proc) {
+        return root.evaluate(proc);
+    }
+
+    public boolean test(Z80 proc) {
+        return root.evaluate(proc) != 0;
+    }
+
+    /**
+     * Compiles a condition.
+     *
+     * @param text the condition text
+     * @param scope the scope of the program symbols, may be null
+     * @throws AssemblyException if the text isn't a valid condition
+     */
+    public static Condition compile(String text, Scope scope) {
+        if (scope == null) {
+            scope = new Scope();
+        }
+        LineNumberReader reader = new LineNumberReader(new StringReader(" condition " + text.replace("==", "=")));
+        Expression expression = new Parser().parse(reader, scope, null).getArguments();
+        if (expression == null) {
+            throw new AssemblyException("Empty condition.");
+        }
+        return new Condition(text, compile(expression, scope));
+    }
+
+    static Node compile(Expression expression, Scope scope) {
+        if (expression instanceof Group) {
+            return compile(((Group) expression).getTerm(), scope);
+        }
+        if (expression instanceof Identifier) {
+            return compileIdentifier(((Identifier) expression).getName(), scope);
+        }
+        if (expression instanceof IfElse) {
+            final Node condition = compile(((IfElse) expression).getCondition(), scope);
+            final Node trueTerm = compile(((IfElse) expression).getTrueTerm(), scope);
+            final Node falseTerm = compile(((IfElse) expression).getFalseTerm(), scope);
+            if (condition instanceof Constant) {
+                return ((Constant) condition).value != 0 ? trueTerm : falseTerm;
+            }
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return condition.evaluate(proc) != 0 ? trueTerm.evaluate(proc) : falseTerm.evaluate(proc);
+                }
+
+            };
+        }
+        if (expression instanceof Positive) {
+            return compile(((Positive) expression).getTerm(), scope);
+        }
+        if (expression instanceof Negative || expression instanceof Complement || expression instanceof Not) {
+            return compileUnary(expression, compile(((UnaryOperator) expression).getTerm(), scope));
+        }
+        if (expression instanceof BinaryOperator) {
+            BinaryOperator operator = (BinaryOperator) expression;
+            return compileBinary(expression, compile(operator.getTerm1(), scope), compile(operator.getTerm2(), scope));
+        }
+        if (expression.isInteger()) {
+            return new Constant(expression.getInteger());
+        }
+        throw new AssemblyException("Invalid condition term: " + expression);
+    }
+
+    static Node compileIdentifier(String name, Scope scope) {
+        if ("pc".equalsIgnoreCase(name)) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegPC();
+                }
+
+            };
+        }
+
+        Literal literal = FlagOrRegister.getByName(name);
+        if (literal instanceof FlagOrRegister || literal instanceof Register) {
+            return compileRegister(literal.getRegister());
+        }
+        if (literal instanceof Flag) {
+            return compileFlag(literal.getFlag());
+        }
+
+        return new Constant(scope.getSymbol(name).getInteger());
+    }
+
+    static Node compileRegister(Register register) {
+        if (register == Register.A) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegA();
+                }
+
+            };
+        }
+        if (register == Register.B) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegB();
+                }
+
+            };
+        }
+        if (register == Register.C) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegC();
+                }
+
+            };
+        }
+        if (register == Register.D) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegD();
+                }
+
+            };
+        }
+        if (register == Register.E) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegE();
+                }
+
+            };
+        }
+        if (register == Register.H) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegH();
+                }
+
+            };
+        }
+        if (register == Register.L) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegL();
+                }
+
+            };
+        }
+        if (register == Register.AF) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegAF();
+                }
+
+            };
+        }
+        if (register == Register.BC) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegBC();
+                }
+
+            };
+        }
+        if (register == Register.DE) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegDE();
+                }
+
+            };
+        }
+        if (register == Register.HL) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegHL();
+                }
+
+            };
+        }
+        if (register == Register.SP) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegSP();
+                }
+
+            };
+        }
+        if (register == Register.IX) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegIX();
+                }
+
+            };
+        }
+        if (register == Register.IY) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegIY();
+                }
+
+            };
+        }
+        if (register == Register.IXH) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegIX() >> 8;
+                }
+
+            };
+        }
+        if (register == Register.IXL) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegIX() & 0xFF;
+                }
+
+            };
+        }
+        if (register == Register.IYH) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegIY() >> 8;
+                }
+
+            };
+        }
+        if (register == Register.IYL) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegIY() & 0xFF;
+                }
+
+            };
+        }
+        if (register == Register.AF_) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegAFx();
+                }
+
+            };
+        }
+        if (register == Register.I) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegI();
+                }
+
+            };
+        }
+        if (register == Register.R) {
+            return new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return proc.getRegR();
+                }
+
+            };
+        }
+        throw new AssemblyException("Invalid register: " + register);
+    }
+
+    static Node compileFlag(Flag flag) {
+        final int mask;
+        final boolean set;
+        if (flag == Flag.NZ || flag == Flag.Z) {
+            mask = FLAG_Z;
+            set = flag == Flag.Z;
+        }
+        else if (flag == Flag.NC || flag == Flag.C) {
+            mask = FLAG_C;
+            set = flag == Flag.C;
+        }
+        else if (flag == Flag.PO || flag == Flag.PE) {
+            mask = FLAG_PV;
+            set = flag == Flag.PE;
+        }
+        else {
+            mask = FLAG_S;
+            set = flag == Flag.M;
+        }
+        return new Node() {
+
+            @Override
+            int evaluate(Z80 proc) {
+                return ((proc.getFlags() & mask) != 0) == set ? -1 : 0;
+            }
+
+        };
+    }
+
+    static Node compileUnary(Expression expression, final Node term) {
+        Node node;
+        if (expression instanceof Negative) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return -term.evaluate(proc);
+                }
+
+            };
+        }
+        else if (expression instanceof Complement) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return ~term.evaluate(proc);
+                }
+
+            };
+        }
+        else {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term.evaluate(proc) == 0 ? -1 : 0;
+                }
+
+            };
+        }
+        return term instanceof Constant ? new Constant(node.evaluate(null)) : node;
+    }
+
+    static Node compileBinary(Expression expression, final Node term1, final Node term2) {
+        Node node;
+        if (expression instanceof Add) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) + term2.evaluate(proc);
+                }
+
+            };
+        }
+        else if (expression instanceof Subtract) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) - term2.evaluate(proc);
+                }
+
+            };
+        }
+        else if (expression instanceof Multiply) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) * term2.evaluate(proc);
+                }
+
+            };
+        }
+        else if (expression instanceof Divide || expression instanceof Modulo) {
+            if (term2 instanceof Constant && ((Constant) term2).value == 0) {
+                throw new AssemblyException("Division by zero.");
+            }
+            final boolean modulo = expression instanceof Modulo;
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    int divisor = term2.evaluate(proc);
+                    if (divisor == 0) {
+                        return 0;
+                    }
+                    return modulo ? term1.evaluate(proc) % divisor : term1.evaluate(proc) / divisor;
+                }
+
+            };
+        }
+        else if (expression instanceof ShiftLeft) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) << term2.evaluate(proc);
+                }
+
+            };
+        }
+        else if (expression instanceof ShiftRight) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) >> term2.evaluate(proc);
+                }
+
+            };
+        }
+        else if (expression instanceof LessThan) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) < term2.evaluate(proc) ? -1 : 0;
+                }
+
+            };
+        }
+        else if (expression instanceof LessOrEquals) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) <= term2.evaluate(proc) ? -1 : 0;
+                }
+
+            };
+        }
+        else if (expression instanceof GreaterThan) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) > term2.evaluate(proc) ? -1 : 0;
+                }
+
+            };
+        }
+        else if (expression instanceof GreaterOrEquals) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) >= term2.evaluate(proc) ? -1 : 0;
+                }
+
+            };
+        }
+        else if (expression instanceof Equals) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) == term2.evaluate(proc) ? -1 : 0;
+                }
+
+            };
+        }
+        else if (expression instanceof NotEquals) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) != term2.evaluate(proc) ? -1 : 0;
+                }
+
+            };
+        }
+        else if (expression instanceof And) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) & term2.evaluate(proc);
+                }
+
+            };
+        }
+        else if (expression instanceof Xor) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) ^ term2.evaluate(proc);
+                }
+
+            };
+        }
+        else if (expression instanceof Or) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    return term1.evaluate(proc) | term2.evaluate(proc);
+                }
+
+            };
+        }
+        else if (expression instanceof LogicalAnd) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    int value1 = term1.evaluate(proc);
+                    return value1 == 0 ? value1 : term2.evaluate(proc);
+                }
+
+            };
+        }
+        else if (expression instanceof LogicalOr) {
+            node = new Node() {
+
+                @Override
+                int evaluate(Z80 proc) {
+                    int value1 = term1.evaluate(proc);
+                    return value1 != 0 ? value1 : term2.evaluate(proc);
+                }
+
+            };
+        }
+        else {
+            throw new AssemblyException("Invalid condition operator: " + expression);
+        }
+        return term1 instanceof Constant && term2 instanceof Constant ? new Constant(node.evaluate(null)) : node;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+}
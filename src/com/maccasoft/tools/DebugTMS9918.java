@@ -286,7 +286,7 @@ public class DebugTMS9918 {
 
     public void setTMS9918(TMS9918 tms9918) {
         this.tms9918 = tms9918;
-        this.imageData = tms9918.getImageData();
+        this.imageData = TMS9918Terminal.createImageData(tms9918);
         if (this.memory != null) {
             this.memory.setData(tms9918.getRam());
         }
@@ -13,11 +13,11 @@ package com.maccasoft.tools;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.io.RandomAccessFile;
+import java.util.Arrays;
 
 import com.maccasoft.tools.SourceMap.LineEntry;
-import com.maccasoft.tools.internal.Utility;
 
+import nl.grauw.glass.AssemblyException;
 import nl.grauw.glass.Source;
 import z80core.MemIoOps;
 import z80core.NotifyOps;
@@ -34,15 +34,23 @@ public class Debugger extends MemIoOps implements NotifyOps {
     int tms9918Reg;
     TMS9918 tms9918;
 
-    byte cfCommand;
-    byte[] cfLBA = new byte[4];
-    byte cfSecCount;
-    RandomAccessFile cf;
-    byte[] cfIdentifyBuffer = new byte[512];
-    int cfDataCount;
+    final CompactFlash cf = new CompactFlash();
 
     boolean stop;
 
+    // Pages written since the last snapshot and sequence number of the last snapshot, -1 if none
+    boolean[] dirtyPages = new boolean[16];
+    long snapshotSequence = -1;
+
+    History history = new History();
+    Profiler profiler;
+
+    Watchpoints watchpoints = new Watchpoints();
+    boolean executing;
+
+    // Conditions and hit counts of the breakpoints, null if unconditional
+    final Breakpoint[] breakpoints = new Breakpoint[65536];
+
     final PrintStream out;
 
     public Debugger(PrintStream out) {
@@ -74,6 +82,7 @@ public class Debugger extends MemIoOps implements NotifyOps {
         proc.setPinReset();
         proc.reset();
         proc.setRegPC(sourceMap.getEntryAddress());
+        history.clear();
     }
 
     public SourceMap getSourceMap() {
@@ -85,20 +94,9 @@ public class Debugger extends MemIoOps implements NotifyOps {
     }
 
     public void setCompactFlash(File file) {
-        System.arraycopy("EM-CF-00000001      ".getBytes(), 0, cfIdentifyBuffer, 20, 20); // Serial number
-        System.arraycopy(Utility.getSwappedBytes("1.00    "), 0, cfIdentifyBuffer, 46, 8); // Firmware version
-        System.arraycopy(Utility.getSwappedBytes("EMULATED CF CARD                        "), 0, cfIdentifyBuffer, 54, 40); // Card model
-
         try {
             if (file != null && file.exists()) {
-                cf = new RandomAccessFile(file, "rw");
-
-                long size = cf.length() >> 9;
-                cfIdentifyBuffer[14] = (byte) (size >> 16);
-                cfIdentifyBuffer[15] = (byte) (size >> 24);
-                cfIdentifyBuffer[16] = (byte) (size);
-                cfIdentifyBuffer[17] = (byte) (size >> 8);
-
+                cf.open(file);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -108,10 +106,7 @@ public class Debugger extends MemIoOps implements NotifyOps {
     public void dispose() {
         stop = true;
         try {
-            if (cf != null) {
-                cf.close();
-                cf = null;
-            }
+            cf.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -124,10 +119,55 @@ public class Debugger extends MemIoOps implements NotifyOps {
         proc.setPinReset();
         proc.reset();
         proc.setRegPC(sourceMap.getEntryAddress());
+        history.clear();
+        if (profiler != null) {
+            profiler.reset();
+        }
+        watchpoints.clearHit();
+        for (int i = 0; i < breakpoints.length; i++) {
+            if (breakpoints[i] != null) {
+                breakpoints[i].resetHits();
+            }
+        }
 
         super.reset();
     }
 
+    @Override
+    public int peek8(int address) {
+        Watchpoints.Watchpoint[] watched = watchpoints.pages[(address & 0xFFFF) >> Watchpoints.PAGE_SHIFT];
+        if (watched != null && executing) {
+            watchpoints.check(watched, address & 0xFFFF, Watchpoints.READ, z80Ram[address & 0xFFFF] & 0xFF);
+        }
+        return super.peek8(address);
+    }
+
+    @Override
+    public int fetchOperand8(int address) {
+        // Instruction bytes are not data, they don't hit the read watchpoints
+        return super.peek8(address);
+    }
+
+    @Override
+    public void poke8(int address, int value) {
+        Watchpoints.Watchpoint[] watched = watchpoints.pages[(address & 0xFFFF) >> Watchpoints.PAGE_SHIFT];
+        if (watched != null && executing) {
+            watchpoints.check(watched, address & 0xFFFF, Watchpoints.WRITE, value & 0xFF);
+        }
+        history.write(address, z80Ram[address & 0xFFFF]);
+        dirtyPages[(address & 0xFFFF) >> 12] = true;
+        super.poke8(address, value);
+    }
+
+    /**
+     * Updates the derived state after a snapshot restore.
+     */
+    void restored(long tstates) {
+        this.tstates = tstates;
+        proc.invalidateBlockCache();
+        history.clear();
+    }
+
     @Override
     public int inPort(int port) {
         tstates += 4; // 4 clocks for read byte from bus
@@ -169,47 +209,9 @@ public class Debugger extends MemIoOps implements NotifyOps {
             return tms9918.inReg();
         }
 
-        if (cf != null) {
-            switch (port) {
-                case Machine.CF_DATA:
-                    if (cfCommand == Machine.CF_READ_SEC) {
-                        if (cfDataCount < 512 * cfSecCount) {
-                            try {
-                                if (cf != null) {
-                                    return (byte) cf.read();
-                                }
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    }
-                    else if (cfCommand == Machine.CF_IDENTIFY) {
-                        if (cfDataCount < cfIdentifyBuffer.length) {
-                            return cfIdentifyBuffer[cfDataCount++];
-                        }
-                        return 0x00;
-                    }
-                    return 0x00;
-                case Machine.CF_SECCOUNT:
-                    return cfSecCount & 0xFF;
-                case Machine.CF_STATUS:
-                    if (cfCommand == Machine.CF_WRITE_SEC || cfCommand == Machine.CF_READ_SEC) {
-                        return 0x48; // CF Ready, DRQ
-                    }
-                    else if (cfCommand == Machine.CF_IDENTIFY) {
-                        if (cfDataCount < cfIdentifyBuffer.length) {
-                            return 0x48; // CF Ready, DRQ
-                        }
-                    }
-                    return 0x40; // CF Ready
-                case Machine.CF_ERROR:
-                    return 0x01; // No error
-                case Machine.CF_SECTOR:
-                case Machine.CF_CYL_LOW:
-                case Machine.CF_CYL_HI:
-                case Machine.CF_HEAD:
-                    return 0x00;
-            }
+        int result = cf.inPort(port);
+        if (result != -1) {
+            return result;
         }
 
         return port;
@@ -243,56 +245,7 @@ public class Debugger extends MemIoOps implements NotifyOps {
             tms9918.outReg(value);
         }
 
-        if (cf != null) {
-            switch (port) {
-                case Machine.CF_DATA:
-                    if (cfCommand == Machine.CF_WRITE_SEC) {
-                        if (cfDataCount < 512 * cfSecCount) {
-                            cfDataCount++;
-                            try {
-                                if (cf != null) {
-                                    cf.write(value & 0xFF);
-                                }
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    }
-                    break;
-                case Machine.CF_COMMAND:
-                    cfCommand = (byte) value;
-                    if (cfCommand == Machine.CF_WRITE_SEC || cfCommand == Machine.CF_READ_SEC) {
-                        try {
-                            long addr = ((cfLBA[3] & 0x0F) << 24) | ((cfLBA[2] & 0xFF) << 16) | ((cfLBA[1] & 0xFF) << 8) | (cfLBA[0] & 0xFF);
-                            if (cf != null) {
-                                cf.seek(addr << 9);
-                            }
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        cfDataCount = 0;
-                    }
-                    else if (cfCommand == Machine.CF_IDENTIFY) {
-                        cfDataCount = 0;
-                    }
-                    break;
-                case Machine.CF_LBA0:
-                    cfLBA[0] = (byte) value;
-                    break;
-                case Machine.CF_LBA1:
-                    cfLBA[1] = (byte) value;
-                    break;
-                case Machine.CF_LBA2:
-                    cfLBA[2] = (byte) value;
-                    break;
-                case Machine.CF_LBA3:
-                    cfLBA[3] = (byte) value;
-                    break;
-                case Machine.CF_SECCOUNT:
-                    cfSecCount = (byte) value;
-                    break;
-            }
-        }
+        cf.outPort(port, value);
     }
 
     @Override
@@ -404,15 +357,15 @@ public class Debugger extends MemIoOps implements NotifyOps {
         LineEntry lineEntry = sourceMap.getLineAtAddress(proc.getRegPC());
         if (lineEntry != null) {
             int stepOverPC1 = proc.getRegPC() + lineEntry.code.length;
-            int stepOverPC2 = peek16(proc.getRegSP());
+            int stepOverPC2 = peekCode(proc.getRegSP()) | peekCode(proc.getRegSP() + 1) << 8;
             int stepOverSP = proc.getRegSP();
 
             stop = false;
             do {
                 int currentPC = proc.getRegPC();
-                proc.execute();
+                execute();
 
-                if (isBreakpoint(proc.getRegPC())) {
+                if (stopAt(proc.getRegPC()) || watchpoints.hit != null) {
                     break;
                 }
                 if (proc.getRegPC() == stepOverPC1 || proc.getRegPC() == stepOverPC2 || (proc.getRegPC() != currentPC && proc.getRegSP() == stepOverSP)) {
@@ -422,7 +375,7 @@ public class Debugger extends MemIoOps implements NotifyOps {
 
         }
         else {
-            proc.execute();
+            execute();
         }
         tms9918.redrawFrame();
     }
@@ -431,18 +384,18 @@ public class Debugger extends MemIoOps implements NotifyOps {
         LineEntry lineEntry = sourceMap.getLineAtAddress(proc.getRegPC());
         if (lineEntry != null) {
             int stepOverPC1 = proc.getRegPC() + lineEntry.code.length;
-            int stepOverPC2 = peek16(proc.getRegSP());
+            int stepOverPC2 = peekCode(proc.getRegSP()) | peekCode(proc.getRegSP() + 1) << 8;
             int stepOverSP = proc.getRegSP();
 
-            proc.execute();
+            execute();
 
-            if (sourceMap.getLineAtAddress(proc.getRegPC()) == null) {
+            if (sourceMap.getLineAtAddress(proc.getRegPC()) == null && watchpoints.hit == null) {
                 stop = false;
                 do {
                     int currentPC = proc.getRegPC();
-                    proc.execute();
+                    execute();
 
-                    if (isBreakpoint(proc.getRegPC())) {
+                    if (stopAt(proc.getRegPC()) || watchpoints.hit != null) {
                         break;
                     }
                     if (proc.getRegPC() == stepOverPC1 || proc.getRegPC() == stepOverPC2 || (proc.getRegPC() != currentPC && proc.getRegSP() == stepOverSP)) {
@@ -452,7 +405,7 @@ public class Debugger extends MemIoOps implements NotifyOps {
             }
         }
         else {
-            proc.execute();
+            execute();
         }
         tms9918.redrawFrame();
     }
@@ -461,32 +414,32 @@ public class Debugger extends MemIoOps implements NotifyOps {
         LineEntry lineEntry = sourceMap.getLineAtAddress(proc.getRegPC());
         if (lineEntry != null) {
             int stepOverPC1 = proc.getRegPC() + lineEntry.code.length;
-            int stepOverPC2 = peek16(proc.getRegSP());
+            int stepOverPC2 = peekCode(proc.getRegSP()) | peekCode(proc.getRegSP() + 1) << 8;
             int stepOverSP = proc.getRegSP();
 
             stop = false;
             do {
-                proc.execute();
+                execute();
 
                 lineEntry = sourceMap.getLineAtAddress(proc.getRegPC());
                 if (lineEntry != null) {
                     stepOverPC1 = proc.getRegPC() + lineEntry.code.length;
-                    stepOverPC2 = peek16(proc.getRegSP());
+                    stepOverPC2 = peekCode(proc.getRegSP()) | peekCode(proc.getRegSP() + 1) << 8;
                     stepOverSP = proc.getRegSP();
                 }
 
-                if (isBreakpoint(proc.getRegPC())) {
+                if (stopAt(proc.getRegPC()) || watchpoints.hit != null) {
                     break;
                 }
             } while (!stop);
 
-            if (sourceMap.getLineAtAddress(proc.getRegPC()) == null) {
+            if (sourceMap.getLineAtAddress(proc.getRegPC()) == null && watchpoints.hit == null) {
                 stop = false;
                 do {
                     int currentPC = proc.getRegPC();
-                    proc.execute();
+                    execute();
 
-                    if (isBreakpoint(proc.getRegPC())) {
+                    if (stopAt(proc.getRegPC()) || watchpoints.hit != null) {
                         break;
                     }
                     if (proc.getRegPC() == stepOverPC1 || proc.getRegPC() == stepOverPC2 || (proc.getRegPC() != currentPC && proc.getRegSP() == stepOverSP)) {
@@ -502,9 +455,9 @@ public class Debugger extends MemIoOps implements NotifyOps {
     public void runToAddress(int addr) {
         stop = false;
         do {
-            proc.execute();
+            execute();
 
-            if (isBreakpoint(proc.getRegPC())) {
+            if (stopAt(proc.getRegPC()) || watchpoints.hit != null) {
                 break;
             }
             if (proc.getRegPC() == addr) {
@@ -514,12 +467,179 @@ public class Debugger extends MemIoOps implements NotifyOps {
         tms9918.redrawFrame();
     }
 
+    /**
+     * Executes one instruction, recording it in the history and in the profile, and
+     * checking the watchpoints.
+     */
+    void execute() {
+        int pc = proc.getRegPC();
+        int sp = proc.getRegSP();
+        long start = tstates;
+
+        watchpoints.hit = null;
+        executing = true;
+        history.begin(proc, start);
+        try {
+            proc.execute();
+        } finally {
+            executing = false;
+        }
+        history.end(proc);
+
+        if (profiler != null) {
+            profiler.executed(pc, z80Ram[pc] & 0xFF, sp, start, proc.getRegPC(), proc.getRegSP(), tstates);
+        }
+    }
+
+    public History getHistory() {
+        return history;
+    }
+
+    public void setProfilerEnabled(boolean enabled) {
+        if (enabled) {
+            if (profiler == null) {
+                profiler = new Profiler();
+            }
+        }
+        else {
+            profiler = null;
+        }
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    public Watchpoints getWatchpoints() {
+        return watchpoints;
+    }
+
+    public void setWatchpoints(Watchpoints watchpoints) {
+        this.watchpoints = watchpoints;
+    }
+
+    /**
+     * Goes back one instruction, and further back until a source line is reached, to mirror
+     * <code>stepInto</code>. Returns false if there is no history to go back to.
+     */
+    public boolean stepBack() {
+        if (history.isEmpty()) {
+            return false;
+        }
+        int count = 1;
+        while (count < history.size() && sourceMap != null && sourceMap.getLineAtAddress(history.getPC(count)) == null) {
+            count++;
+        }
+        undo(count);
+        return true;
+    }
+
+    /**
+     * Goes back one instruction. If that instruction returned from a subroutine, goes back
+     * to the instruction that called it, to mirror <code>stepOver</code>. Stops at breakpoints.
+     * Returns false if there is no history to go back to.
+     */
+    public boolean reverseStepOver() {
+        if (history.isEmpty()) {
+            return false;
+        }
+
+        int count = 1;
+        int currentSP = proc.getRegSP();
+        if (isReturn(history.getPC(1), history.getSP(1), proc.getRegPC(), currentSP)) {
+            while (count < history.size() && !isBreakpoint(history.getPC(count))) {
+                // Stack depth relative to the caller, the stack may wrap around
+                int depth = (currentSP - history.getSP(count)) & 0xFFFF;
+                if (depth == 0 || depth >= 0x8000) {
+                    break;
+                }
+                count++;
+            }
+        }
+        undo(count);
+        return true;
+    }
+
+    /**
+     * Goes back until an instruction with a breakpoint is reached or the history is exhausted.
+     * Returns false if there is no history to go back to.
+     */
+    public boolean runBack() {
+        if (history.isEmpty()) {
+            return false;
+        }
+
+        int count = 1;
+        while (count < history.size() && !isBreakpoint(history.getPC(count))) {
+            count++;
+        }
+        undo(count);
+        return true;
+    }
+
+    boolean isReturn(int pc, int sp, int nextPC, int nextSP) {
+        int opcode = z80Ram[pc] & 0xFF;
+        if (opcode == 0xED) {
+            opcode = z80Ram[(pc + 1) & 0xFFFF] & 0xFF;
+            if ((opcode & 0xC7) != 0x45) { // RETN, RETI
+                return false;
+            }
+        }
+        else if (opcode != 0xC9 && (opcode & 0xC7) != 0xC0) { // RET, RET cc
+            return false;
+        }
+        return nextSP == ((sp + 2) & 0xFFFF) && nextPC == (peekCode(sp) | peekCode(sp + 1) << 8);
+    }
+
+    void undo(int count) {
+        tstates = history.undo(proc, this, count);
+        tms9918.redrawFrame();
+    }
+
     protected boolean isBreakpoint(int address) {
         return false;
     }
 
+    /**
+     * Returns true if the execution must stop at the given address, there is a breakpoint
+     * and its condition and hit count, if any, are satisfied.
+     */
+    boolean stopAt(int address) {
+        if (!isBreakpoint(address)) {
+            return false;
+        }
+        Breakpoint breakpoint = breakpoints[address];
+        return breakpoint == null || breakpoint.hit(proc);
+    }
+
+    /**
+     * Sets the condition and hit count of the breakpoint at the given address.
+     *
+     * @param address the breakpoint address
+     * @param condition the condition, with the program symbols, null or empty for none
+     * @param hitCount the hits before stopping, 0 to stop at every hit
+     * @throws AssemblyException if the condition is not valid
+     */
+    public Breakpoint setBreakpointCondition(int address, String condition, int hitCount) {
+        Condition compiled = null;
+        if (condition != null && !"".equals(condition.trim())) {
+            compiled = Condition.compile(condition, sourceMap != null ? sourceMap.source.getScope() : null);
+        }
+        if (compiled == null && hitCount == 0) {
+            breakpoints[address & 0xFFFF] = null;
+            return null;
+        }
+        breakpoints[address & 0xFFFF] = new Breakpoint(address & 0xFFFF, compiled, hitCount);
+        return breakpoints[address & 0xFFFF];
+    }
+
+    public Breakpoint getBreakpointCondition(int address) {
+        return breakpoints[address & 0xFFFF];
+    }
+
     public void resetBreakpoints() {
         proc.resetBreakpoints();
         proc.setBreakpoint(0x0005, true);
+        Arrays.fill(breakpoints, null);
     }
 }
@@ -12,13 +12,8 @@ package com.maccasoft.tools;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import org.eclipse.core.databinding.observable.Realm;
@@ -49,10 +44,6 @@ import org.eclipse.swt.widgets.Shell;
 
 import com.maccasoft.tools.internal.ImageRegistry;
 
-import nl.grauw.glass.AssemblyException;
-import nl.grauw.glass.Source;
-import nl.grauw.glass.SourceBuilder;
-
 public class Emulator {
 
     Display display;
@@ -65,8 +56,11 @@ public class Emulator {
 
     Combo cursorKeys;
 
-    PipedOutputStream os;
-    PipedInputStream is;
+    // Characters typed ahead of the emulated program. The terminal and the upload thread
+    // both write to the buffer, they synchronize on it to be a single producer
+    static final int RX_BUFFER_SIZE = 16;
+
+    final RingBuffer rxBuffer = new RingBuffer(RX_BUFFER_SIZE);
 
     Machine machine;
     Preferences preferences;
@@ -80,6 +74,14 @@ public class Emulator {
 
         machine = new Machine() {
 
+            @Override
+            public void reset() {
+                synchronized (proc) {
+                    rxBuffer.clear();
+                    super.reset();
+                }
+            }
+
             @Override
             protected void run() {
                 try {
@@ -129,45 +131,21 @@ public class Emulator {
             }
 
             @Override
-            public int inPort(int port) {
-                switch (port & 0xFF) {
-                    case SIOA_C:
-                        int result = 0b00101100; // TX Buffer Empty, DCD and CTS
-                        try {
-                            if (is.available() > 0) {
-                                result |= 0x01; // RX Char Available
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                        return result;
-                    case SIOA_D:
-                        try {
-                            if (is.available() > 0) {
-                                return is.read();
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                        return 0x00;
-                    case SIOB_C:
-                        return 0b00101100; // TX Buffer Empty, DCD and CTS
-                    case SIOB_D:
-                        return 0x00;
-                }
-                return super.inPort(port);
+            protected int receive() {
+                return rxBuffer.poll();
             }
 
             @Override
-            public void outPort(int port, int value) {
-                switch (port & 0xFF) {
-                    case SIOA_D:
-                        term.write(value);
-                        break;
-                    case SIOB_D:
-                        break;
+            protected void transmit(int value) {
+                // Lost only if the program doesn't wait for TX Buffer Empty
+                if (!term.writeAsync(value) && term.getDroppedOutput() == 1) {
+                    System.err.println("Terminal output buffer full, characters discarded");
                 }
-                super.outPort(port, value);
+            }
+
+            @Override
+            protected boolean isTransmitFull() {
+                return term.isOutputFull();
             }
 
             @Override
@@ -181,6 +159,7 @@ public class Emulator {
         };
 
         machine.tmsRam = preferences.getTms9918Ram();
+        machine.setRxInterrupt(preferences.isSioRxInterrupt());
         machine.tmsReg = preferences.getTms9918Register();
 
         String s = preferences.getCompactFlashImage();
@@ -386,12 +365,11 @@ public class Emulator {
             @Override
             protected void writeByte(byte b) {
                 try {
-                    while (is.available() >= 16) {
-                        Thread.yield();
+                    synchronized (rxBuffer) {
+                        rxBuffer.put(b);
                     }
-                    os.write(b);
-                } catch (IOException e) {
-                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
             }
 
@@ -404,13 +382,6 @@ public class Emulator {
 
         createBottomControls(container);
 
-        try {
-            is = new PipedInputStream();
-            os = new PipedOutputStream(is);
-        } catch (IOException e1) {
-            e1.printStackTrace();
-        }
-
         container.addDisposeListener(new DisposeListener() {
 
             @Override
@@ -418,14 +389,6 @@ public class Emulator {
                 if (machine != null) {
                     machine.stop();
                 }
-                try {
-                    if (os != null) {
-                        os.close();
-                    }
-
-                } catch (Exception e1) {
-                    // Do nothing
-                }
             }
         });
 
@@ -475,13 +438,6 @@ public class Emulator {
 
             @Override
             public void widgetSelected(SelectionEvent e) {
-                try {
-                    while (is.available() > 0) {
-                        is.read();
-                    }
-                } catch (IOException e1) {
-                    e1.printStackTrace();
-                }
                 machine.reset();
                 term.setFocus();
             }
@@ -495,65 +451,16 @@ public class Emulator {
     }
 
     byte[] compile(File file) {
-        System.out.print("Compiling " + file.getName() + "...");
-
-        try {
-            final List<File> includePaths = new ArrayList<File>();
-            if (file != null) {
-                includePaths.add(file.getParentFile());
-            }
+        List<File> includePaths = new ArrayList<File>();
 
-            String[] includes = preferences.getIncludes();
-            if (includes != null) {
-                for (int i = 0; i < includes.length; i++) {
-                    includePaths.add(new File(includes[i]));
-                }
+        String[] includes = preferences.getIncludes();
+        if (includes != null) {
+            for (int i = 0; i < includes.length; i++) {
+                includePaths.add(new File(includes[i]));
             }
-
-            SourceBuilder builder = new SourceBuilder(includePaths) {
-
-                @Override
-                public Source parse(File sourceFile) {
-                    System.out.print("\r\nCompiling " + sourceFile.getName() + "...");
-                    return super.parse(sourceFile);
-                }
-
-            };
-
-            Source source = builder.parse(new InputStreamReader(new FileInputStream(file)), file);
-            source.register();
-            source.expand();
-            source.resolve();
-
-            System.out.println();
-
-            return new BinaryBuilder(source).build();
-
-        } catch (AssemblyException ex) {
-            StringBuilder sb = new StringBuilder();
-
-            Iterator<AssemblyException.Context> iter = ex.contexts.iterator();
-            if (iter.hasNext()) {
-                AssemblyException.Context context = iter.next();
-                sb.append(context.file.getName());
-                sb.append(":");
-                sb.append(context.line + 1);
-                if (context.column != -1) {
-                    sb.append(":");
-                    sb.append(context.column);
-                }
-                sb.append(": error: ");
-                sb.append(ex.getPlainMessage());
-            }
-
-            System.out.println();
-            System.err.println(sb.toString());
-
-        } catch (Exception e) {
-            e.printStackTrace();
         }
 
-        return null;
+        return BinaryBuilder.compile(file, includePaths, System.out);
     }
 
     private void handleUploadPackedBinary() {
@@ -659,11 +566,11 @@ public class Emulator {
         writeString(String.format("%02X", checksum & 0xFF));
     }
 
-    void writeString(String s) throws IOException {
-        while (is.available() >= 16) {
-            Thread.yield();
+    void writeString(String s) throws InterruptedException {
+        byte[] b = s.getBytes();
+        synchronized (rxBuffer) {
+            rxBuffer.put(b, 0, b.length);
         }
-        os.write(s.getBytes());
     }
 
     public Shell getShell() {
@@ -725,9 +632,11 @@ public class Emulator {
 
         tms9918term = new TMS9918Terminal(container) {
 
+            final ImageData imageData = createImageData(machine.tms9918);
+
             @Override
             protected ImageData getImageData() {
-                return machine.tms9918.getImageData();
+                return imageData;
             }
 
         };
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Command line emulator, runs a machine without user interface.
+ *
+ * The SIO port A is connected to the standard input and output, or to a TCP socket on
+ * the local host accepting one client at a time. Doesn't use SWT, so it can run on
+ * servers without a display.
+ */
+public class HeadlessEmulator {
+
+    final Machine machine;
+
+    static final int RX_BUFFER_SIZE = 4096;
+
+    final RingBuffer rxBuffer = new RingBuffer(RX_BUFFER_SIZE);
+
+    // Set when a client connects, cleared only if it is still the stream that failed
+    final AtomicReference<OutputStream> txOutput = new AtomicReference<OutputStream>();
+
+    public HeadlessEmulator(int memoryModel) throws IOException {
+        machine = new Machine(memoryModel) {
+
+            @Override
+            protected int receive() {
+                return rxBuffer.poll();
+            }
+
+            @Override
+            protected void transmit(int value) {
+                OutputStream os = txOutput.get();
+                if (os != null) {
+                    try {
+                        os.write(value);
+                    } catch (IOException e) {
+                        // Client disconnected, output is discarded until a new connection
+                        txOutput.compareAndSet(os, null);
+                    }
+                }
+            }
+
+            @Override
+            protected void onElapsedTime(long elapsedNs) {
+                OutputStream os = txOutput.get();
+                if (os != null) {
+                    try {
+                        os.flush();
+                    } catch (IOException e) {
+                        txOutput.compareAndSet(os, null);
+                    }
+                }
+            }
+
+        };
+    }
+
+    public Machine getMachine() {
+        return machine;
+    }
+
+    /**
+     * Loads a ROM image, assembling it if the file name ends with .ASM.
+     */
+    public void setRom(int address, File file, List<File> includePaths) throws IOException {
+        if (file.getName().toUpperCase().endsWith(".ASM")) {
+            byte[] rom = BinaryBuilder.compile(file, includePaths, System.err);
+            if (rom == null) {
+                throw new IOException("Error compiling " + file.getName());
+            }
+            machine.setRom(address, rom);
+        }
+        else {
+            machine.setRom(address, file);
+        }
+    }
+
+    /**
+     * Starts the machine with the SIO port A connected to the given streams. The input
+     * stream is read by a separate thread.
+     */
+    public void start(InputStream is, OutputStream os) {
+        txOutput.set(new BufferedOutputStream(os));
+        startReader(is);
+
+        machine.reset();
+        machine.start();
+    }
+
+    /**
+     * Starts the machine and accepts connections on the given port of the local host,
+     * one client at a time. Doesn't return until the server socket is closed.
+     */
+    public void start(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+        try {
+            machine.reset();
+            machine.start();
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                OutputStream os = new BufferedOutputStream(socket.getOutputStream());
+                txOutput.set(os);
+
+                Thread thread = startReader(socket.getInputStream());
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                txOutput.compareAndSet(os, null);
+                socket.close();
+            }
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    Thread startReader(final InputStream is) {
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    byte[] buffer = new byte[256];
+                    int count;
+                    while ((count = is.read(buffer)) != -1) {
+                        rxBuffer.put(buffer, 0, count);
+                    }
+                } catch (IOException e) {
+                    // Stream closed
+                } catch (InterruptedException e) {
+                    // Do nothing
+                }
+            }
+
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    public void stop() {
+        machine.stop();
+    }
+
+    static void usage() {
+        System.err.println("Usage: HeadlessEmulator [options]");
+        System.err.println("  -rom file[@address]  ROM image or .ASM source at hex address, default the bundled ROM");
+        System.err.println("  -I path              include path for .ASM sources");
+        System.err.println("  -cf file             compact flash image");
+        System.err.println("  -cfdelta file        copy-on-write delta of the compact flash image");
+        System.err.println("  -512k                512K ROM / 512K RAM memory model");
+        System.err.println("  -clock mhz           clock frequency, default 7.3728");
+        System.err.println("  -max                 run at maximum speed");
+        System.err.println("  -rxint               raise INT while a received character is waiting");
+        System.err.println("  -tcp port            connect SIO port A to a TCP socket instead of stdin/stdout");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        int memoryModel = Machine.MEMORY_SBC;
+        List<String> roms = new ArrayList<String>();
+        List<File> includes = new ArrayList<File>();
+        String cf = null;
+        String cfDelta = null;
+        double clock = 0;
+        boolean maxSpeed = false;
+        boolean rxInterrupt = false;
+        int tcpPort = -1;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-rom".equals(args[i]) && i + 1 < args.length) {
+                    roms.add(args[++i]);
+                }
+                else if ("-I".equals(args[i]) && i + 1 < args.length) {
+                    includes.add(new File(args[++i]));
+                }
+                else if ("-cf".equals(args[i]) && i + 1 < args.length) {
+                    cf = args[++i];
+                }
+                else if ("-cfdelta".equals(args[i]) && i + 1 < args.length) {
+                    cfDelta = args[++i];
+                }
+                else if ("-512k".equals(args[i])) {
+                    memoryModel = Machine.MEMORY_512K;
+                }
+                else if ("-clock".equals(args[i]) && i + 1 < args.length) {
+                    clock = Double.parseDouble(args[++i]);
+                }
+                else if ("-max".equals(args[i])) {
+                    maxSpeed = true;
+                }
+                else if ("-rxint".equals(args[i])) {
+                    rxInterrupt = true;
+                }
+                else if ("-tcp".equals(args[i]) && i + 1 < args.length) {
+                    tcpPort = Integer.parseInt(args[++i]);
+                }
+                else {
+                    usage();
+                }
+            }
+
+            final HeadlessEmulator emulator = new HeadlessEmulator(memoryModel);
+            Machine machine = emulator.getMachine();
+
+            if (roms.size() == 0) {
+                InputStream is = HeadlessEmulator.class.getResourceAsStream("ROM.BIN");
+                byte[] rom = new byte[is.available()];
+                is.read(rom);
+                is.close();
+                machine.setRom(0, rom);
+            }
+            for (String s : roms) {
+                int address = 0;
+                int index = s.lastIndexOf('@');
+                if (index != -1) {
+                    address = Integer.parseInt(s.substring(index + 1), 16);
+                    s = s.substring(0, index);
+                }
+                emulator.setRom(address, new File(s), includes);
+            }
+
+            if (cf != null) {
+                machine.setCompactFlash(new File(cf), cfDelta != null ? new File(cfDelta) : null);
+            }
+            if (clock != 0) {
+                machine.setClock(clock);
+            }
+            machine.setMaxSpeed(maxSpeed);
+            machine.setRxInterrupt(rxInterrupt);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    emulator.stop();
+                }
+
+            }));
+
+            if (tcpPort != -1) {
+                emulator.start(tcpPort);
+            }
+            else {
+                emulator.start(System.in, System.out);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import z80core.MemIoOps;
+import z80core.Z80;
+import z80core.Z80.IntMode;
+import z80core.Z80State;
+
+/**
+ * Execution history for reverse debugging.
+ *
+ * Each executed instruction adds an undo record to a ring buffer: a packed header with the
+ * registers that are needed to walk the history (PC, SP, R and the interrupt flags), the
+ * T-states before the instruction and a list of entries in a second ring buffer with the old
+ * value of each other register the instruction changed and the old value of each byte it
+ * wrote to memory. Every <code>KEYFRAME_INTERVAL</code> instructions the full processor state
+ * is also saved, so that going back many instructions at once restores the registers from the
+ * nearest keyframe instead of applying all the register entries.
+ *
+ * When either ring is full the oldest records are dropped, so memory use is fixed. Going back
+ * discards the records of the undone instructions, executing again records new ones.
+ */
+public class History {
+
+    public static final int DEFAULT_RECORDS = 1 << 17;
+    public static final int DEFAULT_ENTRIES = 1 << 19;
+
+    public static final int KEYFRAME_INTERVAL = 1024;
+
+    // Registers saved as log entries when changed, as index << 16 | old value
+    static final int AF = 0;
+    static final int BC = 1;
+    static final int DE = 2;
+    static final int HL = 3;
+    static final int AFx = 4;
+    static final int BCx = 5;
+    static final int DEx = 6;
+    static final int HLx = 7;
+    static final int IX = 8;
+    static final int IY = 9;
+    static final int MEMPTR = 10;
+    static final int I = 11;
+    static final int REGISTERS = 12;
+
+    // Memory entries, as MEMORY | address << 8 | old value
+    static final int MEMORY = 0x80000000;
+
+    static final IntMode[] MODES = IntMode.values();
+
+    final int recordMask;
+    final long[] recordHeader;
+    final long[] recordTstates;
+    final long[] recordStart;
+
+    final int entryMask;
+    final int[] entries;
+
+    final Z80State[] keyframes;
+
+    // Absolute indexes of the oldest and next record and of the next log entry
+    long tail;
+    long head;
+    long entryHead;
+
+    final int[] registers = new int[REGISTERS];
+    boolean recording;
+
+    public History() {
+        this(DEFAULT_RECORDS, DEFAULT_ENTRIES);
+    }
+
+    /**
+     * Creates a new history.
+     *
+     * @param records the maximum number of instructions, a power of 2
+     * @param entries the size of the log for registers and memory, a power of 2
+     */
+    public History(int records, int entries) {
+        if (Integer.bitCount(records) != 1 || records < KEYFRAME_INTERVAL) {
+            throw new IllegalArgumentException("Invalid number of records " + records);
+        }
+        if (Integer.bitCount(entries) != 1 || entries < 64) {
+            throw new IllegalArgumentException("Invalid number of entries " + entries);
+        }
+
+        this.recordMask = records - 1;
+        this.recordHeader = new long[records];
+        this.recordTstates = new long[records];
+        this.recordStart = new long[records];
+
+        this.entryMask = entries - 1;
+        this.entries = new int[entries];
+
+        this.keyframes = new Z80State[records / KEYFRAME_INTERVAL];
+    }
+
+    public void clear() {
+        tail = head = 0;
+        entryHead = 0;
+        recording = false;
+    }
+
+    /**
+     * Returns the number of instructions that can be undone.
+     */
+    public int size() {
+        return (int) (head - tail);
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * Starts the record of the instruction about to be executed.
+     */
+    public void begin(Z80 proc, long tstates) {
+        if (head - tail > recordMask) {
+            tail++;
+        }
+
+        int index = (int) head & recordMask;
+        recordHeader[index] = getHeader(proc);
+        recordTstates[index] = tstates;
+        recordStart[index] = entryHead;
+
+        if (head % KEYFRAME_INTERVAL == 0) {
+            int keyframe = (int) (head / KEYFRAME_INTERVAL) % keyframes.length;
+            if (keyframes[keyframe] == null) {
+                keyframes[keyframe] = new Z80State();
+            }
+            proc.getZ80State(keyframes[keyframe]);
+        }
+
+        registers[AF] = proc.getRegAF();
+        registers[BC] = proc.getRegBC();
+        registers[DE] = proc.getRegDE();
+        registers[HL] = proc.getRegHL();
+        registers[AFx] = proc.getRegAFx();
+        registers[BCx] = proc.getRegBCx();
+        registers[DEx] = proc.getRegDEx();
+        registers[HLx] = proc.getRegHLx();
+        registers[IX] = proc.getRegIX();
+        registers[IY] = proc.getRegIY();
+        registers[MEMPTR] = proc.getMemPtr();
+        registers[I] = proc.getRegI();
+
+        recording = true;
+    }
+
+    /**
+     * Records the old value of a memory location written by the instruction.
+     */
+    public void write(int address, int oldValue) {
+        if (recording) {
+            add(MEMORY | (address & 0xFFFF) << 8 | (oldValue & 0xFF));
+        }
+    }
+
+    /**
+     * Completes the record of the executed instruction.
+     */
+    public void end(Z80 proc) {
+        if (!recording) {
+            return;
+        }
+        recording = false;
+
+        if (proc.getRegAF() != registers[AF]) {
+            add(AF << 16 | registers[AF]);
+        }
+        if (proc.getRegBC() != registers[BC]) {
+            add(BC << 16 | registers[BC]);
+        }
+        if (proc.getRegDE() != registers[DE]) {
+            add(DE << 16 | registers[DE]);
+        }
+        if (proc.getRegHL() != registers[HL]) {
+            add(HL << 16 | registers[HL]);
+        }
+        if (proc.getRegAFx() != registers[AFx]) {
+            add(AFx << 16 | registers[AFx]);
+        }
+        if (proc.getRegBCx() != registers[BCx]) {
+            add(BCx << 16 | registers[BCx]);
+        }
+        if (proc.getRegDEx() != registers[DEx]) {
+            add(DEx << 16 | registers[DEx]);
+        }
+        if (proc.getRegHLx() != registers[HLx]) {
+            add(HLx << 16 | registers[HLx]);
+        }
+        if (proc.getRegIX() != registers[IX]) {
+            add(IX << 16 | registers[IX]);
+        }
+        if (proc.getRegIY() != registers[IY]) {
+            add(IY << 16 | registers[IY]);
+        }
+        if (proc.getMemPtr() != registers[MEMPTR]) {
+            add(MEMPTR << 16 | registers[MEMPTR]);
+        }
+        if (proc.getRegI() != registers[I]) {
+            add(I << 16 | registers[I]);
+        }
+
+        head++;
+    }
+
+    void add(int entry) {
+        // Drop the oldest records if the log is full, the current record is never dropped
+        while (entryHead - recordStart[(int) tail & recordMask] > entryMask && tail < head) {
+            tail++;
+        }
+        entries[(int) entryHead & entryMask] = entry;
+        entryHead++;
+    }
+
+    /**
+     * Returns the program counter before the instruction executed the given number of
+     * instructions ago, 1 being the last executed instruction.
+     */
+    public int getPC(int back) {
+        return (int) (recordHeader[(int) (head - back) & recordMask] >>> 48);
+    }
+
+    /**
+     * Returns the stack pointer before the instruction executed the given number of
+     * instructions ago, 1 being the last executed instruction.
+     */
+    public int getSP(int back) {
+        return (int) (recordHeader[(int) (head - back) & recordMask] >>> 32) & 0xFFFF;
+    }
+
+    /**
+     * Undoes the given number of instructions, restoring the processor registers and the
+     * memory as they were before the earliest of them.
+     *
+     * @param proc the processor
+     * @param memory the memory, written with <code>poke8</code>
+     * @param count the number of instructions to undo, at most <code>size()</code>
+     * @return the T-states before the earliest undone instruction
+     */
+    public long undo(Z80 proc, MemIoOps memory, int count) {
+        if (count <= 0 || count > size()) {
+            throw new IllegalArgumentException("Invalid number of instructions " + count);
+        }
+        recording = false;
+
+        long target = head - count;
+
+        // The first keyframe after the target replaces the register entries of the records that follow it
+        long keyframe = (target + KEYFRAME_INTERVAL - 1) / KEYFRAME_INTERVAL * KEYFRAME_INTERVAL;
+        if (keyframe < head) {
+            proc.setZ80State(keyframes[(int) (keyframe / KEYFRAME_INTERVAL) % keyframes.length]);
+        }
+        else {
+            keyframe = head;
+        }
+
+        long end = entryHead;
+        for (long record = head - 1; record >= target; record--) {
+            long start = recordStart[(int) record & recordMask];
+            for (long i = end - 1; i >= start; i--) {
+                int entry = entries[(int) i & entryMask];
+                if ((entry & MEMORY) != 0) {
+                    int address = (entry >> 8) & 0xFFFF;
+                    memory.poke8(address, entry & 0xFF);
+                    proc.invalidateBlockCache(address);
+                }
+                else if (record < keyframe) {
+                    setRegister(proc, entry >> 16, entry & 0xFFFF);
+                }
+            }
+            end = start;
+        }
+
+        int index = (int) target & recordMask;
+        setHeader(proc, recordHeader[index]);
+
+        head = target;
+        entryHead = end;
+
+        return recordTstates[index];
+    }
+
+    static long getHeader(Z80 proc) {
+        int flags = (proc.isIFF1() ? 0x001 : 0) | (proc.isIFF2() ? 0x002 : 0) | proc.getIM().ordinal() << 2 | (proc.isHalted() ? 0x010 : 0) | (proc.isPendingEI() ? 0x020 : 0)
+            | (proc.isNMI() ? 0x040 : 0) | (proc.isINTLine() ? 0x080 : 0) | (proc.isFlagQ() ? 0x100 : 0);
+        return (long) proc.getRegPC() << 48 | (long) proc.getRegSP() << 32 | proc.getRegR() << 16 | flags;
+    }
+
+    static void setHeader(Z80 proc, long header) {
+        int flags = (int) header & 0xFFFF;
+        proc.setRegPC((int) (header >>> 48));
+        proc.setRegSP((int) (header >>> 32) & 0xFFFF);
+        proc.setRegR((int) (header >>> 16) & 0xFF);
+        proc.setIFF1((flags & 0x001) != 0);
+        proc.setIFF2((flags & 0x002) != 0);
+        proc.setIM(MODES[(flags >> 2) & 0x03]);
+        proc.setHalted((flags & 0x010) != 0);
+        proc.setPendingEI((flags & 0x020) != 0);
+        proc.setNMI((flags & 0x040) != 0);
+        proc.setINTLine((flags & 0x080) != 0);
+        proc.setFlagQ((flags & 0x100) != 0);
+    }
+
+    static void setRegister(Z80 proc, int register, int value) {
+        switch (register) {
+            case AF:
+                proc.setRegAF(value);
+                break;
+            case BC:
+                proc.setRegBC(value);
+                break;
+            case DE:
+                proc.setRegDE(value);
+                break;
+            case HL:
+                proc.setRegHL(value);
+                break;
+            case AFx:
+                proc.setRegAFx(value);
+                break;
+            case BCx:
+                proc.setRegBCx(value);
+                break;
+            case DEx:
+                proc.setRegDEx(value);
+                break;
+            case HLx:
+                proc.setRegHLx(value);
+                break;
+            case IX:
+                proc.setRegIX(value);
+                break;
+            case IY:
+                proc.setRegIY(value);
+                break;
+            case MEMPTR:
+                proc.setMemPtr(value);
+                break;
+            case I:
+                proc.setRegI(value);
+                break;
+        }
+    }
+
+}
@@ -13,11 +13,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
-
-import com.maccasoft.tools.internal.Utility;
+import java.util.Arrays;
 
 import z80core.MemIoOps;
+import z80core.TraceRecorder;
 import z80core.Z80;
 
 public class Machine extends MemIoOps {
@@ -46,35 +45,102 @@ public class Machine extends MemIoOps {
     public final static byte CF_WRITE_SEC = 0x30;
     public final static byte CF_IDENTIFY = (byte) 0xEC;
 
+    // Character time at 115200 baud (10 bits per character) with the 7.3728 MHz clock
+    public final static int SIO_CHAR_TSTATES = 640;
+
+    // 16K ROM paged out by writing 01H to port 38H, 64K RAM
+    public final static int MEMORY_SBC = 0;
+
+    // 512K ROM and 512K RAM in 16K pages, page registers at ports 78H-7BH,
+    // pages 00H-1FH select ROM and 20H-3FH select RAM, paging enabled by port 7CH
+    public final static int MEMORY_512K = 1;
+
+    public final static int ROM_PAGE = 0x38;
+    public final static int MPGSEL_0 = 0x78;
+    public final static int MPGSEL_1 = 0x79;
+    public final static int MPGSEL_2 = 0x7A;
+    public final static int MPGSEL_3 = 0x7B;
+    public final static int MPGENA = 0x7C;
+
+    final int memoryModel;
+    final MemoryMap memory;
+
     boolean rom_paged;
     byte[] rom;
+    // The ROM array is shared with other machines, it is copied before being written
+    boolean romShared;
     byte[] ram;
 
-    byte cfCommand;
-    byte[] cfLBA = new byte[4];
-    byte cfSecCount;
+    int[] pageSelect = new int[4];
+    boolean pagingEnabled;
+
+    // For each slot, bit mask of the other slots that map the same page, written
+    // through either slot the decoded code of both must be discarded
+    int[] slotAliases;
+
     File cfFile;
-    RandomAccessFile cf;
-    byte[] cfIdentifyBuffer = new byte[512];
-    int cfDataCount;
+    File cfDelta;
+    File traceFile;
+    final CompactFlash cf = new CompactFlash();
 
     Z80 proc;
+    Scheduler scheduler;
     Thread thread;
-    long clockPeriodNs;
-    long clockTimeNs;
+    Pacer pacer;
+
+    boolean idleSkip = true;
+    long skippedTstates;
+
+    volatile boolean maxSpeed;
+
+    // INT is active while a received character is waiting
+    boolean rxInterrupt;
+
+    // Received character latched by the SIO port A, -1 if none
+    int rxData = -1;
+    int rxDevice;
+
+    // Transmit sink state seen by the SIO port A, sampled at each character time
+    // and after each character sent, so that polling the status isn't affected by
+    // the sink draining in between
+    boolean txFull;
+
+    // Sequence number of the last snapshot saved or restored, -1 if none
+    long snapshotSequence = -1;
 
     int tmsRam;
     int tmsReg;
     TMS9918 tms9918;
+    int tms9918Device;
+    long tms9918TimeNs;
 
     public Machine() {
-        rom = new byte[16384];
-        ram = new byte[65536];
+        this(MEMORY_SBC);
+    }
 
-        clockPeriodNs = (long) (1000.0 / 7.3728);
-        clockTimeNs = 0;
+    public Machine(int memoryModel) {
+        this.memoryModel = memoryModel;
+
+        switch (memoryModel) {
+            case MEMORY_SBC:
+                rom = new byte[16384];
+                ram = new byte[65536];
+                break;
+            case MEMORY_512K:
+                rom = new byte[512 * 1024];
+                ram = new byte[512 * 1024];
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown memory model " + memoryModel);
+        }
+        memory = new MemoryMap(MemoryMap.PAGE_16K);
+
+        pacer = new Pacer(7372800L);
 
         proc = new Z80(this, null);
+        proc.setBlockCacheEnabled(true);
+
+        updateMemoryMap();
 
         tms9918 = new TMS9918() {
 
@@ -87,6 +153,35 @@ public class Machine extends MemIoOps {
         tmsRam = 0x40;
         tmsReg = 0x41;
 
+        scheduler = new Scheduler();
+        tms9918Device = scheduler.addDevice(new Scheduler.Device() {
+
+            @Override
+            public void onEvent(long tstates) {
+                long timeNs = pacer.toNanos(tstates);
+                tms9918.processFrame(timeNs - tms9918TimeNs);
+                tms9918TimeNs = timeNs;
+                scheduleTMS9918();
+            }
+
+        });
+        scheduleTMS9918();
+
+        // Polls the receive source and the transmit sink once per character time
+        rxDevice = scheduler.addDevice(new Scheduler.Device() {
+
+            @Override
+            public void onEvent(long tstates) {
+                if (rxData == -1) {
+                    rxData = receive();
+                }
+                txFull = isTransmitFull();
+                scheduler.schedule(rxDevice, tstates + SIO_CHAR_TSTATES);
+            }
+
+        });
+        scheduler.schedule(rxDevice, SIO_CHAR_TSTATES);
+
         thread = new Thread(new Runnable() {
 
             @Override
@@ -97,72 +192,405 @@ public class Machine extends MemIoOps {
     }
 
     public void setRom(int address, File file) throws IOException {
+        byte[] rom = getWritableRom();
         InputStream is = new FileInputStream(file);
-        is.read(rom, address, rom.length - address);
-        is.close();
+        try {
+            is.read(rom, address, rom.length - address);
+        } finally {
+            is.close();
+        }
+        Arrays.fill(memory.getDirtyPages(rom), true);
+        proc.invalidateBlockCache();
+    }
+
+    /**
+     * Uses the given array as the ROM, without copying it, so that many machines can share
+     * the same image. The array must have the ROM size of the memory model and must not be
+     * modified while in use; writes from the processor are discarded as usual. Loading a
+     * ROM, or restoring a snapshot with a different ROM, switches to a private copy.
+     */
+    public void setSharedRom(byte[] rom) {
+        if (rom.length != this.rom.length) {
+            throw new IllegalArgumentException("ROM size must be " + this.rom.length + " bytes");
+        }
+        synchronized (proc) {
+            this.rom = rom;
+            romShared = true;
+            Arrays.fill(memory.getDirtyPages(rom), true);
+            updateMemoryMap();
+            proc.invalidateBlockCache();
+        }
+    }
+
+    public boolean isRomShared() {
+        return romShared;
+    }
+
+    /**
+     * Returns the ROM array to be modified, replacing a shared ROM with a private copy.
+     */
+    byte[] getWritableRom() {
+        synchronized (proc) {
+            if (romShared) {
+                rom = rom.clone();
+                romShared = false;
+                Arrays.fill(memory.getDirtyPages(rom), true);
+                updateMemoryMap();
+                proc.invalidateBlockCache();
+            }
+            return rom;
+        }
+    }
+
+    /**
+     * Returns the ROM size of the given memory model.
+     */
+    public static int getRomSize(int memoryModel) {
+        return memoryModel == MEMORY_512K ? 512 * 1024 : 16384;
     }
 
     public void setRom(int address, byte[] rom) throws IOException {
-        System.arraycopy(rom, 0, this.rom, address, Math.min(this.rom.length - address, rom.length));
+        byte[] bank = getWritableRom();
+        System.arraycopy(rom, 0, bank, address, Math.min(bank.length - address, rom.length));
+        Arrays.fill(memory.getDirtyPages(bank), true);
+        proc.invalidateBlockCache();
     }
 
     public void setClock(double freq) {
-        clockPeriodNs = (long) (1000.0 / freq);
+        synchronized (proc) {
+            pacer.setClock(Math.round(freq * 1000000.0));
+            pacer.start(tstates);
+            tms9918TimeNs = pacer.toNanos(tstates);
+            scheduleTMS9918();
+        }
     }
 
     public void setCompactFlash(File file) {
+        setCompactFlash(file, null);
+    }
+
+    /**
+     * Sets the compact flash image and the delta file of a copy-on-write overlay, the
+     * image is opened read-only and the written sectors are stored in the delta.
+     */
+    public void setCompactFlash(File file, File delta) {
         this.cfFile = file;
+        this.cfDelta = delta;
     }
 
     public void start() {
-        try {
-            System.arraycopy("EM-CF-00000001      ".getBytes(), 0, cfIdentifyBuffer, 20, 20); // Serial number
-            System.arraycopy(Utility.getSwappedBytes("1.00    "), 0, cfIdentifyBuffer, 46, 8); // Firmware version
-            System.arraycopy(Utility.getSwappedBytes("EMULATED CF CARD                        "), 0, cfIdentifyBuffer, 54, 40); // Card model
-
-            if (cfFile != null && cfFile.exists()) {
-                cf = new RandomAccessFile(cfFile, "rw");
+        if (cfFile != null && cfFile.exists()) {
+            try {
+                openCompactFlash();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        thread.start();
+    }
 
-                long size = cf.length() >> 9;
-                cfIdentifyBuffer[14] = (byte) (size >> 16);
-                cfIdentifyBuffer[15] = (byte) (size >> 24);
-                cfIdentifyBuffer[16] = (byte) (size);
-                cfIdentifyBuffer[17] = (byte) (size >> 8);
+    /**
+     * Opens the compact flash image, if set. Called by <code>start</code>, that runs
+     * without a card if the image doesn't exist or can't be opened. Machines run without
+     * the thread must call it before running.
+     */
+    public void openCompactFlash() throws IOException {
+        if (cfFile != null) {
+            cf.open(cfFile, cfDelta);
+        }
+    }
 
+    /**
+     * Writes the compact flash sectors modified so far to the image file, or to the delta
+     * file with an overlay.
+     */
+    public void syncCompactFlash() {
+        synchronized (proc) {
+            try {
+                cf.sync();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        thread.start();
+    }
+
+    /**
+     * Writes the compact flash overlay delta to the image file.
+     */
+    public void commitCompactFlash() throws IOException {
+        synchronized (proc) {
+            cf.commit();
+        }
+    }
+
+    /**
+     * Drops the compact flash overlay delta.
+     */
+    public void discardCompactFlash() throws IOException {
+        synchronized (proc) {
+            cf.discard();
+        }
     }
 
     protected void run() {
-        long ns = System.nanoTime();
+        pacer.start(tstates);
 
         while (!Thread.interrupted()) {
+            long target;
             synchronized (proc) {
-                int runTstates = (int) ((System.nanoTime() - ns) / clockPeriodNs);
-                if (runTstates >= 4) {
-                    long prevTstates = tstates;
-                    long prevClockTime = clockTimeNs;
-                    while (tstates < (prevTstates + runTstates)) {
-                        proc.execute();
-                    }
-                    long elapsed = clockTimeNs - prevClockTime;
-                    tms9918.processFrame(elapsed);
-                    onElapsedTime(elapsed);
-                    ns += elapsed;
+                long start = tstates;
+                runTo(pacer.getSliceTarget(tstates));
+                onElapsedTime(pacer.toNanos(tstates) - pacer.toNanos(start));
+                target = tstates;
+            }
+            if (maxSpeed) {
+                pacer.start(target);
+            }
+            else {
+                pacer.waitFor(target);
+            }
+        }
+    }
+
+    /**
+     * Runs the processor up to the given T-states, stopping at each device deadline
+     * to dispatch the due events.
+     */
+    public void runTo(long targetTstates) {
+        while (tstates < targetTstates) {
+            long deadline = Math.min(targetTstates, scheduler.getNextDeadline());
+            if (deadline > tstates && idleSkip) {
+                skipIdle(deadline);
+            }
+            if (deadline > tstates) {
+                proc.run(deadline - tstates);
+            }
+            scheduler.dispatch(tstates);
+        }
+    }
+
+    /**
+     * Fast-forwards the processor toward the deadline if it is halted or polling an
+     * idle port in a loop that can't exit before the next device event.
+     *
+     * One halt cycle or loop iteration is executed normally, checking the interrupts
+     * and the port status and measuring its T-states, then the time of the iterations
+     * that fit before the deadline is added without interpreting them.
+     */
+    void skipIdle(long deadline) {
+        if (proc.isHalted()) {
+            long start = tstates;
+            int regR = proc.getRegR();
+            proc.execute();
+            if (proc.isHalted()) {
+                skip(deadline, tstates - start, proc.getRegR() - regR);
+            }
+            return;
+        }
+
+        int address = getPollLoop(proc.getRegPC());
+        if (address == -1) {
+            return;
+        }
+
+        // Gets to the loop start and runs one iteration, the registers are then
+        // those that each of the following iterations leaves unchanged
+        for (int i = 0; proc.getRegPC() != address; i++) {
+            if (i >= 2 || tstates >= deadline) {
+                return;
+            }
+            proc.execute();
+        }
+        if (!runPollLoop(address, deadline)) {
+            return;
+        }
+
+        long start = tstates;
+        int regR = proc.getRegR();
+        if (runPollLoop(address, deadline)) {
+            skip(deadline, tstates - start, proc.getRegR() - regR);
+        }
+    }
+
+    boolean runPollLoop(int address, long deadline) {
+        for (int i = 0; i < 3; i++) {
+            if (tstates >= deadline) {
+                return false;
+            }
+            proc.execute();
+        }
+        return proc.getRegPC() == address;
+    }
+
+    void skip(long deadline, long period, int regR) {
+        long count = (deadline - tstates) / period;
+        if (count > 0) {
+            tstates += count * period;
+            skippedTstates += count * period;
+            int value = proc.getRegR();
+            proc.setRegR((value & 0x80) | ((value + (int) count * regR) & 0x7F));
+        }
+    }
+
+    /**
+     * Returns the start address of the status polling loop that includes the given
+     * address, or -1 if none. The recognized loops are:
+     *
+     * <pre>
+     * loop: IN  A,(port)
+     *       AND n / BIT b,A
+     *       JR  Z,loop / JR  NZ,loop / JP  Z,loop / JP  NZ,loop
+     * </pre>
+     *
+     * where port is an idle port.
+     */
+    int getPollLoop(int pc) {
+        for (int address = pc; address >= pc - 4 && address >= 0; address -= 2) {
+            if (memory.read(address) != 0xDB || !isIdlePort(memory.read(address + 1))) {
+                continue;
+            }
+            int test = memory.read(address + 2);
+            if (test != 0xE6 && (test != 0xCB || (memory.read(address + 3) & 0xC7) != 0x47)) {
+                continue;
+            }
+            int jump = memory.read(address + 4);
+            if (jump == 0x28 || jump == 0x20) {
+                if (memory.read(address + 5) != 0xFA) {
+                    continue;
+                }
+            }
+            else if (jump == 0xCA || jump == 0xC2) {
+                if ((memory.read(address + 5) | (memory.read(address + 6) << 8)) != address) {
+                    continue;
+                }
+            }
+            else {
+                continue;
+            }
+            for (int i = 0; i < 7; i++) {
+                if (proc.isBreakpoint(address + i)) {
+                    return -1;
                 }
             }
+            return address;
+        }
+        return -1;
+    }
 
-            try {
-                Thread.sleep(1L);
-            } catch (InterruptedException e) {
-                break;
+    /**
+     * Returns true if reading the given port has no side effects and the value read
+     * changes only at device events, so that a loop polling it can be fast-forwarded.
+     */
+    protected boolean isIdlePort(int port) {
+        return port == SIOA_C || port == SIOB_C;
+    }
+
+    /**
+     * Returns the next character received by the SIO port A, or -1 if none. Called
+     * from the emulation thread once per character time while no character is waiting.
+     */
+    protected int receive() {
+        return -1;
+    }
+
+    /**
+     * Sends a character from the SIO port A.
+     */
+    protected void transmit(int value) {
+        // Do nothing
+    }
+
+    /**
+     * Returns true if the SIO port A can't take a character, the status register then
+     * reads with the TX Buffer Empty bit clear. Sampled from the emulation thread after
+     * each character sent and once per character time.
+     */
+    protected boolean isTransmitFull() {
+        return false;
+    }
+
+    /**
+     * Updates the derived state after a snapshot restore.
+     */
+    void restored(long tstates) {
+        scheduler.rebase(this.tstates - tstates);
+        this.tstates = tstates;
+        pacer.start(tstates);
+        updateMemoryMap();
+        proc.invalidateBlockCache();
+        scheduleTMS9918();
+    }
+
+    public void setIdleSkipEnabled(boolean state) {
+        idleSkip = state;
+    }
+
+    public boolean isIdleSkipEnabled() {
+        return idleSkip;
+    }
+
+    /**
+     * Runs the processor as fast as the host allows, without waiting for the host clock.
+     * The emulated time, and the devices timing, still follows the T-states.
+     */
+    public void setMaxSpeed(boolean state) {
+        maxSpeed = state;
+    }
+
+    public boolean isMaxSpeed() {
+        return maxSpeed;
+    }
+
+    /**
+     * Enables the SIO receive interrupt, the firmware can wait for characters in an
+     * interrupt handler instead of polling the status register.
+     */
+    public void setRxInterrupt(boolean state) {
+        rxInterrupt = state;
+    }
+
+    public boolean isRxInterrupt() {
+        return rxInterrupt;
+    }
+
+    /**
+     * Returns the T-states fast-forwarded while the processor was halted or polling.
+     */
+    public long getSkippedTstates() {
+        return skippedTstates;
+    }
+
+    /**
+     * Starts recording the executed instructions to a trace file. Instructions skipped
+     * by the idle fast-forward are not recorded. The trace restarts from an empty file
+     * on reset, so the recorded T-states are always increasing.
+     *
+     * @param file the trace file
+     * @param records the number of records the file holds before wrapping, a power of 2
+     */
+    public void startTrace(File file, long records) throws IOException {
+        synchronized (proc) {
+            stopTrace();
+            proc.setTracer(new TraceRecorder(file, records));
+            traceFile = file;
+        }
+    }
+
+    public void stopTrace() throws IOException {
+        synchronized (proc) {
+            TraceRecorder tracer = proc.getTracer();
+            if (tracer != null) {
+                proc.setTracer(null);
+                tracer.close();
             }
         }
     }
 
+    void scheduleTMS9918() {
+        long timeNs = tms9918TimeNs + tms9918.getTimeToNextEvent();
+        scheduler.schedule(tms9918Device, pacer.toTstatesCeil(timeNs));
+    }
+
     protected void onElapsedTime(long elapsedNs) {
         // Do nothing
     }
@@ -171,34 +599,87 @@ public class Machine extends MemIoOps {
     public void reset() {
         synchronized (proc) {
             rom_paged = true;
+            pageSelect[0] = pageSelect[1] = pageSelect[2] = pageSelect[3] = 0;
+            pagingEnabled = false;
+            updateMemoryMap();
+            rxData = -1;
+            txFull = false;
+            scheduler.rebase(tstates);
             tstates = 0;
-            clockTimeNs = 0;
-            if (tms9918 != null) {
-                tms9918.reset();
-            }
+            skippedTstates = 0;
+            pacer.start(0);
+            tms9918TimeNs = 0;
+            tms9918.reset();
+            scheduleTMS9918();
+            restartTrace();
             proc.reset();
             super.reset();
         }
     }
 
+    void restartTrace() {
+        TraceRecorder tracer = proc.getTracer();
+        if (tracer == null) {
+            return;
+        }
+        try {
+            startTrace(traceFile, tracer.getCapacity());
+        } catch (IOException e) {
+            proc.setTracer(null);
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public int fetchOpcode(int address) {
         tstates += 4; // 3 clocks to fetch opcode from RAM and 1 execution clock
-        clockTimeNs += clockPeriodNs * 4;
-        address &= 0xFFFF;
-        if (rom_paged && address < rom.length) {
-            return rom[address] & 0xff;
-        }
-        return ram[address] & 0xff;
+        return memory.read(address);
+    }
+
+    @Override
+    public int peekCode(int address) {
+        return memory.read(address);
+    }
+
+    @Override
+    public boolean isActiveINT() {
+        return rxInterrupt && rxData != -1;
+    }
+
+    @Override
+    public void cachedFetch(int address, int tstates) {
+        this.tstates += tstates;
     }
 
     @Override
     public int inPort(int port) {
         tstates += 4; // 4 clocks for read byte from bus
-        clockTimeNs += clockPeriodNs * 4;
 
         port &= 0xFF;
 
+        switch (port) {
+            case SIOA_C:
+                int result = 0b00101000; // DCD and CTS
+                if (!txFull) {
+                    result |= 0x04; // TX Buffer Empty
+                }
+                if (rxData != -1) {
+                    result |= 0x01; // RX Char Available
+                }
+                return result;
+            case SIOA_D:
+                if (rxData != -1) {
+                    int data = rxData;
+                    rxData = -1;
+                    return data;
+                }
+                return 0x00;
+            case SIOB_C:
+                return 0b00101100; // TX Buffer Empty, DCD and CTS
+            case SIOB_D:
+                return 0x00;
+        }
+
         if (port == tmsRam) {
             return tms9918.inRam();
         }
@@ -206,62 +687,42 @@ public class Machine extends MemIoOps {
             return tms9918.inReg();
         }
 
-        if (cf != null) {
-            switch (port) {
-                case CF_DATA:
-                    if (cfCommand == CF_READ_SEC) {
-                        if (cfDataCount < 512 * cfSecCount) {
-                            cfDataCount++;
-                            try {
-                                if (cf != null) {
-                                    return (byte) cf.read();
-                                }
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                            return 0x00;
-                        }
-                    }
-                    else if (cfCommand == CF_IDENTIFY) {
-                        if (cfDataCount < cfIdentifyBuffer.length) {
-                            return cfIdentifyBuffer[cfDataCount++];
-                        }
-                        return 0x00;
-                    }
-                    return 0x00;
-                case CF_SECCOUNT:
-                    return cfSecCount & 0xFF;
-                case CF_STATUS:
-                    if (cfCommand == CF_WRITE_SEC || cfCommand == CF_READ_SEC) {
-                        return 0x48; // CF Ready, DRQ
-                    }
-                    else if (cfCommand == CF_IDENTIFY) {
-                        if (cfDataCount < cfIdentifyBuffer.length) {
-                            return 0x48; // CF Ready, DRQ
-                        }
-                    }
-                    return 0x40; // CF Ready
-                case CF_ERROR:
-                    return 0x01; // No error
-                case CF_SECTOR:
-                case CF_CYL_LOW:
-                case CF_CYL_HI:
-                case CF_HEAD:
-                    return 0x00;
-            }
+        int result = cf.inPort(port);
+        if (result != -1) {
+            return result;
         }
 
         return port;
     }
 
+    @Override
+    public boolean isBlockPort(int port) {
+        port &= 0xFF;
+        return port == CF_DATA && port != tmsRam && port != tmsReg && cf.isOpen();
+    }
+
+    @Override
+    public void inBlock(int port, byte[] buffer, int count) {
+        cf.readData(buffer, 0, count);
+    }
+
+    @Override
+    public void outBlock(int port, byte[] buffer, int count) {
+        cf.writeData(buffer, 0, count);
+    }
+
     @Override
     public void outPort(int port, int value) {
         tstates += 4; // 4 clocks for write byte to bus
-        clockTimeNs += clockPeriodNs * 4;
 
         port &= 0xFF;
         value &= 0xFF;
 
+        if (port == SIOA_D) {
+            transmit(value);
+            txFull = isTransmitFull();
+        }
+
         if (port == tmsRam) {
             tms9918.outRam(value);
         }
@@ -269,83 +730,100 @@ public class Machine extends MemIoOps {
             tms9918.outReg(value);
         }
 
-        if (cf != null) {
+        cf.outPort(port, value);
+
+        if (memoryModel == MEMORY_SBC) {
             switch (port) {
-                case CF_DATA:
-                    if (cfCommand == CF_WRITE_SEC) {
-                        if (cfDataCount < 512 * cfSecCount) {
-                            cfDataCount++;
-                            try {
-                                if (cf != null) {
-                                    cf.write(value & 0xFF);
-                                }
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    }
-                    break;
-                case CF_COMMAND:
-                    cfCommand = (byte) value;
-                    if (cfCommand == CF_WRITE_SEC || cfCommand == CF_READ_SEC) {
-                        try {
-                            long addr = ((cfLBA[3] & 0x0F) << 24) | ((cfLBA[2] & 0xFF) << 16) | ((cfLBA[1] & 0xFF) << 8) | (cfLBA[0] & 0xFF);
-                            if (cf != null) {
-                                cf.seek(addr << 9);
-                            }
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        cfDataCount = 0;
-                    }
-                    else if (cfCommand == CF_IDENTIFY) {
-                        cfDataCount = 0;
-                    }
-                    break;
-                case CF_LBA0:
-                    cfLBA[0] = (byte) value;
-                    break;
-                case CF_LBA1:
-                    cfLBA[1] = (byte) value;
-                    break;
-                case CF_LBA2:
-                    cfLBA[2] = (byte) value;
+                case ROM_PAGE:
+                    rom_paged = value != 0x01;
+                    updateMemoryMap();
                     break;
-                case CF_LBA3: {
-                    cfLBA[3] = (byte) value;
+            }
+        }
+        else {
+            switch (port) {
+                case MPGSEL_0:
+                case MPGSEL_1:
+                case MPGSEL_2:
+                case MPGSEL_3:
+                    pageSelect[port - MPGSEL_0] = value & 0x3F;
+                    updateMemoryMap();
                     break;
-                }
-                case CF_SECCOUNT:
-                    cfSecCount = (byte) value;
+                case MPGENA:
+                    pagingEnabled = (value & 0x01) != 0;
+                    updateMemoryMap();
                     break;
             }
         }
+    }
 
-        switch (port) {
-            case 0x38: // ROM page
-                rom_paged = value != 0x01;
-                break;
+    /**
+     * Updates the memory map slots from the paging state, discarding the decoded
+     * code of the slots that changed.
+     */
+    void updateMemoryMap() {
+        if (slotAliases == null) {
+            slotAliases = new int[memory.getSlots()];
+        }
+
+        for (int slot = 0; slot < memory.getSlots(); slot++) {
+            byte[] bank;
+            int page;
+            if (memoryModel == MEMORY_SBC) {
+                bank = (slot == 0 && rom_paged) ? rom : ram;
+                page = slot;
+            }
+            else {
+                int select = pagingEnabled ? pageSelect[slot] : 0;
+                bank = select < 0x20 ? rom : ram;
+                page = select & 0x1F;
+            }
+            boolean readOnly = bank == rom;
+            if (!memory.isMapped(slot, bank, page, readOnly)) {
+                memory.map(slot, bank, page, readOnly);
+                proc.invalidateBlockCache(slot * memory.getPageSize(), memory.getPageSize());
+            }
+        }
+
+        for (int slot = 0; slot < slotAliases.length; slot++) {
+            int aliases = 0;
+            if (!memory.isReadOnly(slot)) {
+                for (int other = 0; other < slotAliases.length; other++) {
+                    if (other != slot && memory.getBank(other) == memory.getBank(slot) && memory.getPage(other) == memory.getPage(slot)) {
+                        aliases |= 1 << other;
+                    }
+                }
+            }
+            slotAliases[slot] = aliases;
         }
     }
 
     @Override
     public int peek8(int address) {
         tstates += 3; // 3 clocks for read byte from RAM
-        clockTimeNs += clockPeriodNs * 3;
-        address &= 0xFFFF;
-        if (rom_paged && address < rom.length) {
-            return rom[address] & 0xff;
-        }
-        return ram[address] & 0xff;
+        return memory.read(address);
     }
 
     @Override
     public void poke8(int address, int value) {
         tstates += 3; // 3 clocks for write byte to RAM
-        clockTimeNs += clockPeriodNs * 3;
-        address &= 0xFFFF;
-        if (!rom_paged || address >= rom.length) {
-            ram[address] = (byte) value;
+        memory.write(address, value);
+
+        int aliases = slotAliases[(address & 0xFFFF) >> memory.pageShift];
+        if (aliases != 0) {
+            invalidateAliases(address, aliases);
+        }
+    }
+
+    /**
+     * Discards the decoded code at the address in the other slots mapping the same page,
+     * the processor only discards it at the written address.
+     */
+    void invalidateAliases(int address, int aliases) {
+        for (int slot = 0; aliases != 0; slot++, aliases >>>= 1) {
+            if ((aliases & 1) != 0) {
+                proc.invalidateBlockCache((slot << memory.pageShift) | (address & memory.pageMask));
+            }
         }
     }
 
@@ -361,12 +839,17 @@ public class Machine extends MemIoOps {
             // Do nothing
         }
         try {
-            if (cf != null) {
+            synchronized (proc) {
                 cf.close();
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        try {
+            stopTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     protected void onTMS9918VSync() {
@@ -0,0 +1,477 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs test scenarios on many headless machines in parallel.
+ *
+ * Each scenario runs on its own <code>Machine</code>, without pacing and with the idle
+ * fast-forward enabled, on a pool with one thread per core. All machines share the same
+ * ROM image, and the compact flash images through copy-on-write overlays. A scenario is
+ * a script of steps run in order on the serial port A: a send step queues characters
+ * received by the SIO at the serial character rate, an expect step waits until the text
+ * appears in the output written since the previous expect. The scenario passes when all
+ * steps are completed before the T-states timeout.
+ */
+public class MachineFarm {
+
+    public static final long DEFAULT_TIMEOUT = 7372800L * 60;
+
+    // T-states run between checks of the scenario state
+    static final long SLICE_TSTATES = 100000;
+
+    public static class Scenario {
+
+        final String name;
+        final List<String> steps = new ArrayList<String>();
+        final List<Boolean> send = new ArrayList<Boolean>();
+        long timeout = DEFAULT_TIMEOUT;
+        File compactFlash;
+        File compactFlashDelta;
+
+        public Scenario(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Scenario send(String text) {
+            steps.add(text);
+            send.add(Boolean.TRUE);
+            return this;
+        }
+
+        public Scenario expect(String text) {
+            steps.add(text);
+            send.add(Boolean.FALSE);
+            return this;
+        }
+
+        public Scenario timeout(long tstates) {
+            this.timeout = tstates;
+            return this;
+        }
+
+        /**
+         * Sets the compact flash image. The image is shared read-only, the sectors written
+         * by the scenario are kept in a temporary overlay delta discarded at the end of the
+         * run, unless a delta file is set.
+         */
+        public Scenario compactFlash(File file) {
+            this.compactFlash = file;
+            return this;
+        }
+
+        /**
+         * Sets the delta file of the compact flash overlay, kept after the run. Scenarios
+         * running at the same time must not share the same delta file.
+         */
+        public Scenario compactFlashDelta(File file) {
+            this.compactFlashDelta = file;
+            return this;
+        }
+
+    }
+
+    public static class Result {
+
+        final Scenario scenario;
+        final boolean passed;
+        final int step;
+        final String output;
+        final long tstates;
+        final long elapsedNs;
+        final IOException error;
+
+        Result(Scenario scenario, boolean passed, int step, String output, long tstates, long elapsedNs, IOException error) {
+            this.scenario = scenario;
+            this.passed = passed;
+            this.step = step;
+            this.output = output;
+            this.tstates = tstates;
+            this.elapsedNs = elapsedNs;
+            this.error = error;
+        }
+
+        public Scenario getScenario() {
+            return scenario;
+        }
+
+        public boolean isPassed() {
+            return passed;
+        }
+
+        /**
+         * Returns the index of the first step not completed, the number of steps if passed.
+         */
+        public int getStep() {
+            return step;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public long getTstates() {
+            return tstates;
+        }
+
+        /**
+         * Returns the error that stopped the scenario before it could run, null if none.
+         */
+        public IOException getError() {
+            return error;
+        }
+
+        public long getElapsedNs() {
+            return elapsedNs;
+        }
+
+        /**
+         * Returns the emulated clock speed in MHz, emulated T-states per microsecond of host time.
+         */
+        public double getMHz() {
+            return elapsedNs != 0 ? tstates * 1000.0 / elapsedNs : 0.0;
+        }
+
+    }
+
+    static class ScenarioMachine extends Machine {
+
+        final Scenario scenario;
+        final StringBuilder output = new StringBuilder();
+
+        int step;
+        int sendIndex;
+        int expectFrom;
+
+        ScenarioMachine(int memoryModel, byte[] rom, Scenario scenario) {
+            super(memoryModel);
+            this.scenario = scenario;
+
+            setSharedRom(rom);
+            setCompactFlash(scenario.compactFlash, scenario.compactFlashDelta);
+        }
+
+        void nextStep() {
+            step++;
+            sendIndex = 0;
+            checkExpect();
+        }
+
+        void checkExpect() {
+            if (step < scenario.steps.size() && !scenario.send.get(step)) {
+                String text = scenario.steps.get(step);
+                int index = output.indexOf(text, expectFrom);
+                if (index != -1) {
+                    expectFrom = index + text.length();
+                    nextStep();
+                }
+            }
+        }
+
+        boolean isCompleted() {
+            return step >= scenario.steps.size();
+        }
+
+        @Override
+        protected int receive() {
+            int data = -1;
+            if (step < scenario.steps.size() && scenario.send.get(step)) {
+                String text = scenario.steps.get(step);
+                if (sendIndex < text.length()) {
+                    data = text.charAt(sendIndex++) & 0xFF;
+                }
+                if (sendIndex >= text.length()) {
+                    nextStep();
+                }
+            }
+            return data;
+        }
+
+        @Override
+        protected void transmit(int value) {
+            output.append((char) value);
+            checkExpect();
+        }
+
+    }
+
+    final int memoryModel;
+    final byte[] rom;
+
+    /**
+     * Creates a new farm.
+     *
+     * @param memoryModel the memory model of the machines
+     * @param rom the ROM image, shared by all machines and never modified
+     */
+    public MachineFarm(int memoryModel, byte[] rom) {
+        this.memoryModel = memoryModel;
+        this.rom = new byte[Machine.getRomSize(memoryModel)];
+        System.arraycopy(rom, 0, this.rom, 0, Math.min(rom.length, this.rom.length));
+    }
+
+    /**
+     * Runs a single scenario on the calling thread. A scenario whose compact flash image
+     * can't be opened fails without running, with the error in the result.
+     */
+    public Result run(Scenario scenario) {
+        long start = System.nanoTime();
+
+        ScenarioMachine machine = new ScenarioMachine(memoryModel, rom, scenario);
+        IOException error = null;
+        File tempDelta = null;
+        try {
+            if (scenario.compactFlash != null && scenario.compactFlashDelta == null) {
+                tempDelta = File.createTempFile("cfdelta", ".tmp");
+                machine.setCompactFlash(scenario.compactFlash, tempDelta);
+            }
+            machine.openCompactFlash();
+            machine.reset();
+            machine.checkExpect();
+
+            while (!machine.isCompleted() && machine.getTstates() < scenario.timeout) {
+                machine.runTo(Math.min(machine.getTstates() + SLICE_TSTATES, scenario.timeout));
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            machine.stop();
+            if (tempDelta != null) {
+                tempDelta.delete();
+            }
+        }
+
+        return new Result(scenario, error == null && machine.isCompleted(), machine.step, machine.output.toString(), machine.getTstates(),
+            System.nanoTime() - start, error);
+    }
+
+    /**
+     * Runs the scenarios in parallel and returns the results in the same order.
+     *
+     * @param scenarios the scenarios
+     * @param threads the number of threads, 0 for one per available processor
+     */
+    public List<Result> run(List<Scenario> scenarios, int threads) throws InterruptedException {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final Scenario scenario : scenarios) {
+                futures.add(executor.submit(new Callable<Result>() {
+
+                    @Override
+                    public Result call() throws Exception {
+                        return MachineFarm.this.run(scenario);
+                    }
+
+                }));
+            }
+
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads a scenario file. Each line is a step, <code>send text</code> or
+     * <code>expect text</code>, or a setting, <code>timeout tstates</code>,
+     * <code>cf file</code> or <code>cfdelta file</code>. Empty lines and lines starting
+     * with # are ignored. The text can contain the escapes \r, \n, \t, \\ and \xNN.
+     */
+    public static Scenario readScenario(File file) throws IOException {
+        Scenario scenario = new Scenario(file.getName());
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                    continue;
+                }
+                int index = line.indexOf(' ');
+                String keyword = index != -1 ? line.substring(0, index) : line;
+                String argument = index != -1 ? line.substring(index + 1) : "";
+                if ("send".equals(keyword)) {
+                    scenario.send(unescape(argument, file.getName() + ":" + lineNumber));
+                }
+                else if ("expect".equals(keyword)) {
+                    scenario.expect(unescape(argument, file.getName() + ":" + lineNumber));
+                }
+                else if ("timeout".equals(keyword)) {
+                    scenario.timeout(Long.parseLong(argument.trim()));
+                }
+                else if ("cf".equals(keyword)) {
+                    File cf = new File(argument.trim());
+                    scenario.compactFlash(cf.isAbsolute() ? cf : new File(file.getAbsoluteFile().getParentFile(), argument.trim()));
+                }
+                else if ("cfdelta".equals(keyword)) {
+                    File cf = new File(argument.trim());
+                    scenario.compactFlashDelta(cf.isAbsolute() ? cf : new File(file.getAbsoluteFile().getParentFile(), argument.trim()));
+                }
+                else {
+                    throw new IOException(file.getName() + ":" + lineNumber + ": unknown keyword " + keyword);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return scenario;
+    }
+
+    static String unescape(String s, String location) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                switch (c) {
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'x': {
+                        int high = i + 1 < s.length() ? Character.digit(s.charAt(i + 1), 16) : -1;
+                        int low = i + 2 < s.length() ? Character.digit(s.charAt(i + 2), 16) : -1;
+                        if (high == -1 || low == -1) {
+                            throw new IOException(location + ": invalid escape \\" + s.substring(i, Math.min(i + 3, s.length())));
+                        }
+                        c = (char) ((high << 4) | low);
+                        i += 2;
+                        break;
+                    }
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) {
+        int memoryModel = Machine.MEMORY_SBC;
+        int threads = 0;
+        List<String> romFiles = new ArrayList<String>();
+        List<Scenario> scenarios = new ArrayList<Scenario>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-rom".equals(args[i])) {
+                    romFiles.add(args[++i]);
+                }
+                else if ("-512k".equals(args[i])) {
+                    memoryModel = Machine.MEMORY_512K;
+                }
+                else if ("-threads".equals(args[i])) {
+                    threads = Integer.parseInt(args[++i]);
+                }
+                else {
+                    scenarios.add(readScenario(new File(args[i])));
+                }
+            }
+            if (scenarios.size() == 0) {
+                System.err.println("Usage: MachineFarm [-rom file[@address]]... [-512k] [-threads n] scenario...");
+                System.exit(2);
+            }
+
+            byte[] rom = new byte[Machine.getRomSize(memoryModel)];
+            if (romFiles.size() == 0) {
+                InputStream is = Machine.class.getResourceAsStream("ROM.BIN");
+                try {
+                    is.read(rom);
+                } finally {
+                    is.close();
+                }
+            }
+            for (String s : romFiles) {
+                int address = 0;
+                int index = s.lastIndexOf('@');
+                if (index != -1) {
+                    address = Integer.parseInt(s.substring(index + 1), 16);
+                    s = s.substring(0, index);
+                }
+                InputStream is = new FileInputStream(s);
+                try {
+                    is.read(rom, address, rom.length - address);
+                } finally {
+                    is.close();
+                }
+            }
+
+            MachineFarm farm = new MachineFarm(memoryModel, rom);
+
+            long start = System.nanoTime();
+            List<Result> results = farm.run(scenarios, threads);
+            long elapsedNs = System.nanoTime() - start;
+
+            int failed = 0;
+            long tstates = 0;
+            for (Result result : results) {
+                System.out.println(String.format("%s %s %d T-states %.1f ms %.1f MHz", result.isPassed() ? "PASS" : "FAIL", result.getScenario().getName(),
+                    result.getTstates(), result.getElapsedNs() / 1000000.0, result.getMHz()));
+                if (result.getError() != null) {
+                    System.out.println("  " + result.getError());
+                    failed++;
+                }
+                else if (!result.isPassed()) {
+                    System.out.println("  step " + (result.getStep() + 1) + " not completed, output:");
+                    System.out.println(result.getOutput());
+                    failed++;
+                }
+                tstates += result.getTstates();
+            }
+            System.out.println(String.format("%d scenarios, %d failed, %.1f ms, %.1f MHz aggregate", results.size(), failed, elapsedNs / 1000000.0,
+                tstates * 1000.0 / elapsedNs));
+
+            System.exit(failed != 0 ? 1 : 0);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+}
@@ -10,11 +10,16 @@
 
 package com.maccasoft.tools;
 
+import org.eclipse.jface.dialogs.IInputValidator;
+import org.eclipse.jface.dialogs.InputDialog;
+import org.eclipse.jface.window.Window;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.ControlEvent;
 import org.eclipse.swt.events.ControlListener;
 import org.eclipse.swt.events.KeyEvent;
 import org.eclipse.swt.events.KeyListener;
+import org.eclipse.swt.events.MenuDetectEvent;
+import org.eclipse.swt.events.MenuDetectListener;
 import org.eclipse.swt.events.PaintEvent;
 import org.eclipse.swt.events.PaintListener;
 import org.eclipse.swt.events.SelectionAdapter;
@@ -29,6 +34,8 @@ import org.eclipse.swt.widgets.Canvas;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Menu;
+import org.eclipse.swt.widgets.MenuItem;
 import org.eclipse.swt.widgets.ScrollBar;
 
 public class Memory {
@@ -49,6 +56,10 @@ public class Memory {
     byte[] dataUpdate;
     boolean needUpdate;
 
+    Watchpoints watchpoints;
+    int menuAddress;
+    MenuItem removeWatchpoints;
+
     final PaintListener paintListener = new PaintListener() {
 
         @Override
@@ -61,6 +72,7 @@ public class Memory {
 
             Color normal = display.getSystemColor(SWT.COLOR_LIST_FOREGROUND);
             Color highlight = display.getSystemColor(SWT.COLOR_RED);
+            Color watched = display.getSystemColor(SWT.COLOR_YELLOW);
             Rectangle rect = canvas.getClientArea();
 
             int y = marginHeight;
@@ -73,6 +85,10 @@ public class Memory {
                 e.gc.drawString(String.format("%04X", addr), marginWidth, y, true);
 
                 for (int i = 0; i < BYTES_PER_ROW && addr < data.length; i++) {
+                    if (watchpoints != null && watchpoints.isWatched(addr)) {
+                        e.gc.setBackground(watched);
+                        e.gc.fillRectangle(x1, y, (int) fontMetrics.getAverageCharacterWidth() * 2, fontMetrics.getHeight());
+                    }
                     e.gc.setForeground(dataUpdate[addr] != 0 ? highlight : normal);
 
                     e.gc.drawString(String.format("%02X", data[addr] & 0xFF), x1, y, true);
@@ -182,6 +198,21 @@ public class Memory {
             }
         });
 
+        canvas.addMenuDetectListener(new MenuDetectListener() {
+
+            @Override
+            public void menuDetected(MenuDetectEvent e) {
+                Point point = canvas.toControl(e.x, e.y);
+                menuAddress = getAddressAt(point.x, point.y);
+                if (menuAddress == -1 || watchpoints == null) {
+                    e.doit = false;
+                    return;
+                }
+                removeWatchpoints.setEnabled(watchpoints.isWatched(menuAddress));
+            }
+        });
+        canvas.setMenu(createContextMenu());
+
         marginHeight = marginWidth = 5;
 
         verticalBar = canvas.getVerticalBar();
@@ -196,16 +227,104 @@ public class Memory {
         });
     }
 
+    Menu createContextMenu() {
+        Menu menu = new Menu(canvas);
+
+        createWatchMenuItem(menu, "Watch Read", Watchpoints.READ, false);
+        createWatchMenuItem(menu, "Watch Write", Watchpoints.WRITE, false);
+        createWatchMenuItem(menu, "Watch Read/Write", Watchpoints.ACCESS, false);
+        createWatchMenuItem(menu, "Watch Write Value...", Watchpoints.WRITE, true);
+
+        new MenuItem(menu, SWT.SEPARATOR);
+
+        removeWatchpoints = new MenuItem(menu, SWT.PUSH);
+        removeWatchpoints.setText("Remove Watchpoints");
+        removeWatchpoints.addSelectionListener(new SelectionAdapter() {
+
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                for (Watchpoints.Watchpoint watchpoint : watchpoints.get(menuAddress)) {
+                    watchpoints.remove(watchpoint);
+                }
+                canvas.redraw();
+            }
+        });
+
+        return menu;
+    }
+
+    void createWatchMenuItem(Menu menu, final String text, final int type, final boolean value) {
+        MenuItem item = new MenuItem(menu, SWT.PUSH);
+        item.setText(text);
+        item.addSelectionListener(new SelectionAdapter() {
+
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                int match = Watchpoints.ANY_VALUE;
+                if (value) {
+                    InputDialog dlg = new InputDialog(canvas.getShell(), text, String.format("Value written to %04XH (hex)", menuAddress), "", new IInputValidator() {
+
+                        @Override
+                        public String isValid(String newText) {
+                            try {
+                                int v = Integer.parseInt(newText.trim(), 16);
+                                return v >= 0 && v <= 0xFF ? null : "Value must be between 00 and FF";
+                            } catch (NumberFormatException e) {
+                                return "Invalid hex value";
+                            }
+                        }
+
+                    });
+                    if (dlg.open() != Window.OK) {
+                        return;
+                    }
+                    match = Integer.parseInt(dlg.getValue().trim(), 16);
+                }
+                watchpoints.add(menuAddress, menuAddress, type, match);
+                canvas.redraw();
+            }
+        });
+    }
+
+    /**
+     * Returns the address of the byte at the given canvas location, -1 if none.
+     */
+    int getAddressAt(int x, int y) {
+        if (data == null) {
+            return -1;
+        }
+        int charWidth = (int) fontMetrics.getAverageCharacterWidth();
+        int row = (y - marginHeight) / fontMetrics.getHeight();
+        int x1 = marginWidth + 5 * charWidth;
+        int x2 = x1 + BYTES_PER_ROW * 3 * charWidth;
+        int column;
+        if (x >= x1 && x < x2) {
+            column = (x - x1) / (3 * charWidth);
+        }
+        else if (x >= x2 && x < x2 + BYTES_PER_ROW * charWidth) {
+            column = (x - x2) / charWidth;
+        }
+        else {
+            return -1;
+        }
+        int addr = verticalBar.getSelection() + row * BYTES_PER_ROW + column;
+        return y >= marginHeight && addr < data.length ? addr : -1;
+    }
+
+    public void setWatchpoints(Watchpoints watchpoints) {
+        this.watchpoints = watchpoints;
+        canvas.redraw();
+    }
+
     public Control getControl() {
         return canvas;
     }
 
+    /**
+     * Writes a byte marking it as updated. Doesn't access the widgets so it can be called
+     * from any thread, the view is redrawn by <code>update</code>.
+     */
     public void poke(int addr, int value) {
-        if (addr >= verticalBar.getSelection() && addr <= (verticalBar.getSelection() + verticalBar.getThumb())) {
-            if (data[addr] != value || dataUpdate[addr] != 1) {
-                needUpdate = true;
-            }
-        }
         data[addr] = (byte) value;
         dataUpdate[addr] = 1;
     }
@@ -239,6 +358,13 @@ public class Memory {
     }
 
     public void update() {
+        int rangeStart = verticalBar.getSelection();
+        int rangeEnd = Math.min(verticalBar.getSelection() + verticalBar.getThumb(), dataUpdate.length - 1);
+        for (int i = rangeStart; i <= rangeEnd && !needUpdate; i++) {
+            if (dataUpdate[i] != 0) {
+                needUpdate = true;
+            }
+        }
         if (needUpdate) {
             canvas.redraw();
         }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Page table for the 64K address space.
+ *
+ * The address space is split in slots of equal size (16 x 4K or 4 x 16K), each
+ * pointing at a page inside a bank array. Reads and writes only index the table,
+ * read-only slots have their writes directed to a scratch page that is never read,
+ * so switching banks is just an update of the table entries.
+ *
+ * Writes also mark the 4K page of the bank as dirty, for incremental snapshots.
+ */
+public class MemoryMap {
+
+    public static final int PAGE_4K = 12;
+    public static final int PAGE_16K = 14;
+
+    public static final int DIRTY_SHIFT = 12;
+
+    final int pageShift;
+    final int pageMask;
+
+    final byte[][] readBank;
+    final int[] readOffset;
+    final byte[][] writeBank;
+    final int[] writeOffset;
+    final boolean[][] writeDirty;
+
+    // Target of the writes to read-only slots
+    final byte[] discard;
+    final boolean[] discardDirty;
+
+    final Map<byte[], boolean[]> dirtyPages = new IdentityHashMap<byte[], boolean[]>();
+
+    public MemoryMap(int pageShift) {
+        if (pageShift != PAGE_4K && pageShift != PAGE_16K) {
+            throw new IllegalArgumentException("Unsupported page size");
+        }
+        this.pageShift = pageShift;
+        this.pageMask = (1 << pageShift) - 1;
+
+        int slots = 0x10000 >> pageShift;
+        this.readBank = new byte[slots][];
+        this.readOffset = new int[slots];
+        this.writeBank = new byte[slots][];
+        this.writeOffset = new int[slots];
+        this.writeDirty = new boolean[slots][];
+
+        this.discard = new byte[1 << pageShift];
+        this.discardDirty = new boolean[discard.length >> DIRTY_SHIFT];
+    }
+
+    public int getPageSize() {
+        return pageMask + 1;
+    }
+
+    public int getSlots() {
+        return readBank.length;
+    }
+
+    /**
+     * Maps a page of the given bank to a slot.
+     *
+     * @param slot the slot number
+     * @param bank the bank array
+     * @param page the page number within the bank
+     * @param readOnly true if writes to the slot must be ignored
+     */
+    public void map(int slot, byte[] bank, int page, boolean readOnly) {
+        int offset = page << pageShift;
+        if (offset < 0 || offset + pageMask >= bank.length) {
+            throw new IllegalArgumentException("Page " + page + " outside of bank");
+        }
+        readBank[slot] = bank;
+        readOffset[slot] = offset;
+        writeBank[slot] = readOnly ? discard : bank;
+        writeOffset[slot] = readOnly ? 0 : offset;
+        writeDirty[slot] = readOnly ? discardDirty : getDirtyPages(bank);
+    }
+
+    /**
+     * Returns the flags of the 4K pages of the bank written since they were last cleared.
+     */
+    public boolean[] getDirtyPages(byte[] bank) {
+        boolean[] dirty = dirtyPages.get(bank);
+        if (dirty == null) {
+            dirty = new boolean[(bank.length + (1 << DIRTY_SHIFT) - 1) >> DIRTY_SHIFT];
+            dirtyPages.put(bank, dirty);
+        }
+        return dirty;
+    }
+
+    /**
+     * Returns true if the slot already maps the given page with the same access.
+     */
+    public boolean isMapped(int slot, byte[] bank, int page, boolean readOnly) {
+        return readBank[slot] == bank && readOffset[slot] == (page << pageShift) && isReadOnly(slot) == readOnly;
+    }
+
+    public byte[] getBank(int slot) {
+        return readBank[slot];
+    }
+
+    public int getPage(int slot) {
+        return readOffset[slot] >> pageShift;
+    }
+
+    public boolean isReadOnly(int slot) {
+        return writeBank[slot] == discard;
+    }
+
+    public int read(int address) {
+        int slot = (address & 0xFFFF) >> pageShift;
+        return readBank[slot][readOffset[slot] + (address & pageMask)] & 0xFF;
+    }
+
+    public void write(int address, int value) {
+        int slot = (address & 0xFFFF) >> pageShift;
+        int offset = writeOffset[slot] + (address & pageMask);
+        writeBank[slot][offset] = (byte) value;
+        writeDirty[slot][offset >> DIRTY_SHIFT] = true;
+    }
+
+}
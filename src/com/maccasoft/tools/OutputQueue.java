@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Output bytes queued by a producer thread that must not wait, and written in batches
+ * by a consumer thread.
+ *
+ * The first byte queued after a drain asks for a delayed drain, so that the bytes that
+ * follow are written together, and reaching the threshold asks for an immediate one.
+ * Bytes that don't fit are discarded and counted. Subclasses hand the drain requests
+ * to the consumer thread, that calls <code>beginDrain</code> and then polls the bytes.
+ */
+public abstract class OutputQueue {
+
+    final RingBuffer buffer;
+    final int threshold;
+
+    final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    // Written by the producer only
+    volatile long dropped;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param capacity the number of bytes, rounded up to a power of two
+     * @param threshold the number of bytes waiting that asks for an immediate drain
+     */
+    public OutputQueue(int capacity, int threshold) {
+        this.buffer = new RingBuffer(capacity);
+        this.threshold = threshold;
+    }
+
+    /**
+     * Queues a byte, returns false and discards it if the queue is full.
+     */
+    public boolean offer(int b) {
+        if (!buffer.offer(b)) {
+            dropped++;
+            return false;
+        }
+        if (!drainScheduled.get() && drainScheduled.compareAndSet(false, true)) {
+            scheduleDrain(false);
+        }
+        else if (buffer.size() == threshold) {
+            scheduleDrain(true);
+        }
+        return true;
+    }
+
+    /**
+     * Asks the consumer thread to drain the queue, now or after a short delay.
+     */
+    protected abstract void scheduleDrain(boolean immediate);
+
+    /**
+     * Starts a drain from the consumer thread, the bytes queued from now on ask for
+     * a new drain. Returns the number of bytes to poll.
+     */
+    public int beginDrain() {
+        drainScheduled.set(false);
+        return buffer.size();
+    }
+
+    /**
+     * Removes a byte, returns -1 if the queue is empty.
+     */
+    public int poll() {
+        return buffer.poll();
+    }
+
+    /**
+     * Removes all bytes, a consumer operation.
+     */
+    public void clear() {
+        buffer.clear();
+    }
+
+    public int size() {
+        return buffer.size();
+    }
+
+    public boolean isFull() {
+        return buffer.size() == buffer.capacity();
+    }
+
+    /**
+     * Returns the number of bytes discarded because the queue was full.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+}
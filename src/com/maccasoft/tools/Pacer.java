@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the emulated processor against the host clock.
+ *
+ * Emulated time is kept in T-states and converted with exact integer arithmetic on the
+ * clock frequency in Hz, so no rounding error accumulates over long runs. The processor
+ * runs a slice ahead of the host clock, then the pacer waits for the host to catch up,
+ * parking the thread and spinning only for the last few microseconds. The slice grows
+ * while the host can't keep up, to reduce the synchronization overhead, and shrinks back
+ * when there is idle time left.
+ */
+public class Pacer {
+
+    public static final long NANOS_PER_SECOND = 1000000000L;
+
+    public static final long MIN_SLICE_NS = 1000000L;
+    public static final long MAX_SLICE_NS = 16000000L;
+
+    // Below this the wait is done spinning, parking is not accurate enough
+    static final long SPIN_NS = 50000L;
+
+    // Lag after which the host clock is resynchronized instead of catching up
+    static final long MAX_LAG_NS = 100000000L;
+
+    long clockHz;
+
+    // Host time and T-states the pacing is referred to
+    long epochNs;
+    long epochTstates;
+
+    long sliceNs;
+
+    public Pacer(long clockHz) {
+        setClock(clockHz);
+        this.sliceNs = MIN_SLICE_NS;
+    }
+
+    public void setClock(long clockHz) {
+        if (clockHz <= 0) {
+            throw new IllegalArgumentException("Invalid clock frequency " + clockHz);
+        }
+        this.clockHz = clockHz;
+    }
+
+    public long getClock() {
+        return clockHz;
+    }
+
+    public long getSlice() {
+        return sliceNs;
+    }
+
+    /**
+     * Returns the nanoseconds of emulated time for the given T-states.
+     */
+    public long toNanos(long tstates) {
+        return (tstates / clockHz) * NANOS_PER_SECOND + (tstates % clockHz) * NANOS_PER_SECOND / clockHz;
+    }
+
+    /**
+     * Returns the T-states completed in the given nanoseconds of emulated time.
+     */
+    public long toTstates(long nanos) {
+        return (nanos / NANOS_PER_SECOND) * clockHz + (nanos % NANOS_PER_SECOND) * clockHz / NANOS_PER_SECOND;
+    }
+
+    /**
+     * Returns the first T-states at or after the given nanoseconds of emulated time.
+     */
+    public long toTstatesCeil(long nanos) {
+        long tstates = toTstates(nanos);
+        return toNanos(tstates) < nanos ? tstates + 1 : tstates;
+    }
+
+    /**
+     * Starts pacing from the given T-states at the current host time.
+     */
+    public void start(long tstates) {
+        epochNs = System.nanoTime();
+        epochTstates = tstates;
+    }
+
+    /**
+     * Returns the T-states to run to for the next slice. If the processor is behind
+     * the host clock by too much (the host was suspended or too busy) the missing time
+     * is dropped instead of running it at full speed.
+     */
+    public long getSliceTarget(long tstates) {
+        long now = System.nanoTime();
+        long dueNs = toNanos(tstates - epochTstates);
+        if (now - epochNs - dueNs > MAX_LAG_NS) {
+            epochNs = now;
+            epochTstates = tstates;
+        }
+        return tstates + toTstates(sliceNs);
+    }
+
+    /**
+     * Waits until the host clock reaches the given T-states, adjusting the slice size
+     * from the time left. Returns immediately if the thread is interrupted.
+     */
+    public void waitFor(long tstates) {
+        long deadlineNs = epochNs + toNanos(tstates - epochTstates);
+
+        long remaining = deadlineNs - System.nanoTime();
+        if (remaining <= 0) {
+            sliceNs = Math.min(sliceNs * 2, MAX_SLICE_NS);
+            return;
+        }
+        if (remaining > MAX_LAG_NS) {
+            start(tstates);
+            return;
+        }
+        if (remaining > sliceNs / 2) {
+            sliceNs = Math.max(sliceNs / 2, MIN_SLICE_NS);
+        }
+
+        while (remaining > 0 && !Thread.currentThread().isInterrupted()) {
+            if (remaining > SPIN_NS) {
+                LockSupport.parkNanos(remaining - SPIN_NS);
+            }
+            else {
+                Thread.yield();
+            }
+            remaining = deadlineNs - System.nanoTime();
+        }
+    }
+
+}
@@ -97,6 +97,7 @@ public class Preferences {
     boolean openTMS9918Window;
     int tms9918Ram;
     int tms9918Register;
+    boolean sioRxInterrupt;
 
     String debuggerCompactFlashImage;
 
@@ -446,6 +447,14 @@ public class Preferences {
         this.tms9918Register = tms9918Control;
     }
 
+    public boolean isSioRxInterrupt() {
+        return sioRxInterrupt;
+    }
+
+    public void setSioRxInterrupt(boolean sioRxInterrupt) {
+        this.sioRxInterrupt = sioRxInterrupt;
+    }
+
     public String getDebuggerCompactFlashImage() {
         return debuggerCompactFlashImage;
     }
@@ -85,6 +85,7 @@ public class PreferencesDialog extends Dialog {
     Text romImage2;
     Text romAddress2;
     Text compactFlashImage;
+    Button sioRxInterrupt;
     Button openTMS9918Window;
     Text tms9918VRam;
     Text tms9918Register;
@@ -782,6 +783,11 @@ public class PreferencesDialog extends Dialog {
             }
         });
 
+        new Label(composite, SWT.NONE);
+        sioRxInterrupt = new Button(composite, SWT.CHECK);
+        sioRxInterrupt.setText("SIO receive interrupt");
+        sioRxInterrupt.setSelection(preferences.isSioRxInterrupt());
+
         new Label(composite, SWT.NONE);
         openTMS9918Window = new Button(composite, SWT.CHECK);
         openTMS9918Window.setText("Open TMS9918 Window");
@@ -913,6 +919,7 @@ public class PreferencesDialog extends Dialog {
         preferences.setRomAddress2(Integer.valueOf(romAddress2.getText(), 16));
         preferences.setRomImage2(romImage2.getText());
         preferences.setCompactFlashImage(compactFlashImage.getText());
+        preferences.setSioRxInterrupt(sioRxInterrupt.getSelection());
         preferences.setOpenTMS9918Window(openTMS9918Window.getSelection());
         preferences.setTms9918Ram(Integer.valueOf(tms9918VRam.getText(), 16));
         preferences.setTms9918Register(Integer.valueOf(tms9918Register.getText(), 16));
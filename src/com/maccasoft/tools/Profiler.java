@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import com.maccasoft.tools.SourceMap.LineEntry;
+
+import nl.grauw.glass.directives.Proc;
+import nl.grauw.glass.instructions.Endp;
+
+/**
+ * Execution profile of the debugged program.
+ *
+ * Counts the executions and the T-states spent at each address. Calls are tracked with a
+ * stack of frames pushed by CALL and RST and popped when the stack pointer moves above the
+ * frame (RET, conditional returns and code that drops the return address), giving the
+ * number of calls and the call-inclusive T-states of each called address.
+ *
+ * The totals are aggregated to source lines and to PROC blocks through the source map.
+ */
+public class Profiler {
+
+    public static final int MAX_DEPTH = 256;
+
+    final long[] counts = new long[65536];
+    final long[] tstates = new long[65536];
+    final long[] calls = new long[65536];
+    final long[] inclusive = new long[65536];
+
+    final int[] frameTarget = new int[MAX_DEPTH];
+    final int[] frameSP = new int[MAX_DEPTH];
+    final long[] frameStart = new long[MAX_DEPTH];
+    int depth;
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(tstates, 0);
+        Arrays.fill(calls, 0);
+        Arrays.fill(inclusive, 0);
+        depth = 0;
+    }
+
+    /**
+     * Records an executed instruction.
+     *
+     * @param pc the address of the instruction
+     * @param opcode the first byte of the instruction
+     * @param sp the stack pointer before the instruction
+     * @param start the T-states before the instruction
+     * @param nextPC the program counter after the instruction
+     * @param nextSP the stack pointer after the instruction
+     * @param end the T-states after the instruction
+     */
+    public void executed(int pc, int opcode, int sp, long start, int nextPC, int nextSP, long end) {
+        counts[pc]++;
+        tstates[pc] += end - start;
+
+        while (depth > 0) {
+            // Distance above the frame, the stack may wrap around
+            int distance = (nextSP - frameSP[depth - 1]) & 0xFFFF;
+            if (distance == 0 || distance >= 0x8000) {
+                break;
+            }
+            depth--;
+            calls[frameTarget[depth]]++;
+            inclusive[frameTarget[depth]] += end - frameStart[depth];
+        }
+
+        if (nextSP == ((sp - 2) & 0xFFFF) && (opcode == 0xCD || (opcode & 0xC7) == 0xC4 || (opcode & 0xC7) == 0xC7)) {
+            if (depth == MAX_DEPTH) {
+                // Too deep, forget the outermost frame
+                System.arraycopy(frameTarget, 1, frameTarget, 0, MAX_DEPTH - 1);
+                System.arraycopy(frameSP, 1, frameSP, 0, MAX_DEPTH - 1);
+                System.arraycopy(frameStart, 1, frameStart, 0, MAX_DEPTH - 1);
+                depth--;
+            }
+            frameTarget[depth] = nextPC;
+            frameSP[depth] = nextSP;
+            frameStart[depth] = start;
+            depth++;
+        }
+    }
+
+    public long getCount(int address) {
+        return counts[address];
+    }
+
+    public long getTstates(int address) {
+        return tstates[address];
+    }
+
+    public long getCalls(int address) {
+        return calls[address];
+    }
+
+    public long getInclusiveTstates(int address) {
+        return inclusive[address];
+    }
+
+    public long getTotalTstates() {
+        long total = 0;
+        for (int i = 0; i < tstates.length; i++) {
+            total += tstates[i];
+        }
+        return total;
+    }
+
+    /**
+     * Returns the T-states spent on each source line, indexed by line number.
+     */
+    public long[] getLineTstates(SourceMap sourceMap) {
+        return getLineTotals(sourceMap, tstates);
+    }
+
+    /**
+     * Returns the executions of each source line, indexed by line number.
+     */
+    public long[] getLineCounts(SourceMap sourceMap) {
+        return getLineTotals(sourceMap, counts);
+    }
+
+    long[] getLineTotals(SourceMap sourceMap, long[] values) {
+        long[] result = new long[sourceMap.getLines().size()];
+        for (int address = 0; address < values.length; address++) {
+            if (values[address] != 0) {
+                LineEntry lineEntry = sourceMap.getLineAtAddress(address);
+                if (lineEntry != null) {
+                    result[lineEntry.lineNumber] += values[address];
+                }
+            }
+        }
+        return result;
+    }
+
+    public static class ProcEntry {
+
+        public final String name;
+        public final int startLine;
+        public final int endLine;
+        public final int address;
+
+        public ProcEntry(String name, int startLine, int endLine, int address) {
+            this.name = name;
+            this.startLine = startLine;
+            this.endLine = endLine;
+            this.address = address;
+        }
+
+    }
+
+    /**
+     * Returns the PROC blocks of the source, from the PROC line to the matching ENDP line.
+     */
+    public static List<ProcEntry> getProcs(SourceMap sourceMap) {
+        List<ProcEntry> result = new ArrayList<ProcEntry>();
+
+        List<LineEntry> lines = sourceMap.getLines();
+        int[] stack = new int[lines.size()];
+        int sp = 0;
+
+        for (LineEntry lineEntry : lines) {
+            if (lineEntry.line.getDirective() instanceof Proc) {
+                stack[sp++] = lineEntry.lineNumber;
+            }
+            else if (sp > 0 && lineEntry.line.getMnemonic() != null && lineEntry.line.getInstruction() instanceof Endp) {
+                LineEntry start = lines.get(stack[--sp]);
+                result.add(new ProcEntry(start.line.getLabel(), start.lineNumber, lineEntry.lineNumber, start.address));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes the profile as comma separated values, with a row for each executed line,
+     * for each PROC block and for each called address.
+     */
+    public void writeCsv(SourceMap sourceMap, Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+
+        long total = getTotalTstates();
+        long[] lineCounts = getLineCounts(sourceMap);
+        long[] lineTstates = getLineTstates(sourceMap);
+
+        out.println("kind,name,line,address,count,tstates,percent,calls,inclusive");
+
+        for (LineEntry lineEntry : sourceMap.getLines()) {
+            int line = lineEntry.lineNumber;
+            if (lineCounts[line] != 0) {
+                out.println(String.format("line,%s,%d,%04X,%d,%d,%s,,", quote(lineEntry.line.getSourceText().trim()), line + 1, lineEntry.address,
+                    lineCounts[line], lineTstates[line], percent(lineTstates[line], total)));
+            }
+        }
+
+        for (ProcEntry proc : getProcs(sourceMap)) {
+            long procTstates = 0;
+            for (int line = proc.startLine; line <= proc.endLine; line++) {
+                procTstates += lineTstates[line];
+            }
+            if (procTstates != 0 || calls[proc.address] != 0) {
+                out.println(String.format("proc,%s,%d,%04X,,%d,%s,%d,%d", quote(proc.name), proc.startLine + 1, proc.address,
+                    procTstates, percent(procTstates, total), calls[proc.address], inclusive[proc.address]));
+            }
+        }
+
+        for (int address = 0; address < calls.length; address++) {
+            if (calls[address] != 0) {
+                out.println(String.format("call,%s,,%04X,,,%s,%d,%d", quote(getLabel(sourceMap, address)), address,
+                    percent(inclusive[address], total), calls[address], inclusive[address]));
+            }
+        }
+
+        out.flush();
+    }
+
+    static String getLabel(SourceMap sourceMap, int address) {
+        for (LineEntry lineEntry : sourceMap.getLines()) {
+            if (lineEntry.address == address && lineEntry.line.getLabel() != null) {
+                return lineEntry.line.getLabel();
+            }
+        }
+        return "";
+    }
+
+    static String percent(long value, long total) {
+        return String.format(Locale.ROOT, "%.2f", total != 0 ? value * 100.0 / total : 0.0);
+    }
+
+    static String quote(String s) {
+        if (s == null) {
+            return "";
+        }
+        if (s.indexOf(',') != -1 || s.indexOf('"') != -1) {
+            return "\"" + s.replace("\"", "\"\"") + "\"";
+        }
+        return s;
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free byte queue between one producer thread and one consumer thread.
+ *
+ * The producer adds bytes with <code>offer</code>, or with <code>put</code> that waits
+ * while the buffer is full, and the consumer removes them with <code>poll</code>. The
+ * read and write counters are published with ordered writes, neither side takes a lock
+ * or allocates. <code>clear</code> is a consumer operation. Threads sharing a side must
+ * synchronize among themselves.
+ */
+public class RingBuffer {
+
+    // Time the producer sleeps while waiting for free space
+    static final long WAIT_NS = 100000L;
+
+    final byte[] buffer;
+    final int mask;
+
+    final AtomicLong head = new AtomicLong();
+    final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param capacity the number of bytes, rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Returns the number of bytes in the buffer.
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    /**
+     * Adds a byte, returns false if the buffer is full.
+     */
+    public boolean offer(int b) {
+        long t = tail.get();
+        if (t - head.get() == buffer.length) {
+            return false;
+        }
+        buffer[(int) t & mask] = (byte) b;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Adds as many bytes as fit in the buffer, returns the number of bytes added.
+     */
+    public int offer(byte[] b, int off, int len) {
+        long t = tail.get();
+        int count = Math.min(len, buffer.length - (int) (t - head.get()));
+        for (int i = 0; i < count; i++) {
+            buffer[(int) (t + i) & mask] = b[off + i];
+        }
+        tail.lazySet(t + count);
+        return count;
+    }
+
+    /**
+     * Adds a byte, waiting while the buffer is full.
+     */
+    public void put(int b) throws InterruptedException {
+        while (!offer(b)) {
+            waitSpace();
+        }
+    }
+
+    /**
+     * Adds the bytes, waiting while the buffer is full.
+     */
+    public void put(byte[] b, int off, int len) throws InterruptedException {
+        while (len > 0) {
+            int count = offer(b, off, len);
+            if (count == 0) {
+                waitSpace();
+            }
+            off += count;
+            len -= count;
+        }
+    }
+
+    void waitSpace() throws InterruptedException {
+        LockSupport.parkNanos(WAIT_NS);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Removes a byte, returns -1 if the buffer is empty.
+     */
+    public int poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return -1;
+        }
+        int b = buffer[(int) h & mask] & 0xFF;
+        head.lazySet(h + 1);
+        return b;
+    }
+
+    /**
+     * Removes all bytes.
+     */
+    public void clear() {
+        head.lazySet(tail.get());
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.util.Arrays;
+
+/**
+ * Device events keyed by T-states.
+ *
+ * Each device registered with the scheduler has at most one pending event. Events are
+ * kept in a binary min-heap of primitive arrays so the processor can be run exactly up
+ * to the next deadline, then the due events are dispatched in time order. Devices post
+ * their next deadline from the event handler.
+ */
+public class Scheduler {
+
+    public static final long NEVER = Long.MAX_VALUE;
+
+    public interface Device {
+
+        /**
+         * Called when the device deadline is reached.
+         *
+         * @param tstates the current T-states, may be past the deadline by
+         *            the length of the last instruction
+         */
+        void onEvent(long tstates);
+
+    }
+
+    Device[] devices = new Device[0];
+
+    // Deadline of each device, NEVER if not scheduled
+    long[] deadline = new long[0];
+
+    // Heap of device ids ordered by deadline, and position of each device in the heap
+    int[] heap = new int[0];
+    int[] position = new int[0];
+    int size;
+
+    /**
+     * Registers a device and returns its id, used to post events.
+     */
+    public int addDevice(Device device) {
+        int id = devices.length;
+
+        devices = Arrays.copyOf(devices, id + 1);
+        devices[id] = device;
+        deadline = Arrays.copyOf(deadline, id + 1);
+        deadline[id] = NEVER;
+        heap = Arrays.copyOf(heap, id + 1);
+        position = Arrays.copyOf(position, id + 1);
+        position[id] = -1;
+
+        return id;
+    }
+
+    /**
+     * Posts the device event at the given T-states, replacing any pending event
+     * of the same device.
+     */
+    public void schedule(int id, long tstates) {
+        if (position[id] == -1) {
+            deadline[id] = tstates;
+            heap[size] = id;
+            position[id] = size;
+            siftUp(size++);
+        }
+        else {
+            long previous = deadline[id];
+            deadline[id] = tstates;
+            if (tstates < previous) {
+                siftUp(position[id]);
+            }
+            else {
+                siftDown(position[id]);
+            }
+        }
+    }
+
+    public void cancel(int id) {
+        int index = position[id];
+        if (index == -1) {
+            return;
+        }
+        deadline[id] = NEVER;
+        position[id] = -1;
+
+        size--;
+        if (index != size) {
+            heap[index] = heap[size];
+            position[heap[index]] = index;
+            siftDown(index);
+            siftUp(index);
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            deadline[heap[i]] = NEVER;
+            position[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    /**
+     * Moves the pending deadlines back by the given T-states, used when the
+     * T-states counter is reset.
+     */
+    public void rebase(long tstates) {
+        for (int i = 0; i < size; i++) {
+            deadline[heap[i]] -= tstates;
+        }
+    }
+
+    public boolean isScheduled(int id) {
+        return position[id] != -1;
+    }
+
+    public long getDeadline(int id) {
+        return deadline[id];
+    }
+
+    /**
+     * Returns the T-states of the earliest pending event, or NEVER.
+     */
+    public long getNextDeadline() {
+        return size != 0 ? deadline[heap[0]] : NEVER;
+    }
+
+    /**
+     * Dispatches, in deadline order, the events due at the given T-states. A device
+     * that posts again an event already due is dispatched again in the same call.
+     */
+    public void dispatch(long tstates) {
+        while (size != 0 && deadline[heap[0]] <= tstates) {
+            int id = heap[0];
+            cancel(id);
+            devices[id].onEvent(tstates);
+        }
+    }
+
+    void siftUp(int index) {
+        int id = heap[index];
+        long time = deadline[id];
+        while (index > 0) {
+            int parent = (index - 1) >> 1;
+            if (deadline[heap[parent]] <= time) {
+                break;
+            }
+            heap[index] = heap[parent];
+            position[heap[index]] = index;
+            index = parent;
+        }
+        heap[index] = id;
+        position[id] = index;
+    }
+
+    void siftDown(int index) {
+        int id = heap[index];
+        long time = deadline[id];
+        while (true) {
+            int child = (index << 1) + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && deadline[heap[child + 1]] < deadline[heap[child]]) {
+                child++;
+            }
+            if (time <= deadline[heap[child]]) {
+                break;
+            }
+            heap[index] = heap[child];
+            position[heap[index]] = index;
+            index = child;
+        }
+        heap[index] = id;
+        position[id] = index;
+    }
+
+}
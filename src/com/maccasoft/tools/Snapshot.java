@@ -0,0 +1,594 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import z80core.Z80;
+import z80core.Z80.IntMode;
+import z80core.Z80State;
+
+/**
+ * Binary save states of a <code>Machine</code> or a <code>Debugger</code>.
+ *
+ * A snapshot file starts with a header (magic, format version, type, sequence number and
+ * T-states) followed by tagged sections, each with its length so that readers can skip the
+ * sections they don't know. Memory banks are stored in 4K pages. A full snapshot stores all
+ * pages, an incremental snapshot only the pages written since the previous snapshot and must
+ * be restored on top of it: the sequence number is checked so that deltas are applied in order.
+ *
+ * Files are built and parsed in a heap buffer and transferred with a single channel write
+ * or read, no mapping outlives the call so the same file can be saved again right away.
+ */
+public class Snapshot {
+
+    public static final int MAGIC = 0x5A383053; // Z80S
+    public static final int VERSION = 1;
+
+    public static final int FULL = 0;
+    public static final int INCREMENTAL = 1;
+
+    static final int TARGET_MACHINE = 0;
+    static final int TARGET_DEBUGGER = 1;
+
+    static final int CPU = 0x43505520; // CPU
+    static final int MACHINE = 0x4D414348; // MACH
+    static final int BANK = 0x42414E4B; // BANK
+    static final int TMS9918 = 0x544D5320; // TMS
+    static final int COMPACT_FLASH = 0x43462020; // CF
+    static final int END = 0x454E4420; // END
+
+    static final int BANK_ROM = 0;
+    static final int BANK_RAM = 1;
+
+    static final int PAGE_SIZE = 1 << MemoryMap.DIRTY_SHIFT;
+
+    static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8;
+    static final int SECTION_HEADER_SIZE = 8;
+    static final int CPU_SIZE = 16 + 5 * 2 + 2 + 1 + 1;
+    static final int MACHINE_SIZE = 1 + 1 + 1 + 4 + 4 + 8;
+    static final int TMS9918_SIZE = 8 + 1 + 2 + 4 + 4 + 8 + 8 + 8 + 16384;
+    static final int COMPACT_FLASH_SIZE = 1 + 4 + 1 + 4 + 8;
+
+    final int target;
+    final int type;
+    final long sequence;
+    final long tstates;
+
+    Snapshot(int target, int type, long sequence, long tstates) {
+        this.target = target;
+        this.type = type;
+        this.sequence = sequence;
+        this.tstates = tstates;
+    }
+
+    public static void save(Machine machine, File file, boolean incremental) throws IOException {
+        synchronized (machine.proc) {
+            if (incremental && machine.snapshotSequence == -1) {
+                throw new IOException("Incremental snapshot without a previous snapshot");
+            }
+
+            boolean[] romDirty = machine.memory.getDirtyPages(machine.rom);
+            boolean[] ramDirty = machine.memory.getDirtyPages(machine.ram);
+            if (!incremental) {
+                Arrays.fill(romDirty, true);
+                Arrays.fill(ramDirty, true);
+            }
+
+            long size = HEADER_SIZE + SECTION_HEADER_SIZE + CPU_SIZE + SECTION_HEADER_SIZE + MACHINE_SIZE;
+            size += getBankSize(romDirty) + getBankSize(ramDirty);
+            size += SECTION_HEADER_SIZE + TMS9918_SIZE + SECTION_HEADER_SIZE + COMPACT_FLASH_SIZE + SECTION_HEADER_SIZE;
+
+            long sequence = incremental ? machine.snapshotSequence + 1 : 0;
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+
+            writeHeader(buffer, TARGET_MACHINE, incremental ? INCREMENTAL : FULL, sequence, machine.getTstates());
+            writeCpu(buffer, machine.proc);
+
+            buffer.putInt(MACHINE);
+            buffer.putInt(MACHINE_SIZE);
+            buffer.put((byte) machine.memoryModel);
+            buffer.put((byte) (machine.rom_paged ? 1 : 0));
+            buffer.put((byte) (machine.pagingEnabled ? 1 : 0));
+            for (int i = 0; i < 4; i++) {
+                buffer.put((byte) machine.pageSelect[i]);
+            }
+            buffer.putInt(machine.rxData);
+            buffer.putLong(machine.scheduler.getDeadline(machine.rxDevice));
+
+            writeBank(buffer, BANK_ROM, machine.rom, romDirty);
+            writeBank(buffer, BANK_RAM, machine.ram, ramDirty);
+            writeTMS9918(buffer, machine.tms9918, machine.tms9918TimeNs);
+            writeCompactFlash(buffer, machine.cf);
+
+            buffer.putInt(END);
+            buffer.putInt(0);
+            writeFile(file, buffer);
+
+            // Only once written, a failed save leaves the pages for the next snapshot
+            Arrays.fill(romDirty, false);
+            Arrays.fill(ramDirty, false);
+            machine.snapshotSequence = sequence;
+        }
+    }
+
+    public static void restore(Machine machine, File file) throws IOException {
+        synchronized (machine.proc) {
+            ByteBuffer buffer = readFile(file);
+
+            Snapshot snapshot = readHeader(buffer, TARGET_MACHINE, machine.snapshotSequence);
+            validate(buffer.duplicate(), machine.memoryModel, machine.rom.length, machine.ram.length);
+
+            // Files written before the SIO state was saved keep the current receive timing
+            long rxDeadline = -1;
+            int rxData = -1;
+
+            while (true) {
+                int tag = buffer.getInt();
+                int length = buffer.getInt();
+                int next = buffer.position() + length;
+                if (tag == END) {
+                    break;
+                }
+                switch (tag) {
+                    case CPU:
+                        readCpu(buffer, machine.proc);
+                        break;
+                    case MACHINE:
+                        if (buffer.get() != machine.memoryModel) {
+                            throw new IOException("Snapshot memory model doesn't match");
+                        }
+                        machine.rom_paged = buffer.get() != 0;
+                        machine.pagingEnabled = buffer.get() != 0;
+                        for (int i = 0; i < 4; i++) {
+                            machine.pageSelect[i] = buffer.get() & 0xFF;
+                        }
+                        if (length >= MACHINE_SIZE) {
+                            rxData = buffer.getInt();
+                            rxDeadline = buffer.getLong();
+                        }
+                        break;
+                    case BANK: {
+                        int id = buffer.get();
+                        if (id != BANK_ROM) {
+                            readBank(buffer, machine.ram);
+                        }
+                        else if (!machine.romShared || !isBankEqual(buffer.duplicate(), machine.rom)) {
+                            // A shared ROM is replaced by a copy only if the content differs
+                            readBank(buffer, machine.getWritableRom());
+                        }
+                        break;
+                    }
+                    case TMS9918:
+                        machine.tms9918TimeNs = readTMS9918(buffer, machine.tms9918);
+                        break;
+                    case COMPACT_FLASH:
+                        readCompactFlash(buffer, machine.cf);
+                        break;
+                }
+                buffer.position(next);
+            }
+
+            machine.restored(snapshot.tstates);
+            machine.rxData = rxData;
+            if (rxDeadline != -1) {
+                machine.scheduler.schedule(machine.rxDevice, rxDeadline);
+            }
+
+            Arrays.fill(machine.memory.getDirtyPages(machine.rom), false);
+            Arrays.fill(machine.memory.getDirtyPages(machine.ram), false);
+            machine.snapshotSequence = snapshot.sequence;
+        }
+    }
+
+    public static void save(Debugger debugger, File file, boolean incremental) throws IOException {
+        synchronized (debugger.proc) {
+            if (incremental && debugger.snapshotSequence == -1) {
+                throw new IOException("Incremental snapshot without a previous snapshot");
+            }
+
+            boolean[] ramDirty = debugger.dirtyPages;
+            if (!incremental) {
+                Arrays.fill(ramDirty, true);
+            }
+
+            long size = HEADER_SIZE + SECTION_HEADER_SIZE + CPU_SIZE + getBankSize(ramDirty);
+            size += SECTION_HEADER_SIZE + TMS9918_SIZE + SECTION_HEADER_SIZE + COMPACT_FLASH_SIZE + SECTION_HEADER_SIZE;
+
+            long sequence = incremental ? debugger.snapshotSequence + 1 : 0;
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+
+            writeHeader(buffer, TARGET_DEBUGGER, incremental ? INCREMENTAL : FULL, sequence, debugger.getTstates());
+            writeCpu(buffer, debugger.proc);
+            writeBank(buffer, BANK_RAM, debugger.getRam(), ramDirty);
+            writeTMS9918(buffer, debugger.tms9918, 0);
+            writeCompactFlash(buffer, debugger.cf);
+
+            buffer.putInt(END);
+            buffer.putInt(0);
+            writeFile(file, buffer);
+
+            Arrays.fill(ramDirty, false);
+            debugger.snapshotSequence = sequence;
+        }
+    }
+
+    public static void restore(Debugger debugger, File file) throws IOException {
+        synchronized (debugger.proc) {
+            ByteBuffer buffer = readFile(file);
+
+            Snapshot snapshot = readHeader(buffer, TARGET_DEBUGGER, debugger.snapshotSequence);
+            validate(buffer.duplicate(), -1, debugger.getRam().length, debugger.getRam().length);
+
+            while (true) {
+                int tag = buffer.getInt();
+                int length = buffer.getInt();
+                int next = buffer.position() + length;
+                if (tag == END) {
+                    break;
+                }
+                switch (tag) {
+                    case CPU:
+                        readCpu(buffer, debugger.proc);
+                        break;
+                    case BANK:
+                        buffer.get();
+                        readBank(buffer, debugger.getRam());
+                        break;
+                    case TMS9918:
+                        readTMS9918(buffer, debugger.tms9918);
+                        break;
+                    case COMPACT_FLASH:
+                        readCompactFlash(buffer, debugger.cf);
+                        break;
+                }
+                buffer.position(next);
+            }
+
+            debugger.restored(snapshot.tstates);
+
+            Arrays.fill(debugger.dirtyPages, false);
+            debugger.snapshotSequence = snapshot.sequence;
+        }
+    }
+
+    static void writeFile(File file, ByteBuffer buffer) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    static ByteBuffer readFile(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new IOException("Unexpected end of snapshot file");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            channel.close();
+        }
+    }
+
+    static long getBankSize(boolean[] dirty) {
+        int count = 0;
+        for (int i = 0; i < dirty.length; i++) {
+            if (dirty[i]) {
+                count++;
+            }
+        }
+        return SECTION_HEADER_SIZE + 1 + 4 + 4 + count * (4L + PAGE_SIZE);
+    }
+
+    static void writeHeader(ByteBuffer buffer, int target, int type, long sequence, long tstates) {
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(target);
+        buffer.putInt(type);
+        buffer.putLong(sequence);
+        buffer.putLong(tstates);
+    }
+
+    static Snapshot readHeader(ByteBuffer buffer, int target, long currentSequence) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot file");
+        }
+        int version = buffer.getInt();
+        if (version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        if (buffer.getInt() != target) {
+            throw new IOException("Snapshot target doesn't match");
+        }
+        Snapshot snapshot = new Snapshot(target, buffer.getInt(), buffer.getLong(), buffer.getLong());
+        if (snapshot.type == INCREMENTAL && (currentSequence == -1 || snapshot.sequence != currentSequence + 1)) {
+            throw new IOException("Incremental snapshot " + snapshot.sequence + " doesn't follow the current state " + currentSequence);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Checks the sections that follow the header, so that a file that doesn't match the
+     * target or is damaged is rejected before any state is changed.
+     *
+     * @param memoryModel the memory model of the machine, -1 to ignore the machine section
+     * @param romSize the size of the bank restored from the ROM bank sections
+     * @param ramSize the size of the bank restored from the RAM bank sections
+     */
+    static void validate(ByteBuffer buffer, int memoryModel, int romSize, int ramSize) throws IOException {
+        while (true) {
+            if (buffer.remaining() < SECTION_HEADER_SIZE) {
+                throw new IOException("Truncated snapshot file");
+            }
+            int tag = buffer.getInt();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("Truncated snapshot file");
+            }
+            if (tag == END) {
+                return;
+            }
+            ByteBuffer section = buffer.slice();
+            section.limit(length);
+            buffer.position(buffer.position() + length);
+
+            switch (tag) {
+                case CPU:
+                    checkLength(section, CPU_SIZE);
+                    if ((section.get(CPU_SIZE - 2) & 0xFF) >= IntMode.values().length) {
+                        throw new IOException("Invalid snapshot interrupt mode");
+                    }
+                    break;
+                case MACHINE:
+                    if (memoryModel != -1) {
+                        checkLength(section, 1 + 1 + 1 + 4);
+                        if (section.get() != memoryModel) {
+                            throw new IOException("Snapshot memory model doesn't match");
+                        }
+                    }
+                    break;
+                case BANK: {
+                    checkLength(section, 1 + 4 + 4);
+                    int size = section.get() == BANK_ROM ? romSize : ramSize;
+                    if (section.getInt() != size) {
+                        throw new IOException("Snapshot memory size doesn't match");
+                    }
+                    int count = section.getInt();
+                    if (count < 0 || (long) count * (4 + PAGE_SIZE) > section.remaining()) {
+                        throw new IOException("Truncated snapshot file");
+                    }
+                    for (int i = 0; i < count; i++) {
+                        checkPage(section.getInt(), size);
+                        section.position(section.position() + PAGE_SIZE);
+                    }
+                    break;
+                }
+                case TMS9918:
+                    checkLength(section, TMS9918_SIZE);
+                    break;
+                case COMPACT_FLASH:
+                    checkLength(section, COMPACT_FLASH_SIZE);
+                    break;
+            }
+        }
+    }
+
+    static void checkLength(ByteBuffer section, int length) throws IOException {
+        if (section.remaining() < length) {
+            throw new IOException("Truncated snapshot file");
+        }
+    }
+
+    static void checkPage(int page, int size) throws IOException {
+        if (page < 0 || page >= size / PAGE_SIZE) {
+            throw new IOException("Snapshot page " + page + " out of range");
+        }
+    }
+
+    static void writeCpu(ByteBuffer buffer, Z80 proc) {
+        Z80State state = proc.getZ80State();
+
+        buffer.putInt(CPU);
+        buffer.putInt(CPU_SIZE);
+
+        buffer.put((byte) state.getRegA());
+        buffer.put((byte) state.getRegF());
+        buffer.put((byte) state.getRegB());
+        buffer.put((byte) state.getRegC());
+        buffer.put((byte) state.getRegD());
+        buffer.put((byte) state.getRegE());
+        buffer.put((byte) state.getRegH());
+        buffer.put((byte) state.getRegL());
+        buffer.put((byte) state.getRegAx());
+        buffer.put((byte) state.getRegFx());
+        buffer.put((byte) state.getRegBx());
+        buffer.put((byte) state.getRegCx());
+        buffer.put((byte) state.getRegDx());
+        buffer.put((byte) state.getRegEx());
+        buffer.put((byte) state.getRegHx());
+        buffer.put((byte) state.getRegLx());
+
+        buffer.putShort((short) state.getRegIX());
+        buffer.putShort((short) state.getRegIY());
+        buffer.putShort((short) state.getRegSP());
+        buffer.putShort((short) state.getRegPC());
+        buffer.putShort((short) state.getMemPtr());
+        buffer.put((byte) state.getRegI());
+        buffer.put((byte) state.getRegR());
+        buffer.put((byte) state.getIM().ordinal());
+
+        int flags = 0;
+        flags |= state.isIFF1() ? 0x01 : 0;
+        flags |= state.isIFF2() ? 0x02 : 0;
+        flags |= state.isHalted() ? 0x04 : 0;
+        flags |= state.isPendingEI() ? 0x08 : 0;
+        flags |= state.isNMI() ? 0x10 : 0;
+        flags |= state.isINTLine() ? 0x20 : 0;
+        flags |= state.isFlagQ() ? 0x40 : 0;
+        buffer.put((byte) flags);
+    }
+
+    static void readCpu(ByteBuffer buffer, Z80 proc) {
+        Z80State state = new Z80State();
+
+        state.setRegA(buffer.get() & 0xFF);
+        state.setRegF(buffer.get() & 0xFF);
+        state.setRegB(buffer.get() & 0xFF);
+        state.setRegC(buffer.get() & 0xFF);
+        state.setRegD(buffer.get() & 0xFF);
+        state.setRegE(buffer.get() & 0xFF);
+        state.setRegH(buffer.get() & 0xFF);
+        state.setRegL(buffer.get() & 0xFF);
+        state.setRegAx(buffer.get() & 0xFF);
+        state.setRegFx(buffer.get() & 0xFF);
+        state.setRegBx(buffer.get() & 0xFF);
+        state.setRegCx(buffer.get() & 0xFF);
+        state.setRegDx(buffer.get() & 0xFF);
+        state.setRegEx(buffer.get() & 0xFF);
+        state.setRegHx(buffer.get() & 0xFF);
+        state.setRegLx(buffer.get() & 0xFF);
+
+        state.setRegIX(buffer.getShort() & 0xFFFF);
+        state.setRegIY(buffer.getShort() & 0xFFFF);
+        state.setRegSP(buffer.getShort() & 0xFFFF);
+        state.setRegPC(buffer.getShort() & 0xFFFF);
+        state.setMemPtr(buffer.getShort() & 0xFFFF);
+        state.setRegI(buffer.get() & 0xFF);
+        state.setRegR(buffer.get() & 0xFF);
+        state.setIM(IntMode.values()[buffer.get()]);
+
+        int flags = buffer.get();
+        state.setIFF1((flags & 0x01) != 0);
+        state.setIFF2((flags & 0x02) != 0);
+        state.setHalted((flags & 0x04) != 0);
+        state.setPendingEI((flags & 0x08) != 0);
+        state.setNMI((flags & 0x10) != 0);
+        state.setINTLine((flags & 0x20) != 0);
+        state.setFlagQ((flags & 0x40) != 0);
+
+        proc.setZ80State(state);
+    }
+
+    static void writeBank(ByteBuffer buffer, int id, byte[] bank, boolean[] dirty) {
+        int count = 0;
+        for (int i = 0; i < dirty.length; i++) {
+            if (dirty[i]) {
+                count++;
+            }
+        }
+
+        buffer.putInt(BANK);
+        buffer.putInt(1 + 4 + 4 + count * (4 + PAGE_SIZE));
+        buffer.put((byte) id);
+        buffer.putInt(bank.length);
+        buffer.putInt(count);
+        for (int i = 0; i < dirty.length; i++) {
+            if (dirty[i]) {
+                buffer.putInt(i);
+                buffer.put(bank, i * PAGE_SIZE, PAGE_SIZE);
+            }
+        }
+    }
+
+    static void readBank(ByteBuffer buffer, byte[] bank) throws IOException {
+        if (buffer.getInt() != bank.length) {
+            throw new IOException("Snapshot memory size doesn't match");
+        }
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            int page = buffer.getInt();
+            checkPage(page, bank.length);
+            buffer.get(bank, page * PAGE_SIZE, PAGE_SIZE);
+        }
+    }
+
+    static boolean isBankEqual(ByteBuffer buffer, byte[] bank) {
+        if (buffer.getInt() != bank.length) {
+            return false;
+        }
+        int count = buffer.getInt();
+        byte[] page = new byte[PAGE_SIZE];
+        for (int i = 0; i < count; i++) {
+            int offset = buffer.getInt() * PAGE_SIZE;
+            buffer.get(page);
+            for (int n = 0; n < PAGE_SIZE; n++) {
+                if (page[n] != bank[offset + n]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static void writeTMS9918(ByteBuffer buffer, TMS9918 tms9918, long timeNs) {
+        buffer.putInt(TMS9918);
+        buffer.putInt(TMS9918_SIZE);
+        buffer.put(tms9918.reg);
+        buffer.put(tms9918.status);
+        buffer.putShort((short) tms9918.ramPtr);
+        buffer.putInt(tms9918.data);
+        buffer.putInt(tms9918.state);
+        buffer.putLong(tms9918.currentTimeNs);
+        buffer.putLong(tms9918.nextTimeNs);
+        buffer.putLong(timeNs);
+        buffer.put(tms9918.ram);
+    }
+
+    static long readTMS9918(ByteBuffer buffer, TMS9918 tms9918) {
+        buffer.get(tms9918.reg);
+        tms9918.status = buffer.get();
+        tms9918.ramPtr = buffer.getShort() & 0x3FFF;
+        tms9918.data = buffer.getInt();
+        tms9918.state = buffer.getInt();
+        tms9918.currentTimeNs = buffer.getLong();
+        tms9918.nextTimeNs = buffer.getLong();
+        long timeNs = buffer.getLong();
+        buffer.get(tms9918.ram);
+        return timeNs;
+    }
+
+    static void writeCompactFlash(ByteBuffer buffer, CompactFlash cf) {
+        buffer.putInt(COMPACT_FLASH);
+        buffer.putInt(COMPACT_FLASH_SIZE);
+        buffer.put(cf.command);
+        buffer.put(cf.lba);
+        buffer.put(cf.secCount);
+        buffer.putInt(cf.dataCount);
+        buffer.putLong(cf.position);
+    }
+
+    static void readCompactFlash(ByteBuffer buffer, CompactFlash cf) {
+        cf.command = buffer.get();
+        buffer.get(cf.lba);
+        cf.secCount = buffer.get();
+        cf.dataCount = buffer.getInt();
+        cf.position = buffer.getLong();
+    }
+
+}
@@ -11,9 +11,7 @@
 package com.maccasoft.tools;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import nl.grauw.glass.AssemblyException;
 import nl.grauw.glass.Line;
@@ -57,7 +55,8 @@ public class SourceMap {
 
     }
 
-    Map<Integer, LineEntry> map;
+    // Line at each address, indexed directly to avoid boxing the lookups of the step loops
+    LineEntry[] map;
     List<LineEntry> list;
 
     public SourceMap(Source source, MemIoOps memIoOps) {
@@ -70,7 +69,7 @@ public class SourceMap {
         entryAddress = -1;
 
         list = new ArrayList<LineEntry>();
-        map = new HashMap<Integer, LineEntry>();
+        map = new LineEntry[65536];
 
         build(source, 0);
     }
@@ -87,7 +86,7 @@ public class SourceMap {
                         entryAddress = address;
                     }
                     System.arraycopy(lineEntry.code, 0, memIoOps.getRam(), lineEntry.address, lineEntry.code.length);
-                    map.put(lineEntry.address, lineEntry);
+                    map[lineEntry.address & 0xFFFF] = lineEntry;
                 }
                 list.add(lineEntry);
 
@@ -123,7 +122,10 @@ public class SourceMap {
     }
 
     public LineEntry getLineAtAddress(int address) {
-        return map.get(address);
+        if (address < 0 || address >= map.length) {
+            return null;
+        }
+        return map[address];
     }
 
     public List<LineEntry> getLines() {
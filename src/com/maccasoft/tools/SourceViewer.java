@@ -431,6 +431,10 @@ public class SourceViewer {
         codeRuler.redraw();
     }
 
+    public void setHeatMap(long[] heat) {
+        codeRuler.setHeatMap(heat);
+    }
+
     public void setHighlighCurrentLine(boolean highlighCurrentLine) {
         this.highlighCurrentLine = highlighCurrentLine;
         text.setLineBackground(currentLine, 1, highlighCurrentLine ? currentLineBackground : null);
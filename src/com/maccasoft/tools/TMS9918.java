@@ -12,9 +12,6 @@ package com.maccasoft.tools;
 
 import java.util.Arrays;
 
-import org.eclipse.swt.graphics.ImageData;
-import org.eclipse.swt.graphics.PaletteData;
-import org.eclipse.swt.graphics.RGB;
 
 public class TMS9918 {
 
@@ -36,8 +33,16 @@ public class TMS9918 {
 
     public static final int STATE_VSYNC = -1;
 
-    PaletteData paletteData;
-    ImageData imageData;
+    /**
+     * Colors as 0xRRGGBB values, indexed by the pixels of the frame.
+     */
+    public static final int[] PALETTE = new int[] {
+        0x000000, 0x000000, 0x20C020, 0x60E060, 0x2020E0, 0x4060E0, 0xA02020, 0x40C0E0,
+        0xE02020, 0xE06060, 0xC0C020, 0xC0C080, 0x208020, 0xC040A0, 0xA0A0A0, 0xE0E0E0
+    };
+
+    // Frame pixels, one byte per pixel with the palette index
+    final byte[] frame;
 
     byte[] reg;
     byte[] ram;
@@ -66,14 +71,7 @@ public class TMS9918 {
         state = STATE_VSYNC - 1;
         nextTimeNs = 0;
 
-        paletteData = new PaletteData(new RGB[] {
-            new RGB(0x00, 0x00, 0x00), new RGB(0x00, 0x00, 0x00), new RGB(0x20, 0xC0, 0x20), new RGB(0x60, 0xE0, 0x60),
-            new RGB(0x20, 0x20, 0xE0), new RGB(0x40, 0x60, 0xE0), new RGB(0xA0, 0x20, 0x20), new RGB(0x40, 0xC0, 0xE0),
-            new RGB(0xE0, 0x20, 0x20), new RGB(0xE0, 0x60, 0x60), new RGB(0xC0, 0xC0, 0x20), new RGB(0xC0, 0xC0, 0x80),
-            new RGB(0x20, 0x80, 0x20), new RGB(0xC0, 0x40, 0xA0), new RGB(0xA0, 0xA0, 0xA0), new RGB(0xE0, 0xE0, 0xE0)
-        });
-
-        imageData = new ImageData(FRAME_WIDTH, FRAME_HEIGHT, 8, paletteData, 1, new byte[FRAME_WIDTH * FRAME_HEIGHT]);
+        frame = new byte[FRAME_WIDTH * FRAME_HEIGHT];
     }
 
     public void setTiming(int timing) {
@@ -156,6 +154,13 @@ public class TMS9918 {
         }
     }
 
+    /**
+     * Returns the nanoseconds until the next row or vertical sync.
+     */
+    public long getTimeToNextEvent() {
+        return nextTimeNs - currentTimeNs;
+    }
+
     protected void onVSync() {
         // Do nothing
     }
@@ -172,11 +177,11 @@ public class TMS9918 {
         int index = row * FRAME_WIDTH;
 
         if ((reg[1] & TMSBLANK) == 0) {
-            Arrays.fill(imageData.data, index, index + FRAME_WIDTH, (byte) 0);
+            Arrays.fill(frame, index, index + FRAME_WIDTH, (byte) 0);
             return;
         }
 
-        Arrays.fill(imageData.data, index, index + FRAME_WIDTH, backdrop);
+        Arrays.fill(frame, index, index + FRAME_WIDTH, backdrop);
 
         if (row >= FRAME_TOP && row < (FRAME_TOP + 192)) {
             index += FRAME_LEFT;
@@ -194,12 +199,12 @@ public class TMS9918 {
                     int tile = ram[register2++] & 0xFF;
                     byte pattern = ram[register4 + (tile << 3)];
 
-                    imageData.data[index++] = (pattern & 0x80) != 0 ? c1 : c0;
-                    imageData.data[index++] = (pattern & 0x40) != 0 ? c1 : c0;
-                    imageData.data[index++] = (pattern & 0x20) != 0 ? c1 : c0;
-                    imageData.data[index++] = (pattern & 0x10) != 0 ? c1 : c0;
-                    imageData.data[index++] = (pattern & 0x08) != 0 ? c1 : c0;
-                    imageData.data[index++] = (pattern & 0x04) != 0 ? c1 : c0;
+                    frame[index++] = (pattern & 0x80) != 0 ? c1 : c0;
+                    frame[index++] = (pattern & 0x40) != 0 ? c1 : c0;
+                    frame[index++] = (pattern & 0x20) != 0 ? c1 : c0;
+                    frame[index++] = (pattern & 0x10) != 0 ? c1 : c0;
+                    frame[index++] = (pattern & 0x08) != 0 ? c1 : c0;
+                    frame[index++] = (pattern & 0x04) != 0 ? c1 : c0;
                 }
             }
             else {
@@ -220,15 +225,15 @@ public class TMS9918 {
                             c1 = backdrop;
                         }
 
-                        imageData.data[index++] = c1;
-                        imageData.data[index++] = c1;
-                        imageData.data[index++] = c1;
-                        imageData.data[index++] = c1;
+                        frame[index++] = c1;
+                        frame[index++] = c1;
+                        frame[index++] = c1;
+                        frame[index++] = c1;
 
-                        imageData.data[index++] = c0;
-                        imageData.data[index++] = c0;
-                        imageData.data[index++] = c0;
-                        imageData.data[index++] = c0;
+                        frame[index++] = c0;
+                        frame[index++] = c0;
+                        frame[index++] = c0;
+                        frame[index++] = c0;
                     }
                 }
                 else if ((reg[0] & TMSMODE3) != 0) {
@@ -257,14 +262,14 @@ public class TMS9918 {
                             c1 = backdrop;
                         }
 
-                        imageData.data[index++] = (pattern & 0x80) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x40) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x20) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x10) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x08) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x04) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x02) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x01) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x80) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x40) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x20) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x10) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x08) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x04) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x02) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x01) != 0 ? c1 : c0;
                     }
                 }
                 else {
@@ -286,14 +291,14 @@ public class TMS9918 {
                             c1 = backdrop;
                         }
 
-                        imageData.data[index++] = (pattern & 0x80) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x40) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x20) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x10) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x08) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x04) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x02) != 0 ? c1 : c0;
-                        imageData.data[index++] = (pattern & 0x01) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x80) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x40) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x20) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x10) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x08) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x04) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x02) != 0 ? c1 : c0;
+                        frame[index++] = (pattern & 0x01) != 0 ? c1 : c0;
                     }
                 }
 
@@ -341,14 +346,14 @@ public class TMS9918 {
                         for (int i = 0x8000; i != 0x0000; i >>= 1) {
                             if (x >= 0 && x < 256) {
                                 if ((pattern & i) != 0) {
-                                    imageData.data[index] = c1;
+                                    frame[index] = c1;
                                 }
                                 if ((reg[1] & TMSSPRMAG) != 0) {
                                     x++;
                                     index++;
                                     if (x >= 0 && x < 256) {
                                         if ((pattern & i) != 0) {
-                                            imageData.data[index] = c1;
+                                            frame[index] = c1;
                                         }
                                     }
                                 }
@@ -361,14 +366,14 @@ public class TMS9918 {
                         for (int i = 0x80; i != 0x00; i >>= 1) {
                             if (x >= 0 && x < 256) {
                                 if ((pattern & i) != 0) {
-                                    imageData.data[index] = c1;
+                                    frame[index] = c1;
                                 }
                                 if ((reg[1] & TMSSPRMAG) != 0) {
                                     x++;
                                     index++;
                                     if (x >= 0 && x < 256) {
                                         if ((pattern & i) != 0) {
-                                            imageData.data[index] = c1;
+                                            frame[index] = c1;
                                         }
                                     }
                                 }
@@ -391,8 +396,12 @@ public class TMS9918 {
         status |= 0x80;
     }
 
-    public ImageData getImageData() {
-        return imageData;
+    /**
+     * Returns the frame pixels, FRAME_WIDTH by FRAME_HEIGHT bytes with the PALETTE index
+     * of each pixel. The array is updated in place as the frame is drawn.
+     */
+    public byte[] getFrame() {
+        return frame;
     }
 
     public int getStatus() {
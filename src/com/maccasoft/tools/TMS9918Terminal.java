@@ -20,6 +20,8 @@ import org.eclipse.swt.events.PaintEvent;
 import org.eclipse.swt.events.PaintListener;
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.Canvas;
 import org.eclipse.swt.widgets.Composite;
@@ -87,6 +89,20 @@ public abstract class TMS9918Terminal {
 
     protected abstract ImageData getImageData();
 
+    /**
+     * Returns an image of the frame of the given video processor. The image shares the
+     * pixels array with the video processor, it doesn't need to be created again for
+     * each frame.
+     */
+    public static ImageData createImageData(TMS9918 tms9918) {
+        RGB[] colors = new RGB[TMS9918.PALETTE.length];
+        for (int i = 0; i < colors.length; i++) {
+            int rgb = TMS9918.PALETTE[i];
+            colors[i] = new RGB((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+        }
+        return new ImageData(TMS9918.FRAME_WIDTH, TMS9918.FRAME_HEIGHT, 8, new PaletteData(colors), 1, tms9918.getFrame());
+    }
+
     protected void redraw() {
         if (pendingRedraw.compareAndSet(false, true)) {
             display.asyncExec(redrawRunnable);
@@ -41,6 +41,12 @@ public class Terminal {
     public static final int CURSOR_BLINK_MS = 250;
     public static final int REDRAW_MS = 25;
 
+    // Output queued by writeAsync, drained by the display thread after DRAIN_MS or as
+    // soon as DRAIN_THRESHOLD bytes are waiting
+    public static final int OUTPUT_BUFFER_SIZE = 65536;
+    public static final int DRAIN_THRESHOLD = 16384;
+    public static final int DRAIN_MS = 10;
+
     public static final int CURSOR_OFF = 0x00;
     public static final int CURSOR_ON = 0x04;
     public static final int CURSOR_ULINE = 0x02;
@@ -104,6 +110,51 @@ public class Terminal {
 
     final AtomicReference<Runnable> pendingRunnable = new AtomicReference<Runnable>();
 
+    final OutputQueue output = new OutputQueue(OUTPUT_BUFFER_SIZE, DRAIN_THRESHOLD) {
+
+        @Override
+        protected void scheduleDrain(boolean immediate) {
+            if (!display.isDisposed()) {
+                display.asyncExec(immediate ? drainRunnable : drainTimerRunnable);
+            }
+        }
+
+    };
+
+    final Runnable drainRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            int count = output.beginDrain();
+            if (canvas.isDisposed() || image == null || image.isDisposed()) {
+                output.clear();
+                return;
+            }
+            if (count == 0) {
+                return;
+            }
+            GC gc = new GC(image);
+            try {
+                while (count-- > 0) {
+                    write(gc, output.poll());
+                }
+            } finally {
+                gc.dispose();
+            }
+            if (pendingRunnable.compareAndSet(null, redrawRunnable)) {
+                display.timerExec(REDRAW_MS, redrawRunnable);
+            }
+        }
+    };
+
+    final Runnable drainTimerRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            display.timerExec(DRAIN_MS, drainRunnable);
+        }
+    };
+
     Terminal() {
         // For JUnit tests
     }
@@ -816,6 +867,30 @@ public class Terminal {
         });
     }
 
+    /**
+     * Queues a byte to be written by the display thread, without waiting for it. The
+     * queued bytes are written in batches. Returns false, discarding the byte, if the
+     * output buffer is full.
+     */
+    public boolean writeAsync(int c) {
+        return output.offer(c);
+    }
+
+    /**
+     * Returns true if the output buffer can't accept bytes from <code>writeAsync</code>.
+     */
+    public boolean isOutputFull() {
+        return output.isFull();
+    }
+
+    /**
+     * Returns the number of bytes discarded by <code>writeAsync</code> with the output
+     * buffer full.
+     */
+    public long getDroppedOutput() {
+        return output.getDropped();
+    }
+
     public void setForeground(RGB color) {
         font.setForeground(color);
     }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Memory watchpoints of the debugger.
+ *
+ * The watchpoints are dispatched through a table of 256 bytes pages: the entry of a
+ * page is null unless a watchpoint covers it, so the memory accesses only need to test
+ * the table entry and the ones to unwatched pages are not slowed down, however many
+ * watchpoints are set. The entry of a watched page holds the watchpoints covering it,
+ * checked on each access to the page.
+ *
+ * A matching access records the hit, the debugger stops after the instruction that
+ * made it.
+ */
+public class Watchpoints {
+
+    public static final int READ = 0x01;
+    public static final int WRITE = 0x02;
+    public static final int ACCESS = READ | WRITE;
+
+    public static final int ANY_VALUE = -1;
+
+    public static final int PAGE_SHIFT = 8;
+
+    public static class Watchpoint {
+
+        public final int start;
+        public final int end;
+        public final int type;
+        public final int value;
+
+        public Watchpoint(int start, int end, int type, int value) {
+            if (start < 0 || end > 0xFFFF || end < start) {
+                throw new IllegalArgumentException("Invalid range " + start + "-" + end);
+            }
+            if ((type & ACCESS) == 0 || (type & ~ACCESS) != 0) {
+                throw new IllegalArgumentException("Invalid type " + type);
+            }
+            this.start = start;
+            this.end = end;
+            this.type = type;
+            this.value = value;
+        }
+
+        public boolean contains(int address) {
+            return address >= start && address <= end;
+        }
+
+        boolean matches(int address, int type, int value) {
+            return (this.type & type) != 0 && address >= start && address <= end && (this.value == ANY_VALUE || this.value == value);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append((type & READ) != 0 ? "R" : "");
+            sb.append((type & WRITE) != 0 ? "W" : "");
+            sb.append(String.format(" %04XH", start));
+            if (end != start) {
+                sb.append(String.format("-%04XH", end));
+            }
+            if (value != ANY_VALUE) {
+                sb.append(String.format(" = %02XH", value));
+            }
+            return sb.toString();
+        }
+
+    }
+
+    final List<Watchpoint> list = new ArrayList<Watchpoint>();
+
+    // Watchpoints covering each page, null if none
+    final Watchpoint[][] pages = new Watchpoint[0x10000 >> PAGE_SHIFT][];
+
+    Watchpoint hit;
+    int hitAddress;
+    int hitType;
+    int hitValue;
+
+    public Watchpoint add(int start, int end, int type, int value) {
+        Watchpoint watchpoint = new Watchpoint(start, end, type, value);
+        list.add(watchpoint);
+        updatePages(watchpoint);
+        return watchpoint;
+    }
+
+    public void remove(Watchpoint watchpoint) {
+        if (list.remove(watchpoint)) {
+            updatePages(watchpoint);
+        }
+    }
+
+    public void clear() {
+        list.clear();
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = null;
+        }
+        hit = null;
+    }
+
+    public List<Watchpoint> getAll() {
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Returns the watchpoints covering the given address.
+     */
+    public List<Watchpoint> get(int address) {
+        List<Watchpoint> result = new ArrayList<Watchpoint>();
+        Watchpoint[] watched = pages[(address & 0xFFFF) >> PAGE_SHIFT];
+        if (watched != null) {
+            for (int i = 0; i < watched.length; i++) {
+                if (watched[i].contains(address & 0xFFFF)) {
+                    result.add(watched[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    public boolean isWatched(int address) {
+        Watchpoint[] watched = pages[(address & 0xFFFF) >> PAGE_SHIFT];
+        if (watched != null) {
+            for (int i = 0; i < watched.length; i++) {
+                if (watched[i].contains(address & 0xFFFF)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    void updatePages(Watchpoint watchpoint) {
+        for (int page = watchpoint.start >> PAGE_SHIFT; page <= watchpoint.end >> PAGE_SHIFT; page++) {
+            List<Watchpoint> watched = new ArrayList<Watchpoint>();
+            for (Watchpoint w : list) {
+                if ((w.start >> PAGE_SHIFT) <= page && (w.end >> PAGE_SHIFT) >= page) {
+                    watched.add(w);
+                }
+            }
+            pages[page] = watched.size() != 0 ? watched.toArray(new Watchpoint[watched.size()]) : null;
+        }
+    }
+
+    /**
+     * Checks an access to a watched page, recording the first hit.
+     *
+     * @param watched the watchpoints of the page
+     * @param address the address
+     * @param type READ or WRITE
+     * @param value the value read or written
+     */
+    void check(Watchpoint[] watched, int address, int type, int value) {
+        if (hit != null) {
+            return;
+        }
+        for (int i = 0; i < watched.length; i++) {
+            if (watched[i].matches(address, type, value)) {
+                hit = watched[i];
+                hitAddress = address;
+                hitType = type;
+                hitValue = value;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the watchpoint hit by the last instruction executed, null if none.
+     */
+    public Watchpoint getHit() {
+        return hit;
+    }
+
+    public int getHitAddress() {
+        return hitAddress;
+    }
+
+    public int getHitType() {
+        return hitType;
+    }
+
+    public int getHitValue() {
+        return hitValue;
+    }
+
+    public void clearHit() {
+        hit = null;
+    }
+
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.maccasoft.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the ZEXDOC and ZEXALL instruction exercisers, or any CP/M program reporting its
+ * results the same way, to check the processor emulation and measure its speed.
+ *
+ * The program is loaded at 0100H and run as fast as possible with the CP/M BDOS
+ * emulation of the debugger, without history or profiling. Each test line printed by
+ * the program, the group name followed by <code>OK</code> or by the expected and found
+ * CRCs, is collected as a group with the T-states and host time it took. The run ends
+ * when the program jumps to the warm boot address 0000H or calls BDOS 0.
+ */
+public class ZexRunner {
+
+    public static final int EXECUTE = 0;
+    public static final int BLOCK_CACHE = 1;
+    public static final int TRANSLATOR = 2;
+
+    public static final long DEFAULT_TIMEOUT = 100000000000L;
+
+    // T-states run between checks of the program state
+    static final long SLICE_TSTATES = 1000000;
+
+    static final Pattern GROUP_PATTERN = Pattern.compile("^(.*?)\\.*\\s+(OK|ERROR \\*+ crc expected:([0-9A-Fa-f]{8}) found:([0-9A-Fa-f]{8}))\\s*$");
+
+    public static class Group {
+
+        final String name;
+        final boolean passed;
+        final String expectedCrc;
+        final String foundCrc;
+        final long tstates;
+        final long elapsedNs;
+
+        Group(String name, boolean passed, String expectedCrc, String foundCrc, long tstates, long elapsedNs) {
+            this.name = name;
+            this.passed = passed;
+            this.expectedCrc = expectedCrc;
+            this.foundCrc = foundCrc;
+            this.tstates = tstates;
+            this.elapsedNs = elapsedNs;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isPassed() {
+            return passed;
+        }
+
+        /**
+         * Returns the CRC expected by the program, null if the group passed.
+         */
+        public String getExpectedCrc() {
+            return expectedCrc;
+        }
+
+        /**
+         * Returns the CRC computed by the emulation, null if the group passed.
+         */
+        public String getFoundCrc() {
+            return foundCrc;
+        }
+
+        public long getTstates() {
+            return tstates;
+        }
+
+        public long getElapsedNs() {
+            return elapsedNs;
+        }
+
+        @Override
+        public String toString() {
+            if (passed) {
+                return String.format("%-40s OK", name);
+            }
+            return String.format("%-40s ERROR crc expected:%s found:%s", name, expectedCrc, foundCrc);
+        }
+
+    }
+
+    public static class Result {
+
+        final List<Group> groups;
+        final boolean completed;
+        final String output;
+        final long tstates;
+        final long elapsedNs;
+
+        Result(List<Group> groups, boolean completed, String output, long tstates, long elapsedNs) {
+            this.groups = Collections.unmodifiableList(groups);
+            this.completed = completed;
+            this.output = output;
+            this.tstates = tstates;
+            this.elapsedNs = elapsedNs;
+        }
+
+        public List<Group> getGroups() {
+            return groups;
+        }
+
+        /**
+         * Returns true if the program terminated before the timeout.
+         */
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        /**
+         * Returns true if the program terminated and all groups passed.
+         */
+        public boolean isPassed() {
+            if (!completed || groups.size() == 0) {
+                return false;
+            }
+            for (Group group : groups) {
+                if (!group.passed) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int getFailedCount() {
+            int count = 0;
+            for (Group group : groups) {
+                if (!group.passed) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public long getTstates() {
+            return tstates;
+        }
+
+        public long getElapsedNs() {
+            return elapsedNs;
+        }
+
+        /**
+         * Returns the emulated clock speed in MHz, emulated T-states per microsecond of host time.
+         */
+        public double getMHz() {
+            return elapsedNs != 0 ? tstates * 1000.0 / elapsedNs : 0.0;
+        }
+
+    }
+
+    class Console extends OutputStream {
+
+        final StringBuilder output = new StringBuilder();
+        final StringBuilder line = new StringBuilder();
+
+        @Override
+        public void write(int b) throws IOException {
+            b &= 0xFF;
+            output.append((char) b);
+            if (log != null) {
+                log.write(b);
+            }
+            if (b == '\n') {
+                lineCompleted(line.toString());
+                line.setLength(0);
+            }
+            else if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+
+    }
+
+    final int mode;
+    PrintStream log;
+    long timeout = DEFAULT_TIMEOUT;
+
+    Debugger debugger;
+    List<Group> groups;
+    long groupTstates;
+    long groupNs;
+
+    /**
+     * Creates a new runner.
+     *
+     * @param mode the processor execution mode, EXECUTE, BLOCK_CACHE or TRANSLATOR
+     */
+    public ZexRunner(int mode) {
+        if (mode != EXECUTE && mode != BLOCK_CACHE && mode != TRANSLATOR) {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        this.mode = mode;
+    }
+
+    /**
+     * Sets a stream that receives a copy of the program output as it is printed.
+     */
+    public void setLog(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * Sets the maximum number of T-states to run.
+     */
+    public void setTimeout(long tstates) {
+        this.timeout = tstates;
+    }
+
+    public Result run(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] program = new byte[(int) file.length()];
+            int length = 0;
+            while (length < program.length) {
+                int n = is.read(program, length, program.length - length);
+                if (n == -1) {
+                    break;
+                }
+                length += n;
+            }
+            return run(program);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Runs a CP/M program on the calling thread.
+     *
+     * @param program the program, loaded at 0100H
+     */
+    public Result run(byte[] program) {
+        if (program.length > 0x10000 - 0x0100) {
+            throw new IllegalArgumentException("Program too large");
+        }
+
+        Console console = new Console();
+        debugger = new Debugger(new PrintStream(console, true));
+        groups = new ArrayList<Group>();
+
+        byte[] ram = debugger.getRam();
+        System.arraycopy(program, 0, ram, 0x0100, program.length);
+        ram[0x0000] = 0x76; // HALT on warm boot
+
+        debugger.proc.reset();
+        debugger.proc.setRegPC(0x0100);
+        debugger.proc.setRegSP(0x0000);
+        debugger.proc.setBlockCacheEnabled(mode != EXECUTE);
+        debugger.proc.setTranslatorEnabled(mode == TRANSLATOR);
+        debugger.stop = false;
+
+        long start = System.nanoTime();
+        groupTstates = debugger.getTstates();
+        groupNs = start;
+
+        while (!debugger.stop && !debugger.proc.isHalted() && debugger.getTstates() < timeout) {
+            debugger.proc.run(Math.min(SLICE_TSTATES, timeout - debugger.getTstates()));
+        }
+
+        boolean completed = debugger.stop || debugger.proc.isHalted();
+        return new Result(groups, completed, console.output.toString(), debugger.getTstates(), System.nanoTime() - start);
+    }
+
+    void lineCompleted(String line) {
+        Matcher matcher = GROUP_PATTERN.matcher(line);
+        if (!matcher.matches()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        long tstates = debugger.getTstates();
+
+        boolean passed = "OK".equals(matcher.group(2));
+        groups.add(new Group(matcher.group(1).trim(), passed, matcher.group(3), matcher.group(4), tstates - groupTstates, now - groupNs));
+
+        groupTstates = tstates;
+        groupNs = now;
+    }
+
+    public static void main(String[] args) {
+        int mode = EXECUTE;
+        long timeout = DEFAULT_TIMEOUT;
+        boolean verbose = false;
+        List<File> files = new ArrayList<File>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-cache".equals(args[i])) {
+                    mode = BLOCK_CACHE;
+                }
+                else if ("-translate".equals(args[i])) {
+                    mode = TRANSLATOR;
+                }
+                else if ("-timeout".equals(args[i])) {
+                    timeout = Long.parseLong(args[++i]);
+                }
+                else if ("-verbose".equals(args[i])) {
+                    verbose = true;
+                }
+                else {
+                    files.add(new File(args[i]));
+                }
+            }
+            if (files.size() == 0) {
+                System.err.println("Usage: ZexRunner [-cache|-translate] [-timeout tstates] [-verbose] program.com...");
+                System.exit(2);
+            }
+
+            boolean passed = true;
+            for (File file : files) {
+                ZexRunner runner = new ZexRunner(mode);
+                runner.setTimeout(timeout);
+                if (verbose) {
+                    runner.setLog(System.out);
+                }
+
+                System.out.println(file.getName());
+                Result result = runner.run(file);
+                if (!verbose) {
+                    for (Group group : result.getGroups()) {
+                        System.out.println(String.format("  %s %6.2fs %8.2f MHz", group, group.getElapsedNs() / 1000000000.0,
+                            group.getElapsedNs() != 0 ? group.getTstates() * 1000.0 / group.getElapsedNs() : 0.0));
+                    }
+                }
+                System.out.println(String.format("%s: %d groups, %d failed%s, %d T-states in %.2fs, %.2f MHz", file.getName(),
+                    result.getGroups().size(), result.getFailedCount(), result.isCompleted() ? "" : ", timed out",
+                    result.getTstates(), result.getElapsedNs() / 1000000000.0, result.getMHz()));
+
+                passed &= result.isPassed();
+            }
+
+            System.exit(passed ? 0 : 1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package z80core;
+
+import java.util.Arrays;
+
+/**
+ * Pre-decoded basic blocks, keyed by start address.
+ *
+ * A block is a straight run of instructions ending at the first jump, call, return,
+ * restart or halt. Each instruction is packed in an int with its bytes in fetch order
+ * (opcode in the low byte) so the processor doesn't need to read them again from
+ * memory. Instructions with the ED prefix, chained prefixes and DD/FD prefixes not
+ * followed by an IX/IY instruction are left to the interpreter.
+ */
+final class BlockCache {
+
+    static final int MAX_INSTRUCTIONS = 32;
+    static final int MAX_LENGTH = MAX_INSTRUCTIONS * 4;
+
+    static final class Block {
+
+        final int address;
+        final int length;
+        final int[] ops;
+        boolean valid;
+
+        // Executions counted by the translator and translated code, if any
+        int hits;
+        Translator.Compiled code;
+
+        Block(int address, int length, int[] ops) {
+            this.address = address;
+            this.length = length;
+            this.ops = ops;
+            this.valid = true;
+        }
+
+    }
+
+    // Marks an address where the first instruction can't be cached
+    static final int[] NO_OPS = new int[0];
+
+    final Block[] blocks = new Block[0x10000];
+
+    // Number of blocks covering each address
+    final int[] references = new int[0x10000];
+
+    /**
+     * Returns the block starting at address, decoding it if needed, or null if
+     * the instruction at address must be executed by the interpreter.
+     */
+    Block getBlock(int address, MemIoOps memory, boolean[] breakpointAt) {
+        Block block = blocks[address];
+        if (block == null) {
+            block = decode(address, memory, breakpointAt);
+            blocks[address] = block;
+            for (int i = 0; i < block.length; i++) {
+                references[address + i]++;
+            }
+        }
+        return block.ops.length != 0 ? block : null;
+    }
+
+    Block decode(int address, MemIoOps memory, boolean[] breakpointAt) {
+        int[] ops = new int[MAX_INSTRUCTIONS];
+        int count = 0;
+        int pc = address;
+
+        while (count < MAX_INSTRUCTIONS && pc <= 0xFFFF) {
+            if (count != 0 && breakpointAt[pc]) {
+                break;
+            }
+            int opCode = memory.peekCode(pc);
+            int next = pc < 0xFFFF ? memory.peekCode(pc + 1) : 0;
+            int length = getLength(opCode, next);
+            if (length == 0 || pc + length > 0x10000) {
+                break;
+            }
+
+            int op = 0;
+            for (int i = 0; i < length; i++) {
+                op |= memory.peekCode(pc + i) << (i * 8);
+            }
+            ops[count++] = op;
+            pc += length;
+
+            if (isBranch(opCode, next)) {
+                break;
+            }
+        }
+
+        if (count == 0) {
+            // Still covers the instruction so that it is decoded again if modified
+            return new Block(address, Math.min(4, 0x10000 - address), NO_OPS);
+        }
+        return new Block(address, pc - address, Arrays.copyOf(ops, count));
+    }
+
+    /**
+     * Removes the blocks that include the given address.
+     */
+    void invalidate(int address) {
+        address &= 0xFFFF;
+        if (references[address] == 0) {
+            return;
+        }
+
+        int start = Math.max(0, address - MAX_LENGTH + 1);
+        for (int pc = address; pc >= start && references[address] != 0; pc--) {
+            Block block = blocks[pc];
+            if (block != null && pc + block.length > address) {
+                remove(block);
+            }
+        }
+    }
+
+    void remove(Block block) {
+        block.valid = false;
+        blocks[block.address] = null;
+        for (int i = 0; i < block.length; i++) {
+            references[block.address + i]--;
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] != null) {
+                blocks[i].valid = false;
+                blocks[i] = null;
+            }
+        }
+        Arrays.fill(references, 0);
+    }
+
+    /**
+     * Returns the instruction length in bytes, or 0 if it can't be cached.
+     */
+    static int getLength(int opCode, int next) {
+        switch (opCode) {
+            case 0xCB:
+                return 2;
+            case 0xDD:
+            case 0xFD:
+                return getIndexLength(next);
+            case 0xED:
+                return 0;
+
+            case 0x06: // LD r,n
+            case 0x0E:
+            case 0x16:
+            case 0x1E:
+            case 0x26:
+            case 0x2E:
+            case 0x36:
+            case 0x3E:
+            case 0x10: // DJNZ / JR
+            case 0x18:
+            case 0x20:
+            case 0x28:
+            case 0x30:
+            case 0x38:
+            case 0xC6: // ALU A,n
+            case 0xCE:
+            case 0xD6:
+            case 0xDE:
+            case 0xE6:
+            case 0xEE:
+            case 0xF6:
+            case 0xFE:
+            case 0xD3: // OUT (n),A / IN A,(n)
+            case 0xDB:
+                return 2;
+
+            case 0x01: // LD rr,nn
+            case 0x11:
+            case 0x21:
+            case 0x31:
+            case 0x22: // LD (nn),HL / LD HL,(nn)
+            case 0x2A:
+            case 0x32: // LD (nn),A / LD A,(nn)
+            case 0x3A:
+            case 0xC2: // JP cc,nn / JP nn
+            case 0xC3:
+            case 0xCA:
+            case 0xD2:
+            case 0xDA:
+            case 0xE2:
+            case 0xEA:
+            case 0xF2:
+            case 0xFA:
+            case 0xC4: // CALL cc,nn / CALL nn
+            case 0xCC:
+            case 0xCD:
+            case 0xD4:
+            case 0xDC:
+            case 0xE4:
+            case 0xEC:
+            case 0xF4:
+            case 0xFC:
+                return 3;
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the length, prefix included, of the IX/IY instructions, or 0 for
+     * the opcodes where the prefix has no effect.
+     */
+    static int getIndexLength(int opCode) {
+        switch (opCode) {
+            case 0x21: // LD IX,nn
+            case 0x22: // LD (nn),IX
+            case 0x2A: // LD IX,(nn)
+            case 0x36: // LD (IX+d),n
+            case 0xCB: // DDCB d xx
+                return 4;
+
+            case 0x26: // LD IXh,n
+            case 0x2E: // LD IXl,n
+            case 0x34: // INC/DEC (IX+d)
+            case 0x35:
+            case 0x46: // LD r,(IX+d)
+            case 0x4E:
+            case 0x56:
+            case 0x5E:
+            case 0x66:
+            case 0x6E:
+            case 0x7E:
+            case 0x70: // LD (IX+d),r
+            case 0x71:
+            case 0x72:
+            case 0x73:
+            case 0x74:
+            case 0x75:
+            case 0x77:
+            case 0x86: // ALU A,(IX+d)
+            case 0x8E:
+            case 0x96:
+            case 0x9E:
+            case 0xA6:
+            case 0xAE:
+            case 0xB6:
+            case 0xBE:
+                return 3;
+
+            case 0x09: // ADD IX,rr
+            case 0x19:
+            case 0x29:
+            case 0x39:
+            case 0x23: // INC/DEC IX
+            case 0x2B:
+            case 0x24: // INC/DEC IXh, IXl
+            case 0x25:
+            case 0x2C:
+            case 0x2D:
+            case 0x44: // LD r,IXh / LD r,IXl
+            case 0x45:
+            case 0x4C:
+            case 0x4D:
+            case 0x54:
+            case 0x55:
+            case 0x5C:
+            case 0x5D:
+            case 0x7C:
+            case 0x7D:
+            case 0x60: // LD IXh,r / LD IXl,r
+            case 0x61:
+            case 0x62:
+            case 0x63:
+            case 0x64:
+            case 0x65:
+            case 0x67:
+            case 0x68:
+            case 0x69:
+            case 0x6A:
+            case 0x6B:
+            case 0x6C:
+            case 0x6D:
+            case 0x6F:
+            case 0x84: // ALU A,IXh / ALU A,IXl
+            case 0x85:
+            case 0x8C:
+            case 0x8D:
+            case 0x94:
+            case 0x95:
+            case 0x9C:
+            case 0x9D:
+            case 0xA4:
+            case 0xA5:
+            case 0xAC:
+            case 0xAD:
+            case 0xB4:
+            case 0xB5:
+            case 0xBC:
+            case 0xBD:
+            case 0xE1: // POP IX
+            case 0xE3: // EX (SP),IX
+            case 0xE5: // PUSH IX
+            case 0xE9: // JP (IX)
+            case 0xF9: // LD SP,IX
+                return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns true if the instruction may change the program counter.
+     */
+    static boolean isBranch(int opCode, int next) {
+        switch (opCode) {
+            case 0x10: // DJNZ
+            case 0x18: // JR
+            case 0x20:
+            case 0x28:
+            case 0x30:
+            case 0x38:
+            case 0x76: // HALT
+            case 0xC3: // JP
+            case 0xC2:
+            case 0xCA:
+            case 0xD2:
+            case 0xDA:
+            case 0xE2:
+            case 0xEA:
+            case 0xF2:
+            case 0xFA:
+            case 0xE9: // JP (HL)
+            case 0xCD: // CALL
+            case 0xC4:
+            case 0xCC:
+            case 0xD4:
+            case 0xDC:
+            case 0xE4:
+            case 0xEC:
+            case 0xF4:
+            case 0xFC:
+            case 0xC9: // RET
+            case 0xC0:
+            case 0xC8:
+            case 0xD0:
+            case 0xD8:
+            case 0xE0:
+            case 0xE8:
+            case 0xF0:
+            case 0xF8:
+            case 0xC7: // RST
+            case 0xCF:
+            case 0xD7:
+            case 0xDF:
+            case 0xE7:
+            case 0xEF:
+            case 0xF7:
+            case 0xFF:
+                return true;
+            case 0xDD:
+            case 0xFD:
+                return next == 0xE9;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package z80core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal class file writer, just what the translator needs.
+ *
+ * Classes are written with version 49 (Java 5) so the methods don't need the
+ * stack map frames required by later versions.
+ */
+final class ClassWriter {
+
+    static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LLOAD = 0x16;
+    static final int ALOAD = 0x19;
+    static final int ALOAD_0 = 0x2A;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int LCMP = 0x94;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9A;
+    static final int IFLT = 0x9B;
+    static final int IF_ICMPEQ = 0x9F;
+    static final int GOTO = 0xA7;
+    static final int RETURN = 0xB1;
+    static final int GETFIELD = 0xB4;
+    static final int PUTFIELD = 0xB5;
+    static final int INVOKEVIRTUAL = 0xB6;
+    static final int INVOKESPECIAL = 0xB7;
+    static final int INVOKEINTERFACE = 0xB9;
+
+    static final class Label {
+
+        int position = -1;
+        final List<Integer> branches = new ArrayList<Integer>();
+
+    }
+
+    final class Code {
+
+        final String name;
+        final String descriptor;
+        final int maxStack;
+        final int maxLocals;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<Label> labels = new ArrayList<Label>();
+
+        Code(String name, String descriptor, int maxStack, int maxLocals) {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        void op(int opcode, int operand) {
+            bytes.write(opcode);
+            bytes.write(operand);
+        }
+
+        void op16(int opcode, int operand) {
+            bytes.write(opcode);
+            bytes.write(operand >> 8);
+            bytes.write(operand);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            }
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH, value);
+            }
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op16(SIPUSH, value);
+            }
+            else {
+                op16(LDC_W, integer(value));
+            }
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            op16(opcode, fieldRef(owner, name, descriptor));
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            if (opcode == INVOKEINTERFACE) {
+                op16(opcode, interfaceMethodRef(owner, name, descriptor));
+                op(getArgumentsSize(descriptor) + 1, 0);
+            }
+            else {
+                op16(opcode, methodRef(owner, name, descriptor));
+            }
+        }
+
+        void branch(int opcode, Label label) {
+            int position = bytes.size();
+            if (label.position != -1) {
+                op16(opcode, label.position - position);
+            }
+            else {
+                label.branches.add(position);
+                op16(opcode, 0);
+                if (!labels.contains(label)) {
+                    labels.add(label);
+                }
+            }
+        }
+
+        void bind(Label label) {
+            label.position = bytes.size();
+        }
+
+        byte[] toByteArray() {
+            byte[] code = bytes.toByteArray();
+            for (Label label : labels) {
+                if (label.position == -1) {
+                    throw new IllegalStateException("Unbound label");
+                }
+                for (int position : label.branches) {
+                    int offset = label.position - position;
+                    code[position + 1] = (byte) (offset >> 8);
+                    code[position + 2] = (byte) offset;
+                }
+            }
+            return code;
+        }
+
+    }
+
+    final String name;
+    final String superName;
+    final String[] interfaces;
+
+    final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    final DataOutputStream poolOut = new DataOutputStream(pool);
+    final Map<String, Integer> poolEntries = new HashMap<String, Integer>();
+    int poolCount = 1;
+
+    final List<Code> methods = new ArrayList<Code>();
+
+    ClassWriter(String name, String superName, String... interfaces) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+    }
+
+    Code addMethod(String name, String descriptor, int maxStack, int maxLocals) {
+        Code code = new Code(name, descriptor, maxStack, maxLocals);
+        methods.add(code);
+        return code;
+    }
+
+    int utf8(String value) {
+        String key = "U" + value;
+        Integer index = poolEntries.get(key);
+        if (index == null) {
+            try {
+                poolOut.writeByte(1);
+                poolOut.writeUTF(value);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            index = addEntry(key);
+        }
+        return index;
+    }
+
+    int integer(int value) {
+        String key = "I" + value;
+        Integer index = poolEntries.get(key);
+        if (index == null) {
+            write(3, value >> 16, value);
+            index = addEntry(key);
+        }
+        return index;
+    }
+
+    int classRef(String name) {
+        String key = "C" + name;
+        Integer index = poolEntries.get(key);
+        if (index == null) {
+            int nameIndex = utf8(name);
+            write(7, nameIndex);
+            index = addEntry(key);
+        }
+        return index;
+    }
+
+    int nameAndType(String name, String descriptor) {
+        String key = "N" + name + " " + descriptor;
+        Integer index = poolEntries.get(key);
+        if (index == null) {
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            write(12, nameIndex, descriptorIndex);
+            index = addEntry(key);
+        }
+        return index;
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(11, owner, name, descriptor);
+    }
+
+    int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = tag + owner + "." + name + " " + descriptor;
+        Integer index = poolEntries.get(key);
+        if (index == null) {
+            int classIndex = classRef(owner);
+            int nameAndTypeIndex = nameAndType(name, descriptor);
+            write(tag, classIndex, nameAndTypeIndex);
+            index = addEntry(key);
+        }
+        return index;
+    }
+
+    void write(int tag, int u2) {
+        pool.write(tag);
+        pool.write(u2 >> 8);
+        pool.write(u2);
+    }
+
+    void write(int tag, int u2a, int u2b) {
+        write(tag, u2a);
+        pool.write(u2b >> 8);
+        pool.write(u2b);
+    }
+
+    int addEntry(String key) {
+        int index = poolCount++;
+        poolEntries.put(key, index);
+        return index;
+    }
+
+    byte[] toByteArray() {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int[] interfaceIndex = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndex[i] = classRef(interfaces[i]);
+        }
+        int codeIndex = utf8("Code");
+        byte[][] code = new byte[methods.size()][];
+        int[] methodIndex = new int[methods.size() * 2];
+        for (int i = 0; i < code.length; i++) {
+            Code method = methods.get(i);
+            code[i] = method.toByteArray();
+            methodIndex[i * 2] = utf8(method.name);
+            methodIndex[i * 2 + 1] = utf8(method.descriptor);
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream os = new DataOutputStream(bytes);
+
+            os.writeInt(0xCAFEBABE);
+            os.writeShort(0);
+            os.writeShort(VERSION);
+            os.writeShort(poolCount);
+            pool.writeTo(os);
+
+            os.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            os.writeShort(thisIndex);
+            os.writeShort(superIndex);
+            os.writeShort(interfaceIndex.length);
+            for (int i = 0; i < interfaceIndex.length; i++) {
+                os.writeShort(interfaceIndex[i]);
+            }
+
+            os.writeShort(0); // Fields
+
+            os.writeShort(code.length);
+            for (int i = 0; i < code.length; i++) {
+                Code method = methods.get(i);
+                os.writeShort(ACC_PUBLIC);
+                os.writeShort(methodIndex[i * 2]);
+                os.writeShort(methodIndex[i * 2 + 1]);
+                os.writeShort(1);
+                os.writeShort(codeIndex);
+                os.writeInt(12 + code[i].length);
+                os.writeShort(method.maxStack);
+                os.writeShort(method.maxLocals);
+                os.writeInt(code[i].length);
+                os.write(code[i]);
+                os.writeShort(0); // Exception table
+                os.writeShort(0); // Attributes
+            }
+
+            os.writeShort(0); // Attributes
+
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static int getArgumentsSize(String descriptor) {
+        int size = 0;
+        for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+            char c = descriptor.charAt(i);
+            if (c == 'J' || c == 'D') {
+                size += 2;
+            }
+            else if (c == 'L') {
+                i = descriptor.indexOf(';', i);
+                size++;
+            }
+            else if (c == '[') {
+                while (descriptor.charAt(i) == '[') {
+                    i++;
+                }
+                if (descriptor.charAt(i) == 'L') {
+                    i = descriptor.indexOf(';', i);
+                }
+                size++;
+            }
+            else {
+                size++;
+            }
+        }
+        return size;
+    }
+
+}
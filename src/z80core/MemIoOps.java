@@ -57,6 +57,27 @@ public class MemIoOps {
         z80Ram[address & 0xFFFF] = (byte) value;
     }
 
+    public int fetchOperand8(int address) {
+        // Operand byte that follows the opcode, by default read like data
+        return peek8(address);
+    }
+
+    public int fetchOperand16(int address) {
+        int lsb = fetchOperand8(address);
+        int msb = fetchOperand8(address + 1);
+        return (msb << 8) | lsb;
+    }
+
+    public int peekCode(int address) {
+        // Used by the block cache to decode instructions, no clocks
+        return z80Ram[address & 0xFFFF] & 0xff;
+    }
+
+    public void cachedFetch(int address, int tstates) {
+        // Clocks of an opcode or operand fetch served by the block cache
+        this.tstates += tstates;
+    }
+
     public int peek16(int address) {
         int lsb = peek8(address);
         int msb = peek8(address + 1);
@@ -77,6 +98,19 @@ public class MemIoOps {
         tstates += 4; // 4 clocks for write byte to bus
     }
 
+    public boolean isBlockPort(int port) {
+        // Devices that can transfer the repetitions of INIR and OTIR in one call
+        return false;
+    }
+
+    public void inBlock(int port, byte[] buffer, int count) {
+        // Bytes of count reads from a block port, the clocks are added by the processor
+    }
+
+    public void outBlock(int port, byte[] buffer, int count) {
+        // Bytes of count writes to a block port, the clocks are added by the processor
+    }
+
     public void addressOnBus(int address, int tstates) {
         // Additional clocks to be added on some instructions
         // Not to be changed, really.
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package z80core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the instruction trace files written by <code>TraceRecorder</code>.
+ *
+ * Records are addressed by their absolute index, from <code>getFirst()</code> (the oldest
+ * record not yet overwritten) to <code>getLast()</code> excluded. T-states grow with the
+ * index, so seeking by T-states is a binary search. Searches by PC and by address range
+ * scan the records forward or backward from a given index.
+ *
+ * Can also be run from the command line to print the records:
+ *
+ * <pre>
+ * TraceReader file [-t tstates] [-pc address] [-range start-end] [-n count] [-last]
+ * </pre>
+ */
+public final class TraceReader implements Closeable {
+
+    final FileChannel channel;
+    final MappedByteBuffer[] chunks;
+    final long capacityMask;
+    final int chunkShift;
+    final int chunkMask;
+
+    final long first;
+    final long last;
+
+    public TraceReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, TraceRecorder.HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != TraceRecorder.MAGIC) {
+                throw new IOException("Not a trace file");
+            }
+            if (header.getInt(4) != TraceRecorder.VERSION || header.getInt(8) != TraceRecorder.RECORD_SIZE) {
+                throw new IOException("Unsupported trace version " + header.getInt(4));
+            }
+            long capacity = header.getLong(16);
+            long count = header.getLong(TraceRecorder.COUNT_OFFSET);
+            if (Long.bitCount(capacity) != 1 || channel.size() < TraceRecorder.HEADER_SIZE + capacity * TraceRecorder.RECORD_SIZE) {
+                throw new IOException("Truncated trace file");
+            }
+
+            this.capacityMask = capacity - 1;
+            this.chunkShift = Math.min(TraceRecorder.CHUNK_SHIFT, Long.numberOfTrailingZeros(capacity));
+            this.chunkMask = (1 << chunkShift) - 1;
+            this.first = Math.max(0, count - capacity);
+            this.last = count;
+
+            long chunkSize = (long) TraceRecorder.RECORD_SIZE << chunkShift;
+            chunks = new MappedByteBuffer[(int) (capacity >> chunkShift)];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = channel.map(MapMode.READ_ONLY, TraceRecorder.HEADER_SIZE + i * chunkSize, chunkSize);
+                chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Returns the index of the oldest record available.
+     */
+    public long getFirst() {
+        return first;
+    }
+
+    /**
+     * Returns the index after the newest record.
+     */
+    public long getLast() {
+        return last;
+    }
+
+    MappedByteBuffer buffer(long index) {
+        if (index < first || index >= last) {
+            throw new IndexOutOfBoundsException("Record " + index + " not in " + first + "-" + last);
+        }
+        return chunks[(int) ((index & capacityMask) >>> chunkShift)];
+    }
+
+    int offset(long index) {
+        return ((int) index & chunkMask) << TraceRecorder.RECORD_SHIFT;
+    }
+
+    public long getTstates(long index) {
+        return buffer(index).getLong(offset(index));
+    }
+
+    public int getPC(long index) {
+        return buffer(index).getShort(offset(index) + 8) & 0xFFFF;
+    }
+
+    public int getRegAF(long index) {
+        return buffer(index).getShort(offset(index) + 10) & 0xFFFF;
+    }
+
+    public int getRegBC(long index) {
+        return buffer(index).getShort(offset(index) + 12) & 0xFFFF;
+    }
+
+    public int getRegDE(long index) {
+        return buffer(index).getShort(offset(index) + 14) & 0xFFFF;
+    }
+
+    public int getRegHL(long index) {
+        return buffer(index).getShort(offset(index) + 16) & 0xFFFF;
+    }
+
+    public int getRegSP(long index) {
+        return buffer(index).getShort(offset(index) + 18) & 0xFFFF;
+    }
+
+    public int getRegIX(long index) {
+        return buffer(index).getShort(offset(index) + 20) & 0xFFFF;
+    }
+
+    public int getRegIY(long index) {
+        return buffer(index).getShort(offset(index) + 22) & 0xFFFF;
+    }
+
+    /**
+     * Returns the four bytes at PC, the first in the low byte.
+     */
+    public int getOpcodes(long index) {
+        return buffer(index).getInt(offset(index) + 24);
+    }
+
+    public int getRegI(long index) {
+        return buffer(index).get(offset(index) + 28) & 0xFF;
+    }
+
+    public int getRegR(long index) {
+        return buffer(index).get(offset(index) + 29) & 0xFF;
+    }
+
+    public int getFlags(long index) {
+        return buffer(index).get(offset(index) + 30) & 0xFF;
+    }
+
+    /**
+     * Returns the index of the first record at or after the given T-states, or
+     * <code>getLast()</code> if there is none. The records must be in increasing T-states
+     * order, as written by a recorder that is restarted when the machine is reset.
+     */
+    public long seekTstates(long tstates) {
+        long low = first;
+        long high = last;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (getTstates(mid) < tstates) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index of the first record from the given index with the PC in the
+     * address range, or -1 if there is none.
+     *
+     * @param from the index to start from
+     * @param start the first address of the range
+     * @param end the last address of the range, included
+     */
+    public long next(long from, int start, int end) {
+        for (long index = Math.max(from, first); index < last; index++) {
+            int pc = getPC(index);
+            if (pc >= start && pc <= end) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the last record up to the given index with the PC in the
+     * address range, or -1 if there is none.
+     *
+     * @param from the index to start from, going backward
+     * @param start the first address of the range
+     * @param end the last address of the range, included
+     */
+    public long previous(long from, int start, int end) {
+        for (long index = Math.min(from, last - 1); index >= first; index--) {
+            int pc = getPC(index);
+            if (pc >= start && pc <= end) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    public long findPC(long from, int pc) {
+        return next(from, pc, pc);
+    }
+
+    public long findPreviousPC(long from, int pc) {
+        return previous(from, pc, pc);
+    }
+
+    public String format(long index) {
+        int opcodes = getOpcodes(index);
+        int flags = getFlags(index);
+        return String.format("%12d %04X  %02X %02X %02X %02X  AF=%04X BC=%04X DE=%04X HL=%04X SP=%04X IX=%04X IY=%04X I=%02X R=%02X IM%d%s%s",
+            getTstates(index), getPC(index),
+            opcodes & 0xFF, (opcodes >> 8) & 0xFF, (opcodes >> 16) & 0xFF, (opcodes >>> 24) & 0xFF,
+            getRegAF(index), getRegBC(index), getRegDE(index), getRegHL(index), getRegSP(index), getRegIX(index), getRegIY(index),
+            getRegI(index), getRegR(index), (flags >> TraceRecorder.IM_SHIFT) & 0x03,
+            (flags & TraceRecorder.FLAG_IFF1) != 0 ? " EI" : " DI",
+            (flags & TraceRecorder.FLAG_HALT) != 0 ? " HALT" : "");
+    }
+
+    /**
+     * Prints the records in the address range, starting at the given T-states or at the
+     * given PC, up to the given number of records.
+     */
+    public void print(PrintStream out, long tstates, int pc, int start, int end, long count, boolean fromLast) {
+        long index;
+        if (fromLast) {
+            index = first;
+            long n = 0;
+            for (long i = last - 1; i >= first && n < count; i--) {
+                i = previous(i, start, end);
+                if (i == -1) {
+                    break;
+                }
+                index = i;
+                n++;
+            }
+        }
+        else {
+            index = seekTstates(tstates);
+        }
+        if (pc != -1) {
+            index = findPC(index, pc);
+        }
+
+        while (index != -1 && index < last && count > 0) {
+            index = next(index, start, end);
+            if (index == -1) {
+                break;
+            }
+            out.println(format(index));
+            index++;
+            count--;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: TraceReader file [-t tstates] [-pc address] [-range start-end] [-n count] [-last]");
+            System.exit(1);
+        }
+
+        long tstates = 0;
+        int pc = -1;
+        int start = 0x0000;
+        int end = 0xFFFF;
+        long count = Long.MAX_VALUE;
+        boolean fromLast = false;
+
+        for (int i = 1; i < args.length; i++) {
+            if ("-t".equals(args[i])) {
+                tstates = Long.parseLong(args[++i]);
+            }
+            else if ("-pc".equals(args[i])) {
+                pc = Integer.parseInt(args[++i], 16);
+            }
+            else if ("-range".equals(args[i])) {
+                String[] s = args[++i].split("-");
+                start = Integer.parseInt(s[0], 16);
+                end = Integer.parseInt(s[1], 16);
+            }
+            else if ("-n".equals(args[i])) {
+                count = Long.parseLong(args[++i]);
+            }
+            else if ("-last".equals(args[i])) {
+                fromLast = true;
+            }
+            else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        try {
+            TraceReader reader = new TraceReader(new File(args[0]));
+            try {
+                System.out.println(String.format("Records %d-%d", reader.getFirst(), reader.getLast()));
+                reader.print(System.out, tstates, pc, start, end, count, fromLast);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+}
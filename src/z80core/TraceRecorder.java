@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package z80core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Instruction trace written to a memory-mapped ring file.
+ *
+ * The file starts with a 64 bytes header (magic, version, record size, capacity and number
+ * of records written so far) followed by <code>capacity</code> fixed-width records, one for
+ * each instruction before it is executed. When the file is full the oldest records are
+ * overwritten. The records are mapped in chunks, so files can be larger than 2GB. The count
+ * in the header is brought up to date by <code>flush</code> and <code>close</code>.
+ *
+ * Record layout, little endian:
+ *
+ * <pre>
+ *  0  T-states (8)
+ *  8  PC, AF, BC, DE, HL, SP, IX, IY (2 each)
+ * 24  opcode bytes at PC (4)
+ * 28  I, R, flags (IFF1, IFF2, HALT, IM), reserved (1 each)
+ * </pre>
+ */
+public final class TraceRecorder implements Closeable {
+
+    public static final int MAGIC = 0x5A383054; // Z80T
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 32;
+    public static final int RECORD_SHIFT = 5;
+
+    static final int COUNT_OFFSET = 24;
+
+    static final int CHUNK_SHIFT = 20;
+
+    // The count in the header is updated every few records and when flushed
+    static final int COUNT_UPDATE_MASK = 0xFFF;
+
+    public static final int FLAG_IFF1 = 0x01;
+    public static final int FLAG_IFF2 = 0x02;
+    public static final int FLAG_HALT = 0x04;
+    public static final int IM_SHIFT = 3;
+
+    final FileChannel channel;
+    final MappedByteBuffer header;
+    final MappedByteBuffer[] chunks;
+    final long capacityMask;
+    final int chunkShift;
+    final int chunkMask;
+
+    long count;
+
+    /**
+     * Creates a new trace file.
+     *
+     * @param file the file, truncated if it exists
+     * @param capacity the number of records, a power of 2
+     */
+    public TraceRecorder(File file, long capacity) throws IOException {
+        if (Long.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.capacityMask = capacity - 1;
+        this.chunkShift = Math.min(CHUNK_SHIFT, Long.numberOfTrailingZeros(capacity));
+        this.chunkMask = (1 << chunkShift) - 1;
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            header = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, RECORD_SIZE);
+            header.putLong(16, capacity);
+            header.putLong(COUNT_OFFSET, 0);
+
+            long chunkSize = (long) RECORD_SIZE << chunkShift;
+            chunks = new MappedByteBuffer[(int) (capacity >> chunkShift)];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = channel.map(MapMode.READ_WRITE, HEADER_SIZE + i * chunkSize, chunkSize);
+                chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of records written, including the ones overwritten.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getCapacity() {
+        return capacityMask + 1;
+    }
+
+    public void record(long tstates, int pc, int opcodes, int af, int bc, int de, int hl, int sp, int ix, int iy, int i, int r, int flags) {
+        long index = count & capacityMask;
+        MappedByteBuffer buffer = chunks[(int) (index >>> chunkShift)];
+        int offset = ((int) index & chunkMask) << RECORD_SHIFT;
+
+        // Little endian, each long packs the fields in the record order
+        buffer.putLong(offset, tstates);
+        buffer.putLong(offset + 8, (pc & 0xFFFFL) | (af & 0xFFFFL) << 16 | (bc & 0xFFFFL) << 32 | (long) de << 48);
+        buffer.putLong(offset + 16, (hl & 0xFFFFL) | (sp & 0xFFFFL) << 16 | (ix & 0xFFFFL) << 32 | (long) iy << 48);
+        buffer.putLong(offset + 24, (opcodes & 0xFFFFFFFFL) | (i & 0xFFL) << 32 | (r & 0xFFL) << 40 | (flags & 0xFFL) << 48);
+
+        count++;
+        if ((count & COUNT_UPDATE_MASK) == 0) {
+            header.putLong(COUNT_OFFSET, count);
+        }
+    }
+
+    public void flush() {
+        header.putLong(COUNT_OFFSET, count);
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i].force();
+        }
+        header.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+}
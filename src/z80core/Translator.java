@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) 2020 Marco Maccaferri and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package z80core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+
+/**
+ * Translates hot blocks of the block cache into JVM bytecode.
+ *
+ * Each block is compiled to a hidden class, nestmate of <code>Z80</code>, with a method
+ * that executes the block instructions in sequence accessing the processor fields
+ * directly. Simple loads, increments and 8-bit arithmetic are inlined, everything else
+ * calls the same decoder methods used by the interpreter with a constant opcode, so
+ * the bus sees exactly the same accesses and T-states.
+ *
+ * The same checks of the interpreter are done after each instruction: the translated
+ * code returns to the caller on interrupts, when the T-states budget is exhausted or
+ * when a write invalidates the block. Blocks loop on themselves without returning when
+ * the last instruction jumps back to the start. I/O instructions are executed by the
+ * interpreter decoder and always return to the caller, so the devices are never
+ * accessed from inside a translated loop.
+ *
+ * Hidden classes require Java 15 or later, on earlier runtimes the translator is not
+ * available and the processor keeps using the block cache.
+ */
+final class Translator {
+
+    /**
+     * Interface implemented by the translated blocks.
+     */
+    interface Compiled {
+
+        void execute(Z80 z80, BlockCache.Block block, long limit);
+
+    }
+
+    static final int THRESHOLD = 1000;
+
+    static final String PROCESSOR = "z80core/Z80";
+    static final String MEMORY = "z80core/MemIoOps";
+    static final String NOTIFY = "z80core/NotifyOps";
+    static final String BLOCK = "z80core/BlockCache$Block";
+    static final String COMPILED = "z80core/Translator$Compiled";
+
+    static final String[] REGISTERS = new String[] {
+        "regB", "regC", "regD", "regE", "regH", "regL", null, "regA"
+    };
+
+    static final String[] ALU = new String[] {
+        "add", "adc", "sub", "sbc", "and", "xor", "or", "cp"
+    };
+
+    static final Method defineHiddenClass;
+    static final Object hiddenClassOptions;
+
+    static {
+        Method method = null;
+        Object options = null;
+        try {
+            Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(optionClass, 1);
+            for (Object option : optionClass.getEnumConstants()) {
+                if ("NESTMATE".equals(option.toString())) {
+                    Array.set(options, 0, option);
+                }
+            }
+            method = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+        } catch (Exception e) {
+            // Not available
+        }
+        defineHiddenClass = method;
+        hiddenClassOptions = options;
+    }
+
+    static boolean isSupported() {
+        return defineHiddenClass != null;
+    }
+
+    final MethodHandles.Lookup lookup;
+
+    int threshold = THRESHOLD;
+    boolean failed;
+    int translated;
+
+    Translator(MethodHandles.Lookup lookup) {
+        this.lookup = lookup;
+    }
+
+    /**
+     * Returns the translated block, or null if the translation failed. The block is
+     * translated up to the first I/O instruction included.
+     */
+    Compiled translate(BlockCache.Block block) {
+        if (failed) {
+            return null;
+        }
+
+        int count = 0;
+        while (count < block.ops.length) {
+            if (isInputOutput(block.ops[count++])) {
+                break;
+            }
+        }
+
+        try {
+            byte[] bytes = generate(block, count);
+            MethodHandles.Lookup hiddenLookup = (MethodHandles.Lookup) defineHiddenClass.invoke(lookup, bytes, Boolean.TRUE, hiddenClassOptions);
+            Compiled code = (Compiled) hiddenLookup.lookupClass().getDeclaredConstructor().newInstance();
+            translated++;
+            return code;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } catch (LinkageError e) {
+            e.printStackTrace();
+        }
+
+        failed = true;
+        return null;
+    }
+
+    static boolean isInputOutput(int op) {
+        int opCode = op & 0xFF;
+        return opCode == 0xD3 || opCode == 0xDB;
+    }
+
+    byte[] generate(BlockCache.Block block, int count) {
+        ClassWriter cw = new ClassWriter("z80core/TranslatedBlock", "java/lang/Object", COMPILED);
+
+        ClassWriter.Code init = cw.addMethod("<init>", "()V", 1, 1);
+        init.op(ClassWriter.ALOAD_0);
+        init.invoke(ClassWriter.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        init.op(ClassWriter.RETURN);
+
+        ClassWriter.Code c = cw.addMethod("execute", "(L" + PROCESSOR + ";L" + BLOCK + ";J)V", 8, 5);
+
+        ClassWriter.Label top = new ClassWriter.Label();
+        c.bind(top);
+
+        int pc = block.address;
+        for (int i = 0; i < count; i++) {
+            int op = block.ops[i];
+            emitInstruction(c, pc, op);
+            pc += BlockCache.getLength(op & 0xFF, (op >>> 8) & 0xFF);
+        }
+
+        int last = block.ops[count - 1];
+        if (BlockCache.isBranch(last & 0xFF, (last >>> 8) & 0xFF) && (last & 0xFF) != 0x76) {
+            // Loops without returning while the block jumps to itself
+            loadZ80(c);
+            getField(c, "regPC", "I");
+            c.pushInt(block.address);
+            c.branch(ClassWriter.IF_ICMPEQ, top);
+        }
+        c.op(ClassWriter.RETURN);
+
+        return cw.toByteArray();
+    }
+
+    void emitInstruction(ClassWriter.Code c, int pc, int op) {
+        int opCode = op & 0xFF;
+
+        fetch(c, pc, 4);
+        incrementR(c);
+        setPC(c, pc + 1);
+        setFlagQ(c);
+
+        switch (opCode) {
+            case 0xCB:
+                fetch(c, pc + 1, 4);
+                setPC(c, pc + 2);
+                incrementR(c);
+                loadZ80(c);
+                c.pushInt((op >>> 8) & 0xFF);
+                invokeZ80(c, "executeCB", "(I)V");
+                break;
+            case 0xDD:
+            case 0xFD: {
+                String register = opCode == 0xDD ? "regIX" : "regIY";
+                fetch(c, pc + 1, 4);
+                incrementR(c);
+                setPC(c, pc + 2);
+                setFlagQ(c);
+                setCachedOperands(c, (op >>> 16) | Z80.OPERANDS_MARKER);
+                loadZ80(c);
+                loadZ80(c);
+                c.pushInt((op >>> 8) & 0xFF);
+                loadZ80(c);
+                getField(c, register, "I");
+                invokeZ80(c, "decodeDDFD", "(II)I");
+                putField(c, register, "I");
+                setCachedOperands(c, 0);
+                break;
+            }
+            default:
+                if (!emitInline(c, pc, opCode, op >>> 8)) {
+                    setCachedOperands(c, (op >>> 8) | Z80.OPERANDS_MARKER);
+                    loadZ80(c);
+                    c.pushInt(opCode);
+                    invokeZ80(c, "decodeOpcode", "(I)V");
+                    setCachedOperands(c, 0);
+                }
+                break;
+        }
+
+        ClassWriter.Label next = new ClassWriter.Label();
+
+        // lastFlagQ = flagQ
+        loadZ80(c);
+        loadZ80(c);
+        getField(c, "flagQ", "Z");
+        putField(c, "lastFlagQ", "Z");
+
+        // EI delays the interrupts until the next instruction
+        if (opCode != 0xFB) {
+            loadZ80(c);
+            c.pushInt(0);
+            putField(c, "pendingEI", "Z");
+        }
+
+        // if (execDone) NotifyImpl.execDone()
+        ClassWriter.Label noExecDone = new ClassWriter.Label();
+        loadZ80(c);
+        getField(c, "execDone", "Z");
+        c.branch(ClassWriter.IFEQ, noExecDone);
+        loadZ80(c);
+        getField(c, "NotifyImpl", "L" + NOTIFY + ";");
+        c.invoke(ClassWriter.INVOKEINTERFACE, NOTIFY, "execDone", "()V");
+        c.bind(noExecDone);
+
+        // if (activeNMI) { activeNMI = false; nmi(); return; }
+        ClassWriter.Label noNMI = new ClassWriter.Label();
+        loadZ80(c);
+        getField(c, "activeNMI", "Z");
+        c.branch(ClassWriter.IFEQ, noNMI);
+        loadZ80(c);
+        c.pushInt(0);
+        putField(c, "activeNMI", "Z");
+        loadZ80(c);
+        invokeZ80(c, "nmi", "()V");
+        c.op(ClassWriter.RETURN);
+        c.bind(noNMI);
+
+        // if (ffIFF1 && !pendingEI && MemIoImpl.isActiveINT()) { interruption(); return; }
+        ClassWriter.Label noINT = new ClassWriter.Label();
+        loadZ80(c);
+        getField(c, "ffIFF1", "Z");
+        c.branch(ClassWriter.IFEQ, noINT);
+        loadZ80(c);
+        getField(c, "pendingEI", "Z");
+        c.branch(ClassWriter.IFNE, noINT);
+        loadMemory(c);
+        c.invoke(ClassWriter.INVOKEVIRTUAL, MEMORY, "isActiveINT", "()Z");
+        c.branch(ClassWriter.IFEQ, noINT);
+        loadZ80(c);
+        invokeZ80(c, "interruption", "()V");
+        c.op(ClassWriter.RETURN);
+        c.bind(noINT);
+
+        // if (!block.valid) return
+        ClassWriter.Label valid = new ClassWriter.Label();
+        c.op(ClassWriter.ALOAD, 2);
+        c.field(ClassWriter.GETFIELD, BLOCK, "valid", "Z");
+        c.branch(ClassWriter.IFNE, valid);
+        c.op(ClassWriter.RETURN);
+        c.bind(valid);
+
+        // if (MemIoImpl.getTstates() >= limit) return
+        loadMemory(c);
+        c.invoke(ClassWriter.INVOKEVIRTUAL, MEMORY, "getTstates", "()J");
+        c.op(ClassWriter.LLOAD, 3);
+        c.op(ClassWriter.LCMP);
+        c.branch(ClassWriter.IFLT, next);
+        c.op(ClassWriter.RETURN);
+        c.bind(next);
+    }
+
+    boolean emitInline(ClassWriter.Code c, int pc, int opCode, int operands) {
+        if (opCode == 0x00) { // NOP
+            return true;
+        }
+
+        if (opCode >= 0x40 && opCode <= 0x7F && opCode != 0x76) {
+            String dst = REGISTERS[(opCode >> 3) & 7];
+            String src = REGISTERS[opCode & 7];
+            if (dst == null) { // LD (HL),r
+                loadZ80(c);
+                loadZ80(c);
+                invokeZ80(c, "getRegHL", "()I");
+                loadZ80(c);
+                getField(c, src, "I");
+                invokeZ80(c, "poke8", "(II)V");
+            }
+            else if (src == null) { // LD r,(HL)
+                loadZ80(c);
+                peekHL(c);
+                putField(c, dst, "I");
+            }
+            else if (dst != src) { // LD r,r'
+                loadZ80(c);
+                loadZ80(c);
+                getField(c, src, "I");
+                putField(c, dst, "I");
+            }
+            return true;
+        }
+
+        if (opCode >= 0x80 && opCode <= 0xBF) { // ALU A,r
+            String src = REGISTERS[opCode & 7];
+            loadZ80(c);
+            if (src == null) {
+                peekHL(c);
+            }
+            else {
+                loadZ80(c);
+                getField(c, src, "I");
+            }
+            invokeZ80(c, ALU[(opCode >> 3) & 7], "(I)V");
+            return true;
+        }
+
+        if ((opCode & 0xC7) == 0xC6) { // ALU A,n
+            fetch(c, pc + 1, 3);
+            loadZ80(c);
+            c.pushInt(operands & 0xFF);
+            invokeZ80(c, ALU[(opCode >> 3) & 7], "(I)V");
+            setPC(c, pc + 2);
+            return true;
+        }
+
+        if (opCode < 0x40) {
+            String register = REGISTERS[(opCode >> 3) & 7];
+            if (register == null) {
+                return false;
+            }
+            switch (opCode & 7) {
+                case 4: // INC r
+                case 5: // DEC r
+                    loadZ80(c);
+                    loadZ80(c);
+                    loadZ80(c);
+                    getField(c, register, "I");
+                    invokeZ80(c, (opCode & 7) == 4 ? "inc8" : "dec8", "(I)I");
+                    putField(c, register, "I");
+                    return true;
+                case 6: // LD r,n
+                    fetch(c, pc + 1, 3);
+                    loadZ80(c);
+                    c.pushInt(operands & 0xFF);
+                    putField(c, register, "I");
+                    setPC(c, pc + 2);
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    void loadZ80(ClassWriter.Code c) {
+        c.op(ClassWriter.ALOAD, 1);
+    }
+
+    void loadMemory(ClassWriter.Code c) {
+        loadZ80(c);
+        getField(c, "MemIoImpl", "L" + MEMORY + ";");
+    }
+
+    void getField(ClassWriter.Code c, String name, String descriptor) {
+        c.field(ClassWriter.GETFIELD, PROCESSOR, name, descriptor);
+    }
+
+    void putField(ClassWriter.Code c, String name, String descriptor) {
+        c.field(ClassWriter.PUTFIELD, PROCESSOR, name, descriptor);
+    }
+
+    void invokeZ80(ClassWriter.Code c, String name, String descriptor) {
+        c.invoke(ClassWriter.INVOKEVIRTUAL, PROCESSOR, name, descriptor);
+    }
+
+    // MemIoImpl.cachedFetch(address, tstates)
+    void fetch(ClassWriter.Code c, int address, int tstates) {
+        loadMemory(c);
+        c.pushInt(address & 0xFFFF);
+        c.pushInt(tstates);
+        c.invoke(ClassWriter.INVOKEVIRTUAL, MEMORY, "cachedFetch", "(II)V");
+    }
+
+    // MemIoImpl.peek8(getRegHL())
+    void peekHL(ClassWriter.Code c) {
+        loadMemory(c);
+        loadZ80(c);
+        invokeZ80(c, "getRegHL", "()I");
+        c.invoke(ClassWriter.INVOKEVIRTUAL, MEMORY, "peek8", "(I)I");
+    }
+
+    void incrementR(ClassWriter.Code c) {
+        loadZ80(c);
+        c.op(ClassWriter.DUP);
+        getField(c, "regR", "I");
+        c.pushInt(1);
+        c.op(ClassWriter.IADD);
+        putField(c, "regR", "I");
+    }
+
+    void setPC(ClassWriter.Code c, int address) {
+        loadZ80(c);
+        c.pushInt(address & 0xFFFF);
+        putField(c, "regPC", "I");
+    }
+
+    void setFlagQ(ClassWriter.Code c) {
+        loadZ80(c);
+        c.pushInt(0);
+        putField(c, "flagQ", "Z");
+    }
+
+    void setCachedOperands(ClassWriter.Code c, int value) {
+        loadZ80(c);
+        c.pushInt(value);
+        putField(c, "cachedOperands", "I");
+    }
+
+}
@@ -153,6 +153,7 @@
  */
 package z80core;
 
+import java.lang.invoke.MethodHandles;
 import java.util.Arrays;
 
 public class Z80 {
@@ -164,6 +165,26 @@ public class Z80 {
     private int prefixOpcode = 0x00;
     // Subsistema de notificaciones
     private boolean execDone = false;
+    // Caché de bloques de instrucciones predecodificadas, null si está
+    // desactivada (ver run)
+    private BlockCache blockCache;
+    // Operandos predecodificados de la instrucción que se está ejecutando
+    // desde la caché, con el bit OPERANDS_MARKER por encima para que nunca
+    // valga 0. Fuera de la caché vale siempre 0 y los operandos se leen de
+    // memoria como siempre.
+    private int cachedOperands;
+    static final int OPERANDS_MARKER = 0x1000000;
+    // Traductor a bytecode de los bloques más ejecutados, null si está
+    // desactivado
+    private Translator translator;
+    // Registro de la traza de instrucciones, null si está desactivado
+    // (ver run)
+    private TraceRecorder tracer;
+    // Datos de las transferencias en bloque de INIR y OTIR (ver inirBlock)
+    private final byte[] blockBuffer = new byte[256];
+    // Fin del presupuesto del run en curso, las transferencias en bloque no
+    // lo sobrepasan (sin límite fuera de run)
+    private long runLimit = Long.MAX_VALUE;
     // Posiciones de los flags
     private static final int CARRY_MASK = 0x01;
     private static final int ADDSUB_MASK = 0x02;
@@ -184,6 +205,23 @@ public class Z80 {
     private int regA, regB, regC, regD, regE, regH, regL;
     // Flags sIGN, zERO, 5, hALFCARRY, 3, pARITY y ADDSUB (n)
     private int sz5h3pnFlags;
+    /* Evaluación perezosa de los flags: las operaciones aritméticas y lógicas
+     * de 8 bits solo guardan la operación, los operandos y el resultado, y
+     * sz5h3pnFlags se calcula en evalFlags cuando alguna instrucción lo lee
+     * (ver flagsNeeded). El carry se sigue calculando siempre.
+     */
+    private int lazyFlags;
+    private int lazyOperandA, lazyOperand, lazyResult;
+    private static final int LAZY_NONE = 0;
+    private static final int LAZY_ADD = 1;
+    private static final int LAZY_ADC = 2;
+    private static final int LAZY_SUB = 3;
+    private static final int LAZY_SBC = 4;
+    private static final int LAZY_CP = 5;
+    private static final int LAZY_INC = 6;
+    private static final int LAZY_DEC = 7;
+    private static final int LAZY_AND = 8;
+    private static final int LAZY_XOR_OR = 9;
     // El flag Carry es el único que se trata aparte
     private boolean carryFlag;
     /* Flags para indicar la modificación del registro F en la instrucción actual
@@ -311,6 +349,41 @@ public class Z80 {
         sz53pn_subTable[0] |= ZERO_MASK;
     }
 
+    // Instrucciones sin prefijo que leen o modifican sz5h3pnFlags directamente.
+    // Antes de ejecutarlas se calculan los flags pendientes.
+    private static final boolean flagsNeeded[] = new boolean[256];
+
+    static {
+        int opCodes[] = {
+            0x07, 0x08, 0x09, 0x0F, 0x17, 0x19, 0x1F, 0x27, 0x29, 0x2F, 0x37, 0x39, 0x3F, 0xE0, 0xE2, 0xE4, 0xE8, 0xEA, 0xEC, 0xF1, 0xF5
+        };
+        for (int i = 0; i < opCodes.length; i++) {
+            flagsNeeded[opCodes[i]] = true;
+        }
+    }
+
+    // Lo mismo para las instrucciones con prefijo CB: las rotaciones y BIT
+    // modifican sz5h3pnFlags, RES y SET no tocan los flags.
+    private static final boolean flagsNeededCB[] = new boolean[256];
+
+    // Y para las instrucciones con prefijo ED: IN r,(C), ADC/SBC HL,rr,
+    // LD A,I, LD A,R, RRD, RLD y las de bloque. NEG usa sub().
+    private static final boolean flagsNeededED[] = new boolean[256];
+
+    static {
+        for (int opCode = 0x00; opCode < 0x80; opCode++) {
+            flagsNeededCB[opCode] = true;
+        }
+        for (int opCode = 0x40; opCode < 0x80; opCode++) {
+            flagsNeededED[opCode] = (opCode & 0x07) == 0x00 || (opCode & 0x07) == 0x02;
+        }
+        flagsNeededED[0x57] = flagsNeededED[0x5F] = true;
+        flagsNeededED[0x67] = flagsNeededED[0x6F] = true;
+        for (int opCode = 0xA0; opCode < 0xC0; opCode++) {
+            flagsNeededED[opCode] = (opCode & 0x04) == 0x00;
+        }
+    }
+
     // Un true en una dirección indica que se debe notificar que se va a
     // ejecutar la instrucción que está en esa direción.
     private final boolean breakpointAt[] = new boolean[65536];
@@ -326,6 +399,7 @@ public class Z80 {
 
     public void setMemIoHandler(MemIoOps memIo) {
         MemIoImpl = memIo;
+        invalidateBlockCache();
     }
 
     public void setNotifyHandler(NotifyOps notify) {
@@ -456,10 +530,12 @@ public class Z80 {
 
     // Acceso a registros de 16 bits
     public final int getRegAF() {
+        evalFlags();
         return (regA << 8) | (carryFlag ? sz5h3pnFlags | CARRY_MASK : sz5h3pnFlags);
     }
 
     public final void setRegAF(int word) {
+        lazyFlags = LAZY_NONE;
         regA = (word >>> 8) & 0xff;
 
         sz5h3pnFlags = word & 0xfe;
@@ -693,10 +769,12 @@ public class Z80 {
     }
 
     public final boolean isAddSubFlag() {
+        evalFlags();
         return (sz5h3pnFlags & ADDSUB_MASK) != 0;
     }
 
     public final void setAddSubFlag(boolean state) {
+        evalFlags();
         if (state) {
             sz5h3pnFlags |= ADDSUB_MASK;
         }
@@ -706,10 +784,12 @@ public class Z80 {
     }
 
     public final boolean isParOverFlag() {
+        evalFlags();
         return (sz5h3pnFlags & PARITY_MASK) != 0;
     }
 
     public final void setParOverFlag(boolean state) {
+        evalFlags();
         if (state) {
             sz5h3pnFlags |= PARITY_MASK;
         }
@@ -719,10 +799,12 @@ public class Z80 {
     }
 
     public final boolean isBit3Flag() {
+        evalFlags();
         return (sz5h3pnFlags & BIT3_MASK) != 0;
     }
 
     public final void setBit3Fag(boolean state) {
+        evalFlags();
         if (state) {
             sz5h3pnFlags |= BIT3_MASK;
         }
@@ -732,10 +814,12 @@ public class Z80 {
     }
 
     public final boolean isHalfCarryFlag() {
+        evalFlags();
         return (sz5h3pnFlags & HALFCARRY_MASK) != 0;
     }
 
     public final void setHalfCarryFlag(boolean state) {
+        evalFlags();
         if (state) {
             sz5h3pnFlags |= HALFCARRY_MASK;
         }
@@ -745,10 +829,12 @@ public class Z80 {
     }
 
     public final boolean isBit5Flag() {
+        evalFlags();
         return (sz5h3pnFlags & BIT5_MASK) != 0;
     }
 
     public final void setBit5Flag(boolean state) {
+        evalFlags();
         if (state) {
             sz5h3pnFlags |= BIT5_MASK;
         }
@@ -758,10 +844,14 @@ public class Z80 {
     }
 
     public final boolean isZeroFlag() {
+        if (lazyFlags != LAZY_NONE) {
+            return lazyResult == 0;
+        }
         return (sz5h3pnFlags & ZERO_MASK) != 0;
     }
 
     public final void setZeroFlag(boolean state) {
+        evalFlags();
         if (state) {
             sz5h3pnFlags |= ZERO_MASK;
         }
@@ -771,10 +861,14 @@ public class Z80 {
     }
 
     public final boolean isSignFlag() {
+        if (lazyFlags != LAZY_NONE) {
+            return lazyResult > 0x7f;
+        }
         return sz5h3pnFlags >= SIGN_MASK;
     }
 
     public final void setSignFlag(boolean state) {
+        evalFlags();
         if (state) {
             sz5h3pnFlags |= SIGN_MASK;
         }
@@ -785,10 +879,12 @@ public class Z80 {
 
     // Acceso a los flags F
     public final int getFlags() {
+        evalFlags();
         return carryFlag ? sz5h3pnFlags | CARRY_MASK : sz5h3pnFlags;
     }
 
     public final void setFlags(int regF) {
+        lazyFlags = LAZY_NONE;
         sz5h3pnFlags = regF & 0xfe;
 
         carryFlag = (regF & CARRY_MASK) != 0;
@@ -862,8 +958,24 @@ public class Z80 {
         pendingEI = state;
     }
 
+    // Acceso al flag Q de la última instrucción (afecta a SCF/CCF)
+    public final boolean isFlagQ() {
+        return lastFlagQ;
+    }
+
+    public final void setFlagQ(boolean state) {
+        flagQ = false;
+        lastFlagQ = state;
+    }
+
     public final Z80State getZ80State() {
-        Z80State state = new Z80State();
+        return getZ80State(new Z80State());
+    }
+
+    /**
+     * Copies the processor state to the given object, allowing to reuse it.
+     */
+    public final Z80State getZ80State(Z80State state) {
         state.setRegA(regA);
         state.setRegF(getFlags());
         state.setRegB(regB);
@@ -1075,7 +1187,7 @@ public class Z80 {
         int memHL = MemIoImpl.peek8(memptr);
         regA = (regA & 0xf0) | (memHL & 0x0f);
         MemIoImpl.addressOnBus(memptr, 4);
-        MemIoImpl.poke8(memptr, (memHL >>> 4) | aux);
+        poke8(memptr, (memHL >>> 4) | aux);
         sz5h3pnFlags = sz53pn_addTable[regA];
         memptr++;
         flagQ = true;
@@ -1093,7 +1205,7 @@ public class Z80 {
         int memHL = MemIoImpl.peek8(memptr);
         regA = (regA & 0xf0) | (memHL >>> 4);
         MemIoImpl.addressOnBus(memptr, 4);
-        MemIoImpl.poke8(memptr, ((memHL << 4) | aux) & 0xff);
+        poke8(memptr, ((memHL << 4) | aux) & 0xff);
         sz5h3pnFlags = sz53pn_addTable[regA];
         memptr++;
         flagQ = true;
@@ -1146,15 +1258,8 @@ public class Z80 {
     private int inc8(int oper8) {
         oper8 = (oper8 + 1) & 0xff;
 
-        sz5h3pnFlags = sz53n_addTable[oper8];
-
-        if ((oper8 & 0x0f) == 0) {
-            sz5h3pnFlags |= HALFCARRY_MASK;
-        }
-
-        if (oper8 == 0x80) {
-            sz5h3pnFlags |= OVERFLOW_MASK;
-        }
+        lazyFlags = LAZY_INC;
+        lazyResult = oper8;
 
         flagQ = true;
         return oper8;
@@ -1164,15 +1269,8 @@ public class Z80 {
     private int dec8(int oper8) {
         oper8 = (oper8 - 1) & 0xff;
 
-        sz5h3pnFlags = sz53n_subTable[oper8];
-
-        if ((oper8 & 0x0f) == 0x0f) {
-            sz5h3pnFlags |= HALFCARRY_MASK;
-        }
-
-        if (oper8 == 0x7f) {
-            sz5h3pnFlags |= OVERFLOW_MASK;
-        }
+        lazyFlags = LAZY_DEC;
+        lazyResult = oper8;
 
         flagQ = true;
         return oper8;
@@ -1184,18 +1282,11 @@ public class Z80 {
 
         carryFlag = res > 0xff;
         res &= 0xff;
-        sz5h3pnFlags = sz53n_addTable[res];
-
-        /* El módulo 16 del resultado será menor que el módulo 16 del registro A
-         * si ha habido HalfCarry. Sucede lo mismo para todos los métodos suma
-         * SIN carry */
-        if ((res & 0x0f) < (regA & 0x0f)) {
-            sz5h3pnFlags |= HALFCARRY_MASK;
-        }
 
-        if (((regA ^ ~oper8) & (regA ^ res)) > 0x7f) {
-            sz5h3pnFlags |= OVERFLOW_MASK;
-        }
+        lazyFlags = LAZY_ADD;
+        lazyOperandA = regA;
+        lazyOperand = oper8;
+        lazyResult = res;
 
         regA = res;
         flagQ = true;
@@ -1211,15 +1302,11 @@ public class Z80 {
 
         carryFlag = res > 0xff;
         res &= 0xff;
-        sz5h3pnFlags = sz53n_addTable[res];
 
-        if (((regA ^ oper8 ^ res) & 0x10) != 0) {
-            sz5h3pnFlags |= HALFCARRY_MASK;
-        }
-
-        if (((regA ^ ~oper8) & (regA ^ res)) > 0x7f) {
-            sz5h3pnFlags |= OVERFLOW_MASK;
-        }
+        lazyFlags = LAZY_ADC;
+        lazyOperandA = regA;
+        lazyOperand = oper8;
+        lazyResult = res;
 
         regA = res;
         flagQ = true;
@@ -1278,18 +1365,11 @@ public class Z80 {
 
         carryFlag = res < 0;
         res &= 0xff;
-        sz5h3pnFlags = sz53n_subTable[res];
-
-        /* El módulo 16 del resultado será mayor que el módulo 16 del registro A
-         * si ha habido HalfCarry. Sucede lo mismo para todos los métodos resta
-         * SIN carry, incluido cp */
-        if ((res & 0x0f) > (regA & 0x0f)) {
-            sz5h3pnFlags |= HALFCARRY_MASK;
-        }
 
-        if (((regA ^ oper8) & (regA ^ res)) > 0x7f) {
-            sz5h3pnFlags |= OVERFLOW_MASK;
-        }
+        lazyFlags = LAZY_SUB;
+        lazyOperandA = regA;
+        lazyOperand = oper8;
+        lazyResult = res;
 
         regA = res;
         flagQ = true;
@@ -1305,15 +1385,11 @@ public class Z80 {
 
         carryFlag = res < 0;
         res &= 0xff;
-        sz5h3pnFlags = sz53n_subTable[res];
-
-        if (((regA ^ oper8 ^ res) & 0x10) != 0) {
-            sz5h3pnFlags |= HALFCARRY_MASK;
-        }
 
-        if (((regA ^ oper8) & (regA ^ res)) > 0x7f) {
-            sz5h3pnFlags |= OVERFLOW_MASK;
-        }
+        lazyFlags = LAZY_SBC;
+        lazyOperandA = regA;
+        lazyOperand = oper8;
+        lazyResult = res;
 
         regA = res;
         flagQ = true;
@@ -1352,7 +1428,8 @@ public class Z80 {
     private void and(int oper8) {
         regA &= oper8;
         carryFlag = false;
-        sz5h3pnFlags = sz53pn_addTable[regA] | HALFCARRY_MASK;
+        lazyFlags = LAZY_AND;
+        lazyResult = regA;
         flagQ = true;
     }
 
@@ -1360,7 +1437,8 @@ public class Z80 {
     private void xor(int oper8) {
         regA = (regA ^ oper8) & 0xff;
         carryFlag = false;
-        sz5h3pnFlags = sz53pn_addTable[regA];
+        lazyFlags = LAZY_XOR_OR;
+        lazyResult = regA;
         flagQ = true;
     }
 
@@ -1368,7 +1446,8 @@ public class Z80 {
     private void or(int oper8) {
         regA = (regA | oper8) & 0xff;
         carryFlag = false;
-        sz5h3pnFlags = sz53pn_addTable[regA];
+        lazyFlags = LAZY_XOR_OR;
+        lazyResult = regA;
         flagQ = true;
     }
 
@@ -1382,19 +1461,108 @@ public class Z80 {
         carryFlag = res < 0;
         res &= 0xff;
 
-        sz5h3pnFlags = (sz53n_addTable[oper8] & FLAG_53_MASK)
-            | // No necesito preservar H, pero está a 0 en la tabla de todas formas
-            (sz53n_subTable[res] & FLAG_SZHN_MASK);
+        lazyFlags = LAZY_CP;
+        lazyOperandA = regA;
+        lazyOperand = oper8;
+        lazyResult = res;
 
-        if ((res & 0x0f) > (regA & 0x0f)) {
-            sz5h3pnFlags |= HALFCARRY_MASK;
+        flagQ = true;
+    }
+
+    // Calcula sz5h3pnFlags a partir de la última operación de 8 bits
+    // pendiente, con las mismas reglas que se aplicaban al ejecutarla.
+    private void evalFlags() {
+        if (lazyFlags == LAZY_NONE) {
+            return;
         }
 
-        if (((regA ^ oper8) & (regA ^ res)) > 0x7f) {
-            sz5h3pnFlags |= OVERFLOW_MASK;
+        int regA = lazyOperandA;
+        int oper8 = lazyOperand;
+        int res = lazyResult;
+
+        switch (lazyFlags) {
+            case LAZY_ADD:
+                sz5h3pnFlags = sz53n_addTable[res];
+                /* El módulo 16 del resultado será menor que el módulo 16 del registro A
+                 * si ha habido HalfCarry. Sucede lo mismo para todos los métodos suma
+                 * SIN carry */
+                if ((res & 0x0f) < (regA & 0x0f)) {
+                    sz5h3pnFlags |= HALFCARRY_MASK;
+                }
+                if (((regA ^ ~oper8) & (regA ^ res)) > 0x7f) {
+                    sz5h3pnFlags |= OVERFLOW_MASK;
+                }
+                break;
+            case LAZY_ADC:
+                sz5h3pnFlags = sz53n_addTable[res];
+                if (((regA ^ oper8 ^ res) & 0x10) != 0) {
+                    sz5h3pnFlags |= HALFCARRY_MASK;
+                }
+                if (((regA ^ ~oper8) & (regA ^ res)) > 0x7f) {
+                    sz5h3pnFlags |= OVERFLOW_MASK;
+                }
+                break;
+            case LAZY_SUB:
+                sz5h3pnFlags = sz53n_subTable[res];
+                /* El módulo 16 del resultado será mayor que el módulo 16 del registro A
+                 * si ha habido HalfCarry. Sucede lo mismo para todos los métodos resta
+                 * SIN carry, incluido cp */
+                if ((res & 0x0f) > (regA & 0x0f)) {
+                    sz5h3pnFlags |= HALFCARRY_MASK;
+                }
+                if (((regA ^ oper8) & (regA ^ res)) > 0x7f) {
+                    sz5h3pnFlags |= OVERFLOW_MASK;
+                }
+                break;
+            case LAZY_SBC:
+                sz5h3pnFlags = sz53n_subTable[res];
+                if (((regA ^ oper8 ^ res) & 0x10) != 0) {
+                    sz5h3pnFlags |= HALFCARRY_MASK;
+                }
+                if (((regA ^ oper8) & (regA ^ res)) > 0x7f) {
+                    sz5h3pnFlags |= OVERFLOW_MASK;
+                }
+                break;
+            case LAZY_CP:
+                // Los flags SIGN y ZERO se calculan a partir del resultado
+                // Los flags 3 y 5 se copian desde el operando (sigh!)
+                sz5h3pnFlags = (sz53n_addTable[oper8] & FLAG_53_MASK)
+                    | // No necesito preservar H, pero está a 0 en la tabla de todas formas
+                    (sz53n_subTable[res] & FLAG_SZHN_MASK);
+                if ((res & 0x0f) > (regA & 0x0f)) {
+                    sz5h3pnFlags |= HALFCARRY_MASK;
+                }
+                if (((regA ^ oper8) & (regA ^ res)) > 0x7f) {
+                    sz5h3pnFlags |= OVERFLOW_MASK;
+                }
+                break;
+            case LAZY_INC:
+                sz5h3pnFlags = sz53n_addTable[res];
+                if ((res & 0x0f) == 0) {
+                    sz5h3pnFlags |= HALFCARRY_MASK;
+                }
+                if (res == 0x80) {
+                    sz5h3pnFlags |= OVERFLOW_MASK;
+                }
+                break;
+            case LAZY_DEC:
+                sz5h3pnFlags = sz53n_subTable[res];
+                if ((res & 0x0f) == 0x0f) {
+                    sz5h3pnFlags |= HALFCARRY_MASK;
+                }
+                if (res == 0x7f) {
+                    sz5h3pnFlags |= OVERFLOW_MASK;
+                }
+                break;
+            case LAZY_AND:
+                sz5h3pnFlags = sz53pn_addTable[res] | HALFCARRY_MASK;
+                break;
+            case LAZY_XOR_OR:
+                sz5h3pnFlags = sz53pn_addTable[res];
+                break;
         }
 
-        flagQ = true;
+        lazyFlags = LAZY_NONE;
     }
 
     // DAA
@@ -1416,10 +1584,12 @@ public class Z80 {
 
         if ((sz5h3pnFlags & ADDSUB_MASK) != 0) {
             sub(suma);
+            evalFlags();
             sz5h3pnFlags = (sz5h3pnFlags & HALFCARRY_MASK) | sz53pn_subTable[regA];
         }
         else {
             add(suma);
+            evalFlags();
             sz5h3pnFlags = (sz5h3pnFlags & HALFCARRY_MASK) | sz53pn_addTable[regA];
         }
 
@@ -1435,19 +1605,58 @@ public class Z80 {
         return word;
     }
 
+    // Lectura de los operandos que siguen al código de operación. Desde la
+    // caché de bloques se toman los ya decodificados, cobrando los mismos
+    // tEstados que la lectura de memoria.
+    private int peekOperand8() {
+        if (cachedOperands == 0) {
+            return MemIoImpl.fetchOperand8(regPC);
+        }
+        MemIoImpl.cachedFetch(regPC, 3);
+        int value = cachedOperands & 0xff;
+        cachedOperands >>>= 8;
+        return value;
+    }
+
+    private int peekOperand16() {
+        if (cachedOperands == 0) {
+            return MemIoImpl.fetchOperand16(regPC);
+        }
+        MemIoImpl.cachedFetch(regPC, 6);
+        int value = cachedOperands & 0xffff;
+        cachedOperands >>>= 16;
+        return value;
+    }
+
+    // Escrituras en memoria, que invalidan los bloques cacheados afectados
+    private void poke8(int address, int value) {
+        MemIoImpl.poke8(address, value);
+        if (blockCache != null) {
+            blockCache.invalidate(address);
+        }
+    }
+
+    private void poke16(int address, int word) {
+        MemIoImpl.poke16(address, word);
+        if (blockCache != null) {
+            blockCache.invalidate(address);
+            blockCache.invalidate(address + 1);
+        }
+    }
+
     // PUSH
     private void push(int word) {
         regSP = (regSP - 1) & 0xffff;
-        MemIoImpl.poke8(regSP, word >>> 8);
+        poke8(regSP, word >>> 8);
         regSP = (regSP - 1) & 0xffff;
-        MemIoImpl.poke8(regSP, word);
+        poke8(regSP, word);
     }
 
     // LDI
     private void ldi() {
         int work8 = MemIoImpl.peek8(getRegHL());
         int regDE = getRegDE();
-        MemIoImpl.poke8(regDE, work8);
+        poke8(regDE, work8);
         MemIoImpl.addressOnBus(regDE, 2);
         incRegHL();
         incRegDE();
@@ -1470,7 +1679,7 @@ public class Z80 {
     private void ldd() {
         int work8 = MemIoImpl.peek8(getRegHL());
         int regDE = getRegDE();
-        MemIoImpl.poke8(regDE, work8);
+        poke8(regDE, work8);
         MemIoImpl.addressOnBus(regDE, 2);
         decRegHL();
         decRegDE();
@@ -1495,6 +1704,7 @@ public class Z80 {
         int memHL = MemIoImpl.peek8(regHL);
         boolean carry = carryFlag; // lo guardo porque cp lo toca
         cp(memHL);
+        evalFlags();
         carryFlag = carry;
         MemIoImpl.addressOnBus(regHL, 5);
         incRegHL();
@@ -1520,6 +1730,7 @@ public class Z80 {
         int memHL = MemIoImpl.peek8(regHL);
         boolean carry = carryFlag; // lo guardo porque cp lo toca
         cp(memHL);
+        evalFlags();
         carryFlag = carry;
         MemIoImpl.addressOnBus(regHL, 5);
         decRegHL();
@@ -1544,7 +1755,7 @@ public class Z80 {
         memptr = getRegBC();
         MemIoImpl.addressOnBus(getPairIR(), 1);
         int work8 = MemIoImpl.inPort(memptr);
-        MemIoImpl.poke8(getRegHL(), work8);
+        poke8(getRegHL(), work8);
 
         memptr++;
         regB = (regB - 1) & 0xff;
@@ -1573,12 +1784,85 @@ public class Z80 {
         flagQ = true;
     }
 
+    // No se hace la transferencia en bloque si alguna repetición intermedia
+    // debería atender una interrupción, notificar execDone, parar en un
+    // breakpoint o quedar en la traza
+    private boolean isBlockAllowed() {
+        return tracer == null && !execDone && !activeNMI
+            && !(ffIFF1 && !pendingEI && MemIoImpl.isActiveINT())
+            && !breakpointAt[(regPC - 2) & 0xffff];
+    }
+
+    /* Transferencia en bloque de INIR con un dispositivo que la admite:
+     * todas las repeticiones salvo la última se hacen con una sola llamada
+     * a inBlock, acreditando los mismos tEstados (21 por repetición) y
+     * dejando HL, B y R como tras ejecutarlas una a una. La última se
+     * ejecuta con ini, que deja los flags y memptr. Tampoco se hace si los
+     * datos sobrescriben la propia instrucción.
+     * Solo se agrupan las repeticiones que caben en lo que queda del
+     * presupuesto de run, para no retrasar los eventos de los dispositivos;
+     * las demás siguen en la próxima llamada.
+     */
+    private void inirBlock() {
+        if (!isBlockAllowed()) {
+            return;
+        }
+        int count = getBlockCount();
+        if (count <= 0) {
+            return;
+        }
+        int address = getRegHL();
+        int offset = (regPC - 2 - address) & 0xffff;
+        if (offset < count || ((offset + 1) & 0xffff) < count) {
+            return;
+        }
+
+        MemIoImpl.inBlock(getRegBC(), blockBuffer, count);
+        for (int i = 0; i < count; i++) {
+            poke8((address + i) & 0xffff, blockBuffer[i] & 0xff);
+        }
+        MemIoImpl.addressOnBus(getPairIR(), count * 18);
+
+        setRegHL((address + count) & 0xffff);
+        regB = (regB - count) & 0xff;
+        regR += count * 2;
+    }
+
+    // Igual que inirBlock, pero leyendo la memoria y con outBlock
+    private void otirBlock() {
+        if (!isBlockAllowed()) {
+            return;
+        }
+        int count = getBlockCount();
+        if (count <= 0) {
+            return;
+        }
+        int address = getRegHL();
+
+        for (int i = 0; i < count; i++) {
+            blockBuffer[i] = (byte) MemIoImpl.peek8((address + i) & 0xffff);
+        }
+        MemIoImpl.outBlock(((regB - 1) & 0xff) << 8 | regC, blockBuffer, count);
+        MemIoImpl.addressOnBus(getPairIR(), count * 18);
+
+        setRegHL((address + count) & 0xffff);
+        regB = (regB - count) & 0xff;
+        regR += count * 2;
+    }
+
+    // Repeticiones de INIR y OTIR que se pueden agrupar, todas salvo la última
+    // y limitadas a las que terminan antes del fin del presupuesto
+    private int getBlockCount() {
+        long remaining = runLimit - MemIoImpl.getTstates();
+        return (int) Math.min((regB - 1) & 0xff, remaining / 21);
+    }
+
     // IND
     private void ind() {
         memptr = getRegBC();
         MemIoImpl.addressOnBus(getPairIR(), 1);
         int work8 = MemIoImpl.inPort(memptr);
-        MemIoImpl.poke8(getRegHL(), work8);
+        poke8(getRegHL(), work8);
 
         memptr--;
         regB = (regB - 1) & 0xff;
@@ -1774,11 +2058,14 @@ public class Z80 {
 
     public final void setBreakpoint(int address, boolean state) {
         breakpointAt[address & 0xffff] = state;
+        if (state && blockCache != null) {
+            blockCache.invalidate(address);
+        }
     }
 
     public final void setBreakpoints(int[] address, boolean state) {
         for (int i = 0; i < address.length; i++) {
-            breakpointAt[address[i] & 0xffff] = state;
+            setBreakpoint(address[i], state);
         }
     }
 
@@ -1786,6 +2073,91 @@ public class Z80 {
         Arrays.fill(breakpointAt, false);
     }
 
+    /* La caché de bloques guarda las instrucciones ya decodificadas de cada
+     * bloque lineal de código (hasta el siguiente salto) y las ejecuta desde
+     * run sin volver a leerlas de memoria. Los registros y los tEstados son
+     * idénticos a los del intérprete. Las escrituras de la propia CPU
+     * invalidan los bloques afectados; si la memoria cambia por otro camino
+     * (cambio de página de ROM, carga de un programa, etc.) hay que llamar a
+     * invalidateBlockCache.
+     */
+    public final void setBlockCacheEnabled(boolean state) {
+        if (state) {
+            if (blockCache == null) {
+                blockCache = new BlockCache();
+            }
+        }
+        else {
+            blockCache = null;
+            translator = null;
+        }
+    }
+
+    public final boolean isBlockCacheEnabled() {
+        return blockCache != null;
+    }
+
+    /* El traductor compila a bytecode de la JVM los bloques de la caché que
+     * más se ejecutan (activa también la caché de bloques). Necesita Java 15
+     * o posterior para definir las clases ocultas; si no está disponible la
+     * llamada no tiene efecto y isTranslatorEnabled devuelve false.
+     */
+    public final void setTranslatorEnabled(boolean state) {
+        if (state) {
+            if (translator == null && Translator.isSupported()) {
+                setBlockCacheEnabled(true);
+                translator = new Translator(MethodHandles.lookup());
+            }
+        }
+        else {
+            translator = null;
+            if (blockCache != null) {
+                blockCache.clear();
+            }
+        }
+    }
+
+    public final boolean isTranslatorEnabled() {
+        return translator != null;
+    }
+
+    final Translator getTranslator() {
+        return translator;
+    }
+
+    public final void invalidateBlockCache() {
+        if (blockCache != null) {
+            blockCache.clear();
+        }
+    }
+
+    public final void invalidateBlockCache(int address) {
+        if (blockCache != null) {
+            blockCache.invalidate(address);
+        }
+    }
+
+    public final void invalidateBlockCache(int address, int length) {
+        if (blockCache != null) {
+            for (int i = 0; i < length; i++) {
+                blockCache.invalidate(address + i);
+            }
+        }
+    }
+
+    /* Con un TraceRecorder asignado, run ejecuta las instrucciones de una en
+     * una con execute, sin caché de bloques, y guarda un registro antes de
+     * cada una. Sin él la única comprobación es la de la entrada a run.
+     * Las instrucciones ejecutadas directamente con execute no se registran.
+     */
+    public final void setTracer(TraceRecorder tracer) {
+        this.tracer = tracer;
+    }
+
+    public final TraceRecorder getTracer() {
+        return tracer;
+    }
+
     public boolean isExecDone() {
         return execDone;
     }
@@ -1794,6 +2166,164 @@ public class Z80 {
         execDone = state;
     }
 
+    /* Ejecuta instrucciones en un bucle interno hasta consumir el presupuesto
+     * de tEstados, hasta que la siguiente instrucción tenga un breakpoint o
+     * hasta que la CPU se quede parada en un HALT (el llamante decide entonces
+     * cómo avanzar el tiempo hasta la siguiente interrupción).
+     * Siempre se ejecuta al menos una instrucción, de modo que se puede
+     * continuar desde un breakpoint volviendo a llamar al método.
+     * Devuelve los tEstados realmente ejecutados, que pueden superar el
+     * presupuesto en lo que dure la última instrucción.
+     */
+    public final long run(long tstates) {
+        if (tracer != null) {
+            return runTraced(tstates);
+        }
+
+        long start = MemIoImpl.getTstates();
+        long limit = start + tstates;
+
+        runLimit = limit;
+        try {
+            do {
+                if (blockCache != null) {
+                    executeBlock(limit);
+                }
+                else {
+                    execute();
+                }
+                if (halted) {
+                    break;
+                }
+            } while (MemIoImpl.getTstates() < limit && !breakpointAt[regPC]);
+        } finally {
+            runLimit = Long.MAX_VALUE;
+        }
+
+        return MemIoImpl.getTstates() - start;
+    }
+
+    private long runTraced(long tstates) {
+        long start = MemIoImpl.getTstates();
+        long limit = start + tstates;
+
+        do {
+            trace();
+            execute();
+            if (halted) {
+                break;
+            }
+        } while (MemIoImpl.getTstates() < limit && !breakpointAt[regPC]);
+
+        return MemIoImpl.getTstates() - start;
+    }
+
+    private void trace() {
+        int opcodes = MemIoImpl.peekCode(regPC) | MemIoImpl.peekCode((regPC + 1) & 0xffff) << 8
+            | MemIoImpl.peekCode((regPC + 2) & 0xffff) << 16 | MemIoImpl.peekCode((regPC + 3) & 0xffff) << 24;
+        int flags = (ffIFF1 ? TraceRecorder.FLAG_IFF1 : 0) | (ffIFF2 ? TraceRecorder.FLAG_IFF2 : 0) | (halted ? TraceRecorder.FLAG_HALT : 0)
+            | modeINT.ordinal() << TraceRecorder.IM_SHIFT;
+        tracer.record(MemIoImpl.getTstates(), regPC, opcodes, regA << 8 | getFlags(), regB << 8 | regC, regD << 8 | regE, regH << 8 | regL,
+            regSP, regIX, regIY, regI, getRegR(), flags);
+    }
+
+    /* Ejecuta desde la caché el bloque que empieza en PC, con la misma
+     * secuencia de accesos al bus y las mismas comprobaciones al final de
+     * cada instrucción que execute. Se sale del bloque al agotar el
+     * presupuesto, al atender una interrupción o si alguna escritura lo
+     * ha invalidado. Si la instrucción en PC no se puede cachear (prefijo
+     * ED, cadenas de prefijos, breakpoint) se ejecuta con execute.
+     */
+    private void executeBlock(long limit) {
+        BlockCache.Block block = null;
+        if (!breakpointAt[regPC]) {
+            block = blockCache.getBlock(regPC, MemIoImpl, breakpointAt);
+        }
+        if (block == null) {
+            execute();
+            return;
+        }
+
+        if (translator != null) {
+            if (block.code == null && ++block.hits == translator.threshold) {
+                block.code = translator.translate(block);
+            }
+            if (block.code != null) {
+                block.code.execute(this, block, limit);
+                return;
+            }
+        }
+
+        int[] ops = block.ops;
+        for (int i = 0; i < ops.length; i++) {
+            int op = ops[i];
+            int opCode = op & 0xff;
+
+            MemIoImpl.cachedFetch(regPC, 4);
+            regR++;
+            regPC = (regPC + 1) & 0xffff;
+
+            flagQ = false;
+
+            switch (opCode) {
+                case 0xCB:
+                    MemIoImpl.cachedFetch(regPC, 4);
+                    regPC = (regPC + 1) & 0xffff;
+                    regR++;
+                    executeCB((op >>> 8) & 0xff);
+                    break;
+                case 0xDD:
+                    MemIoImpl.cachedFetch(regPC, 4);
+                    regR++;
+                    regPC = (regPC + 1) & 0xffff;
+                    flagQ = false;
+                    opCode = (op >>> 8) & 0xff;
+                    cachedOperands = (op >>> 16) | OPERANDS_MARKER;
+                    regIX = decodeDDFD(opCode, regIX);
+                    break;
+                case 0xFD:
+                    MemIoImpl.cachedFetch(regPC, 4);
+                    regR++;
+                    regPC = (regPC + 1) & 0xffff;
+                    flagQ = false;
+                    opCode = (op >>> 8) & 0xff;
+                    cachedOperands = (op >>> 16) | OPERANDS_MARKER;
+                    regIY = decodeDDFD(opCode, regIY);
+                    break;
+                default:
+                    cachedOperands = (op >>> 8) | OPERANDS_MARKER;
+                    decodeOpcode(opCode);
+                    break;
+            }
+            cachedOperands = 0;
+
+            lastFlagQ = flagQ;
+
+            if (pendingEI && opCode != 0xFB) {
+                pendingEI = false;
+            }
+
+            if (execDone) {
+                NotifyImpl.execDone();
+            }
+
+            if (activeNMI) {
+                activeNMI = false;
+                nmi();
+                return;
+            }
+
+            if (ffIFF1 && !pendingEI && MemIoImpl.isActiveINT()) {
+                interruption();
+                return;
+            }
+
+            if (!block.valid || MemIoImpl.getTstates() >= limit) {
+                return;
+            }
+        }
+    }
+
     /* Los tEstados transcurridos se calculan teniendo en cuenta el número de
      * ciclos de máquina reales que se ejecutan. Esa es la única forma de poder
      * simular la contended memory del Spectrum.
@@ -1803,7 +2333,7 @@ public class Z80 {
         int opCode = MemIoImpl.fetchOpcode(regPC);
         regR++;
 
-        if (prefixOpcode == 0 && breakpointAt[regPC]) {
+        if (breakpointAt[regPC]) {
             opCode = NotifyImpl.breakpoint(regPC, opCode);
         }
 
@@ -1811,29 +2341,36 @@ public class Z80 {
 
         flagQ = false;
 
+        decodeOpcode(opCode);
+
         // El prefijo 0xCB no cuenta para esta guerra.
         // En CBxx todas las xx producen un código válido
         // de instrucción, incluyendo CBCB.
-        switch (prefixOpcode) {
-            case 0x00:
-                decodeOpcode(opCode);
-                break;
-            case 0xDD:
-                regIX = decodeDDFD(opCode, regIX);
-                break;
-            case 0xED:
-                decodeED(opCode);
-                break;
-            case 0xFD:
-                regIY = decodeDDFD(opCode, regIY);
-                break;
-            default:
-                System.out.println(String.format("ERROR!: prefixOpcode = %02x, opCode = %02x", prefixOpcode, opCode));
-        }
+        // El resto de prefijos (y las cadenas de DD/FD) se decodifican en
+        // este mismo bucle, sin recursión, de modo que las comprobaciones
+        // de breakpoints, execDone e interrupciones se hacen una sola vez
+        // por instrucción completa.
+        while (prefixOpcode != 0x00) {
+            opCode = MemIoImpl.fetchOpcode(regPC);
+            regR++;
+            regPC = (regPC + 1) & 0xffff;
 
-        if (prefixOpcode != 0x00) {
-            execute();
-            return;
+            flagQ = false;
+
+            switch (prefixOpcode) {
+                case 0xDD:
+                    regIX = decodeDDFD(opCode, regIX);
+                    break;
+                case 0xED:
+                    decodeED(opCode);
+                    break;
+                case 0xFD:
+                    regIY = decodeDDFD(opCode, regIY);
+                    break;
+                default:
+                    System.out.println(String.format("ERROR!: prefixOpcode = %02x, opCode = %02x", prefixOpcode, opCode));
+                    prefixOpcode = 0x00;
+            }
         }
 
         lastFlagQ = flagQ;
@@ -1864,17 +2401,20 @@ public class Z80 {
     }
 
     private void decodeOpcode(int opCode) {
+        if (flagsNeeded[opCode] && lazyFlags != LAZY_NONE) {
+            evalFlags();
+        }
 
         switch (opCode) {
             //            case 0x00:       /* NOP */
             //                break;
             case 0x01: { /* LD BC,nn */
-                setRegBC(MemIoImpl.peek16(regPC));
+                setRegBC(peekOperand16());
                 regPC = (regPC + 2) & 0xffff;
                 break;
             }
             case 0x02: { /* LD (BC),A */
-                MemIoImpl.poke8(getRegBC(), regA);
+                poke8(getRegBC(), regA);
                 memptr = (regA << 8) | ((regC + 1) & 0xff);
                 break;
             }
@@ -1892,7 +2432,7 @@ public class Z80 {
                 break;
             }
             case 0x06: { /* LD B,n */
-                regB = MemIoImpl.peek8(regPC);
+                regB = peekOperand8();
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -1940,7 +2480,7 @@ public class Z80 {
                 break;
             }
             case 0x0E: { /* LD C,n */
-                regC = MemIoImpl.peek8(regPC);
+                regC = peekOperand8();
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -1956,7 +2496,7 @@ public class Z80 {
             }
             case 0x10: { /* DJNZ e */
                 MemIoImpl.addressOnBus(getPairIR(), 1);
-                byte offset = (byte) MemIoImpl.peek8(regPC);
+                byte offset = (byte) peekOperand8();
                 regB--;
                 if (regB != 0) {
                     regB &= 0xff;
@@ -1969,12 +2509,12 @@ public class Z80 {
                 break;
             }
             case 0x11: { /* LD DE,nn */
-                setRegDE(MemIoImpl.peek16(regPC));
+                setRegDE(peekOperand16());
                 regPC = (regPC + 2) & 0xffff;
                 break;
             }
             case 0x12: { /* LD (DE),A */
-                MemIoImpl.poke8(getRegDE(), regA);
+                poke8(getRegDE(), regA);
                 memptr = (regA << 8) | ((regE + 1) & 0xff);
                 break;
             }
@@ -1992,7 +2532,7 @@ public class Z80 {
                 break;
             }
             case 0x16: { /* LD D,n */
-                regD = MemIoImpl.peek8(regPC);
+                regD = peekOperand8();
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -2008,7 +2548,7 @@ public class Z80 {
                 break;
             }
             case 0x18: { /* JR e */
-                byte offset = (byte) MemIoImpl.peek8(regPC);
+                byte offset = (byte) peekOperand8();
                 MemIoImpl.addressOnBus(regPC, 5);
                 regPC = memptr = (regPC + offset + 1) & 0xffff;
                 break;
@@ -2037,7 +2577,7 @@ public class Z80 {
                 break;
             }
             case 0x1E: { /* LD E,n */
-                regE = MemIoImpl.peek8(regPC);
+                regE = peekOperand8();
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -2053,8 +2593,8 @@ public class Z80 {
                 break;
             }
             case 0x20: { /* JR NZ,e */
-                byte offset = (byte) MemIoImpl.peek8(regPC);
-                if ((sz5h3pnFlags & ZERO_MASK) == 0) {
+                byte offset = (byte) peekOperand8();
+                if (!isZeroFlag()) {
                     MemIoImpl.addressOnBus(regPC, 5);
                     regPC += offset;
                     memptr = regPC + 1;
@@ -2063,13 +2603,13 @@ public class Z80 {
                 break;
             }
             case 0x21: { /* LD HL,nn */
-                setRegHL(MemIoImpl.peek16(regPC));
+                setRegHL(peekOperand16());
                 regPC = (regPC + 2) & 0xffff;
                 break;
             }
             case 0x22: { /* LD (nn),HL */
-                memptr = MemIoImpl.peek16(regPC);
-                MemIoImpl.poke16(memptr++, getRegHL());
+                memptr = peekOperand16();
+                poke16(memptr++, getRegHL());
                 regPC = (regPC + 2) & 0xffff;
                 break;
             }
@@ -2087,7 +2627,7 @@ public class Z80 {
                 break;
             }
             case 0x26: { /* LD H,n */
-                regH = MemIoImpl.peek8(regPC);
+                regH = peekOperand8();
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -2096,8 +2636,8 @@ public class Z80 {
                 break;
             }
             case 0x28: { /* JR Z,e */
-                byte offset = (byte) MemIoImpl.peek8(regPC);
-                if ((sz5h3pnFlags & ZERO_MASK) != 0) {
+                byte offset = (byte) peekOperand8();
+                if (isZeroFlag()) {
                     MemIoImpl.addressOnBus(regPC, 5);
                     regPC += offset;
                     memptr = regPC + 1;
@@ -2112,7 +2652,7 @@ public class Z80 {
                 break;
             }
             case 0x2A: { /* LD HL,(nn) */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 setRegHL(MemIoImpl.peek16(memptr++));
                 regPC = (regPC + 2) & 0xffff;
                 break;
@@ -2131,7 +2671,7 @@ public class Z80 {
                 break;
             }
             case 0x2E: { /* LD L,n */
-                regL = MemIoImpl.peek8(regPC);
+                regL = peekOperand8();
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -2143,7 +2683,7 @@ public class Z80 {
                 break;
             }
             case 0x30: { /* JR NC,e */
-                byte offset = (byte) MemIoImpl.peek8(regPC);
+                byte offset = (byte) peekOperand8();
                 if (!carryFlag) {
                     MemIoImpl.addressOnBus(regPC, 5);
                     regPC += offset;
@@ -2153,13 +2693,13 @@ public class Z80 {
                 break;
             }
             case 0x31: { /* LD SP,nn */
-                regSP = MemIoImpl.peek16(regPC);
+                regSP = peekOperand16();
                 regPC = (regPC + 2) & 0xffff;
                 break;
             }
             case 0x32: { /* LD (nn),A */
-                memptr = MemIoImpl.peek16(regPC);
-                MemIoImpl.poke8(memptr, regA);
+                memptr = peekOperand16();
+                poke8(memptr, regA);
                 memptr = (regA << 8) | ((memptr + 1) & 0xff);
                 regPC = (regPC + 2) & 0xffff;
                 break;
@@ -2173,18 +2713,18 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = inc8(MemIoImpl.peek8(work16));
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x35: { /* DEC (HL) */
                 int work16 = getRegHL();
                 int work8 = dec8(MemIoImpl.peek8(work16));
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x36: { /* LD (HL),n */
-                MemIoImpl.poke8(getRegHL(), MemIoImpl.peek8(regPC));
+                poke8(getRegHL(), peekOperand8());
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -2196,7 +2736,7 @@ public class Z80 {
                 break;
             }
             case 0x38: { /* JR C,e */
-                byte offset = (byte) MemIoImpl.peek8(regPC);
+                byte offset = (byte) peekOperand8();
                 if (carryFlag) {
                     MemIoImpl.addressOnBus(regPC, 5);
                     regPC += offset;
@@ -2211,7 +2751,7 @@ public class Z80 {
                 break;
             }
             case 0x3A: { /* LD A,(nn) */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 regA = MemIoImpl.peek8(memptr++);
                 regPC = (regPC + 2) & 0xffff;
                 break;
@@ -2230,7 +2770,7 @@ public class Z80 {
                 break;
             }
             case 0x3E: { /* LD A,n */
-                regA = MemIoImpl.peek8(regPC);
+                regA = peekOperand8();
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -2431,27 +2971,27 @@ public class Z80 {
                 break;
             }
             case 0x70: { /* LD (HL),B */
-                MemIoImpl.poke8(getRegHL(), regB);
+                poke8(getRegHL(), regB);
                 break;
             }
             case 0x71: { /* LD (HL),C */
-                MemIoImpl.poke8(getRegHL(), regC);
+                poke8(getRegHL(), regC);
                 break;
             }
             case 0x72: { /* LD (HL),D */
-                MemIoImpl.poke8(getRegHL(), regD);
+                poke8(getRegHL(), regD);
                 break;
             }
             case 0x73: { /* LD (HL),E */
-                MemIoImpl.poke8(getRegHL(), regE);
+                poke8(getRegHL(), regE);
                 break;
             }
             case 0x74: { /* LD (HL),H */
-                MemIoImpl.poke8(getRegHL(), regH);
+                poke8(getRegHL(), regH);
                 break;
             }
             case 0x75: { /* LD (HL),L */
-                MemIoImpl.poke8(getRegHL(), regL);
+                poke8(getRegHL(), regL);
                 break;
             }
             case 0x76: { /* HALT */
@@ -2460,7 +3000,7 @@ public class Z80 {
                 break;
             }
             case 0x77: { /* LD (HL),A */
-                MemIoImpl.poke8(getRegHL(), regA);
+                poke8(getRegHL(), regA);
                 break;
             }
             case 0x78: { /* LD A,B */
@@ -2752,7 +3292,7 @@ public class Z80 {
             }
             case 0xC0: { /* RET NZ */
                 MemIoImpl.addressOnBus(getPairIR(), 1);
-                if ((sz5h3pnFlags & ZERO_MASK) == 0) {
+                if (!isZeroFlag()) {
                     regPC = memptr = pop();
                 }
                 break;
@@ -2762,8 +3302,8 @@ public class Z80 {
                 break;
             }
             case 0xC2: { /* JP NZ,nn */
-                memptr = MemIoImpl.peek16(regPC);
-                if ((sz5h3pnFlags & ZERO_MASK) == 0) {
+                memptr = peekOperand16();
+                if (!isZeroFlag()) {
                     regPC = memptr;
                     break;
                 }
@@ -2771,12 +3311,12 @@ public class Z80 {
                 break;
             }
             case 0xC3: { /* JP nn */
-                memptr = regPC = MemIoImpl.peek16(regPC);
+                memptr = regPC = peekOperand16();
                 break;
             }
             case 0xC4: { /* CALL NZ,nn */
-                memptr = MemIoImpl.peek16(regPC);
-                if ((sz5h3pnFlags & ZERO_MASK) == 0) {
+                memptr = peekOperand16();
+                if (!isZeroFlag()) {
                     MemIoImpl.addressOnBus((regPC + 1) & 0xffff, 1);
                     push(regPC + 2);
                     regPC = memptr;
@@ -2791,7 +3331,7 @@ public class Z80 {
                 break;
             }
             case 0xC6: { /* ADD A,n */
-                add(MemIoImpl.peek8(regPC));
+                add(peekOperand8());
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -2803,7 +3343,7 @@ public class Z80 {
             }
             case 0xC8: { /* RET Z */
                 MemIoImpl.addressOnBus(getPairIR(), 1);
-                if ((sz5h3pnFlags & ZERO_MASK) != 0) {
+                if (isZeroFlag()) {
                     regPC = memptr = pop();
                 }
                 break;
@@ -2813,8 +3353,8 @@ public class Z80 {
                 break;
             }
             case 0xCA: { /* JP Z,nn */
-                memptr = MemIoImpl.peek16(regPC);
-                if ((sz5h3pnFlags & ZERO_MASK) != 0) {
+                memptr = peekOperand16();
+                if (isZeroFlag()) {
                     regPC = memptr;
                     break;
                 }
@@ -2826,8 +3366,8 @@ public class Z80 {
                 break;
             }
             case 0xCC: { /* CALL Z,nn */
-                memptr = MemIoImpl.peek16(regPC);
-                if ((sz5h3pnFlags & ZERO_MASK) != 0) {
+                memptr = peekOperand16();
+                if (isZeroFlag()) {
                     MemIoImpl.addressOnBus((regPC + 1) & 0xffff, 1);
                     push(regPC + 2);
                     regPC = memptr;
@@ -2837,14 +3377,14 @@ public class Z80 {
                 break;
             }
             case 0xCD: { /* CALL nn */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 MemIoImpl.addressOnBus((regPC + 1) & 0xffff, 1);
                 push(regPC + 2);
                 regPC = memptr;
                 break;
             }
             case 0xCE: { /* ADC A,n */
-                adc(MemIoImpl.peek8(regPC));
+                adc(peekOperand8());
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -2866,7 +3406,7 @@ public class Z80 {
                 break;
             }
             case 0xD2: { /* JP NC,nn */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 if (!carryFlag) {
                     regPC = memptr;
                     break;
@@ -2875,7 +3415,7 @@ public class Z80 {
                 break;
             }
             case 0xD3: { /* OUT (n),A */
-                int work8 = MemIoImpl.peek8(regPC);
+                int work8 = peekOperand8();
                 memptr = regA << 8;
                 MemIoImpl.outPort(memptr | work8, regA);
                 memptr |= ((work8 + 1) & 0xff);
@@ -2883,7 +3423,7 @@ public class Z80 {
                 break;
             }
             case 0xD4: { /* CALL NC,nn */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 if (!carryFlag) {
                     MemIoImpl.addressOnBus((regPC + 1) & 0xffff, 1);
                     push(regPC + 2);
@@ -2899,7 +3439,7 @@ public class Z80 {
                 break;
             }
             case 0xD6: { /* SUB n */
-                sub(MemIoImpl.peek8(regPC));
+                sub(peekOperand8());
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -2943,7 +3483,7 @@ public class Z80 {
                 break;
             }
             case 0xDA: { /* JP C,nn */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 if (carryFlag) {
                     regPC = memptr;
                     break;
@@ -2952,13 +3492,13 @@ public class Z80 {
                 break;
             }
             case 0xDB: { /* IN A,(n) */
-                memptr = (regA << 8) | MemIoImpl.peek8(regPC);
+                memptr = (regA << 8) | peekOperand8();
                 regA = MemIoImpl.inPort(memptr++);
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
             case 0xDC: { /* CALL C,nn */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 if (carryFlag) {
                     MemIoImpl.addressOnBus((regPC + 1) & 0xffff, 1);
                     push(regPC + 2);
@@ -2973,7 +3513,7 @@ public class Z80 {
                 break;
             }
             case 0xDE: { /* SBC A,n */
-                sbc(MemIoImpl.peek8(regPC));
+                sbc(peekOperand8());
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -2993,7 +3533,7 @@ public class Z80 {
                 setRegHL(pop());
                 break;
             case 0xE2: /* JP PO,nn */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 if ((sz5h3pnFlags & PARITY_MASK) == 0) {
                     regPC = memptr;
                     break;
@@ -3007,14 +3547,14 @@ public class Z80 {
                 setRegHL(MemIoImpl.peek16(regSP));
                 MemIoImpl.addressOnBus((regSP + 1) & 0xffff, 1);
                 // No se usa poke16 porque el Z80 escribe los bytes AL REVES
-                MemIoImpl.poke8((regSP + 1) & 0xffff, work16);
-                MemIoImpl.poke8(regSP, work8);
+                poke8((regSP + 1) & 0xffff, work16);
+                poke8(regSP, work8);
                 MemIoImpl.addressOnBus(regSP, 2);
                 memptr = getRegHL();
                 break;
             }
             case 0xE4: /* CALL PO,nn */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 if ((sz5h3pnFlags & PARITY_MASK) == 0) {
                     MemIoImpl.addressOnBus((regPC + 1) & 0xffff, 1);
                     push(regPC + 2);
@@ -3028,7 +3568,7 @@ public class Z80 {
                 push(getRegHL());
                 break;
             case 0xE6: /* AND n */
-                and(MemIoImpl.peek8(regPC));
+                and(peekOperand8());
                 regPC = (regPC + 1) & 0xffff;
                 break;
             case 0xE7: /* RST 20H */
@@ -3046,7 +3586,7 @@ public class Z80 {
                 regPC = getRegHL();
                 break;
             case 0xEA: /* JP PE,nn */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 if ((sz5h3pnFlags & PARITY_MASK) != 0) {
                     regPC = memptr;
                     break;
@@ -3064,7 +3604,7 @@ public class Z80 {
                 break;
             }
             case 0xEC: /* CALL PE,nn */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 if ((sz5h3pnFlags & PARITY_MASK) != 0) {
                     MemIoImpl.addressOnBus((regPC + 1) & 0xffff, 1);
                     push(regPC + 2);
@@ -3077,7 +3617,7 @@ public class Z80 {
                 prefixOpcode = 0xED;
                 break;
             case 0xEE: /* XOR n */
-                xor(MemIoImpl.peek8(regPC));
+                xor(peekOperand8());
                 regPC = (regPC + 1) & 0xffff;
                 break;
             case 0xEF: /* RST 28H */
@@ -3087,7 +3627,7 @@ public class Z80 {
                 break;
             case 0xF0: /* RET P */
                 MemIoImpl.addressOnBus(getPairIR(), 1);
-                if (sz5h3pnFlags < SIGN_MASK) {
+                if (!isSignFlag()) {
                     regPC = memptr = pop();
                 }
                 break;
@@ -3095,8 +3635,8 @@ public class Z80 {
                 setRegAF(pop());
                 break;
             case 0xF2: /* JP P,nn */
-                memptr = MemIoImpl.peek16(regPC);
-                if (sz5h3pnFlags < SIGN_MASK) {
+                memptr = peekOperand16();
+                if (!isSignFlag()) {
                     regPC = memptr;
                     break;
                 }
@@ -3106,8 +3646,8 @@ public class Z80 {
                 ffIFF1 = ffIFF2 = false;
                 break;
             case 0xF4: /* CALL P,nn */
-                memptr = MemIoImpl.peek16(regPC);
-                if (sz5h3pnFlags < SIGN_MASK) {
+                memptr = peekOperand16();
+                if (!isSignFlag()) {
                     MemIoImpl.addressOnBus((regPC + 1) & 0xffff, 1);
                     push(regPC + 2);
                     regPC = memptr;
@@ -3120,7 +3660,7 @@ public class Z80 {
                 push(getRegAF());
                 break;
             case 0xF6: /* OR n */
-                or(MemIoImpl.peek8(regPC));
+                or(peekOperand8());
                 regPC = (regPC + 1) & 0xffff;
                 break;
             case 0xF7: /* RST 30H */
@@ -3130,7 +3670,7 @@ public class Z80 {
                 break;
             case 0xF8: /* RET M */
                 MemIoImpl.addressOnBus(getPairIR(), 1);
-                if (sz5h3pnFlags > 0x7f) {
+                if (isSignFlag()) {
                     regPC = memptr = pop();
                 }
                 break;
@@ -3139,8 +3679,8 @@ public class Z80 {
                 regSP = getRegHL();
                 break;
             case 0xFA: /* JP M,nn */
-                memptr = MemIoImpl.peek16(regPC);
-                if (sz5h3pnFlags > 0x7f) {
+                memptr = peekOperand16();
+                if (isSignFlag()) {
                     regPC = memptr;
                     break;
                 }
@@ -3151,8 +3691,8 @@ public class Z80 {
                 pendingEI = true;
                 break;
             case 0xFC: /* CALL M,nn */
-                memptr = MemIoImpl.peek16(regPC);
-                if (sz5h3pnFlags > 0x7f) {
+                memptr = peekOperand16();
+                if (isSignFlag()) {
                     MemIoImpl.addressOnBus((regPC + 1) & 0xffff, 1);
                     push(regPC + 2);
                     regPC = memptr;
@@ -3164,7 +3704,7 @@ public class Z80 {
                 prefixOpcode = 0xFD;
                 break;
             case 0xFE: /* CP n */
-                cp(MemIoImpl.peek8(regPC));
+                cp(peekOperand8());
                 regPC = (regPC + 1) & 0xffff;
                 break;
             case 0xFF: /* RST 38H */
@@ -3180,6 +3720,14 @@ public class Z80 {
         regPC = (regPC + 1) & 0xffff;
         regR++;
 
+        executeCB(opCode);
+    }
+
+    private void executeCB(int opCode) {
+        if (flagsNeededCB[opCode] && lazyFlags != LAZY_NONE) {
+            evalFlags();
+        }
+
         switch (opCode) {
             case 0x00: { /* RLC B */
                 regB = rlc(regB);
@@ -3209,7 +3757,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = rlc(MemIoImpl.peek8(work16));
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x07: { /* RLC A */
@@ -3244,7 +3792,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = rrc(MemIoImpl.peek8(work16));
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x0F: { /* RRC A */
@@ -3279,7 +3827,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = rl(MemIoImpl.peek8(work16));
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x17: { /* RL A */
@@ -3314,7 +3862,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = rr(MemIoImpl.peek8(work16));
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x1F: { /* RR A */
@@ -3349,7 +3897,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = sla(MemIoImpl.peek8(work16));
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x27: { /* SLA A */
@@ -3384,7 +3932,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = sra(MemIoImpl.peek8(work16));
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x2F: { /* SRA A */
@@ -3419,7 +3967,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = sll(MemIoImpl.peek8(work16));
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x37: { /* SLL A */
@@ -3454,7 +4002,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = srl(MemIoImpl.peek8(work16));
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x3F: { /* SRL A */
@@ -3777,7 +4325,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) & 0xFE;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x87: { /* RES 0,A */
@@ -3812,7 +4360,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) & 0xFD;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x8F: { /* RES 1,A */
@@ -3847,7 +4395,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) & 0xFB;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x97: { /* RES 2,A */
@@ -3882,7 +4430,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) & 0xF7;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0x9F: { /* RES 3,A */
@@ -3917,7 +4465,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) & 0xEF;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0xA7: { /* RES 4,A */
@@ -3952,7 +4500,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) & 0xDF;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0xAF: { /* RES 5,A */
@@ -3987,7 +4535,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) & 0xBF;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0xB7: { /* RES 6,A */
@@ -4022,7 +4570,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) & 0x7F;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0xBF: { /* RES 7,A */
@@ -4057,7 +4605,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) | 0x01;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0xC7: { /* SET 0,A */
@@ -4092,7 +4640,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) | 0x02;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0xCF: { /* SET 1,A */
@@ -4127,7 +4675,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) | 0x04;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0xD7: { /* SET 2,A */
@@ -4162,7 +4710,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) | 0x08;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0xDF: { /* SET 3,A */
@@ -4197,7 +4745,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) | 0x10;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0xE7: { /* SET 4,A */
@@ -4232,7 +4780,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) | 0x20;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0xEF: { /* SET 5,A */
@@ -4267,7 +4815,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) | 0x40;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0xF7: { /* SET 6,A */
@@ -4302,7 +4850,7 @@ public class Z80 {
                 int work16 = getRegHL();
                 int work8 = MemIoImpl.peek8(work16) | 0x80;
                 MemIoImpl.addressOnBus(work16, 1);
-                MemIoImpl.poke8(work16, work8);
+                poke8(work16, work8);
                 break;
             }
             case 0xFF: { /* SET 7,A */
@@ -4331,6 +4879,13 @@ public class Z80 {
      * interrupciones entre cada prefijo.
      */
     private int decodeDDFD(int opCode, int regIXY) {
+        // ADD IX,rr tiene el mismo código que ADD HL,rr, los códigos sin
+        // instrucción propia pasan por decodeOpcode y las DDCB hasta la 0x7F
+        // se comprueban en decodeDDFDCBto7F.
+        if (flagsNeeded[opCode] && lazyFlags != LAZY_NONE) {
+            evalFlags();
+        }
+
         prefixOpcode = 0;
         switch (opCode) {
             case 0x09: { /* ADD IX,BC */
@@ -4344,13 +4899,13 @@ public class Z80 {
                 break;
             }
             case 0x21: { /* LD IX,nn */
-                regIXY = MemIoImpl.peek16(regPC);
+                regIXY = peekOperand16();
                 regPC = (regPC + 2) & 0xffff;
                 break;
             }
             case 0x22: { /* LD (nn),IX */
-                memptr = MemIoImpl.peek16(regPC);
-                MemIoImpl.poke16(memptr++, regIXY);
+                memptr = peekOperand16();
+                poke16(memptr++, regIXY);
                 regPC = (regPC + 2) & 0xffff;
                 break;
             }
@@ -4368,7 +4923,7 @@ public class Z80 {
                 break;
             }
             case 0x26: { /* LD IXh,n */
-                regIXY = (MemIoImpl.peek8(regPC) << 8) | (regIXY & 0xff);
+                regIXY = (peekOperand8() << 8) | (regIXY & 0xff);
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -4378,7 +4933,7 @@ public class Z80 {
                 break;
             }
             case 0x2A: { /* LD IX,(nn) */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 regIXY = MemIoImpl.peek16(memptr++);
                 regPC = (regPC + 2) & 0xffff;
                 break;
@@ -4397,35 +4952,35 @@ public class Z80 {
                 break;
             }
             case 0x2E: { /* LD IXl,n */
-                regIXY = (regIXY & 0xff00) | MemIoImpl.peek8(regPC);
+                regIXY = (regIXY & 0xff00) | peekOperand8();
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
             case 0x34: { /* INC (IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 int work8 = MemIoImpl.peek8(memptr);
                 MemIoImpl.addressOnBus(memptr, 1);
-                MemIoImpl.poke8(memptr, inc8(work8));
+                poke8(memptr, inc8(work8));
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
             case 0x35: { /* DEC (IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 int work8 = MemIoImpl.peek8(memptr);
                 MemIoImpl.addressOnBus(memptr, 1);
-                MemIoImpl.poke8(memptr, dec8(work8));
+                poke8(memptr, dec8(work8));
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
             case 0x36: { /* LD (IX+d),n */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 regPC = (regPC + 1) & 0xffff;
-                int work8 = MemIoImpl.peek8(regPC);
+                int work8 = peekOperand8();
                 MemIoImpl.addressOnBus(regPC, 2);
                 regPC = (regPC + 1) & 0xffff;
-                MemIoImpl.poke8(memptr, work8);
+                poke8(memptr, work8);
                 break;
             }
             case 0x39: { /* ADD IX,SP */
@@ -4442,7 +4997,7 @@ public class Z80 {
                 break;
             }
             case 0x46: { /* LD B,(IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 regB = MemIoImpl.peek8(memptr);
                 regPC = (regPC + 1) & 0xffff;
@@ -4457,7 +5012,7 @@ public class Z80 {
                 break;
             }
             case 0x4E: { /* LD C,(IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 regC = MemIoImpl.peek8(memptr);
                 regPC = (regPC + 1) & 0xffff;
@@ -4472,7 +5027,7 @@ public class Z80 {
                 break;
             }
             case 0x56: { /* LD D,(IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 regD = MemIoImpl.peek8(memptr);
                 regPC = (regPC + 1) & 0xffff;
@@ -4487,7 +5042,7 @@ public class Z80 {
                 break;
             }
             case 0x5E: { /* LD E,(IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 regE = MemIoImpl.peek8(memptr);
                 regPC = (regPC + 1) & 0xffff;
@@ -4517,7 +5072,7 @@ public class Z80 {
                 break;
             }
             case 0x66: { /* LD H,(IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 regH = MemIoImpl.peek8(memptr);
                 regPC = (regPC + 1) & 0xffff;
@@ -4551,7 +5106,7 @@ public class Z80 {
                 break;
             }
             case 0x6E: { /* LD L,(IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 regL = MemIoImpl.peek8(memptr);
                 regPC = (regPC + 1) & 0xffff;
@@ -4562,51 +5117,51 @@ public class Z80 {
                 break;
             }
             case 0x70: { /* LD (IX+d),B */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
-                MemIoImpl.poke8(memptr, regB);
+                poke8(memptr, regB);
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
             case 0x71: { /* LD (IX+d),C */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
-                MemIoImpl.poke8(memptr, regC);
+                poke8(memptr, regC);
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
             case 0x72: { /* LD (IX+d),D */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
-                MemIoImpl.poke8(memptr, regD);
+                poke8(memptr, regD);
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
             case 0x73: { /* LD (IX+d),E */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
-                MemIoImpl.poke8(memptr, regE);
+                poke8(memptr, regE);
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
             case 0x74: { /* LD (IX+d),H */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
-                MemIoImpl.poke8(memptr, regH);
+                poke8(memptr, regH);
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
             case 0x75: { /* LD (IX+d),L */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
-                MemIoImpl.poke8(memptr, regL);
+                poke8(memptr, regL);
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
             case 0x77: { /* LD (IX+d),A */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
-                MemIoImpl.poke8(memptr, regA);
+                poke8(memptr, regA);
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
@@ -4619,7 +5174,7 @@ public class Z80 {
                 break;
             }
             case 0x7E: { /* LD A,(IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 regA = MemIoImpl.peek8(memptr);
                 regPC = (regPC + 1) & 0xffff;
@@ -4634,7 +5189,7 @@ public class Z80 {
                 break;
             }
             case 0x86: { /* ADD A,(IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 add(MemIoImpl.peek8(memptr));
                 regPC = (regPC + 1) & 0xffff;
@@ -4649,7 +5204,7 @@ public class Z80 {
                 break;
             }
             case 0x8E: { /* ADC A,(IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 adc(MemIoImpl.peek8(memptr));
                 regPC = (regPC + 1) & 0xffff;
@@ -4664,7 +5219,7 @@ public class Z80 {
                 break;
             }
             case 0x96: { /* SUB (IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 sub(MemIoImpl.peek8(memptr));
                 regPC = (regPC + 1) & 0xffff;
@@ -4679,7 +5234,7 @@ public class Z80 {
                 break;
             }
             case 0x9E: { /* SBC A,(IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 sbc(MemIoImpl.peek8(memptr));
                 regPC = (regPC + 1) & 0xffff;
@@ -4694,7 +5249,7 @@ public class Z80 {
                 break;
             }
             case 0xA6: { /* AND (IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 and(MemIoImpl.peek8(memptr));
                 regPC = (regPC + 1) & 0xffff;
@@ -4709,7 +5264,7 @@ public class Z80 {
                 break;
             }
             case 0xAE: { /* XOR (IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 xor(MemIoImpl.peek8(memptr));
                 regPC = (regPC + 1) & 0xffff;
@@ -4724,7 +5279,7 @@ public class Z80 {
                 break;
             }
             case 0xB6: { /* OR (IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 or(MemIoImpl.peek8(memptr));
                 regPC = (regPC + 1) & 0xffff;
@@ -4739,16 +5294,16 @@ public class Z80 {
                 break;
             }
             case 0xBE: { /* CP (IX+d) */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 MemIoImpl.addressOnBus(regPC, 5);
                 cp(MemIoImpl.peek8(memptr));
                 regPC = (regPC + 1) & 0xffff;
                 break;
             }
             case 0xCB: { /* Subconjunto de instrucciones */
-                memptr = (regIXY + (byte) MemIoImpl.peek8(regPC)) & 0xffff;
+                memptr = (regIXY + (byte) peekOperand8()) & 0xffff;
                 regPC = (regPC + 1) & 0xffff;
-                opCode = MemIoImpl.peek8(regPC);
+                opCode = peekOperand8();
                 MemIoImpl.addressOnBus(regPC, 2);
                 regPC = (regPC + 1) & 0xffff;
                 if (opCode < 0x80) {
@@ -4772,8 +5327,8 @@ public class Z80 {
                 int work16 = regIXY;
                 regIXY = MemIoImpl.peek16(regSP);
                 MemIoImpl.addressOnBus((regSP + 1) & 0xffff, 1);
-                MemIoImpl.poke8((regSP + 1) & 0xffff, work16 >>> 8);
-                MemIoImpl.poke8(regSP, work16);
+                poke8((regSP + 1) & 0xffff, work16 >>> 8);
+                poke8(regSP, work16);
                 MemIoImpl.addressOnBus(regSP, 2);
                 memptr = regIXY;
                 break;
@@ -4822,390 +5377,393 @@ public class Z80 {
 
     // Subconjunto de instrucciones 0xDDCB desde el código 0x00 hasta el 0x7F
     private void decodeDDFDCBto7F(int opCode, int address) {
+        if (lazyFlags != LAZY_NONE) {
+            evalFlags();
+        }
 
         switch (opCode) {
             case 0x00: { /* RLC (IX+d),B */
                 regB = rlc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0x01: { /* RLC (IX+d),C */
                 regC = rlc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0x02: { /* RLC (IX+d),D */
                 regD = rlc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0x03: { /* RLC (IX+d),E */
                 regE = rlc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0x04: { /* RLC (IX+d),H */
                 regH = rlc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0x05: { /* RLC (IX+d),L */
                 regL = rlc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0x06: { /* RLC (IX+d) */
                 int work8 = rlc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0x07: { /* RLC (IX+d),A */
                 regA = rlc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0x08: { /* RRC (IX+d),B */
                 regB = rrc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0x09: { /* RRC (IX+d),C */
                 regC = rrc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0x0A: { /* RRC (IX+d),D */
                 regD = rrc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0x0B: { /* RRC (IX+d),E */
                 regE = rrc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0x0C: { /* RRC (IX+d),H */
                 regH = rrc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0x0D: { /* RRC (IX+d),L */
                 regL = rrc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0x0E: { /* RRC (IX+d) */
                 int work8 = rrc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0x0F: { /* RRC (IX+d),A */
                 regA = rrc(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0x10: { /* RL (IX+d),B */
                 regB = rl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0x11: { /* RL (IX+d),C */
                 regC = rl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0x12: { /* RL (IX+d),D */
                 regD = rl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0x13: { /* RL (IX+d),E */
                 regE = rl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0x14: { /* RL (IX+d),H */
                 regH = rl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0x15: { /* RL (IX+d),L */
                 regL = rl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0x16: { /* RL (IX+d) */
                 int work8 = rl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0x17: { /* RL (IX+d),A */
                 regA = rl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0x18: { /* RR (IX+d),B */
                 regB = rr(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0x19: { /* RR (IX+d),C */
                 regC = rr(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0x1A: { /* RR (IX+d),D */
                 regD = rr(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0x1B: { /* RR (IX+d),E */
                 regE = rr(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0x1C: { /* RR (IX+d),H */
                 regH = rr(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0x1D: { /* RR (IX+d),L */
                 regL = rr(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0x1E: { /* RR (IX+d) */
                 int work8 = rr(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0x1F: { /* RR (IX+d),A */
                 regA = rr(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0x20: { /* SLA (IX+d),B */
                 regB = sla(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0x21: { /* SLA (IX+d),C */
                 regC = sla(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0x22: { /* SLA (IX+d),D */
                 regD = sla(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0x23: { /* SLA (IX+d),E */
                 regE = sla(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0x24: { /* SLA (IX+d),H */
                 regH = sla(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0x25: { /* SLA (IX+d),L */
                 regL = sla(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0x26: { /* SLA (IX+d) */
                 int work8 = sla(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0x27: { /* SLA (IX+d),A */
                 regA = sla(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0x28: { /* SRA (IX+d),B */
                 regB = sra(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0x29: { /* SRA (IX+d),C */
                 regC = sra(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0x2A: { /* SRA (IX+d),D */
                 regD = sra(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0x2B: { /* SRA (IX+d),E */
                 regE = sra(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0x2C: { /* SRA (IX+d),H */
                 regH = sra(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0x2D: { /* SRA (IX+d),L */
                 regL = sra(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0x2E: { /* SRA (IX+d) */
                 int work8 = sra(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0x2F: { /* SRA (IX+d),A */
                 regA = sra(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0x30: { /* SLL (IX+d),B */
                 regB = sll(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0x31: { /* SLL (IX+d),C */
                 regC = sll(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0x32: { /* SLL (IX+d),D */
                 regD = sll(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0x33: { /* SLL (IX+d),E */
                 regE = sll(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0x34: { /* SLL (IX+d),H */
                 regH = sll(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0x35: { /* SLL (IX+d),L */
                 regL = sll(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0x36: { /* SLL (IX+d) */
                 int work8 = sll(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0x37: { /* SLL (IX+d),A */
                 regA = sll(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0x38: { /* SRL (IX+d),B */
                 regB = srl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0x39: { /* SRL (IX+d),C */
                 regC = srl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0x3A: { /* SRL (IX+d),D */
                 regD = srl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0x3B: { /* SRL (IX+d),E */
                 regE = srl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0x3C: { /* SRL (IX+d),H */
                 regH = srl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0x3D: { /* SRL (IX+d),L */
                 regL = srl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0x3E: { /* SRL (IX+d) */
                 int work8 = srl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0x3F: { /* SRL (IX+d),A */
                 regA = srl(MemIoImpl.peek8(address));
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0x40:
@@ -5330,769 +5888,769 @@ public class Z80 {
             case 0x80: { /* RES 0,(IX+d),B */
                 regB = MemIoImpl.peek8(address) & 0xFE;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0x81: { /* RES 0,(IX+d),C */
                 regC = MemIoImpl.peek8(address) & 0xFE;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0x82: { /* RES 0,(IX+d),D */
                 regD = MemIoImpl.peek8(address) & 0xFE;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0x83: { /* RES 0,(IX+d),E */
                 regE = MemIoImpl.peek8(address) & 0xFE;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0x84: { /* RES 0,(IX+d),H */
                 regH = MemIoImpl.peek8(address) & 0xFE;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0x85: { /* RES 0,(IX+d),L */
                 regL = MemIoImpl.peek8(address) & 0xFE;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0x86: { /* RES 0,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) & 0xFE;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0x87: { /* RES 0,(IX+d),A */
                 regA = MemIoImpl.peek8(address) & 0xFE;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0x88: { /* RES 1,(IX+d),B */
                 regB = MemIoImpl.peek8(address) & 0xFD;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0x89: { /* RES 1,(IX+d),C */
                 regC = MemIoImpl.peek8(address) & 0xFD;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0x8A: { /* RES 1,(IX+d),D */
                 regD = MemIoImpl.peek8(address) & 0xFD;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0x8B: { /* RES 1,(IX+d),E */
                 regE = MemIoImpl.peek8(address) & 0xFD;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0x8C: { /* RES 1,(IX+d),H */
                 regH = MemIoImpl.peek8(address) & 0xFD;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0x8D: { /* RES 1,(IX+d),L */
                 regL = MemIoImpl.peek8(address) & 0xFD;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0x8E: { /* RES 1,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) & 0xFD;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0x8F: { /* RES 1,(IX+d),A */
                 regA = MemIoImpl.peek8(address) & 0xFD;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0x90: { /* RES 2,(IX+d),B */
                 regB = MemIoImpl.peek8(address) & 0xFB;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0x91: { /* RES 2,(IX+d),C */
                 regC = MemIoImpl.peek8(address) & 0xFB;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0x92: { /* RES 2,(IX+d),D */
                 regD = MemIoImpl.peek8(address) & 0xFB;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0x93: { /* RES 2,(IX+d),E */
                 regE = MemIoImpl.peek8(address) & 0xFB;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0x94: { /* RES 2,(IX+d),H */
                 regH = MemIoImpl.peek8(address) & 0xFB;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0x95: { /* RES 2,(IX+d),L */
                 regL = MemIoImpl.peek8(address) & 0xFB;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0x96: { /* RES 2,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) & 0xFB;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0x97: { /* RES 2,(IX+d),A */
                 regA = MemIoImpl.peek8(address) & 0xFB;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0x98: { /* RES 3,(IX+d),B */
                 regB = MemIoImpl.peek8(address) & 0xF7;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0x99: { /* RES 3,(IX+d),C */
                 regC = MemIoImpl.peek8(address) & 0xF7;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0x9A: { /* RES 3,(IX+d),D */
                 regD = MemIoImpl.peek8(address) & 0xF7;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0x9B: { /* RES 3,(IX+d),E */
                 regE = MemIoImpl.peek8(address) & 0xF7;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0x9C: { /* RES 3,(IX+d),H */
                 regH = MemIoImpl.peek8(address) & 0xF7;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0x9D: { /* RES 3,(IX+d),L */
                 regL = MemIoImpl.peek8(address) & 0xF7;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0x9E: { /* RES 3,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) & 0xF7;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0x9F: { /* RES 3,(IX+d),A */
                 regA = MemIoImpl.peek8(address) & 0xF7;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0xA0: { /* RES 4,(IX+d),B */
                 regB = MemIoImpl.peek8(address) & 0xEF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0xA1: { /* RES 4,(IX+d),C */
                 regC = MemIoImpl.peek8(address) & 0xEF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0xA2: { /* RES 4,(IX+d),D */
                 regD = MemIoImpl.peek8(address) & 0xEF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0xA3: { /* RES 4,(IX+d),E */
                 regE = MemIoImpl.peek8(address) & 0xEF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0xA4: { /* RES 4,(IX+d),H */
                 regH = MemIoImpl.peek8(address) & 0xEF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0xA5: { /* RES 4,(IX+d),L */
                 regL = MemIoImpl.peek8(address) & 0xEF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0xA6: { /* RES 4,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) & 0xEF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0xA7: { /* RES 4,(IX+d),A */
                 regA = MemIoImpl.peek8(address) & 0xEF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0xA8: { /* RES 5,(IX+d),B */
                 regB = MemIoImpl.peek8(address) & 0xDF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0xA9: { /* RES 5,(IX+d),C */
                 regC = MemIoImpl.peek8(address) & 0xDF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0xAA: { /* RES 5,(IX+d),D */
                 regD = MemIoImpl.peek8(address) & 0xDF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0xAB: { /* RES 5,(IX+d),E */
                 regE = MemIoImpl.peek8(address) & 0xDF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0xAC: { /* RES 5,(IX+d),H */
                 regH = MemIoImpl.peek8(address) & 0xDF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0xAD: { /* RES 5,(IX+d),L */
                 regL = MemIoImpl.peek8(address) & 0xDF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0xAE: { /* RES 5,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) & 0xDF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0xAF: { /* RES 5,(IX+d),A */
                 regA = MemIoImpl.peek8(address) & 0xDF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0xB0: { /* RES 6,(IX+d),B */
                 regB = MemIoImpl.peek8(address) & 0xBF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0xB1: { /* RES 6,(IX+d),C */
                 regC = MemIoImpl.peek8(address) & 0xBF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0xB2: { /* RES 6,(IX+d),D */
                 regD = MemIoImpl.peek8(address) & 0xBF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0xB3: { /* RES 6,(IX+d),E */
                 regE = MemIoImpl.peek8(address) & 0xBF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0xB4: { /* RES 6,(IX+d),H */
                 regH = MemIoImpl.peek8(address) & 0xBF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0xB5: { /* RES 6,(IX+d),L */
                 regL = MemIoImpl.peek8(address) & 0xBF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0xB6: { /* RES 6,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) & 0xBF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0xB7: { /* RES 6,(IX+d),A */
                 regA = MemIoImpl.peek8(address) & 0xBF;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0xB8: { /* RES 7,(IX+d),B */
                 regB = MemIoImpl.peek8(address) & 0x7F;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0xB9: { /* RES 7,(IX+d),C */
                 regC = MemIoImpl.peek8(address) & 0x7F;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0xBA: { /* RES 7,(IX+d),D */
                 regD = MemIoImpl.peek8(address) & 0x7F;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0xBB: { /* RES 7,(IX+d),E */
                 regE = MemIoImpl.peek8(address) & 0x7F;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0xBC: { /* RES 7,(IX+d),H */
                 regH = MemIoImpl.peek8(address) & 0x7F;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0xBD: { /* RES 7,(IX+d),L */
                 regL = MemIoImpl.peek8(address) & 0x7F;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0xBE: { /* RES 7,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) & 0x7F;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0xBF: { /* RES 7,(IX+d),A */
                 regA = MemIoImpl.peek8(address) & 0x7F;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0xC0: { /* SET 0,(IX+d),B */
                 regB = MemIoImpl.peek8(address) | 0x01;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0xC1: { /* SET 0,(IX+d),C */
                 regC = MemIoImpl.peek8(address) | 0x01;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0xC2: { /* SET 0,(IX+d),D */
                 regD = MemIoImpl.peek8(address) | 0x01;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0xC3: { /* SET 0,(IX+d),E */
                 regE = MemIoImpl.peek8(address) | 0x01;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0xC4: { /* SET 0,(IX+d),H */
                 regH = MemIoImpl.peek8(address) | 0x01;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0xC5: { /* SET 0,(IX+d),L */
                 regL = MemIoImpl.peek8(address) | 0x01;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0xC6: { /* SET 0,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) | 0x01;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0xC7: { /* SET 0,(IX+d),A */
                 regA = MemIoImpl.peek8(address) | 0x01;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0xC8: { /* SET 1,(IX+d),B */
                 regB = MemIoImpl.peek8(address) | 0x02;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0xC9: { /* SET 1,(IX+d),C */
                 regC = MemIoImpl.peek8(address) | 0x02;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0xCA: { /* SET 1,(IX+d),D */
                 regD = MemIoImpl.peek8(address) | 0x02;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0xCB: { /* SET 1,(IX+d),E */
                 regE = MemIoImpl.peek8(address) | 0x02;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0xCC: { /* SET 1,(IX+d),H */
                 regH = MemIoImpl.peek8(address) | 0x02;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0xCD: { /* SET 1,(IX+d),L */
                 regL = MemIoImpl.peek8(address) | 0x02;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0xCE: { /* SET 1,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) | 0x02;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0xCF: { /* SET 1,(IX+d),A */
                 regA = MemIoImpl.peek8(address) | 0x02;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0xD0: { /* SET 2,(IX+d),B */
                 regB = MemIoImpl.peek8(address) | 0x04;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0xD1: { /* SET 2,(IX+d),C */
                 regC = MemIoImpl.peek8(address) | 0x04;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0xD2: { /* SET 2,(IX+d),D */
                 regD = MemIoImpl.peek8(address) | 0x04;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0xD3: { /* SET 2,(IX+d),E */
                 regE = MemIoImpl.peek8(address) | 0x04;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0xD4: { /* SET 2,(IX+d),H */
                 regH = MemIoImpl.peek8(address) | 0x04;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0xD5: { /* SET 2,(IX+d),L */
                 regL = MemIoImpl.peek8(address) | 0x04;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0xD6: { /* SET 2,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) | 0x04;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0xD7: { /* SET 2,(IX+d),A */
                 regA = MemIoImpl.peek8(address) | 0x04;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0xD8: { /* SET 3,(IX+d),B */
                 regB = MemIoImpl.peek8(address) | 0x08;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0xD9: { /* SET 3,(IX+d),C */
                 regC = MemIoImpl.peek8(address) | 0x08;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0xDA: { /* SET 3,(IX+d),D */
                 regD = MemIoImpl.peek8(address) | 0x08;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0xDB: { /* SET 3,(IX+d),E */
                 regE = MemIoImpl.peek8(address) | 0x08;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0xDC: { /* SET 3,(IX+d),H */
                 regH = MemIoImpl.peek8(address) | 0x08;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0xDD: { /* SET 3,(IX+d),L */
                 regL = MemIoImpl.peek8(address) | 0x08;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0xDE: { /* SET 3,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) | 0x08;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0xDF: { /* SET 3,(IX+d),A */
                 regA = MemIoImpl.peek8(address) | 0x08;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0xE0: { /* SET 4,(IX+d),B */
                 regB = MemIoImpl.peek8(address) | 0x10;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0xE1: { /* SET 4,(IX+d),C */
                 regC = MemIoImpl.peek8(address) | 0x10;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0xE2: { /* SET 4,(IX+d),D */
                 regD = MemIoImpl.peek8(address) | 0x10;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0xE3: { /* SET 4,(IX+d),E */
                 regE = MemIoImpl.peek8(address) | 0x10;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0xE4: { /* SET 4,(IX+d),H */
                 regH = MemIoImpl.peek8(address) | 0x10;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0xE5: { /* SET 4,(IX+d),L */
                 regL = MemIoImpl.peek8(address) | 0x10;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0xE6: { /* SET 4,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) | 0x10;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0xE7: { /* SET 4,(IX+d),A */
                 regA = MemIoImpl.peek8(address) | 0x10;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0xE8: { /* SET 5,(IX+d),B */
                 regB = MemIoImpl.peek8(address) | 0x20;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0xE9: { /* SET 5,(IX+d),C */
                 regC = MemIoImpl.peek8(address) | 0x20;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0xEA: { /* SET 5,(IX+d),D */
                 regD = MemIoImpl.peek8(address) | 0x20;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0xEB: { /* SET 5,(IX+d),E */
                 regE = MemIoImpl.peek8(address) | 0x20;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0xEC: { /* SET 5,(IX+d),H */
                 regH = MemIoImpl.peek8(address) | 0x20;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0xED: { /* SET 5,(IX+d),L */
                 regL = MemIoImpl.peek8(address) | 0x20;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0xEE: { /* SET 5,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) | 0x20;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0xEF: { /* SET 5,(IX+d),A */
                 regA = MemIoImpl.peek8(address) | 0x20;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0xF0: { /* SET 6,(IX+d),B */
                 regB = MemIoImpl.peek8(address) | 0x40;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0xF1: { /* SET 6,(IX+d),C */
                 regC = MemIoImpl.peek8(address) | 0x40;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0xF2: { /* SET 6,(IX+d),D */
                 regD = MemIoImpl.peek8(address) | 0x40;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0xF3: { /* SET 6,(IX+d),E */
                 regE = MemIoImpl.peek8(address) | 0x40;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0xF4: { /* SET 6,(IX+d),H */
                 regH = MemIoImpl.peek8(address) | 0x40;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0xF5: { /* SET 6,(IX+d),L */
                 regL = MemIoImpl.peek8(address) | 0x40;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0xF6: { /* SET 6,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) | 0x40;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0xF7: { /* SET 6,(IX+d),A */
                 regA = MemIoImpl.peek8(address) | 0x40;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
             case 0xF8: { /* SET 7,(IX+d),B */
                 regB = MemIoImpl.peek8(address) | 0x80;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regB);
+                poke8(address, regB);
                 break;
             }
             case 0xF9: { /* SET 7,(IX+d),C */
                 regC = MemIoImpl.peek8(address) | 0x80;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regC);
+                poke8(address, regC);
                 break;
             }
             case 0xFA: { /* SET 7,(IX+d),D */
                 regD = MemIoImpl.peek8(address) | 0x80;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regD);
+                poke8(address, regD);
                 break;
             }
             case 0xFB: { /* SET 7,(IX+d),E */
                 regE = MemIoImpl.peek8(address) | 0x80;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regE);
+                poke8(address, regE);
                 break;
             }
             case 0xFC: { /* SET 7,(IX+d),H */
                 regH = MemIoImpl.peek8(address) | 0x80;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regH);
+                poke8(address, regH);
                 break;
             }
             case 0xFD: { /* SET 7,(IX+d),L */
                 regL = MemIoImpl.peek8(address) | 0x80;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regL);
+                poke8(address, regL);
                 break;
             }
             case 0xFE: { /* SET 7,(IX+d) */
                 int work8 = MemIoImpl.peek8(address) | 0x80;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, work8);
+                poke8(address, work8);
                 break;
             }
             case 0xFF: { /* SET 7,(IX+d),A */
                 regA = MemIoImpl.peek8(address) | 0x80;
                 MemIoImpl.addressOnBus(address, 1);
-                MemIoImpl.poke8(address, regA);
+                poke8(address, regA);
                 break;
             }
         }
@@ -6100,6 +6658,10 @@ public class Z80 {
 
     //Subconjunto de instrucciones 0xED
     private void decodeED(int opCode) {
+        if (flagsNeededED[opCode] && lazyFlags != LAZY_NONE) {
+            evalFlags();
+        }
+
         prefixOpcode = 0;
         switch (opCode) {
             case 0x40: { /* IN B,(C) */
@@ -6120,8 +6682,8 @@ public class Z80 {
                 break;
             }
             case 0x43: { /* LD (nn),BC */
-                memptr = MemIoImpl.peek16(regPC);
-                MemIoImpl.poke16(memptr++, getRegBC());
+                memptr = peekOperand16();
+                poke16(memptr++, getRegBC());
                 regPC = (regPC + 2) & 0xffff;
                 break;
             }
@@ -6184,7 +6746,7 @@ public class Z80 {
                 break;
             }
             case 0x4B: { /* LD BC,(nn) */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 setRegBC(MemIoImpl.peek16(memptr++));
                 regPC = (regPC + 2) & 0xffff;
                 break;
@@ -6212,8 +6774,8 @@ public class Z80 {
                 break;
             }
             case 0x53: { /* LD (nn),DE */
-                memptr = MemIoImpl.peek16(regPC);
-                MemIoImpl.poke16(memptr++, getRegDE());
+                memptr = peekOperand16();
+                poke16(memptr++, getRegDE());
                 regPC = (regPC + 2) & 0xffff;
                 break;
             }
@@ -6250,7 +6812,7 @@ public class Z80 {
                 break;
             }
             case 0x5B: { /* LD DE,(nn) */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 setRegDE(MemIoImpl.peek16(memptr++));
                 regPC = (regPC + 2) & 0xffff;
                 break;
@@ -6288,8 +6850,8 @@ public class Z80 {
                 break;
             }
             case 0x63: { /* LD (nn),HL */
-                memptr = MemIoImpl.peek16(regPC);
-                MemIoImpl.poke16(memptr++, getRegHL());
+                memptr = peekOperand16();
+                poke16(memptr++, getRegHL());
                 regPC = (regPC + 2) & 0xffff;
                 break;
             }
@@ -6315,7 +6877,7 @@ public class Z80 {
                 break;
             }
             case 0x6B: { /* LD HL,(nn) */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 setRegHL(MemIoImpl.peek16(memptr++));
                 regPC = (regPC + 2) & 0xffff;
                 break;
@@ -6342,8 +6904,8 @@ public class Z80 {
                 break;
             }
             case 0x73: { /* LD (nn),SP */
-                memptr = MemIoImpl.peek16(regPC);
-                MemIoImpl.poke16(memptr++, regSP);
+                memptr = peekOperand16();
+                poke16(memptr++, regSP);
                 regPC = (regPC + 2) & 0xffff;
                 break;
             }
@@ -6365,7 +6927,7 @@ public class Z80 {
                 break;
             }
             case 0x7B: { /* LD SP,(nn) */
-                memptr = MemIoImpl.peek16(regPC);
+                memptr = peekOperand16();
                 regSP = MemIoImpl.peek16(memptr++);
                 regPC = (regPC + 2) & 0xffff;
                 break;
@@ -6422,6 +6984,9 @@ public class Z80 {
                 break;
             }
             case 0xB2: { /* INIR */
+                if (regB != 1 && MemIoImpl.isBlockPort(getRegBC())) {
+                    inirBlock();
+                }
                 ini();
                 if (regB != 0) {
                     regPC = (regPC - 2) & 0xffff;
@@ -6430,6 +6995,9 @@ public class Z80 {
                 break;
             }
             case 0xB3: { /* OTIR */
+                if (regB != 1 && MemIoImpl.isBlockPort(((regB - 1) & 0xff) << 8 | regC)) {
+                    otirBlock();
+                }
                 outi();
                 if (regB != 0) {
                     regPC = (regPC - 2) & 0xffff;